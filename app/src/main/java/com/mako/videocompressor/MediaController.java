@@ -15,9 +15,7 @@ import android.graphics.Matrix;
 import android.graphics.Point;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
-import android.media.MediaExtractor;
 import android.media.MediaFormat;
-import android.media.MediaMetadataRetriever;
 import android.os.Build;
 import android.util.Log;
 
@@ -27,15 +25,32 @@ import com.mako.videocompressor.utils.CacheUtils;
 import com.mako.videocompressor.utils.FileLog;
 import com.mako.videocompressor.utils.PhotoFilterView;
 import com.mako.videocompressor.utils.VideoEditedInfo;
+import com.mako.videocompressor.video.ConversionJournal;
+import com.mako.videocompressor.video.Extractor;
 import com.mako.videocompressor.video.MediaCodecVideoConvertor;
+import com.mako.videocompressor.video.MediaInfo;
+import com.mako.videocompressor.video.MediaProber;
+import com.mako.videocompressor.video.ResultCache;
+import com.mako.videocompressor.video.SizeEstimator;
+import com.mako.videocompressor.video.Mp4Demuxer;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 
 public class MediaController {
 
     public final static String VIDEO_MIME_TYPE = "video/avc";
     public final static String AUIDO_MIME_TYPE = "audio/mp4a-latm";
 
+    private final static int MAX_SIZE_LIMIT_RETRIES = 1;
+    private final static long SHARED_CONVERSION_POLL_MS = 100;
+
+    private static final HashMap<ByteBuffer, SharedConversion> sharedConversions = new HashMap<>();
+
     public static class SavedFilterState {
         public float enhanceValue;
         public float softenSkinValue;
@@ -93,18 +108,19 @@ public class MediaController {
 //            return null;
 //        }
 
-        int originalBitrate = MediaController.getVideoBitrate(videoPath);
+        MediaInfo mediaInfo = probe(videoPath);
+        int originalBitrate = mediaInfo.bitrate;
 //        if (originalBitrate == -1) {
 //            originalBitrate = params[AnimatedFileDrawable.PARAM_NUM_BITRATE];
 //        }
         int bitrate = originalBitrate;
-        float videoDuration = MediaController.getVideoDuration(videoPath);
+        float videoDuration = mediaInfo.duration;
 //        long videoFramesSize = params[AnimatedFileDrawable.PARAM_NUM_VIDEO_FRAME_SIZE];
 //        long audioFramesSize = params[AnimatedFileDrawable.PARAM_NUM_AUDIO_FRAME_SIZE];
-        int videoFramerate = MediaController.getVideoFramerate(videoPath);
-        int videoWidth = MediaController.getVideoWidth(videoPath);
-        int videoHeight = MediaController.getVideoHeight(videoPath);
-        int videoRotation = MediaController.getVideoRotation(videoPath);
+        int videoFramerate = mediaInfo.framerate;
+        int videoWidth = mediaInfo.width;
+        int videoHeight = mediaInfo.height;
+        int videoRotation = mediaInfo.rotation;
 
         if (Build.VERSION.SDK_INT < 18) {
             try {
@@ -203,20 +219,43 @@ public class MediaController {
             videoEditedInfo.resultWidth = videoEditedInfo.originalWidth;
             videoEditedInfo.resultHeight = videoEditedInfo.originalHeight;
             videoEditedInfo.bitrate = bitrate;
-//            videoEditedInfo.estimatedSize = (int) (audioFramesSize + videoDuration / 1000.0f * bitrate / 8);
         } else {
             videoEditedInfo.bitrate = bitrate;
-//            videoEditedInfo.estimatedSize = (int) (audioFramesSize + videoFramesSize);
-//            videoEditedInfo.estimatedSize += videoEditedInfo.estimatedSize / (32 * 1024) * 16;
         }
-//        if (videoEditedInfo.estimatedSize == 0) {
-//            videoEditedInfo.estimatedSize = 1;
-//        }
+        videoEditedInfo.estimatedSize = estimateSize(videoEditedInfo, mediaInfo);
+        if (videoEditedInfo.estimatedSize == 0) {
+            videoEditedInfo.estimatedSize = 1;
+        }
 
         return videoEditedInfo;
     }
 
-    public static int findTrack(MediaExtractor extractor, boolean audio) {
+    public static long estimateSize(VideoEditedInfo info) {
+        return estimateSize(info, probe(info.originalPath));
+    }
+
+    private static long estimateSize(VideoEditedInfo info, MediaInfo mediaInfo) {
+        boolean needResize = info.resultWidth != info.originalWidth || info.resultHeight != info.originalHeight;
+        boolean needTranscode = hasVisualEdits(info) || needResize;
+        boolean smartCut = info.smartCut && !needTranscode && (info.cropState == null || isRotationOnly(info.cropState)) && (info.startTime > 0 || info.endTime > 0);
+        boolean needCompress = needTranscode || info.startTime != -1 && !smartCut;
+        return SizeEstimator.estimate(mediaInfo, info.startTime, info.endTime, info.bitrate, needCompress, info.bitrate == -1);
+    }
+
+    private static boolean hasVisualEdits(VideoEditedInfo info) {
+        return info.avatarStartTime != -1 || info.cropState != null && !isRotationOnly(info.cropState) && !isLosslessCropCandidate(info.cropState, info.rotationValue) || info.mediaEntities != null || info.paintPath != null || info.filterState != null || info.roundVideo;
+    }
+
+    public static boolean isRotationOnly(CropState cropState) {
+        return cropState.cropPx == 0 && cropState.cropPy == 0 && cropState.cropScale == 1 && cropState.cropRotate == 0 &&
+                cropState.cropPw == 1 && cropState.cropPh == 1 && !cropState.mirrored && cropState.transformRotation % 90 == 0;
+    }
+
+    private static boolean isLosslessCropCandidate(CropState cropState, int rotationValue) {
+        return rotationValue == 0 && cropState.transformRotation == 0 && cropState.cropScale == 1 && cropState.cropRotate == 0 && !cropState.mirrored;
+    }
+
+    public static int findTrack(Extractor extractor, boolean audio) {
         int numTracks = extractor.getTrackCount();
         for (int i = 0; i < numTracks; i++) {
             MediaFormat format = extractor.getTrackFormat(i);
@@ -234,12 +273,80 @@ public class MediaController {
         return -5;
     }
 
+    public static int findTrack(Mp4Demuxer demuxer, boolean audio) {
+        return demuxer.findTrack(audio);
+    }
+
+    private static File findJournalFile(File dir, byte[] settings) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return null;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(".mp4.journal") && ConversionJournal.getOutputFile(file).exists() && ConversionJournal.matches(file, settings)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
     public static boolean convertVideo(final VideoEditedInfo info, VideoCompressorListener compressorListener) {
 //        MessageObject messageObject = convertMessage.messageObject;
 //        VideoEditedInfo info = convertMessage.videoEditedInfo;
         if (info == null) {
             return false;
         }
+        byte[] settings = info.originalPath != null && !info.isPhoto ? info.serializeSettings() : null;
+        if (settings == null) {
+            SharedConversion conversion = new SharedConversion(info);
+            conversion.attach(info, compressorListener);
+            return doConvertVideo(conversion);
+        }
+        // the size fallbacks are not part of the settings but decide whether a caller gets the original back
+        ByteBuffer key = ByteBuffer.allocate(settings.length + 8);
+        key.put(settings).putFloat(info.minSizeSaving).putFloat(info.maxOutputRatio).flip();
+        SharedConversion conversion;
+        boolean leader;
+        while (true) {
+            SharedConversion running;
+            synchronized (sharedConversions) {
+                running = sharedConversions.get(key);
+                if (running == null) {
+                    conversion = new SharedConversion(info);
+                    conversion.attach(info, compressorListener);
+                    sharedConversions.put(key, conversion);
+                    leader = true;
+                    break;
+                }
+                if (running.attach(info, compressorListener)) {
+                    conversion = running;
+                    leader = false;
+                    break;
+                }
+            }
+            // the running conversion is finishing or was cancelled by all of its callers, wait for it to leave the map
+            running.await(null);
+        }
+        if (!leader) {
+            if (BuildVars.LOGS_ENABLED) {
+                FileLog.d("attach to running conversion of " + info.originalPath);
+            }
+            conversion.replay(info, compressorListener);
+            return conversion.await(info);
+        }
+        try {
+            return doConvertVideo(conversion);
+        } finally {
+            synchronized (sharedConversions) {
+                sharedConversions.remove(key);
+            }
+            conversion.finish();
+        }
+    }
+
+    private static boolean doConvertVideo(final SharedConversion conversion) {
+        final VideoEditedInfo info = conversion.info;
+        final VideoCompressorListener compressorListener = conversion;
         String videoPath = info.originalPath;
         long startTime = info.startTime;
         long avatarStartTime = info.avatarStartTime;
@@ -252,11 +359,75 @@ public class MediaController {
         int framerate = info.framerate;
         int bitrate = info.bitrate;
         int originalBitrate = info.originalBitrate;
+        boolean passthrough = false;
+        MediaInfo mediaInfo = null;
+        long sourceSize = 0;
+        String resultKey = null;
+        // set once a size fallback makes the output differ from what the settings describe, such outputs stay out of
+        // the result cache
+        boolean adjusted = false;
+        if (info.resultCache && videoPath != null && !info.isPhoto) {
+            byte[] settings = info.serializeOutputSettings();
+            if (settings != null) {
+                try {
+                    resultKey = ResultCache.createKey(new File(videoPath), settings);
+                } catch (Exception e) {
+                    FileLog.e(e);
+                }
+            }
+            File cached = null;
+            if (resultKey != null) {
+                File videoDir = new File(CacheUtils.getVideoFilePath(ApplicationLoader.applicationContext));
+                cached = getResultCache().get(resultKey, new File(videoDir, "Video_Compressor_" + System.currentTimeMillis() + ".mp4"));
+            }
+            if (cached != null) {
+                info.estimatedSize = cached.length();
+                compressorListener.compressor(cached.toString(), cached.length(), 1f, info);
+                return true;
+            }
+        }
+        if (videoPath != null && !info.isPhoto) {
+            mediaInfo = probe(videoPath);
+            info.estimatedSize = estimateSize(info, mediaInfo);
+            sourceSize = SizeEstimator.getSourceSize(mediaInfo, startTime, endTime);
+            if (info.minSizeSaving > 0 && sourceSize > 0 && !hasVisualEdits(info) && info.estimatedSize > sourceSize * (1 - info.minSizeSaving)) {
+                if (startTime <= 0 && endTime <= 0 && bitrate != -1) {
+                    if (BuildVars.LOGS_ENABLED) {
+                        FileLog.d("estimated size " + info.estimatedSize + " saves less than " + info.minSizeSaving + " of " + sourceSize + ", keep original");
+                    }
+                    info.estimatedSize = mediaInfo.fileSize;
+                    compressorListener.compressor(videoPath, mediaInfo.fileSize, 1f, info);
+                    return true;
+                }
+                if (BuildVars.LOGS_ENABLED) {
+                    FileLog.d("estimated size " + info.estimatedSize + " saves less than " + info.minSizeSaving + " of " + sourceSize + ", remux");
+                }
+                passthrough = true;
+                adjusted = true;
+                resultWidth = originalWidth;
+                resultHeight = originalHeight;
+                info.estimatedSize = SizeEstimator.estimate(mediaInfo, startTime, endTime, bitrate, false, bitrate == -1);
+            }
+        }
 //        boolean isSecret = DialogObject.isEncryptedDialog(messageObject.getDialogId());
-        String fileName = "Video_Compressor_" + System.currentTimeMillis() + ".mp4";
-        final File cacheFile = new File(CacheUtils.getVideoFilePath(ApplicationLoader.applicationContext), fileName);
-        if (cacheFile.exists()) {
-            cacheFile.delete();
+        File videoDir = new File(CacheUtils.getVideoFilePath(ApplicationLoader.applicationContext));
+        byte[] journalSettings = info.journal && info.originalPath != null ? info.serializeSettings() : null;
+        File journalFile = journalSettings != null ? findJournalFile(videoDir, journalSettings) : null;
+        final File cacheFile;
+        if (journalFile != null) {
+            cacheFile = ConversionJournal.getOutputFile(journalFile);
+            if (BuildVars.LOGS_ENABLED) {
+                FileLog.d("found journal for " + cacheFile);
+            }
+        } else {
+            String fileName = "Video_Compressor_" + System.currentTimeMillis() + ".mp4";
+            cacheFile = new File(videoDir, fileName);
+            if (cacheFile.exists()) {
+                cacheFile.delete();
+            }
+            if (journalSettings != null) {
+                journalFile = ConversionJournal.getJournalFile(cacheFile);
+            }
         }
         if (BuildVars.LOGS_ENABLED) {
             FileLog.d("begin convert " + videoPath + " startTime = " + startTime + " avatarStartTime = " + avatarStartTime + " endTime " + endTime + " rWidth = " + resultWidth + " rHeight = " + resultHeight + " rotation = " + rotationValue + " oWidth = " + originalWidth + " oHeight = " + originalHeight + " framerate = " + framerate + " bitrate = " + bitrate + " originalBitrate = " + originalBitrate);
@@ -283,14 +454,16 @@ public class MediaController {
             framerate = 59;
         }*/
 
+        boolean needResize = resultWidth != originalWidth || resultHeight != originalHeight;
         if (rotationValue == 90 || rotationValue == 270) {
             int temp = resultHeight;
             resultHeight = resultWidth;
             resultWidth = temp;
         }
 
-        boolean needCompress = avatarStartTime != -1 || info.cropState != null || info.mediaEntities != null || info.paintPath != null || info.filterState != null ||
-                resultWidth != originalWidth || resultHeight != originalHeight || rotationValue != 0 || info.roundVideo || startTime != -1;
+        boolean needTranscode = hasVisualEdits(info) || needResize;
+        boolean smartCut = (info.smartCut || passthrough) && !needTranscode && (info.cropState == null || isRotationOnly(info.cropState)) && (startTime > 0 || endTime > 0);
+        boolean needCompress = needTranscode || startTime != -1 && !smartCut;
 
 
         SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("videoconvert", Activity.MODE_PRIVATE);
@@ -303,12 +476,12 @@ public class MediaController {
 
             @Override
             public boolean checkConversionCanceled() {
-                return info.canceled;
+                return conversion.isCanceled();
             }
 
             @Override
             public void didWriteData(long availableSize, float progress) {
-                if (info.canceled) {
+                if (conversion.isCanceled()) {
                     return;
                 }
                 if (availableSize < 0) {
@@ -329,18 +502,82 @@ public class MediaController {
 //        info.videoConvertFirstWrite = true;
 
         MediaCodecVideoConvertor videoConvertor = new MediaCodecVideoConvertor();
-        boolean error = videoConvertor.convertVideo(videoPath, cacheFile,
-                rotationValue,
-                resultWidth, resultHeight,
-                framerate, bitrate, originalBitrate,
-                startTime, endTime, avatarStartTime,
-                needCompress, duration,
-                info.filterState,
-                info.paintPath,
-                info.mediaEntities,
-                info.isPhoto,
-                info.cropState,
-                callback);
+        videoConvertor.setFastStart(info.fastStart);
+        videoConvertor.setFragmented(info.fragmented);
+        videoConvertor.setSyncPolicy(info.syncPolicy);
+        videoConvertor.setAsyncWrite(info.asyncWrite);
+        videoConvertor.setInterleaveDuration(info.interleaveDurationUs);
+        videoConvertor.setSmartCut(smartCut);
+        videoConvertor.setTranscodeSegments(info.transcodeSegments);
+        videoConvertor.setPipelined(info.pipelined);
+        videoConvertor.setAsyncCodecs(info.asyncCodecs);
+        String timeoutCodecsKey = "increasedTimeoutCodecs_" + Build.MANUFACTURER + "_" + Build.MODEL + "_" + Build.VERSION.SDK_INT;
+        Set<String> timeoutCodecs = preferences.getStringSet(timeoutCodecsKey, null);
+        videoConvertor.setIncreasedTimeoutCodecs(timeoutCodecs);
+        if (journalFile != null) {
+            videoConvertor.setJournal(journalFile, journalSettings);
+        }
+        long sizeLimit = info.maxOutputRatio > 0 && needCompress ? (long) (sourceSize * info.maxOutputRatio) : 0;
+        videoConvertor.setSizeLimit(sizeLimit);
+        boolean error;
+        int sizeLimitRetries = 0;
+        while (true) {
+            error = videoConvertor.convertVideo(videoPath, cacheFile,
+                    rotationValue,
+                    resultWidth, resultHeight,
+                    framerate, bitrate, originalBitrate,
+                    startTime, endTime, avatarStartTime,
+                    needCompress, duration,
+                    info.filterState,
+                    info.paintPath,
+                    info.mediaEntities,
+                    info.isPhoto,
+                    info.cropState,
+                    callback);
+            if (!error || !videoConvertor.isSizeLimitExceeded() || conversion.isCanceled()) {
+                break;
+            }
+            long projectedSize = videoConvertor.getProjectedSize();
+            if (journalFile != null) {
+                journalFile.delete();
+                journalFile = null;
+                videoConvertor.setJournal(null, null);
+            }
+            if (!hasVisualEdits(info)) {
+                if (startTime <= 0 && endTime <= 0 && bitrate != -1) {
+                    if (BuildVars.LOGS_ENABLED) {
+                        FileLog.d("projected size " + projectedSize + " exceeds " + sizeLimit + ", keep original");
+                    }
+                    cacheFile.delete();
+                    info.estimatedSize = mediaInfo.fileSize;
+                    compressorListener.compressor(videoPath, mediaInfo.fileSize, 1f, info);
+                    return true;
+                }
+                if (BuildVars.LOGS_ENABLED) {
+                    FileLog.d("projected size " + projectedSize + " exceeds " + sizeLimit + ", remux");
+                }
+                boolean swap = rotationValue == 90 || rotationValue == 270;
+                resultWidth = swap ? originalHeight : originalWidth;
+                resultHeight = swap ? originalWidth : originalHeight;
+                needCompress = false;
+                adjusted = true;
+                videoConvertor.setSmartCut(true);
+                videoConvertor.setSizeLimit(0);
+                info.estimatedSize = SizeEstimator.estimate(mediaInfo, startTime, endTime, bitrate, false, bitrate == -1);
+            } else if (sizeLimitRetries++ < MAX_SIZE_LIMIT_RETRIES && bitrate > 0) {
+                bitrate = (int) (bitrate * (sizeLimit / (double) projectedSize) * 0.9);
+                adjusted = true;
+                if (BuildVars.LOGS_ENABLED) {
+                    FileLog.d("projected size " + projectedSize + " exceeds " + sizeLimit + ", retry with bitrate " + bitrate);
+                }
+                info.estimatedSize = SizeEstimator.estimate(mediaInfo, startTime, endTime, bitrate, true, false);
+            } else {
+                break;
+            }
+        }
+        if (journalFile != null) {
+            journalFile.delete();
+        }
 
 
 //        boolean canceled = info.canceled;
@@ -354,94 +591,64 @@ public class MediaController {
 //            FileLog.d("time=" + (System.currentTimeMillis() - time) + " canceled=" + canceled);
 //        }
 
-        preferences.edit().putBoolean("isPreviousOk", true).apply();
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putBoolean("isPreviousOk", true);
+        String timeoutCodec = videoConvertor.getIncreasedTimeoutCodec();
+        if (!error && timeoutCodec != null) {
+            HashSet<String> codecs = timeoutCodecs != null ? new HashSet<>(timeoutCodecs) : new HashSet<>();
+            codecs.add(timeoutCodec);
+            editor.putStringSet(timeoutCodecsKey, codecs);
+        }
+        editor.apply();
+        if (!error && !conversion.isCanceled()) {
+            SizeEstimator.report(info.estimatedSize, cacheFile.length());
+            if (resultKey != null && !adjusted) {
+                getResultCache().put(resultKey, cacheFile);
+            }
+        }
         didWriteData(cacheFile, true, videoConvertor.getLastFrameTimestamp(), cacheFile.length(), error, 1f);
         compressorListener.compressor(cacheFile.toString(),cacheFile.length(), 1f, info);
         return true;
     }
 
-    public static int getVideoBitrate(String path) {
-        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-        int bitrate = 0;
-        try {
-            retriever.setDataSource(path);
-            bitrate = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE));
-        } catch (Exception e) {
-            FileLog.e(e);
+    public static MediaInfo probe(String path) {
+        MediaProber prober = MediaProber.getInstance();
+        if (!prober.hasCacheFile() && ApplicationLoader.applicationContext != null) {
+            prober.setCacheFile(new File(ApplicationLoader.applicationContext.getCacheDir(), "media_info.dat"));
         }
-
-        retriever.release();
-        return bitrate;
+        return prober.probe(path);
     }
 
-    public static float getVideoDuration(String path) {
-        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-        float duration = 0;
-        try {
-            retriever.setDataSource(path);
-            duration = Float.parseFloat(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
-        } catch (Exception e) {
-            FileLog.e(e);
+    public static ResultCache getResultCache() {
+        ResultCache cache = ResultCache.getInstance();
+        if (!cache.hasIndexFile() && ApplicationLoader.applicationContext != null) {
+            cache.setIndexFile(new File(ApplicationLoader.applicationContext.getCacheDir(), "result_cache.dat"));
         }
+        return cache;
+    }
 
-        retriever.release();
-        return duration;
+    public static int getVideoBitrate(String path) {
+        return probe(path).bitrate;
     }
 
-    public static int getVideoFramerate(String path) {
-        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-        int framerate = 0;
-        try {
-            retriever.setDataSource(path);
-            framerate = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_CAPTURE_FRAMERATE));
-        } catch (Exception e) {
-            FileLog.e(e);
-        }
+    public static float getVideoDuration(String path) {
+        return probe(path).duration;
+    }
 
-        retriever.release();
-        return framerate;
+    public static int getVideoFramerate(String path) {
+        return probe(path).framerate;
     }
 
     public static int getVideoWidth(String path) {
-        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-        int width = 0;
-        try {
-            retriever.setDataSource(path);
-            width = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
-        } catch (Exception e) {
-            FileLog.e(e);
-        }
-
-        retriever.release();
-        return width;
+        return probe(path).width;
     }
 
     public static int getVideoHeight(String path) {
-        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-        int height = 0;
-        try {
-            retriever.setDataSource(path);
-            height = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
-        } catch (Exception e) {
-            FileLog.e(e);
-        }
-
-        retriever.release();
-        return height;
+        return probe(path).height;
     }
 
     public static int getVideoRotation(String path) {
-        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-        int rotation = 0;
-        try {
-            retriever.setDataSource(path);
-            rotation = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION));
-        } catch (Exception e) {
-            FileLog.e(e);
-        }
-
-        retriever.release();
-        return rotation;
+        return probe(path).rotation;
     }
 
     public static int makeVideoBitrate(int originalHeight, int originalWidth, int originalBitrate, int height, int width) {
@@ -481,6 +688,99 @@ public class MediaController {
         return (int) (f * 2000f * 1000f * 1.13f);
     }
 
+    // One running conversion and the callers attached to it. Progress is fanned out to every caller that has not
+    // cancelled, and the conversion itself is only cancelled once all of them have.
+    private static class SharedConversion implements VideoCompressorListener {
+
+        private final VideoEditedInfo info;
+        private final ArrayList<VideoEditedInfo> infos = new ArrayList<>();
+        private final ArrayList<VideoCompressorListener> listeners = new ArrayList<>();
+        private String lastFile;
+        private long lastAvailableSize;
+        private float lastProgress;
+        private boolean finished;
+
+        SharedConversion(VideoEditedInfo info) {
+            this.info = info;
+        }
+
+        synchronized boolean attach(VideoEditedInfo attachInfo, VideoCompressorListener listener) {
+            if (finished || attachInfo != info && isCanceled()) {
+                return false;
+            }
+            infos.add(attachInfo);
+            listeners.add(listener);
+            return true;
+        }
+
+        // Brings a caller that attached mid-way up to the last reported progress. Called without any lock held so
+        // listener callbacks never run under the shared conversions map.
+        void replay(VideoEditedInfo attachInfo, VideoCompressorListener listener) {
+            String file;
+            long availableSize;
+            float progress;
+            synchronized (this) {
+                file = lastFile;
+                availableSize = lastAvailableSize;
+                progress = lastProgress;
+            }
+            if (file != null) {
+                attachInfo.estimatedSize = info.estimatedSize;
+                listener.compressor(file, availableSize, progress, attachInfo);
+            }
+        }
+
+        synchronized boolean isCanceled() {
+            for (int a = infos.size() - 1; a >= 0; a--) {
+                if (infos.get(a).canceled) {
+                    infos.remove(a);
+                    listeners.remove(a);
+                }
+            }
+            return infos.isEmpty();
+        }
+
+        @Override
+        public void compressor(String cacheFile, long availableSize, float progress, VideoEditedInfo ignore) {
+            ArrayList<VideoEditedInfo> currentInfos;
+            ArrayList<VideoCompressorListener> currentListeners;
+            synchronized (this) {
+                lastFile = cacheFile;
+                lastAvailableSize = availableSize;
+                lastProgress = progress;
+                isCanceled();
+                currentInfos = new ArrayList<>(infos);
+                currentListeners = new ArrayList<>(listeners);
+            }
+            for (int a = 0; a < currentInfos.size(); a++) {
+                VideoEditedInfo attachedInfo = currentInfos.get(a);
+                attachedInfo.estimatedSize = info.estimatedSize;
+                currentListeners.get(a).compressor(cacheFile, availableSize, progress, attachedInfo);
+            }
+        }
+
+        synchronized void finish() {
+            finished = true;
+            notifyAll();
+        }
+
+        synchronized boolean await(VideoEditedInfo attachedInfo) {
+            while (!finished) {
+                if (attachedInfo != null && attachedInfo.canceled) {
+                    isCanceled();
+                    return true;
+                }
+                try {
+                    wait(SHARED_CONVERSION_POLL_MS);
+                } catch (InterruptedException e) {
+                    FileLog.e(e);
+                    return true;
+                }
+            }
+            return true;
+        }
+    }
+
     public interface VideoConvertorListener {
         boolean checkConversionCanceled();
 
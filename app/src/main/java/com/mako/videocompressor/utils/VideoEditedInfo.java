@@ -13,7 +13,12 @@ import android.view.View;
 
 
 import com.mako.videocompressor.MediaController;
+import com.mako.videocompressor.video.SyncPolicy;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Locale;
 
@@ -47,6 +52,19 @@ public class VideoEditedInfo {
     public ArrayList<MediaEntity> mediaEntities;
     public MediaController.CropState cropState;
     public boolean isPhoto;
+    public boolean fastStart;
+    public boolean fragmented;
+    public SyncPolicy syncPolicy;
+    public boolean asyncWrite;
+    public long interleaveDurationUs;
+    public boolean smartCut;
+    public int transcodeSegments;
+    public boolean pipelined;
+    public boolean asyncCodecs;
+    public boolean journal;
+    public float minSizeSaving = 0.1f;
+    public float maxOutputRatio = 1f;
+    public boolean resultCache = true;
 
     public boolean canceled;
     public boolean videoConvertFirstWrite;
@@ -117,6 +135,21 @@ public class VideoEditedInfo {
 //            data.writeInt32(viewHeight);
 //        }
 
+        private void serializeTo(DataOutputStream data) throws IOException {
+            data.writeByte(type);
+            data.writeByte(subType);
+            data.writeFloat(x);
+            data.writeFloat(y);
+            data.writeFloat(rotation);
+            data.writeFloat(width);
+            data.writeFloat(height);
+            data.writeUTF(text != null ? text : "");
+            data.writeInt(color);
+            data.writeInt(fontSize);
+            data.writeInt(viewWidth);
+            data.writeInt(viewHeight);
+        }
+
         public MediaEntity copy() {
             MediaEntity entity = new MediaEntity();
             entity.type = type;
@@ -371,6 +404,140 @@ public class VideoEditedInfo {
 //        return false;
 //    }
 
+    public byte[] serializeSettings() {
+        try {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream(256);
+            DataOutputStream data = new DataOutputStream(stream);
+            File file = new File(originalPath);
+            data.writeUTF(originalPath);
+            data.writeLong(file.length());
+            data.writeLong(file.lastModified());
+            writeOutputSettings(data);
+            data.flush();
+            return stream.toByteArray();
+        } catch (IOException e) {
+            FileLog.e(e);
+            return null;
+        }
+    }
+
+    public byte[] serializeOutputSettings() {
+        try {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream(256);
+            DataOutputStream data = new DataOutputStream(stream);
+            writeOutputSettings(data);
+            data.flush();
+            return stream.toByteArray();
+        } catch (IOException e) {
+            FileLog.e(e);
+            return null;
+        }
+    }
+
+    // Only the settings that decide the output bytes. How the conversion runs (asyncWrite, transcodeSegments,
+    // pipelined, asyncCodecs) and when it falls back to the original (minSizeSaving, maxOutputRatio) are left out.
+    private void writeOutputSettings(DataOutputStream data) throws IOException {
+        data.writeLong(startTime);
+        data.writeLong(endTime);
+        data.writeLong(avatarStartTime);
+        data.writeInt(rotationValue);
+        data.writeInt(originalWidth);
+        data.writeInt(originalHeight);
+        data.writeInt(originalBitrate);
+        data.writeInt(resultWidth);
+        data.writeInt(resultHeight);
+        data.writeInt(bitrate);
+        data.writeInt(framerate);
+        data.writeLong(originalDuration);
+        data.writeBoolean(roundVideo);
+        data.writeBoolean(muted);
+        data.writeBoolean(isPhoto);
+        data.writeBoolean(fastStart);
+        data.writeBoolean(fragmented);
+        data.writeLong(interleaveDurationUs);
+        data.writeBoolean(smartCut);
+        if (filterState != null) {
+            data.writeByte(1);
+            data.writeFloat(filterState.enhanceValue);
+            data.writeFloat(filterState.softenSkinValue);
+            data.writeFloat(filterState.exposureValue);
+            data.writeFloat(filterState.contrastValue);
+            data.writeFloat(filterState.warmthValue);
+            data.writeFloat(filterState.saturationValue);
+            data.writeFloat(filterState.fadeValue);
+            data.writeInt(filterState.tintShadowsColor);
+            data.writeInt(filterState.tintHighlightsColor);
+            data.writeFloat(filterState.highlightsValue);
+            data.writeFloat(filterState.shadowsValue);
+            data.writeFloat(filterState.vignetteValue);
+            data.writeFloat(filterState.grainValue);
+            data.writeInt(filterState.blurType);
+            data.writeFloat(filterState.sharpenValue);
+            data.writeFloat(filterState.blurExcludeSize);
+            if (filterState.blurExcludePoint != null) {
+                data.writeFloat(filterState.blurExcludePoint.x);
+                data.writeFloat(filterState.blurExcludePoint.y);
+            } else {
+                data.writeFloat(0);
+                data.writeFloat(0);
+            }
+            data.writeFloat(filterState.blurExcludeBlurSize);
+            data.writeFloat(filterState.blurAngle);
+            for (int a = 0; a < 4; a++) {
+                PhotoFilterView.CurvesValue curvesValue;
+                if (a == 0) {
+                    curvesValue = filterState.curvesToolValue.luminanceCurve;
+                } else if (a == 1) {
+                    curvesValue = filterState.curvesToolValue.redCurve;
+                } else if (a == 2) {
+                    curvesValue = filterState.curvesToolValue.greenCurve;
+                } else {
+                    curvesValue = filterState.curvesToolValue.blueCurve;
+                }
+                data.writeFloat(curvesValue.blacksLevel);
+                data.writeFloat(curvesValue.shadowsLevel);
+                data.writeFloat(curvesValue.midtonesLevel);
+                data.writeFloat(curvesValue.highlightsLevel);
+                data.writeFloat(curvesValue.whitesLevel);
+            }
+        } else {
+            data.writeByte(0);
+        }
+        if (paintPath != null) {
+            File paintFile = new File(paintPath);
+            data.writeByte(1);
+            data.writeUTF(paintPath);
+            data.writeLong(paintFile.length());
+            data.writeLong(paintFile.lastModified());
+        } else {
+            data.writeByte(0);
+        }
+        if (mediaEntities != null && !mediaEntities.isEmpty()) {
+            data.writeByte(1);
+            data.writeInt(mediaEntities.size());
+            for (int a = 0, N = mediaEntities.size(); a < N; a++) {
+                mediaEntities.get(a).serializeTo(data);
+            }
+        } else {
+            data.writeByte(0);
+        }
+        if (cropState != null) {
+            data.writeByte(1);
+            data.writeFloat(cropState.cropPx);
+            data.writeFloat(cropState.cropPy);
+            data.writeFloat(cropState.cropPw);
+            data.writeFloat(cropState.cropPh);
+            data.writeFloat(cropState.cropScale);
+            data.writeFloat(cropState.cropRotate);
+            data.writeInt(cropState.transformWidth);
+            data.writeInt(cropState.transformHeight);
+            data.writeInt(cropState.transformRotation);
+            data.writeBoolean(cropState.mirrored);
+        } else {
+            data.writeByte(0);
+        }
+    }
+
     public boolean needConvert() {
         return mediaEntities != null || paintPath != null || filterState != null || cropState != null || !roundVideo || startTime > 0 || endTime != -1 && endTime != estimatedDuration;
     }
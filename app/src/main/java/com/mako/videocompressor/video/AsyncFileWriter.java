@@ -0,0 +1,240 @@
+package com.mako.videocompressor.video;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncFileWriter {
+
+    private static final int DEFAULT_BUFFERS_COUNT = 8;
+    private static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private static class Chunk {
+        private final ByteBuffer buffer;
+        private long position;
+        private boolean sync;
+        private boolean last;
+
+        private Chunk(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private final FileChannel channel;
+    private final ArrayBlockingQueue<Chunk> freeChunks;
+    private final ArrayBlockingQueue<Chunk> filledChunks;
+    private final Chunk syncChunk = new Chunk(null);
+    private final Chunk lastChunk = new Chunk(null);
+    private final Thread thread;
+    private Chunk currentChunk;
+    private volatile Throwable error;
+    private volatile long writtenOffset;
+    private final TreeMap<Long, Long> writtenRanges = new TreeMap<>();
+    private volatile int writeCallsCount;
+    private volatile int syncCount;
+    private volatile long syncTimeNs;
+    private volatile long maxSyncTimeNs;
+    private int stallsCount;
+    private long stallsTimeNs;
+
+    public AsyncFileWriter(FileChannel channel) throws IOException {
+        this(channel, DEFAULT_BUFFERS_COUNT, DEFAULT_BUFFER_SIZE);
+    }
+
+    public AsyncFileWriter(FileChannel channel, int buffersCount, int bufferSize) throws IOException {
+        this.channel = channel;
+        writtenOffset = channel.position();
+        freeChunks = new ArrayBlockingQueue<>(buffersCount);
+        filledChunks = new ArrayBlockingQueue<>(buffersCount + 2);
+        for (int a = 0; a < buffersCount; a++) {
+            freeChunks.add(new Chunk(ByteBuffer.allocateDirect(bufferSize)));
+        }
+        syncChunk.sync = true;
+        lastChunk.last = true;
+        thread = new Thread(this::run, "AsyncFileWriter");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    public void write(ByteBuffer src, long position) throws IOException {
+        checkError();
+        while (src.hasRemaining()) {
+            if (currentChunk != null && currentChunk.position + currentChunk.buffer.position() != position) {
+                submitCurrentChunk();
+            }
+            if (currentChunk == null) {
+                currentChunk = obtainChunk();
+                currentChunk.position = position;
+            }
+            ByteBuffer buffer = currentChunk.buffer;
+            int count = Math.min(src.remaining(), buffer.remaining());
+            int limit = src.limit();
+            src.limit(src.position() + count);
+            buffer.put(src);
+            src.limit(limit);
+            position += count;
+            if (!buffer.hasRemaining()) {
+                submitCurrentChunk();
+            }
+        }
+    }
+
+    public void sync() throws IOException {
+        checkError();
+        submitCurrentChunk();
+        enqueue(syncChunk);
+    }
+
+    public void finish() throws IOException {
+        submitCurrentChunk();
+        enqueue(lastChunk);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        checkError();
+    }
+
+    // End of the contiguous prefix of the file that has been written, chunks past a gap are not counted until the
+    // gap is filled.
+    public long getWrittenOffset() {
+        return writtenOffset;
+    }
+
+    public int getWriteCallsCount() {
+        return writeCallsCount;
+    }
+
+    public int getSyncCount() {
+        return syncCount;
+    }
+
+    public long getSyncTimeNs() {
+        return syncTimeNs;
+    }
+
+    public long getMaxSyncTimeNs() {
+        return maxSyncTimeNs;
+    }
+
+    public int getStallsCount() {
+        return stallsCount;
+    }
+
+    public long getStallsTimeNs() {
+        return stallsTimeNs;
+    }
+
+    private Chunk obtainChunk() throws IOException {
+        Chunk chunk = freeChunks.poll();
+        if (chunk == null) {
+            long start = System.nanoTime();
+            try {
+                while (chunk == null) {
+                    checkError();
+                    chunk = freeChunks.poll(100, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            stallsCount++;
+            stallsTimeNs += System.nanoTime() - start;
+        }
+        chunk.buffer.clear();
+        return chunk;
+    }
+
+    private void submitCurrentChunk() throws IOException {
+        if (currentChunk == null) {
+            return;
+        }
+        currentChunk.buffer.flip();
+        enqueue(currentChunk);
+        currentChunk = null;
+    }
+
+    private void enqueue(Chunk chunk) throws IOException {
+        try {
+            filledChunks.put(chunk);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw new IOException("async write failed", error);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Chunk chunk;
+            try {
+                chunk = filledChunks.take();
+            } catch (InterruptedException e) {
+                error = e;
+                return;
+            }
+            if (chunk.last) {
+                return;
+            }
+            if (error != null) {
+                if (!chunk.sync) {
+                    freeChunks.offer(chunk);
+                }
+                continue;
+            }
+            try {
+                if (chunk.sync) {
+                    long start = System.nanoTime();
+                    channel.force(true);
+                    long time = System.nanoTime() - start;
+                    syncCount++;
+                    syncTimeNs += time;
+                    maxSyncTimeNs = Math.max(maxSyncTimeNs, time);
+                } else {
+                    long position = chunk.position;
+                    ByteBuffer buffer = chunk.buffer;
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                        writeCallsCount++;
+                    }
+                    markWritten(chunk.position, position);
+                    freeChunks.offer(chunk);
+                }
+            } catch (Throwable e) {
+                error = e;
+                if (!chunk.sync) {
+                    freeChunks.offer(chunk);
+                }
+            }
+        }
+    }
+
+    private void markWritten(long start, long end) {
+        long offset = writtenOffset;
+        if (end <= offset) {
+            return;
+        }
+        if (start > offset) {
+            Long previousEnd = writtenRanges.get(start);
+            if (previousEnd == null || previousEnd < end) {
+                writtenRanges.put(start, end);
+            }
+            return;
+        }
+        offset = end;
+        Map.Entry<Long, Long> range;
+        while ((range = writtenRanges.firstEntry()) != null && range.getKey() <= offset) {
+            writtenRanges.pollFirstEntry();
+            offset = Math.max(offset, range.getValue());
+        }
+        writtenOffset = offset;
+    }
+}
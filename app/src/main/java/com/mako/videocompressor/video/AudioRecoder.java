@@ -1,7 +1,6 @@
 package com.mako.videocompressor.video;
 
 import android.media.MediaCodec;
-import android.media.MediaExtractor;
 import android.media.MediaFormat;
 
 import com.mako.videocompressor.MediaController;
@@ -13,60 +12,72 @@ import java.nio.ByteBuffer;
 
 public class AudioRecoder {
 
-    private ByteBuffer[] decoderInputBuffers;
-    private ByteBuffer[] decoderOutputBuffers;
-    private ByteBuffer[] encoderInputBuffers;
-    private ByteBuffer[] encoderOutputBuffers;
     private final MediaCodec.BufferInfo decoderOutputBufferInfo = new MediaCodec.BufferInfo();
     private final MediaCodec.BufferInfo encoderOutputBufferInfo = new MediaCodec.BufferInfo();
-    private final MediaCodec decoder;
-    private final MediaCodec encoder;
-    private final MediaExtractor extractor;
+    private final Codec decoder;
+    private final Codec encoder;
+    private final Extractor extractor;
 
     private boolean extractorDone = false;
     private boolean decoderDone = false;
     private boolean encoderDone = false;
+    private boolean pendingEndOfStream = false;
 
     private int pendingAudioDecoderOutputBufferIndex = -1;
 
     private final int trackIndex;
 
     private final int TIMEOUT_USEC = 2500;
+    private final int ENCODER_DELAY = 2048;
 
     public long startTime = 0;
     public long endTime = 0;
 
     public final MediaFormat format;
 
-    public AudioRecoder(MediaFormat inputAudioFormat, MediaExtractor extractor, int trackIndex) throws IOException {
+    public AudioRecoder(MediaFormat inputAudioFormat, Extractor extractor, int trackIndex, CodecFactory codecFactory) throws IOException {
+        this(inputAudioFormat, extractor, trackIndex, codecFactory, null);
+    }
+
+    // With an event loop the codecs run on callbacks shared with the video codecs of the job, so a step waiting on
+    // audio returns as soon as a video buffer is ready.
+    public AudioRecoder(MediaFormat inputAudioFormat, Extractor extractor, int trackIndex, CodecFactory codecFactory, CodecEventLoop eventLoop) throws IOException {
         this.extractor = extractor;
         this.trackIndex = trackIndex;
 
-        decoder = MediaCodec.createDecoderByType(inputAudioFormat.getString(MediaFormat.KEY_MIME));
-        decoder.configure(inputAudioFormat, null, null, 0);
+        Codec decoder = codecFactory.createDecoder(inputAudioFormat.getString(MediaFormat.KEY_MIME));
+        if (eventLoop != null) {
+            decoder = eventLoop.wrap(decoder);
+        }
+        this.decoder = decoder;
+        decoder.configure(inputAudioFormat, null, 0);
         decoder.start();
 
 
-        encoder = MediaCodec.createEncoderByType(MediaController.AUIDO_MIME_TYPE);
+        Codec encoder = codecFactory.createEncoder(MediaController.AUIDO_MIME_TYPE);
+        if (eventLoop != null) {
+            encoder = eventLoop.wrap(encoder);
+        }
+        this.encoder = encoder;
         format = MediaFormat.createAudioFormat(MediaController.AUIDO_MIME_TYPE,
                 inputAudioFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE),
                 inputAudioFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
         );
         format.setInteger(MediaFormat.KEY_BIT_RATE, 64 * 1024);
-        encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        encoder.configure(format, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         encoder.start();
+    }
 
-
-        decoderInputBuffers = decoder.getInputBuffers();
-        decoderOutputBuffers = decoder.getOutputBuffers();
-        encoderInputBuffers = encoder.getInputBuffers();
-        encoderOutputBuffers = encoder.getOutputBuffers();
+    public long getEncoderDelayUs() {
+        return ENCODER_DELAY * 1000000L / format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
     }
 
     public void release() {
         try {
             encoder.stop();
             decoder.stop();
+            encoder.release();
+            decoder.release();
             extractor.unselectTrack(trackIndex);
             extractor.release();
         } catch (Exception e) {
@@ -75,18 +86,20 @@ public class AudioRecoder {
     }
 
     public boolean step(MP4Builder muxer, int audioTrackIndex) throws Exception {
+        if (pendingEndOfStream) {
+            int decoderInputBufferIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
+            if (decoderInputBufferIndex >= 0) {
+                decoder.queueInputBuffer(decoderInputBufferIndex, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                pendingEndOfStream = false;
+            }
+        }
         while (!extractorDone) {
             int decoderInputBufferIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
             if (decoderInputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 break;
             }
 
-            ByteBuffer decoderInputBuffer;
-            if (android.os.Build.VERSION.SDK_INT >= 21) {
-                decoderInputBuffer = decoder.getInputBuffer(decoderInputBufferIndex);
-            } else {
-                decoderInputBuffer = decoderInputBuffers[decoderInputBufferIndex];
-            }
+            ByteBuffer decoderInputBuffer = decoder.getInputBuffer(decoderInputBufferIndex);
             int size = extractor.readSampleData(decoderInputBuffer, 0);
 
             long presentationTime = extractor.getSampleTime();
@@ -106,12 +119,16 @@ public class AudioRecoder {
             extractorDone = !extractor.advance();
             if (extractorDone) {
                 decoderInputBufferIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
-                decoder.queueInputBuffer(
-                        decoderInputBufferIndex,
-                        0,
-                        0,
-                        0L,
-                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                if (decoderInputBufferIndex >= 0) {
+                    decoder.queueInputBuffer(
+                            decoderInputBufferIndex,
+                            0,
+                            0,
+                            0L,
+                            MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                } else {
+                    pendingEndOfStream = true;
+                }
             }
             break;
         }
@@ -124,7 +141,6 @@ public class AudioRecoder {
                 break;
             }
             if (decoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                decoderOutputBuffers = decoder.getOutputBuffers();
                 break;
             }
             if (decoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
@@ -148,12 +164,12 @@ public class AudioRecoder {
                 break;
             }
 
-            ByteBuffer encoderInputBuffer = encoderInputBuffers[encoderInputBufferIndex];
+            ByteBuffer encoderInputBuffer = encoder.getInputBuffer(encoderInputBufferIndex);
             int size = decoderOutputBufferInfo.size;
             long presentationTime = decoderOutputBufferInfo.presentationTimeUs;
             if (size >= 0) {
                 ByteBuffer decoderOutputBuffer =
-                        decoderOutputBuffers[pendingAudioDecoderOutputBufferIndex]
+                        decoder.getOutputBuffer(pendingAudioDecoderOutputBufferIndex)
                                 .duplicate();
                 decoderOutputBuffer.position(decoderOutputBufferInfo.offset);
                 decoderOutputBuffer.limit(decoderOutputBufferInfo.offset + size);
@@ -182,7 +198,6 @@ public class AudioRecoder {
                 break;
             }
             if (encoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                encoderOutputBuffers = encoder.getOutputBuffers();
                 break;
             }
             if (encoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
@@ -191,7 +206,7 @@ public class AudioRecoder {
             }
 
             ByteBuffer encoderOutputBuffer =
-                    encoderOutputBuffers[encoderOutputBufferIndex];
+                    encoder.getOutputBuffer(encoderOutputBufferIndex);
             if ((encoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG)
                     != 0) {
                 encoder.releaseOutputBuffer(encoderOutputBufferIndex, false);
@@ -0,0 +1,50 @@
+package com.mako.videocompressor.video;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+public interface Codec {
+
+    interface Callback {
+        void onInputBufferAvailable(Codec codec, int index);
+
+        void onOutputBufferAvailable(Codec codec, int index, MediaCodec.BufferInfo info);
+
+        void onOutputFormatChanged(Codec codec, MediaFormat format);
+
+        void onError(Codec codec, Exception e);
+    }
+
+    String getName();
+
+    // Must be called before configure, null switches back to polling. Returns false if the codec can't deliver callbacks.
+    boolean setCallback(Callback callback);
+
+    void configure(MediaFormat format, FrameRenderer renderer, int flags);
+
+    void start();
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    void signalEndOfInputStream();
+
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    MediaFormat getOutputFormat();
+
+    void releaseOutputBuffer(int index, boolean render);
+
+    void flush();
+
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,433 @@
+package com.mako.videocompressor.video;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Collects callbacks of all codecs of one job, so the job thread reacts to whichever buffer is ready first. Codecs can
+// either post straight to the loop and be driven through next(), or be wrapped so the existing dequeue based loops run
+// on top of callbacks.
+public class CodecEventLoop implements Codec.Callback {
+
+    public static final int EVENT_INPUT_AVAILABLE = 0;
+    public static final int EVENT_OUTPUT_AVAILABLE = 1;
+    public static final int EVENT_FORMAT_CHANGED = 2;
+    public static final int EVENT_ERROR = 3;
+
+    public static class Event {
+        public Codec codec;
+        public int type;
+        public int index;
+        public final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        public MediaFormat format;
+        public Exception error;
+        private long postTimeNs;
+    }
+
+    private final ArrayDeque<Event> events = new ArrayDeque<>();
+    private final ArrayDeque<Event> pool = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition posted = lock.newCondition();
+
+    private long eventsCount;
+    private long latencyNs;
+    private long maxLatencyNs;
+    private long waitTimeNs;
+    private long signalsCount;
+    private long earlyWakeupsCount;
+
+    @Override
+    public void onInputBufferAvailable(Codec codec, int index) {
+        Event event = obtain(codec, EVENT_INPUT_AVAILABLE);
+        event.index = index;
+        post(event);
+    }
+
+    @Override
+    public void onOutputBufferAvailable(Codec codec, int index, MediaCodec.BufferInfo info) {
+        Event event = obtain(codec, EVENT_OUTPUT_AVAILABLE);
+        event.index = index;
+        event.info.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+        post(event);
+    }
+
+    @Override
+    public void onOutputFormatChanged(Codec codec, MediaFormat format) {
+        Event event = obtain(codec, EVENT_FORMAT_CHANGED);
+        event.format = format;
+        post(event);
+    }
+
+    @Override
+    public void onError(Codec codec, Exception e) {
+        Event event = obtain(codec, EVENT_ERROR);
+        event.error = e;
+        post(event);
+    }
+
+    private Event obtain(Codec codec, int type) {
+        Event event;
+        lock.lock();
+        try {
+            event = pool.poll();
+        } finally {
+            lock.unlock();
+        }
+        if (event == null) {
+            event = new Event();
+        }
+        event.codec = codec;
+        event.type = type;
+        event.index = -1;
+        event.format = null;
+        event.error = null;
+        return event;
+    }
+
+    private void post(Event event) {
+        lock.lock();
+        try {
+            event.postTimeNs = System.nanoTime();
+            events.add(event);
+            signalsCount++;
+            posted.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Event next(long timeoutUs) {
+        lock.lock();
+        try {
+            long start = System.nanoTime();
+            long remaining = TimeUnit.MICROSECONDS.toNanos(timeoutUs);
+            while (events.isEmpty() && remaining > 0) {
+                try {
+                    remaining = posted.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("interrupted while waiting for codec events");
+                }
+            }
+            long now = System.nanoTime();
+            waitTimeNs += now - start;
+            Event event = events.poll();
+            if (event != null) {
+                long latency = now - event.postTimeNs;
+                eventsCount++;
+                latencyNs += latency;
+                maxLatencyNs = Math.max(maxLatencyNs, latency);
+            }
+            return event;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void recycle(Event event) {
+        event.codec = null;
+        event.format = null;
+        event.error = null;
+        lock.lock();
+        try {
+            pool.add(event);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            events.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Switches codec to callback mode on this loop and returns it adapted back to dequeue calls. A codec that can't
+    // deliver callbacks is returned as is and keeps polling.
+    public Codec wrap(Codec codec) {
+        CallbackCodec callbackCodec = new CallbackCodec(this, codec);
+        return codec.setCallback(callbackCodec) ? callbackCodec : codec;
+    }
+
+    public static Codec unwrap(Codec codec) {
+        return codec instanceof CallbackCodec ? ((CallbackCodec) codec).codec : codec;
+    }
+
+    public long getEarlyWakeupsCount() {
+        return earlyWakeupsCount;
+    }
+
+    public long getEventsCount() {
+        return eventsCount;
+    }
+
+    public long getAverageLatencyUs() {
+        return eventsCount == 0 ? 0 : latencyNs / eventsCount / 1000;
+    }
+
+    public long getMaxLatencyUs() {
+        return maxLatencyNs / 1000;
+    }
+
+    public long getWaitTimeUs() {
+        return waitTimeNs / 1000;
+    }
+
+    // Serves the dequeue calls of one codec from its own callbacks. A dequeue waits for this codec's buffers but gives
+    // up as soon as another codec of the job posts an event, so the polling loop moves on to whichever codec became
+    // ready instead of sitting out its timeout.
+    private static class CallbackCodec implements Codec, Codec.Callback {
+
+        private final CodecEventLoop loop;
+        private final Codec codec;
+        private final ArrayDeque<Integer> inputs = new ArrayDeque<>();
+        private final ArrayDeque<Event> outputs = new ArrayDeque<>();
+        private MediaFormat outputFormat;
+        private Exception error;
+
+        private CallbackCodec(CodecEventLoop loop, Codec codec) {
+            this.loop = loop;
+            this.codec = codec;
+        }
+
+        @Override
+        public void onInputBufferAvailable(Codec codec, int index) {
+            loop.lock.lock();
+            try {
+                inputs.add(index);
+                signal();
+            } finally {
+                loop.lock.unlock();
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(Codec codec, int index, MediaCodec.BufferInfo info) {
+            Event event = loop.obtain(this, EVENT_OUTPUT_AVAILABLE);
+            event.index = index;
+            event.info.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+            postOutput(event);
+        }
+
+        @Override
+        public void onOutputFormatChanged(Codec codec, MediaFormat format) {
+            Event event = loop.obtain(this, EVENT_FORMAT_CHANGED);
+            event.format = format;
+            postOutput(event);
+        }
+
+        @Override
+        public void onError(Codec codec, Exception e) {
+            loop.lock.lock();
+            try {
+                error = e;
+                signal();
+            } finally {
+                loop.lock.unlock();
+            }
+        }
+
+        private void postOutput(Event event) {
+            loop.lock.lock();
+            try {
+                event.postTimeNs = System.nanoTime();
+                outputs.add(event);
+                signal();
+            } finally {
+                loop.lock.unlock();
+            }
+        }
+
+        private void signal() {
+            loop.signalsCount++;
+            loop.posted.signalAll();
+        }
+
+        private void checkError() {
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            } else if (error != null) {
+                throw new IllegalStateException(error);
+            }
+        }
+
+        // Returns false once the deadline passed or any codec of the job posted since the dequeue started.
+        private boolean await(long signalsCount, long deadlineNs) {
+            if (loop.signalsCount != signalsCount) {
+                loop.earlyWakeupsCount++;
+                return false;
+            }
+            long start = System.nanoTime();
+            if (deadlineNs - start <= 0) {
+                return false;
+            }
+            try {
+                loop.posted.awaitNanos(deadlineNs - start);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted while waiting for codec events");
+            }
+            loop.waitTimeNs += System.nanoTime() - start;
+            return true;
+        }
+
+        private long getDeadline(long timeoutUs) {
+            return timeoutUs < 0 ? Long.MAX_VALUE : System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(timeoutUs);
+        }
+
+        @Override
+        public int dequeueInputBuffer(long timeoutUs) {
+            loop.lock.lock();
+            try {
+                long signalsCount = loop.signalsCount;
+                long deadlineNs = getDeadline(timeoutUs);
+                while (true) {
+                    checkError();
+                    Integer index = inputs.poll();
+                    if (index != null) {
+                        return index;
+                    }
+                    if (!await(signalsCount, deadlineNs)) {
+                        return MediaCodec.INFO_TRY_AGAIN_LATER;
+                    }
+                }
+            } finally {
+                loop.lock.unlock();
+            }
+        }
+
+        @Override
+        public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+            Event event;
+            loop.lock.lock();
+            try {
+                long signalsCount = loop.signalsCount;
+                long deadlineNs = getDeadline(timeoutUs);
+                while (true) {
+                    checkError();
+                    event = outputs.poll();
+                    if (event != null) {
+                        break;
+                    }
+                    if (!await(signalsCount, deadlineNs)) {
+                        return MediaCodec.INFO_TRY_AGAIN_LATER;
+                    }
+                }
+                long latency = System.nanoTime() - event.postTimeNs;
+                loop.eventsCount++;
+                loop.latencyNs += latency;
+                loop.maxLatencyNs = Math.max(loop.maxLatencyNs, latency);
+                if (event.type == EVENT_FORMAT_CHANGED) {
+                    outputFormat = event.format;
+                }
+            } finally {
+                loop.lock.unlock();
+            }
+            int index = event.type == EVENT_FORMAT_CHANGED ? MediaCodec.INFO_OUTPUT_FORMAT_CHANGED : event.index;
+            if (event.type == EVENT_OUTPUT_AVAILABLE) {
+                info.set(event.info.offset, event.info.size, event.info.presentationTimeUs, event.info.flags);
+            }
+            loop.recycle(event);
+            return index;
+        }
+
+        @Override
+        public String getName() {
+            return codec.getName();
+        }
+
+        @Override
+        public boolean setCallback(Callback callback) {
+            return false;
+        }
+
+        @Override
+        public void configure(MediaFormat format, FrameRenderer renderer, int flags) {
+            codec.configure(format, renderer, flags);
+        }
+
+        @Override
+        public void start() {
+            codec.start();
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            return codec.getInputBuffer(index);
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+            codec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+        }
+
+        @Override
+        public void signalEndOfInputStream() {
+            codec.signalEndOfInputStream();
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return codec.getOutputBuffer(index);
+        }
+
+        @Override
+        public MediaFormat getOutputFormat() {
+            loop.lock.lock();
+            try {
+                if (outputFormat != null) {
+                    return outputFormat;
+                }
+            } finally {
+                loop.lock.unlock();
+            }
+            return codec.getOutputFormat();
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index, boolean render) {
+            codec.releaseOutputBuffer(index, render);
+        }
+
+        // a flushed codec drops every buffer it handed out and only resumes callbacks after another start
+        @Override
+        public void flush() {
+            codec.flush();
+            clear();
+            codec.start();
+        }
+
+        @Override
+        public void stop() {
+            codec.stop();
+            clear();
+        }
+
+        @Override
+        public void release() {
+            codec.release();
+            clear();
+        }
+
+        private void clear() {
+            loop.lock.lock();
+            try {
+                inputs.clear();
+                Event event;
+                while ((event = outputs.poll()) != null) {
+                    loop.recycle(event);
+                }
+            } finally {
+                loop.lock.unlock();
+            }
+        }
+    }
+}
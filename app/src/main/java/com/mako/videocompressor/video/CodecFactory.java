@@ -0,0 +1,22 @@
+package com.mako.videocompressor.video;
+
+import com.mako.videocompressor.MediaController;
+import com.mako.videocompressor.utils.VideoEditedInfo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+public interface CodecFactory {
+
+    Codec createDecoder(String mime) throws IOException;
+
+    Codec createEncoder(String mime) throws IOException;
+
+    Extractor createExtractor(String path) throws IOException;
+
+    FrameRenderer createRenderer(Codec encoder, MediaController.SavedFilterState savedFilterState, String imagePath, String paintPath,
+                                 ArrayList<VideoEditedInfo.MediaEntity> mediaEntities, MediaController.CropState cropState,
+                                 int w, int h, int rotation, float fps, boolean photo);
+
+    int getMaxInstances(String mime);
+}
@@ -0,0 +1,413 @@
+package com.mako.videocompressor.video;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.mako.videocompressor.utils.FileLog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// Append-only sidecar of the muxer state at journaled key frames, so a killed job can reopen its output and resume.
+public class ConversionJournal implements Closeable {
+
+    private static final int MAGIC = 0x4a524e4c;
+    private static final int VERSION = 1;
+
+    private static final int RECORD_TRACK = 1;
+    private static final int RECORD_DESCRIPTION = 2;
+    private static final int RECORD_WINDOW = 3;
+    private static final int RECORD_TIME_OFFSET = 4;
+    private static final int RECORD_CHECKPOINT = 5;
+
+    private static final float DEFAULT_MAX_OVERHEAD = 0.01f;
+
+    private static final String[] INTEGER_KEYS = {MediaFormat.KEY_WIDTH, MediaFormat.KEY_HEIGHT, MediaFormat.KEY_SAMPLE_RATE, MediaFormat.KEY_CHANNEL_COUNT, "max-bitrate", "level", "profile"};
+    private static final String[] BUFFER_KEYS = {"csd-0", "csd-1"};
+
+    public static class Replay {
+        private final File file;
+        private long length;
+        private final ArrayList<byte[]> records = new ArrayList<>();
+        private long[] muxerState;
+        private long[] state;
+
+        private Replay(File file) {
+            this.file = file;
+        }
+
+        public long[] getState() {
+            return state;
+        }
+
+        long[] getMuxerState() {
+            return muxerState;
+        }
+
+        void apply(Mp4Movie movie) throws IOException {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            for (int a = 0; a < records.size(); a++) {
+                DataInputStream input = new DataInputStream(new ByteArrayInputStream(records.get(a)));
+                int type = input.readByte();
+                if (type == RECORD_TRACK) {
+                    boolean audio = input.readBoolean();
+                    movie.addTrack(readFormat(input), audio);
+                } else if (type == RECORD_DESCRIPTION) {
+                    int trackIndex = (int) readVarLong(input);
+                    movie.addSampleDescription(trackIndex, readFormat(input));
+                } else if (type == RECORD_WINDOW) {
+                    int trackIndex = (int) readVarLong(input);
+                    movie.setPresentationWindow(trackIndex, input.readLong(), input.readLong());
+                } else if (type == RECORD_TIME_OFFSET) {
+                    int trackIndex = (int) readVarLong(input);
+                    movie.setMediaTimeOffset(trackIndex, input.readLong());
+                } else if (type == RECORD_CHECKPOINT) {
+                    readLongs(input);
+                    readLongs(input);
+                    int tracksCount = (int) readVarLong(input);
+                    for (int t = 0; t < tracksCount; t++) {
+                        Track track = movie.getTracks().get(t);
+                        int count = (int) readVarLong(input);
+                        for (int i = 0; i < count; i++) {
+                            int index = track.getSampleCount();
+                            long offset = index > 0 ? track.getSampleOffset(index - 1) + track.getSampleSize(index - 1) : 0;
+                            long time = index > 0 ? track.getSamplePresentationTime(index - 1) : 0;
+                            offset += readZigZag(input);
+                            int size = (int) readVarLong(input);
+                            time += readZigZag(input);
+                            int flags = (int) readVarLong(input);
+                            track.setSampleDescriptionIndex(flags >> 1);
+                            info.set(0, size, (time * 1000000L + track.getTimeScale() / 2) / track.getTimeScale(), (flags & 1) != 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                            track.addSample(offset, info);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private final File file;
+    private final FileOutputStream stream;
+    private final FileChannel channel;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+    private final DataOutputStream output = new DataOutputStream(buffer);
+    private final CRC32 crc = new CRC32();
+    private float maxOverhead = DEFAULT_MAX_OVERHEAD;
+    private long bytesWritten;
+    private int checkpointsCount;
+    private int skippedCount;
+
+    public ConversionJournal(File file, byte[] settings) throws IOException {
+        this.file = file;
+        stream = new FileOutputStream(file);
+        channel = stream.getChannel();
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(settings.length);
+        output.write(settings);
+        crc.reset();
+        crc.update(settings);
+        output.writeInt((int) crc.getValue());
+        write(ByteBuffer.wrap(buffer.toByteArray()));
+    }
+
+    private ConversionJournal(Replay replay) throws IOException {
+        file = replay.file;
+        stream = new FileOutputStream(file, true);
+        channel = stream.getChannel();
+        channel.truncate(replay.length);
+        bytesWritten = replay.length;
+    }
+
+    public static ConversionJournal append(Replay replay) throws IOException {
+        return new ConversionJournal(replay);
+    }
+
+    public static File getJournalFile(File outputFile) {
+        return new File(outputFile.getPath() + ".journal");
+    }
+
+    public static File getOutputFile(File journalFile) {
+        String path = journalFile.getPath();
+        return new File(path.substring(0, path.length() - ".journal".length()));
+    }
+
+    public static boolean matches(File file, byte[] settings) {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            return readSettings(input, settings);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public static Replay read(File file, byte[] settings) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            if (!readSettings(input, settings)) {
+                return null;
+            }
+            Replay replay = new Replay(file);
+            CRC32 crc = new CRC32();
+            long length = input.length();
+            int checkpointsCount = 0;
+            while (input.getFilePointer() + 8 <= length) {
+                int size = input.readInt();
+                if (size <= 0 || input.getFilePointer() + size + 4 > length) {
+                    break;
+                }
+                byte[] record = new byte[size];
+                input.readFully(record);
+                crc.reset();
+                crc.update(record);
+                if (input.readInt() != (int) crc.getValue()) {
+                    break;
+                }
+                replay.records.add(record);
+                if (record[0] == RECORD_CHECKPOINT) {
+                    checkpointsCount = replay.records.size();
+                    replay.length = input.getFilePointer();
+                }
+            }
+            if (checkpointsCount == 0) {
+                return null;
+            }
+            while (replay.records.size() > checkpointsCount) {
+                replay.records.remove(replay.records.size() - 1);
+            }
+            DataInputStream checkpoint = new DataInputStream(new ByteArrayInputStream(replay.records.get(checkpointsCount - 1)));
+            checkpoint.readByte();
+            replay.muxerState = readLongs(checkpoint);
+            replay.state = readLongs(checkpoint);
+            return replay;
+        } catch (Exception e) {
+            FileLog.e(e);
+            return null;
+        }
+    }
+
+    private static boolean readSettings(RandomAccessFile input, byte[] settings) throws IOException {
+        if (input.length() < 16 || input.readInt() != MAGIC || input.readInt() != VERSION || input.readInt() != settings.length || input.length() < 16 + settings.length) {
+            return false;
+        }
+        byte[] stored = new byte[settings.length];
+        input.readFully(stored);
+        CRC32 crc = new CRC32();
+        crc.update(stored);
+        return input.readInt() == (int) crc.getValue() && Arrays.equals(stored, settings);
+    }
+
+    public void setMaxOverhead(float value) {
+        maxOverhead = value;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public int getCheckpointsCount() {
+        return checkpointsCount;
+    }
+
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+
+    void writeTrack(boolean audio, MediaFormat format) throws IOException {
+        beginRecord(RECORD_TRACK);
+        output.writeBoolean(audio);
+        writeFormat(format);
+        write(endRecord());
+    }
+
+    void writeSampleDescription(int trackIndex, MediaFormat format) throws IOException {
+        beginRecord(RECORD_DESCRIPTION);
+        writeVarLong(trackIndex);
+        writeFormat(format);
+        write(endRecord());
+    }
+
+    void writePresentationWindow(int trackIndex, long startUs, long endUs) throws IOException {
+        beginRecord(RECORD_WINDOW);
+        writeVarLong(trackIndex);
+        output.writeLong(startUs);
+        output.writeLong(endUs);
+        write(endRecord());
+    }
+
+    void writeMediaTimeOffset(int trackIndex, long offsetUs) throws IOException {
+        beginRecord(RECORD_TIME_OFFSET);
+        writeVarLong(trackIndex);
+        output.writeLong(offsetUs);
+        write(endRecord());
+    }
+
+    ByteBuffer createCheckpoint(long[] muxerState, long[] state, ArrayList<Track> tracks, int[] fromCounts, int[] toCounts) throws IOException {
+        beginRecord(RECORD_CHECKPOINT);
+        writeLongs(muxerState);
+        writeLongs(state);
+        writeVarLong(toCounts.length);
+        for (int t = 0; t < toCounts.length; t++) {
+            Track track = tracks.get(t);
+            int from = t < fromCounts.length ? fromCounts[t] : 0;
+            writeVarLong(toCounts[t] - from);
+            for (int i = from; i < toCounts[t]; i++) {
+                long offset = i > 0 ? track.getSampleOffset(i - 1) + track.getSampleSize(i - 1) : 0;
+                long time = i > 0 ? track.getSamplePresentationTime(i - 1) : 0;
+                writeZigZag(track.getSampleOffset(i) - offset);
+                writeVarLong(track.getSampleSize(i));
+                writeZigZag(track.getSamplePresentationTime(i) - time);
+                writeVarLong(track.getSampleDescriptionIndex(i) << 1 | (track.isSyncSample(i) ? 1 : 0));
+            }
+        }
+        return endRecord();
+    }
+
+    boolean writeCheckpoint(ByteBuffer record, long dataBytes) throws IOException {
+        if (bytesWritten + record.remaining() > dataBytes * maxOverhead) {
+            skippedCount++;
+            return false;
+        }
+        write(record);
+        checkpointsCount++;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        stream.close();
+    }
+
+    public void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            FileLog.e(e);
+        }
+        file.delete();
+    }
+
+    private void beginRecord(int type) throws IOException {
+        buffer.reset();
+        output.writeByte(type);
+    }
+
+    private ByteBuffer endRecord() throws IOException {
+        output.flush();
+        byte[] data = buffer.toByteArray();
+        crc.reset();
+        crc.update(data);
+        ByteBuffer record = ByteBuffer.allocate(data.length + 8);
+        record.putInt(data.length);
+        record.put(data);
+        record.putInt((int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+        bytesWritten += data.remaining();
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    private void writeFormat(MediaFormat format) throws IOException {
+        output.writeUTF(format.getString(MediaFormat.KEY_MIME));
+        for (String key : INTEGER_KEYS) {
+            boolean has = format.containsKey(key);
+            output.writeBoolean(has);
+            if (has) {
+                output.writeInt(format.getInteger(key));
+            }
+        }
+        for (String key : BUFFER_KEYS) {
+            ByteBuffer value = format.containsKey(key) ? format.getByteBuffer(key) : null;
+            output.writeBoolean(value != null);
+            if (value != null) {
+                value = value.duplicate();
+                value.position(0);
+                byte[] bytes = new byte[value.remaining()];
+                value.get(bytes);
+                output.writeInt(bytes.length);
+                output.write(bytes);
+            }
+        }
+    }
+
+    private static MediaFormat readFormat(DataInputStream input) throws IOException {
+        MediaFormat format = new MediaFormat();
+        format.setString(MediaFormat.KEY_MIME, input.readUTF());
+        for (String key : INTEGER_KEYS) {
+            if (input.readBoolean()) {
+                format.setInteger(key, input.readInt());
+            }
+        }
+        for (String key : BUFFER_KEYS) {
+            if (input.readBoolean()) {
+                byte[] bytes = new byte[input.readInt()];
+                input.readFully(bytes);
+                format.setByteBuffer(key, ByteBuffer.wrap(bytes));
+            }
+        }
+        return format;
+    }
+
+    private void writeLongs(long[] values) throws IOException {
+        writeVarLong(values.length);
+        for (long value : values) {
+            writeZigZag(value);
+        }
+    }
+
+    private static long[] readLongs(DataInputStream input) throws IOException {
+        long[] values = new long[(int) readVarLong(input)];
+        for (int a = 0; a < values.length; a++) {
+            values[a] = readZigZag(input);
+        }
+        return values;
+    }
+
+    private void writeZigZag(long value) throws IOException {
+        writeVarLong(value << 1 ^ value >> 63);
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            output.writeByte((int) (value & 0x7f | 0x80));
+            value >>>= 7;
+        }
+        output.writeByte((int) value);
+    }
+
+    private static long readZigZag(DataInputStream input) throws IOException {
+        long value = readVarLong(input);
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    private static long readVarLong(DataInputStream input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed journal varint");
+    }
+}
@@ -0,0 +1,157 @@
+package com.mako.videocompressor.video;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import com.mako.videocompressor.MediaController;
+import com.mako.videocompressor.utils.FileLog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Extractor over Mp4Demuxer. Like MediaExtractor it hands out avc samples with start codes and interleaves the
+// selected tracks, here in file order.
+public class DemuxerExtractor implements Extractor {
+
+    private final Mp4Demuxer demuxer;
+    private final boolean[] selected;
+    private final int[] nextSamples;
+    private int trackIndex = -1;
+
+    public DemuxerExtractor(Mp4Demuxer demuxer) {
+        this.demuxer = demuxer;
+        selected = new boolean[demuxer.getTrackCount()];
+        nextSamples = new int[demuxer.getTrackCount()];
+    }
+
+    @Override
+    public int getTrackCount() {
+        return demuxer.getTrackCount();
+    }
+
+    @Override
+    public MediaFormat getTrackFormat(int index) {
+        return MediaCodecVideoConvertor.createTrackFormat(demuxer.getTrack(index), null, 0, 0);
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        selected[index] = true;
+        nextSamples[index] = 0;
+        trackIndex = -1;
+    }
+
+    @Override
+    public void unselectTrack(int index) {
+        selected[index] = false;
+        trackIndex = -1;
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        for (int a = 0; a < selected.length; a++) {
+            if (selected[a]) {
+                nextSamples[a] = findSample(demuxer.getTrack(a), timeUs, mode);
+            }
+        }
+        trackIndex = -1;
+    }
+
+    private static int findSample(Mp4Demuxer.TrackInfo track, long timeUs, int mode) {
+        int previous = Math.max(track.findSyncSample(timeUs), 0);
+        if (mode == MediaExtractor.SEEK_TO_PREVIOUS_SYNC || track.getSampleCount() == 0 || track.getSampleTimeUs(previous) >= timeUs) {
+            return previous;
+        }
+        int next = previous + 1;
+        while (next < track.getSampleCount() && !track.isSyncSample(next)) {
+            next++;
+        }
+        if (mode == MediaExtractor.SEEK_TO_NEXT_SYNC || next == track.getSampleCount()) {
+            return mode == MediaExtractor.SEEK_TO_NEXT_SYNC ? next : previous;
+        }
+        return timeUs - track.getSampleTimeUs(previous) <= track.getSampleTimeUs(next) - timeUs ? previous : next;
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        if (trackIndex == -1) {
+            long bestOffset = Long.MAX_VALUE;
+            for (int a = 0; a < selected.length; a++) {
+                Mp4Demuxer.TrackInfo track = demuxer.getTrack(a);
+                if (selected[a] && nextSamples[a] < track.getSampleCount() && track.getSampleOffset(nextSamples[a]) < bestOffset) {
+                    bestOffset = track.getSampleOffset(nextSamples[a]);
+                    trackIndex = a;
+                }
+            }
+        }
+        return trackIndex;
+    }
+
+    @Override
+    public long getSampleTime() {
+        int index = getSampleTrackIndex();
+        return index >= 0 ? demuxer.getTrack(index).getSampleTimeUs(nextSamples[index]) : -1;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        int index = getSampleTrackIndex();
+        if (index < 0) {
+            return -1;
+        }
+        return demuxer.getTrack(index).isSyncSample(nextSamples[index]) ? MediaExtractor.SAMPLE_FLAG_SYNC : 0;
+    }
+
+    @Override
+    public long getSampleSize() {
+        int index = getSampleTrackIndex();
+        return index >= 0 ? demuxer.getTrack(index).getSampleSize(nextSamples[index]) : -1;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        int index = getSampleTrackIndex();
+        if (index < 0) {
+            return -1;
+        }
+        Mp4Demuxer.TrackInfo track = demuxer.getTrack(index);
+        ByteBuffer sample;
+        try {
+            sample = demuxer.readSample(index, nextSamples[index]);
+        } catch (IOException e) {
+            throw new IllegalStateException("can't read sample " + nextSamples[index] + " of track " + index, e);
+        }
+        buffer.clear();
+        buffer.position(offset);
+        ByteBuffer output = buffer.slice();
+        int size;
+        if (MediaController.VIDEO_MIME_TYPE.equals(track.mime) && track.nalLengthSize == 4) {
+            size = MediaCodecVideoConvertor.writeStartCodes(sample, output);
+        } else {
+            size = sample.remaining();
+            output.put(sample);
+        }
+        buffer.limit(offset + size);
+        return size;
+    }
+
+    @Override
+    public boolean advance() {
+        int index = getSampleTrackIndex();
+        if (index < 0) {
+            return false;
+        }
+        nextSamples[index]++;
+        trackIndex = -1;
+        return getSampleTrackIndex() >= 0;
+    }
+
+    @Override
+    public void release() {
+        try {
+            demuxer.close();
+        } catch (IOException e) {
+            FileLog.e(e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.mako.videocompressor.video;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.util.Arrays;
+
+public class EncodedSegment {
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    public final int fromSample;
+    public final int toSample;
+    public final long fromTimeUs;
+    public final long toTimeUs;
+
+    private MediaFormat format;
+    private int count;
+    private long[] offsets = new long[DEFAULT_CAPACITY];
+    private int[] sizes = new int[DEFAULT_CAPACITY];
+    private long[] presentationTimes = new long[DEFAULT_CAPACITY];
+    private int[] flags = new int[DEFAULT_CAPACITY];
+    private long minPresentationTimeUs = Long.MAX_VALUE;
+    private long maxPresentationTimeUs = Long.MIN_VALUE;
+
+    public EncodedSegment(int fromSample, int toSample, long fromTimeUs, long toTimeUs) {
+        this.fromSample = fromSample;
+        this.toSample = toSample;
+        this.fromTimeUs = fromTimeUs;
+        this.toTimeUs = toTimeUs;
+    }
+
+    void add(long offset, MediaCodec.BufferInfo bufferInfo) {
+        if (count == offsets.length) {
+            int capacity = count * 2;
+            offsets = Arrays.copyOf(offsets, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            presentationTimes = Arrays.copyOf(presentationTimes, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+        }
+        offsets[count] = offset;
+        sizes[count] = bufferInfo.size;
+        presentationTimes[count] = bufferInfo.presentationTimeUs;
+        flags[count] = bufferInfo.flags;
+        minPresentationTimeUs = Math.min(minPresentationTimeUs, bufferInfo.presentationTimeUs);
+        maxPresentationTimeUs = Math.max(maxPresentationTimeUs, bufferInfo.presentationTimeUs);
+        count++;
+    }
+
+    public void setFormat(MediaFormat value) {
+        format = value;
+    }
+
+    public MediaFormat getFormat() {
+        return format;
+    }
+
+    public int getSampleCount() {
+        return count;
+    }
+
+    long getSampleOffset(int index) {
+        return offsets[index];
+    }
+
+    int getSampleSize(int index) {
+        return sizes[index];
+    }
+
+    long getSamplePresentationTime(int index) {
+        return presentationTimes[index];
+    }
+
+    int getSampleFlags(int index) {
+        return flags[index];
+    }
+
+    long getMinPresentationTimeUs() {
+        return minPresentationTimeUs;
+    }
+
+    long getMaxPresentationTimeUs() {
+        return maxPresentationTimeUs;
+    }
+
+    long getFrameDurationUs() {
+        if (count < 2) {
+            return 1;
+        }
+        return Math.max(1, (maxPresentationTimeUs - minPresentationTimeUs) / (count - 1));
+    }
+}
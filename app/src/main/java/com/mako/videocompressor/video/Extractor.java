@@ -0,0 +1,33 @@
+package com.mako.videocompressor.video;
+
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+// The part of MediaExtractor the convertor loops use. Seek modes and sample flags are the MediaExtractor constants.
+public interface Extractor {
+
+    int getTrackCount();
+
+    MediaFormat getTrackFormat(int index);
+
+    void selectTrack(int index);
+
+    void unselectTrack(int index);
+
+    void seekTo(long timeUs, int mode);
+
+    int getSampleTrackIndex();
+
+    long getSampleTime();
+
+    int getSampleFlags();
+
+    long getSampleSize();
+
+    int readSampleData(ByteBuffer buffer, int offset);
+
+    boolean advance();
+
+    void release();
+}
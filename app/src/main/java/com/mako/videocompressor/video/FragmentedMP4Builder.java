@@ -0,0 +1,429 @@
+package com.mako.videocompressor.video;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.coremedia.iso.IsoTypeWriter;
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.FileTypeBox;
+import com.coremedia.iso.boxes.MovieBox;
+import com.coremedia.iso.boxes.SampleSizeBox;
+import com.coremedia.iso.boxes.SampleTableBox;
+import com.coremedia.iso.boxes.SampleToChunkBox;
+import com.coremedia.iso.boxes.StaticChunkOffsetBox;
+import com.coremedia.iso.boxes.TimeToSampleBox;
+import com.coremedia.iso.boxes.fragment.MovieExtendsBox;
+import com.coremedia.iso.boxes.fragment.MovieFragmentBox;
+import com.coremedia.iso.boxes.fragment.MovieFragmentHeaderBox;
+import com.coremedia.iso.boxes.fragment.SampleFlags;
+import com.coremedia.iso.boxes.fragment.TrackExtendsBox;
+import com.coremedia.iso.boxes.fragment.TrackFragmentBaseMediaDecodeTimeBox;
+import com.coremedia.iso.boxes.fragment.TrackFragmentBox;
+import com.coremedia.iso.boxes.fragment.TrackFragmentHeaderBox;
+import com.coremedia.iso.boxes.fragment.TrackRunBox;
+
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+public class FragmentedMP4Builder extends MP4Builder {
+
+    private static final long AUDIO_FRAGMENT_DURATION_US = 2000000;
+    private static final int MAX_FRAGMENT_SIZE = 16 * 1024 * 1024;
+
+    private ArrayList<FragmentTrack> fragmentTracks = new ArrayList<>();
+    private boolean initSegmentWritten;
+    private boolean hasVideo;
+    private int expectedTracksCount;
+    private int sequenceNumber;
+    private int fragmentSize;
+    private ByteBuffer mdatHeader = ByteBuffer.allocateDirect(8);
+
+    private static class FragmentTrack {
+
+        private final Track track;
+        private ByteBuffer data = ByteBuffer.allocateDirect(64 * 1024);
+        private int[] sizes = new int[64];
+        private long[] presentationTimes = new long[64];
+        private long[] sortedTimes = new long[64];
+        private boolean[] syncFlags = new boolean[64];
+        private int count;
+        private long lastDuration;
+        private long decodeTime = -1;
+        private long firstPresentationTimeUs = -1;
+        private long lastPresentationTimeUs;
+        private long fragmentStartTimeUs;
+
+        private FragmentTrack(Track track) {
+            this.track = track;
+        }
+
+        private void add(ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo, boolean writeLength) {
+            if (count == sizes.length) {
+                int newLength = count * 2;
+                sizes = Arrays.copyOf(sizes, newLength);
+                presentationTimes = Arrays.copyOf(presentationTimes, newLength);
+                sortedTimes = Arrays.copyOf(sortedTimes, newLength);
+                syncFlags = Arrays.copyOf(syncFlags, newLength);
+            }
+            if (data.remaining() < bufferInfo.size) {
+                ByteBuffer newData = ByteBuffer.allocateDirect(Math.max(data.capacity() * 2, data.position() + bufferInfo.size));
+                data.flip();
+                newData.put(data);
+                data = newData;
+            }
+            if (writeLength) {
+                data.putInt(bufferInfo.size - 4);
+                byteBuf.position(bufferInfo.offset + 4);
+            } else {
+                byteBuf.position(bufferInfo.offset);
+            }
+            byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+            data.put(byteBuf);
+
+            if (count == 0) {
+                fragmentStartTimeUs = bufferInfo.presentationTimeUs;
+            }
+            if (firstPresentationTimeUs == -1) {
+                firstPresentationTimeUs = bufferInfo.presentationTimeUs;
+            }
+            lastPresentationTimeUs = Math.max(lastPresentationTimeUs, bufferInfo.presentationTimeUs);
+            sizes[count] = bufferInfo.size;
+            presentationTimes[count] = (bufferInfo.presentationTimeUs * track.getTimeScale() + 500000L) / 1000000L;
+            syncFlags[count] = track.isAudio() || (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+            count++;
+        }
+    }
+
+    @Override
+    public MP4Builder createMovie(Mp4Movie mp4Movie, boolean split, boolean fastStart) throws Exception {
+        currentMp4Movie = mp4Movie;
+
+        fos = new FileOutputStream(mp4Movie.getCacheFile());
+        fc = fos.getChannel();
+
+        return this;
+    }
+
+    @Override
+    public int addTrack(MediaFormat mediaFormat, boolean isAudio) {
+        if (initSegmentWritten) {
+            throw new IllegalStateException("can't add track after the init segment was written");
+        }
+        int index = currentMp4Movie.addTrack(mediaFormat, isAudio);
+        fragmentTracks.add(new FragmentTrack(currentMp4Movie.getTracks().get(index)));
+        if (!isAudio) {
+            hasVideo = true;
+        }
+        return index;
+    }
+
+    // The init segment can only be written once every track is known, so samples of tracks that were added early
+    // (copied audio before the encoder reports its format) stay buffered until the remaining ones are added.
+    public FragmentedMP4Builder setExpectedTracksCount(int count) {
+        expectedTracksCount = count;
+        return this;
+    }
+
+    private boolean hasAllTracks() {
+        return fragmentTracks.size() >= expectedTracksCount;
+    }
+
+    @Override
+    public long writeSampleData(int trackIndex, FileChannel source, long sourceOffset, MediaCodec.BufferInfo bufferInfo) throws Exception {
+        ByteBuffer buffer = source.map(FileChannel.MapMode.READ_ONLY, sourceOffset, bufferInfo.size);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        return writeSampleData(trackIndex, buffer, info, false);
+    }
+
+    @Override
+    public void copyFile(FileChannel source) {
+        throw new IllegalStateException("fragmented output can't copy the source file");
+    }
+
+    @Override
+    public int addSampleDescription(int trackIndex, MediaFormat mediaFormat) {
+        throw new IllegalStateException("fragmented output can't switch sample descriptions");
+    }
+
+    @Override
+    public void setSampleDescription(int trackIndex, int index) {
+        throw new IllegalStateException("fragmented output can't switch sample descriptions");
+    }
+
+    // Fragment runs carry no edit list, and the init segment is written before any sample is known, so trimming and
+    // encoder delay are left to the decode times in tfdt.
+    @Override
+    public void setPresentationWindow(int trackIndex, long startUs, long endUs) {
+
+    }
+
+    @Override
+    public void setMediaTimeOffset(int trackIndex, long offsetUs) {
+
+    }
+
+    @Override
+    public Checkpoint createCheckpoint() {
+        return null;
+    }
+
+    @Override
+    public void restoreCheckpoint(Checkpoint checkpoint) {
+        throw new IllegalStateException("fragmented output can't be rewound");
+    }
+
+    @Override
+    public MP4Builder resumeMovie(Mp4Movie mp4Movie, boolean split, boolean fastStart, ConversionJournal.Replay replay) {
+        throw new IllegalStateException("fragmented output can't be resumed");
+    }
+
+    @Override
+    public void setJournal(ConversionJournal value) {
+        throw new IllegalStateException("fragmented output can't be journaled");
+    }
+
+    @Override
+    public long writeSegmentSampleData(EncodedSegment segment, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo, boolean writeLength) {
+        throw new IllegalStateException("fragmented output can't append encoded segments");
+    }
+
+    @Override
+    public void appendSegment(int trackIndex, EncodedSegment segment) {
+        throw new IllegalStateException("fragmented output can't append encoded segments");
+    }
+
+    @Override
+    public long writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo, boolean writeLength) throws Exception {
+        if (trackIndex < 0 || trackIndex >= fragmentTracks.size()) {
+            throw new IllegalArgumentException("unknown track " + trackIndex + " of " + fragmentTracks.size());
+        }
+        FragmentTrack fragmentTrack = fragmentTracks.get(trackIndex);
+        if (!hasAllTracks()) {
+            // the buffered samples become the first fragment, so they are held to the same size limit
+            if (fragmentSize + bufferInfo.size > MAX_FRAGMENT_SIZE) {
+                throw new IllegalStateException("buffered " + fragmentSize + " bytes while waiting for " + (expectedTracksCount - fragmentTracks.size()) + " more tracks");
+            }
+            fragmentTrack.add(byteBuf, bufferInfo, writeLength);
+            fragmentSize += bufferInfo.size;
+            return 0;
+        }
+        if (!initSegmentWritten) {
+            writeInitSegment();
+        }
+
+        boolean flush = false;
+        if (fragmentSize != 0) {
+            if (!fragmentTrack.track.isAudio()) {
+                flush = fragmentTrack.count != 0 && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+            } else if (!hasVideo) {
+                flush = fragmentTrack.count != 0 && bufferInfo.presentationTimeUs - fragmentTrack.fragmentStartTimeUs >= AUDIO_FRAGMENT_DURATION_US;
+            }
+            if (fragmentSize + bufferInfo.size > MAX_FRAGMENT_SIZE) {
+                flush = true;
+            }
+        }
+
+        long availableSize = 0;
+        if (flush) {
+            writeFragment(trackIndex, bufferInfo.presentationTimeUs);
+            availableSize = fc.position();
+        }
+
+        fragmentTrack.add(byteBuf, bufferInfo, writeLength);
+        fragmentSize += bufferInfo.size;
+        return availableSize;
+    }
+
+    @Override
+    public long getLastFrameTimestamp(int trackIndex) {
+        if (trackIndex < 0 || trackIndex >= fragmentTracks.size()) {
+            return 0;
+        }
+        FragmentTrack fragmentTrack = fragmentTracks.get(trackIndex);
+        if (fragmentTrack.firstPresentationTimeUs == -1) {
+            return 0;
+        }
+        return fragmentTrack.lastPresentationTimeUs - fragmentTrack.firstPresentationTimeUs;
+    }
+
+    @Override
+    public void finishMovie() throws Exception {
+        if (!initSegmentWritten) {
+            writeInitSegment();
+        }
+        if (fragmentSize != 0) {
+            writeFragment(-1, 0);
+        }
+        finishSync(fos);
+
+        fc.close();
+        fos.close();
+    }
+
+    private void writeInitSegment() throws Exception {
+        initSegmentWritten = true;
+        createFileTypeBox().getBox(fc);
+
+        MovieBox moov = createMovieBox(currentMp4Movie);
+        MovieExtendsBox mvex = new MovieExtendsBox();
+        for (Track track : currentMp4Movie.getTracks()) {
+            TrackExtendsBox trex = new TrackExtendsBox();
+            trex.setTrackId(track.getTrackId() + 1);
+            trex.setDefaultSampleDescriptionIndex(1);
+            trex.setDefaultSampleFlags(new SampleFlags());
+            mvex.addBox(trex);
+        }
+        moov.addBox(mvex);
+        moov.getBox(fc);
+    }
+
+    private void writeFragment(int nextTrackIndex, long nextPresentationTimeUs) throws Exception {
+        sequenceNumber++;
+        long fragmentStart = fc.position();
+        MovieFragmentBox moof = new MovieFragmentBox();
+        MovieFragmentHeaderBox mfhd = new MovieFragmentHeaderBox();
+        mfhd.setSequenceNumber(sequenceNumber);
+        moof.addBox(mfhd);
+
+        ArrayList<TrackRunBox> runs = new ArrayList<>();
+        ArrayList<FragmentTrack> runTracks = new ArrayList<>();
+        for (int a = 0; a < fragmentTracks.size(); a++) {
+            FragmentTrack fragmentTrack = fragmentTracks.get(a);
+            if (fragmentTrack.count == 0) {
+                continue;
+            }
+            int count = fragmentTrack.count;
+            long[] sortedTimes = fragmentTrack.sortedTimes;
+            System.arraycopy(fragmentTrack.presentationTimes, 0, sortedTimes, 0, count);
+            Arrays.sort(sortedTimes, 0, count);
+
+            long lastDuration;
+            if (a == nextTrackIndex) {
+                lastDuration = (nextPresentationTimeUs * fragmentTrack.track.getTimeScale() + 500000L) / 1000000L - sortedTimes[count - 1];
+            } else if (count > 1) {
+                lastDuration = sortedTimes[count - 1] - sortedTimes[count - 2];
+            } else {
+                lastDuration = fragmentTrack.lastDuration;
+            }
+
+            // tfdt continues from the durations of the previous run, so rounding or a guessed last duration never
+            // opens a gap or overlap between fragments; the difference to the real start is made up by the last sample
+            long baseDecodeTime = fragmentTrack.decodeTime >= 0 ? fragmentTrack.decodeTime : Math.max(sortedTimes[0], 0);
+            long runLastDuration = lastDuration + sortedTimes[0] - baseDecodeTime;
+            long runDuration = 0;
+            boolean hasCompositionOffsets = false;
+            List<TrackRunBox.Entry> entries = new ArrayList<>(count);
+            for (int b = 0; b < count; b++) {
+                long duration = Math.max(b == count - 1 ? runLastDuration : sortedTimes[b + 1] - sortedTimes[b], 0);
+                runDuration += duration;
+                int compositionOffset = (int) (fragmentTrack.presentationTimes[b] - sortedTimes[b]);
+                if (compositionOffset != 0) {
+                    hasCompositionOffsets = true;
+                }
+                SampleFlags sampleFlags = new SampleFlags();
+                if (fragmentTrack.syncFlags[b]) {
+                    sampleFlags.setSampleDependsOn(2);
+                } else {
+                    sampleFlags.setSampleDependsOn(1);
+                    sampleFlags.setSampleIsDifferenceSample(true);
+                }
+                entries.add(new TrackRunBox.Entry(duration, fragmentTrack.sizes[b], sampleFlags, compositionOffset));
+            }
+            fragmentTrack.lastDuration = lastDuration;
+            fragmentTrack.decodeTime = baseDecodeTime + runDuration;
+
+            TrackFragmentBox traf = new TrackFragmentBox();
+            TrackFragmentHeaderBox tfhd = new TrackFragmentHeaderBox();
+            tfhd.setTrackId(fragmentTrack.track.getTrackId() + 1);
+            tfhd.setDefaultBaseIsMoof(true);
+            traf.addBox(tfhd);
+            TrackFragmentBaseMediaDecodeTimeBox tfdt = new TrackFragmentBaseMediaDecodeTimeBox();
+            tfdt.setVersion(1);
+            tfdt.setBaseMediaDecodeTime(baseDecodeTime);
+            traf.addBox(tfdt);
+            TrackRunBox trun = new TrackRunBox();
+            trun.setVersion(1);
+            trun.setDataOffsetPresent(true);
+            trun.setSampleDurationPresent(true);
+            trun.setSampleSizePresent(true);
+            trun.setSampleFlagsPresent(true);
+            trun.setSampleCompositionTimeOffsetPresent(hasCompositionOffsets);
+            trun.setEntries(entries);
+            traf.addBox(trun);
+            moof.addBox(traf);
+
+            runs.add(trun);
+            runTracks.add(fragmentTrack);
+        }
+
+        long dataOffset = moof.getSize() + 8;
+        for (int a = 0; a < runs.size(); a++) {
+            runs.get(a).setDataOffset((int) dataOffset);
+            dataOffset += runTracks.get(a).data.position();
+        }
+        moof.getBox(fc);
+
+        mdatHeader.clear();
+        IsoTypeWriter.writeUInt32(mdatHeader, 8 + fragmentSize);
+        mdatHeader.put(new byte[]{'m', 'd', 'a', 't'});
+        mdatHeader.flip();
+        ByteBuffer[] buffers = new ByteBuffer[runTracks.size() + 1];
+        buffers[0] = mdatHeader;
+        long remaining = mdatHeader.remaining();
+        for (int a = 0; a < runTracks.size(); a++) {
+            ByteBuffer data = runTracks.get(a).data;
+            data.flip();
+            buffers[a + 1] = data;
+            remaining += data.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= fc.write(buffers);
+        }
+        for (int a = 0; a < runTracks.size(); a++) {
+            FragmentTrack fragmentTrack = runTracks.get(a);
+            fragmentTrack.data.clear();
+            fragmentTrack.count = 0;
+        }
+        fragmentSize = 0;
+
+        syncIfNeeded(fos, fc.position() - fragmentStart);
+    }
+
+    @Override
+    protected FileTypeBox createFileTypeBox() {
+        LinkedList<String> minorBrands = new LinkedList<>();
+        minorBrands.add("isom");
+        minorBrands.add("iso5");
+        minorBrands.add("iso6");
+        minorBrands.add("avc1");
+        minorBrands.add("mp41");
+        return new FileTypeBox("isom", 512, minorBrands);
+    }
+
+    @Override
+    protected Box createStbl(Track track) {
+        SampleTableBox stbl = new SampleTableBox();
+
+        createStsd(track, stbl);
+        TimeToSampleBox stts = new TimeToSampleBox();
+        stts.setEntries(new ArrayList<>());
+        stbl.addBox(stts);
+        SampleToChunkBox stsc = new SampleToChunkBox();
+        stsc.setEntries(new ArrayList<>());
+        stbl.addBox(stsc);
+        SampleSizeBox stsz = new SampleSizeBox();
+        stsz.setSampleSizes(new long[0]);
+        stbl.addBox(stsz);
+        StaticChunkOffsetBox stco = new StaticChunkOffsetBox();
+        stco.setChunkOffsets(new long[0]);
+        stbl.addBox(stco);
+
+        return stbl;
+    }
+}
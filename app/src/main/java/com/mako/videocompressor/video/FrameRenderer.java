@@ -0,0 +1,14 @@
+package com.mako.videocompressor.video;
+
+import android.view.Surface;
+
+public interface FrameRenderer {
+
+    Surface getSurface();
+
+    void awaitNewImage();
+
+    void drawFrame(long presentationTimeUs);
+
+    void release();
+}
@@ -15,11 +15,12 @@ import com.coremedia.iso.BoxParser;
 import com.coremedia.iso.IsoFile;
 import com.coremedia.iso.IsoTypeWriter;
 import com.coremedia.iso.boxes.Box;
-import com.coremedia.iso.boxes.CompositionTimeToSample;
 import com.coremedia.iso.boxes.Container;
 import com.coremedia.iso.boxes.DataEntryUrlBox;
 import com.coremedia.iso.boxes.DataInformationBox;
 import com.coremedia.iso.boxes.DataReferenceBox;
+import com.coremedia.iso.boxes.EditBox;
+import com.coremedia.iso.boxes.EditListBox;
 import com.coremedia.iso.boxes.FileTypeBox;
 import com.coremedia.iso.boxes.HandlerBox;
 import com.coremedia.iso.boxes.MediaBox;
@@ -27,44 +28,157 @@ import com.coremedia.iso.boxes.MediaHeaderBox;
 import com.coremedia.iso.boxes.MediaInformationBox;
 import com.coremedia.iso.boxes.MovieBox;
 import com.coremedia.iso.boxes.MovieHeaderBox;
-import com.coremedia.iso.boxes.SampleSizeBox;
 import com.coremedia.iso.boxes.SampleTableBox;
-import com.coremedia.iso.boxes.SampleToChunkBox;
-import com.coremedia.iso.boxes.StaticChunkOffsetBox;
-import com.coremedia.iso.boxes.SyncSampleBox;
-import com.coremedia.iso.boxes.TimeToSampleBox;
 import com.coremedia.iso.boxes.TrackBox;
 import com.coremedia.iso.boxes.TrackHeaderBox;
 import com.googlecode.mp4parser.DataSource;
 import com.googlecode.mp4parser.util.Matrix;
+import com.mako.videocompressor.utils.BuildVars;
+import com.mako.videocompressor.utils.FileLog;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
 public class MP4Builder {
 
+    private static final long FAST_START_BLOCK_SIZE = 16 * 1024 * 1024;
+    private static final int DEFAULT_WRITE_COMBINE_SIZE = 64 * 1024;
+    private static final long DEFAULT_INTERLEAVE_BUFFER_SIZE = 8 * 1024 * 1024;
+    private static final long MAX_TRANSFER_SIZE = 8 * 1024 * 1024;
+    private static final long MAX_CHUNK_OFFSET = 0xffffffffL;
+
     private InterleaveChunkMdat mdat = null;
-    private Mp4Movie currentMp4Movie = null;
-    private FileOutputStream fos = null;
-    private FileChannel fc = null;
+    protected Mp4Movie currentMp4Movie = null;
+    protected FileOutputStream fos = null;
+    protected FileChannel fc = null;
     private long dataOffset = 0;
     private long wroteSinceLastMdat = 0;
     private boolean writeNewMdat = true;
-    private HashMap<Track, long[]> track2SampleSizes = new HashMap<>();
     private ByteBuffer sizeBuffer = null;
     private boolean splitMdat;
     private boolean wasFirstVideoFrame;
+    private boolean fastStart;
+    private long mdatStartOffset;
+    private SyncPolicy syncPolicy = SyncPolicy.createDefault();
+    private long bytesSinceSync;
+    private long lastSyncTime = System.nanoTime();
+    private int syncCount;
+    private long syncTimeNs;
+    private long maxSyncTimeNs;
+    private boolean asyncWrite;
+    private AsyncFileWriter asyncWriter;
+    private int writeCombineSize = DEFAULT_WRITE_COMBINE_SIZE;
+    private long maxChunkOffset = MAX_CHUNK_OFFSET;
+    private ByteBuffer writeBuffer;
+    private ByteBuffer mdatHeader;
+    private ByteBuffer tableBuffer;
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[2];
+    private int writeCallsCount;
+    private int writtenSamplesCount;
+    private long interleaveDurationUs;
+    private long interleaveBufferSize = DEFAULT_INTERLEAVE_BUFFER_SIZE;
+    private long interleavedBytes;
+    private ArrayList<InterleaveTrack> interleaveTracks = new ArrayList<>();
+    private MediaCodec.BufferInfo interleaveInfo = new MediaCodec.BufferInfo();
+    private FileChannel transferSource;
+    private long transferOffset;
+    private long transferLength;
+    private MediaCodec.BufferInfo transferInfo = new MediaCodec.BufferInfo();
+    private boolean copiedFile;
+    private long lastSampleOffset;
+    private long[] segmentEndTimes = new long[0];
+    private MediaCodec.BufferInfo segmentInfo = new MediaCodec.BufferInfo();
+    private ConversionJournal journal;
+    private int[] journaledCounts = new int[0];
+    private Checkpoint pendingJournal;
+    private long[] pendingJournalState;
+
+    public static class Checkpoint {
+        private long dataOffset;
+        private long wroteSinceLastMdat;
+        private boolean writeNewMdat;
+        private long mdatOffset;
+        private long mdatContentSize;
+        private long lastSampleOffset;
+        private int writtenSamplesCount;
+        private int[] sampleCounts;
+
+        public long getDataOffset() {
+            return dataOffset;
+        }
+
+        private long[] getState() {
+            return new long[]{dataOffset, wroteSinceLastMdat, writeNewMdat ? 1 : 0, mdatOffset, mdatContentSize, lastSampleOffset, writtenSamplesCount};
+        }
+    }
+
+    private static class InterleaveTrack {
+
+        private ByteBuffer data = ByteBuffer.allocateDirect(64 * 1024);
+        private int[] sizes = new int[64];
+        private long[] presentationTimes = new long[64];
+        private int[] flags = new int[64];
+        private int count;
+        private long firstPresentationTimeUs;
+        private long lastPresentationTimeUs;
+
+        private void add(ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo, boolean writeLength) {
+            if (count == sizes.length) {
+                int newLength = count * 2;
+                sizes = Arrays.copyOf(sizes, newLength);
+                presentationTimes = Arrays.copyOf(presentationTimes, newLength);
+                flags = Arrays.copyOf(flags, newLength);
+            }
+            if (data.remaining() < bufferInfo.size) {
+                ByteBuffer newData = ByteBuffer.allocateDirect(Math.max(data.capacity() * 2, data.position() + bufferInfo.size));
+                data.flip();
+                newData.put(data);
+                data = newData;
+            }
+            if (writeLength) {
+                data.putInt(bufferInfo.size - 4);
+                byteBuf.position(bufferInfo.offset + 4);
+            } else {
+                byteBuf.position(bufferInfo.offset);
+            }
+            byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+            data.put(byteBuf);
+
+            if (count == 0) {
+                firstPresentationTimeUs = bufferInfo.presentationTimeUs;
+                lastPresentationTimeUs = bufferInfo.presentationTimeUs;
+            } else {
+                lastPresentationTimeUs = Math.max(lastPresentationTimeUs, bufferInfo.presentationTimeUs);
+            }
+            sizes[count] = bufferInfo.size;
+            presentationTimes[count] = bufferInfo.presentationTimeUs;
+            flags[count] = bufferInfo.flags;
+            count++;
+        }
+
+        private long getDurationUs() {
+            return count == 0 ? 0 : lastPresentationTimeUs - firstPresentationTimeUs;
+        }
+    }
 
     public MP4Builder createMovie(Mp4Movie mp4Movie, boolean split) throws Exception {
+        return createMovie(mp4Movie, split, false);
+    }
+
+    public MP4Builder createMovie(Mp4Movie mp4Movie, boolean split, boolean fastStart) throws Exception {
         currentMp4Movie = mp4Movie;
+        this.fastStart = fastStart;
 
         fos = new FileOutputStream(mp4Movie.getCacheFile());
         fc = fos.getChannel();
@@ -73,30 +187,377 @@ public class MP4Builder {
         fileTypeBox.getBox(fc);
         dataOffset += fileTypeBox.getSize();
         wroteSinceLastMdat += dataOffset;
+        mdatStartOffset = dataOffset;
         splitMdat = split;
 
         mdat = new InterleaveChunkMdat();
+        allocateBuffers();
 
+        return this;
+    }
+
+    public MP4Builder resumeMovie(Mp4Movie mp4Movie, boolean split, boolean fastStart, ConversionJournal.Replay replay) throws Exception {
+        long[] state = replay.getMuxerState();
+        RandomAccessFile file = new RandomAccessFile(mp4Movie.getCacheFile(), "rw");
+        if (file.length() < state[0]) {
+            file.close();
+            throw new IOException("output is shorter than the journal, " + file.length() + " < " + state[0]);
+        }
+        try {
+            replay.apply(mp4Movie);
+        } catch (Exception e) {
+            file.close();
+            throw e;
+        }
+        currentMp4Movie = mp4Movie;
+        this.fastStart = fastStart;
+
+        fos = new FileOutputStream(file.getFD());
+        fc = file.getChannel();
+        fc.truncate(state[0]);
+        fc.position(state[0]);
+
+        dataOffset = state[0];
+        wroteSinceLastMdat = state[1];
+        writeNewMdat = state[2] != 0;
+        mdatStartOffset = createFileTypeBox().getSize();
+        splitMdat = split;
+
+        mdat = new InterleaveChunkMdat();
+        mdat.setDataOffset(state[3]);
+        mdat.setContentSize(state[4]);
+        lastSampleOffset = state[5];
+        writtenSamplesCount = (int) state[6];
+        allocateBuffers();
+
+        return this;
+    }
+
+    private void allocateBuffers() throws IOException {
         sizeBuffer = ByteBuffer.allocateDirect(4);
+        mdatHeader = ByteBuffer.allocateDirect(16);
+        if (writeCombineSize > 0 && !asyncWrite) {
+            writeBuffer = ByteBuffer.allocateDirect(writeCombineSize);
+        }
+
+        if (asyncWrite) {
+            asyncWriter = new AsyncFileWriter(fc);
+        }
+    }
+
+    public MP4Builder setAsyncWrite(boolean value) {
+        asyncWrite = value;
+        return this;
+    }
+
+    public MP4Builder setInterleave(long durationUs) {
+        return setInterleave(durationUs, DEFAULT_INTERLEAVE_BUFFER_SIZE);
+    }
+
+    public MP4Builder setInterleave(long durationUs, long maxBufferedBytes) {
+        interleaveDurationUs = durationUs;
+        interleaveBufferSize = maxBufferedBytes;
+        return this;
+    }
+
+    // Lets tests switch fast start output to co64 without writing a 4GB mdat.
+    MP4Builder setMaxChunkOffset(long value) {
+        maxChunkOffset = value;
+        return this;
+    }
+
+    public MP4Builder setWriteCombineSize(int bytes) {
+        writeCombineSize = bytes;
+        return this;
+    }
+
+    public int getWriteCallsCount() {
+        return writeCallsCount;
+    }
+
+    public int getWrittenSamplesCount() {
+        return writtenSamplesCount;
+    }
+
+    private void writeData(ByteBuffer src) throws IOException {
+        flushTransfer();
+        if (writeBuffer == null) {
+            while (src.hasRemaining()) {
+                fc.write(src);
+                writeCallsCount++;
+            }
+            return;
+        }
+        if (src.remaining() <= writeBuffer.remaining()) {
+            writeBuffer.put(src);
+            if (writeBuffer.position() >= writeCombineSize) {
+                flushWriteBuffer();
+            }
+            return;
+        }
+        writeBuffer.flip();
+        gatherBuffers[0] = writeBuffer;
+        gatherBuffers[1] = src;
+        while (writeBuffer.hasRemaining() || src.hasRemaining()) {
+            fc.write(gatherBuffers);
+            writeCallsCount++;
+        }
+        gatherBuffers[1] = null;
+        writeBuffer.clear();
+    }
+
+    private void appendTransfer(FileChannel source, long offset, long length) throws IOException {
+        if (transferLength != 0 && (source != transferSource || offset != transferOffset + transferLength)) {
+            flushTransfer();
+        }
+        if (transferLength == 0) {
+            flushWriteBuffer();
+            transferSource = source;
+            transferOffset = offset;
+        }
+        transferLength += length;
+        if (transferLength >= MAX_TRANSFER_SIZE) {
+            flushTransfer();
+        }
+    }
+
+    public void detachSource(FileChannel source) throws IOException {
+        if (transferLength != 0 && transferSource == source) {
+            flushTransfer();
+        }
+    }
+
+    private void flushTransfer() throws IOException {
+        long position = transferOffset;
+        long end = transferOffset + transferLength;
+        while (position < end) {
+            long transferred = transferSource.transferTo(position, end - position, fc);
+            if (transferred <= 0) {
+                throw new IOException("can't transfer samples at " + position + " of " + end);
+            }
+            position += transferred;
+            writeCallsCount++;
+        }
+        transferSource = null;
+        transferLength = 0;
+    }
+
+    private void flushPendingWrites() throws IOException {
+        flushTransfer();
+        flushWriteBuffer();
+    }
 
+    private void flushWriteBuffer() throws IOException {
+        if (writeBuffer == null || writeBuffer.position() == 0) {
+            return;
+        }
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            fc.write(writeBuffer);
+            writeCallsCount++;
+        }
+        writeBuffer.clear();
+    }
+
+    public MP4Builder setSyncPolicy(SyncPolicy policy) {
+        syncPolicy = policy != null ? policy : SyncPolicy.createDefault();
         return this;
     }
 
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public int getSyncCount() {
+        return syncCount;
+    }
+
+    public long getSyncTimeNs() {
+        return syncTimeNs;
+    }
+
+    public long getMaxSyncTimeNs() {
+        return maxSyncTimeNs;
+    }
+
+    protected boolean syncIfNeeded(FileOutputStream stream, long bytesWritten) throws IOException {
+        bytesSinceSync += bytesWritten;
+        if (syncPolicy.shouldSync(bytesSinceSync, (System.nanoTime() - lastSyncTime) / 1000000L)) {
+            sync(stream);
+            return true;
+        }
+        return false;
+    }
+
+    protected void finishSync(FileOutputStream stream) throws IOException {
+        if (syncPolicy.syncOnFinish()) {
+            sync(stream);
+        } else {
+            stream.flush();
+        }
+        if (BuildVars.LOGS_ENABLED) {
+            FileLog.d("sync policy " + syncPolicy + " syncs = " + syncCount + " total = " + syncTimeNs / 1000000L + "ms max = " + maxSyncTimeNs / 1000000L + "ms");
+        }
+    }
+
+    private void sync(FileOutputStream stream) throws IOException {
+        if (asyncWriter != null && stream == fos) {
+            asyncWriter.sync();
+            bytesSinceSync = 0;
+            lastSyncTime = System.nanoTime();
+            return;
+        }
+        if (stream == fos) {
+            flushPendingWrites();
+        }
+        long start = System.nanoTime();
+        stream.flush();
+        stream.getFD().sync();
+        long end = System.nanoTime();
+        syncCount++;
+        syncTimeNs += end - start;
+        maxSyncTimeNs = Math.max(maxSyncTimeNs, end - start);
+        bytesSinceSync = 0;
+        lastSyncTime = end;
+    }
+
     private void flushCurrentMdat() throws Exception {
-        long oldPosition = fc.position();
-        fc.position(mdat.getOffset());
-        mdat.getBox(fc);
-        fc.position(oldPosition);
+        mdat.writeHeader(mdatHeader);
+        if (asyncWriter != null) {
+            asyncWriter.write(mdatHeader, mdat.getOffset());
+        } else {
+            flushWriteBuffer();
+            long position = mdat.getOffset();
+            while (mdatHeader.hasRemaining()) {
+                position += fc.write(mdatHeader, position);
+                writeCallsCount++;
+            }
+        }
         mdat.setDataOffset(0);
         mdat.setContentSize(0);
         fos.flush();
-        fos.getFD().sync();
     }
 
     public long writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo, boolean writeLength) throws Exception {
+        if (interleaveDurationUs <= 0 || trackIndex < 0) {
+            return writeSample(trackIndex, byteBuf, bufferInfo, writeLength, true, null, 0);
+        }
+        while (interleaveTracks.size() <= trackIndex) {
+            interleaveTracks.add(new InterleaveTrack());
+        }
+        InterleaveTrack track = interleaveTracks.get(trackIndex);
+        track.add(byteBuf, bufferInfo, writeLength);
+        interleavedBytes += bufferInfo.size;
+        if (track.getDurationUs() >= interleaveDurationUs || interleavedBytes >= interleaveBufferSize) {
+            return flushInterleavedChunks();
+        }
+        return 0;
+    }
+
+    public long writeSampleData(int trackIndex, FileChannel source, long sourceOffset, MediaCodec.BufferInfo bufferInfo) throws Exception {
+        if (interleaveDurationUs > 0 || asyncWriter != null || trackIndex < 0) {
+            ByteBuffer buffer = source.map(FileChannel.MapMode.READ_ONLY, sourceOffset, bufferInfo.size);
+            transferInfo.set(0, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+            return writeSampleData(trackIndex, buffer, transferInfo, false);
+        }
+        return writeSample(trackIndex, null, bufferInfo, false, true, source, sourceOffset);
+    }
+
+    public synchronized long writeSegmentSampleData(EncodedSegment segment, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo, boolean writeLength) throws Exception {
+        long availableSize = writeSample(-1, byteBuf, bufferInfo, writeLength, true, null, 0);
+        segment.add(lastSampleOffset, bufferInfo);
+        return availableSize;
+    }
+
+    public void appendSegment(int trackIndex, EncodedSegment segment) throws Exception {
+        if (segment.getSampleCount() == 0) {
+            return;
+        }
+        int descriptionIndex = currentMp4Movie.findSampleDescription(trackIndex, segment.getFormat());
+        if (descriptionIndex <= 0) {
+            descriptionIndex = addSampleDescription(trackIndex, segment.getFormat());
+        }
+        setSampleDescription(trackIndex, descriptionIndex);
+        if (segmentEndTimes.length <= trackIndex) {
+            int oldLength = segmentEndTimes.length;
+            segmentEndTimes = Arrays.copyOf(segmentEndTimes, trackIndex + 1);
+            Arrays.fill(segmentEndTimes, oldLength, segmentEndTimes.length, Long.MIN_VALUE);
+        }
+        long shift = 0;
+        long previousEnd = segmentEndTimes[trackIndex];
+        if (previousEnd != Long.MIN_VALUE && segment.getMinPresentationTimeUs() <= previousEnd) {
+            shift = previousEnd + segment.getFrameDurationUs() - segment.getMinPresentationTimeUs();
+            if (BuildVars.LOGS_ENABLED) {
+                FileLog.d("segment " + segment.fromTimeUs + " overlaps previous one ending at " + previousEnd + ", shifting by " + shift);
+            }
+        }
+        for (int a = 0, N = segment.getSampleCount(); a < N; a++) {
+            segmentInfo.set(0, segment.getSampleSize(a), segment.getSamplePresentationTime(a) + shift, segment.getSampleFlags(a));
+            currentMp4Movie.addSample(trackIndex, segment.getSampleOffset(a), segmentInfo);
+        }
+        segmentEndTimes[trackIndex] = segment.getMaxPresentationTimeUs() + shift;
+        setSampleDescription(trackIndex, 1);
+    }
+
+    public void copyFile(FileChannel source) throws Exception {
+        if (asyncWriter != null) {
+            finishAsyncWrite();
+        }
+        flushPendingWrites();
+        fc.truncate(0);
+        fc.position(0);
+        long size = source.size();
+        long position = 0;
+        while (position < size) {
+            long transferred = source.transferTo(position, Math.min(FAST_START_BLOCK_SIZE, size - position), fc);
+            if (transferred <= 0) {
+                throw new IOException("can't copy file at " + position + " of " + size);
+            }
+            position += transferred;
+            writeCallsCount++;
+            syncIfNeeded(fos, transferred);
+        }
+        dataOffset = size;
+        copiedFile = true;
+    }
+
+    private long flushInterleavedChunks() throws Exception {
+        long availableSize = 0;
+        while (true) {
+            int trackIndex = -1;
+            for (int a = 0; a < interleaveTracks.size(); a++) {
+                InterleaveTrack track = interleaveTracks.get(a);
+                if (track.count != 0 && (trackIndex == -1 || track.firstPresentationTimeUs < interleaveTracks.get(trackIndex).firstPresentationTimeUs)) {
+                    trackIndex = a;
+                }
+            }
+            if (trackIndex == -1) {
+                break;
+            }
+            InterleaveTrack track = interleaveTracks.get(trackIndex);
+            int offset = 0;
+            for (int a = 0; a < track.count; a++) {
+                interleaveInfo.set(offset, track.sizes[a], track.presentationTimes[a], track.flags[a]);
+                long size = writeSample(trackIndex, track.data, interleaveInfo, false, a == track.count - 1, null, 0);
+                availableSize = Math.max(availableSize, size);
+                offset += track.sizes[a];
+            }
+            track.data.clear();
+            track.count = 0;
+        }
+        interleavedBytes = 0;
+        return availableSize;
+    }
+
+    private long writeSample(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo, boolean writeLength, boolean canFlush, FileChannel source, long sourceOffset) throws Exception {
         if (writeNewMdat) {
             mdat.setContentSize(0);
-            mdat.getBox(fc);
+            mdat.writeHeader(mdatHeader);
+            if (asyncWriter != null) {
+                asyncWriter.write(mdatHeader, dataOffset);
+            } else {
+                writeData(mdatHeader);
+            }
             mdat.setDataOffset(dataOffset);
             dataOffset += 16;
             wroteSinceLastMdat += 16;
@@ -135,71 +596,387 @@ public class MP4Builder {
         wroteSinceLastMdat += bufferInfo.size;
 
         boolean flush = false;
-        if (wroteSinceLastMdat >= 32 * 1024) {
+        long flushedBytes = 0;
+        if (canFlush && wroteSinceLastMdat >= 32 * 1024) {
             if (splitMdat) {
                 flushCurrentMdat();
                 writeNewMdat = true;
             }
             flush = true;
+            flushedBytes = wroteSinceLastMdat;
             wroteSinceLastMdat = 0;
         }
 
+        lastSampleOffset = dataOffset;
         currentMp4Movie.addSample(trackIndex, dataOffset, bufferInfo);
 
-        if (writeLength) {
-            sizeBuffer.position(0);
-            sizeBuffer.putInt(bufferInfo.size - 4);
-            sizeBuffer.position(0);
-            fc.write(sizeBuffer);
+        if (asyncWriter != null) {
+            long position = dataOffset;
+            if (writeLength) {
+                sizeBuffer.position(0);
+                sizeBuffer.putInt(bufferInfo.size - 4);
+                sizeBuffer.position(0);
+                asyncWriter.write(sizeBuffer, position);
+                position += 4;
 
-            byteBuf.position(bufferInfo.offset + 4);
+                byteBuf.position(bufferInfo.offset + 4);
+            } else {
+                byteBuf.position(bufferInfo.offset);
+            }
+            byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+            asyncWriter.write(byteBuf, position);
+        } else if (source != null) {
+            appendTransfer(source, sourceOffset, bufferInfo.size);
         } else {
-            byteBuf.position(bufferInfo.offset);
+            if (writeLength) {
+                sizeBuffer.position(0);
+                sizeBuffer.putInt(bufferInfo.size - 4);
+                sizeBuffer.position(0);
+                writeData(sizeBuffer);
+
+                byteBuf.position(bufferInfo.offset + 4);
+            } else {
+                byteBuf.position(bufferInfo.offset);
+            }
+            byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+            writeData(byteBuf);
         }
-        byteBuf.limit(bufferInfo.offset + bufferInfo.size);
-        fc.write(byteBuf);
 
         dataOffset += bufferInfo.size;
+        writtenSamplesCount++;
 
         if (flush) {
-            fos.flush();
-            fos.getFD().sync();
+            if (asyncWriter != null) {
+                syncIfNeeded(fos, flushedBytes);
+                return asyncWriter.getWrittenOffset();
+            }
+            flushWriteBuffer();
+            syncIfNeeded(fos, flushedBytes);
             return fc.position();
         }
         return 0;
     }
 
+    public Checkpoint createCheckpoint() throws Exception {
+        if (copiedFile) {
+            return null;
+        }
+        flushInterleavedChunks();
+        if (asyncWriter == null) {
+            flushPendingWrites();
+        }
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.dataOffset = dataOffset;
+        checkpoint.wroteSinceLastMdat = wroteSinceLastMdat;
+        checkpoint.writeNewMdat = writeNewMdat;
+        checkpoint.mdatOffset = mdat.getOffset();
+        checkpoint.mdatContentSize = mdat.getContentSize();
+        checkpoint.lastSampleOffset = lastSampleOffset;
+        checkpoint.writtenSamplesCount = writtenSamplesCount;
+        ArrayList<Track> tracks = currentMp4Movie.getTracks();
+        checkpoint.sampleCounts = new int[tracks.size()];
+        for (int a = 0; a < tracks.size(); a++) {
+            checkpoint.sampleCounts[a] = tracks.get(a).getSampleCount();
+        }
+        return checkpoint;
+    }
+
+    public void restoreCheckpoint(Checkpoint checkpoint) throws Exception {
+        for (int a = 0; a < interleaveTracks.size(); a++) {
+            InterleaveTrack track = interleaveTracks.get(a);
+            track.data.clear();
+            track.count = 0;
+        }
+        interleavedBytes = 0;
+        transferSource = null;
+        transferLength = 0;
+        if (writeBuffer != null) {
+            writeBuffer.clear();
+        }
+        boolean async = asyncWriter != null;
+        if (async) {
+            finishAsyncWrite();
+        }
+        fc.truncate(checkpoint.dataOffset);
+        fc.position(checkpoint.dataOffset);
+        if (async) {
+            asyncWriter = new AsyncFileWriter(fc);
+        }
+        dataOffset = checkpoint.dataOffset;
+        wroteSinceLastMdat = checkpoint.wroteSinceLastMdat;
+        writeNewMdat = checkpoint.writeNewMdat;
+        mdat.setDataOffset(checkpoint.mdatOffset);
+        mdat.setContentSize(checkpoint.mdatContentSize);
+        lastSampleOffset = checkpoint.lastSampleOffset;
+        writtenSamplesCount = checkpoint.writtenSamplesCount;
+        for (int a = 0; a < checkpoint.sampleCounts.length; a++) {
+            currentMp4Movie.truncate(a, checkpoint.sampleCounts[a]);
+        }
+        if (pendingJournal != null && pendingJournal.dataOffset > checkpoint.dataOffset) {
+            pendingJournal = null;
+        }
+    }
+
     public long getLastFrameTimestamp(int trackIndex) {
         return currentMp4Movie.getLastFrameTimestamp(trackIndex);
     }
 
     public int addTrack(MediaFormat mediaFormat, boolean isAudio) {
-        return currentMp4Movie.addTrack(mediaFormat, isAudio);
+        int index = currentMp4Movie.addTrack(mediaFormat, isAudio);
+        if (journal != null) {
+            try {
+                journal.writeTrack(isAudio, mediaFormat);
+            } catch (IOException e) {
+                disableJournal(e);
+            }
+        }
+        return index;
+    }
+
+    public int findSampleDescription(int trackIndex, MediaFormat mediaFormat) {
+        return currentMp4Movie.findSampleDescription(trackIndex, mediaFormat);
+    }
+
+    public int addSampleDescription(int trackIndex, MediaFormat mediaFormat) {
+        int index = currentMp4Movie.addSampleDescription(trackIndex, mediaFormat);
+        if (journal != null && index > 0) {
+            try {
+                journal.writeSampleDescription(trackIndex, mediaFormat);
+            } catch (IOException e) {
+                disableJournal(e);
+            }
+        }
+        return index;
+    }
+
+    public void setSampleDescription(int trackIndex, int index) throws Exception {
+        if (trackIndex >= 0 && trackIndex < interleaveTracks.size() && interleaveTracks.get(trackIndex).count != 0) {
+            flushInterleavedChunks();
+        }
+        currentMp4Movie.setSampleDescription(trackIndex, index);
+    }
+
+    public void setPresentationWindow(int trackIndex, long startUs, long endUs) {
+        currentMp4Movie.setPresentationWindow(trackIndex, startUs, endUs);
+        if (journal != null) {
+            try {
+                journal.writePresentationWindow(trackIndex, startUs, endUs);
+            } catch (IOException e) {
+                disableJournal(e);
+            }
+        }
+    }
+
+    public void setMediaTimeOffset(int trackIndex, long offsetUs) {
+        currentMp4Movie.setMediaTimeOffset(trackIndex, offsetUs);
+        if (journal != null) {
+            try {
+                journal.writeMediaTimeOffset(trackIndex, offsetUs);
+            } catch (IOException e) {
+                disableJournal(e);
+            }
+        }
+    }
+
+    public void setJournal(ConversionJournal value) {
+        journal = value;
+        ArrayList<Track> tracks = currentMp4Movie.getTracks();
+        journaledCounts = new int[tracks.size()];
+        for (int a = 0; a < tracks.size(); a++) {
+            journaledCounts[a] = tracks.get(a).getSampleCount();
+        }
+    }
+
+    public ConversionJournal getJournal() {
+        return journal;
+    }
+
+    public void writeJournal(Checkpoint checkpoint, long[] state) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            flushJournal();
+            pendingJournal = checkpoint;
+            pendingJournalState = state;
+            flushJournal();
+        } catch (IOException e) {
+            disableJournal(e);
+        }
+    }
+
+    private void flushJournal() throws IOException {
+        Checkpoint checkpoint = pendingJournal;
+        if (checkpoint == null || asyncWriter != null && asyncWriter.getWrittenOffset() < checkpoint.dataOffset) {
+            return;
+        }
+        pendingJournal = null;
+        ByteBuffer record = journal.createCheckpoint(checkpoint.getState(), pendingJournalState, currentMp4Movie.getTracks(), journaledCounts, checkpoint.sampleCounts);
+        if (journal.writeCheckpoint(record, checkpoint.dataOffset)) {
+            journaledCounts = checkpoint.sampleCounts;
+        }
+    }
+
+    private void disableJournal(IOException e) {
+        FileLog.e(e);
+        try {
+            journal.close();
+        } catch (IOException ignore) {
+
+        }
+        journal = null;
+        pendingJournal = null;
+    }
+
+    private void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+        if (BuildVars.LOGS_ENABLED) {
+            FileLog.d("journal bytes = " + journal.getBytesWritten() + " checkpoints = " + journal.getCheckpointsCount() + " skipped = " + journal.getSkippedCount() + " overhead = " + (dataOffset > 0 ? journal.getBytesWritten() * 100f / dataOffset : 0) + "%");
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            FileLog.e(e);
+        }
+        journal = null;
+        pendingJournal = null;
+    }
+
+    // Closes the output without a moov, for jobs whose output is dropped.
+    public void abortMovie() {
+        closeJournal();
+        try {
+            if (asyncWriter != null) {
+                finishAsyncWrite();
+            }
+        } catch (IOException e) {
+            FileLog.e(e);
+        }
+        try {
+            fc.close();
+            fos.close();
+        } catch (IOException e) {
+            FileLog.e(e);
+        }
     }
 
     public void finishMovie() throws Exception {
+        closeJournal();
+        if (copiedFile) {
+            finishSync(fos);
+            fc.close();
+            fos.close();
+            return;
+        }
+        flushInterleavedChunks();
+        if (asyncWriter != null) {
+            finishAsyncWrite();
+        } else {
+            flushPendingWrites();
+        }
+        if (BuildVars.LOGS_ENABLED) {
+            FileLog.d("mp4 write calls = " + writeCallsCount + " samples = " + writtenSamplesCount);
+        }
         if (mdat.getContentSize() != 0) {
             flushCurrentMdat();
         }
 
-        for (Track track : currentMp4Movie.getTracks()) {
-            List<Sample> samples = track.getSamples();
-            long[] sizes = new long[samples.size()];
-            for (int i = 0; i < sizes.length; i++) {
-                sizes[i] = samples.get(i).getSize();
+        MovieBox moov = createMovieBox(currentMp4Movie);
+        if (BuildVars.LOGS_ENABLED) {
+            long chunksCount = 0;
+            for (TrackBox trackBox : moov.getBoxes(TrackBox.class)) {
+                for (StreamingTableBox.ChunkOffsets chunkOffsets : trackBox.getSampleTableBox().getBoxes(StreamingTableBox.ChunkOffsets.class)) {
+                    chunksCount += chunkOffsets.getChunksCount();
+                }
             }
-            track2SampleSizes.put(track, sizes);
+            FileLog.d("mp4 moov size = " + moov.getSize() + " chunks = " + chunksCount + " interleave = " + interleaveDurationUs + "us");
+        }
+        if (fastStart) {
+            writeFastStart(moov);
+            return;
         }
-
-        Box moov = createMovieBox(currentMp4Movie);
         moov.getBox(fc);
-        fos.flush();
-        fos.getFD().sync();
+        finishSync(fos);
 
         fc.close();
         fos.close();
     }
 
+    private void finishAsyncWrite() throws IOException {
+        AsyncFileWriter writer = asyncWriter;
+        asyncWriter = null;
+        try {
+            writer.finish();
+        } finally {
+            writeCallsCount += writer.getWriteCallsCount();
+            syncCount += writer.getSyncCount();
+            syncTimeNs += writer.getSyncTimeNs();
+            maxSyncTimeNs = Math.max(maxSyncTimeNs, writer.getMaxSyncTimeNs());
+            if (BuildVars.LOGS_ENABLED) {
+                FileLog.d("async write stalls = " + writer.getStallsCount() + " total = " + writer.getStallsTimeNs() / 1000000L + "ms");
+            }
+        }
+        fc.position(dataOffset);
+    }
+
+    private void writeFastStart(MovieBox moov) throws Exception {
+        long mdatSize = dataOffset - mdatStartOffset;
+        List<StreamingTableBox.ChunkOffsets> chunkOffsetBoxes = new ArrayList<>();
+        for (TrackBox trackBox : moov.getBoxes(TrackBox.class)) {
+            chunkOffsetBoxes.addAll(trackBox.getSampleTableBox().getBoxes(StreamingTableBox.ChunkOffsets.class));
+        }
+        if (mdatStartOffset + moov.getSize() + mdatSize > maxChunkOffset) {
+            for (StreamingTableBox.ChunkOffsets chunkOffsets : chunkOffsetBoxes) {
+                chunkOffsets.setLarge(true);
+            }
+        }
+        long moovSize = moov.getSize();
+        for (StreamingTableBox.ChunkOffsets chunkOffsets : chunkOffsetBoxes) {
+            chunkOffsets.setShift(moovSize);
+        }
+
+        fos.flush();
+        fc.close();
+        fos.close();
+
+        File cacheFile = currentMp4Movie.getCacheFile();
+        File fastStartFile = new File(cacheFile.getPath() + ".faststart");
+        FileInputStream mdatStream = new FileInputStream(cacheFile);
+        FileChannel mdatChannel = mdatStream.getChannel();
+        FileOutputStream fastStartStream = new FileOutputStream(fastStartFile);
+        FileChannel fastStartChannel = fastStartStream.getChannel();
+        boolean done = false;
+        try {
+            createFileTypeBox().getBox(fastStartChannel);
+            moov.getBox(fastStartChannel);
+            long position = mdatStartOffset;
+            long end = mdatStartOffset + mdatSize;
+            while (position < end) {
+                long transferred = mdatChannel.transferTo(position, Math.min(FAST_START_BLOCK_SIZE, end - position), fastStartChannel);
+                if (transferred <= 0) {
+                    throw new IOException("can't move mdat at " + position + " of " + end);
+                }
+                position += transferred;
+            }
+            finishSync(fastStartStream);
+            done = true;
+        } finally {
+            fastStartChannel.close();
+            fastStartStream.close();
+            mdatChannel.close();
+            mdatStream.close();
+            if (!done) {
+                fastStartFile.delete();
+            }
+        }
+        // renameTo replaces the target atomically on POSIX, so the complete output is never missing
+        if (!fastStartFile.renameTo(cacheFile) && (!cacheFile.delete() || !fastStartFile.renameTo(cacheFile))) {
+            throw new IOException("can't replace " + cacheFile + " with fast start output");
+        }
+    }
+
     protected FileTypeBox createFileTypeBox() {
         LinkedList<String> minorBrands = new LinkedList<>();
         minorBrands.add("isom");
@@ -257,6 +1034,12 @@ public class MP4Builder {
 
         public void getBox(WritableByteChannel writableByteChannel) throws IOException {
             ByteBuffer bb = ByteBuffer.allocate(16);
+            writeHeader(bb);
+            writableByteChannel.write(bb);
+        }
+
+        private void writeHeader(ByteBuffer bb) {
+            bb.clear();
             long size = getSize();
             if (isSmallBox(size)) {
                 IsoTypeWriter.writeUInt32(bb, size);
@@ -265,12 +1048,11 @@ public class MP4Builder {
             }
             bb.put(IsoFile.fourCCtoBytes("mdat"));
             if (isSmallBox(size)) {
-                bb.put(new byte[8]);
+                bb.putLong(0);
             } else {
                 IsoTypeWriter.writeUInt64(bb, size);
             }
-            bb.rewind();
-            writableByteChannel.write(bb);
+            bb.flip();
         }
     }
 
@@ -304,7 +1086,7 @@ public class MP4Builder {
 
         for (Track track : movie.getTracks()) {
             track.prepare();
-            long tracksDuration = track.getDuration() * movieTimeScale / track.getTimeScale();
+            long tracksDuration = track.getPresentationDuration() * movieTimeScale / track.getTimeScale();
             if (tracksDuration > duration) {
                 duration = tracksDuration;
             }
@@ -335,7 +1117,7 @@ public class MP4Builder {
         }
         tkhd.setAlternateGroup(0);
         tkhd.setCreationTime(track.getCreationTime());
-        tkhd.setDuration(track.getDuration() * getTimescale(movie) / track.getTimeScale());
+        tkhd.setDuration(track.getPresentationDuration() * getTimescale(movie) / track.getTimeScale());
         tkhd.setHeight(track.getHeight());
         tkhd.setWidth(track.getWidth());
         tkhd.setLayer(0);
@@ -345,6 +1127,16 @@ public class MP4Builder {
 
         trackBox.addBox(tkhd);
 
+        if (track.hasEditList()) {
+            EditBox edts = new EditBox();
+            EditListBox elst = new EditListBox();
+            ArrayList<EditListBox.Entry> entries = new ArrayList<>();
+            entries.add(new EditListBox.Entry(elst, track.getEditDuration() * getTimescale(movie) / track.getTimeScale(), track.getEditMediaTime(), 1));
+            elst.setEntries(entries);
+            edts.addBox(elst);
+            trackBox.addBox(edts);
+        }
+
         MediaBox mdia = new MediaBox();
         trackBox.addBox(mdia);
         MediaHeaderBox mdhd = new MediaHeaderBox();
@@ -396,99 +1188,28 @@ public class MP4Builder {
     }
 
     protected void createCtts(Track track, SampleTableBox stbl) {
-        int[] sampleCompositions = track.getSampleCompositions();
-        if (sampleCompositions == null) {
+        if (track.getSampleCompositions() == null) {
             return;
         }
-        CompositionTimeToSample.Entry lastEntry = null;
-        List<CompositionTimeToSample.Entry> entries = new ArrayList<>();
-
-        for (int a = 0; a < sampleCompositions.length; a++) {
-            int offset = sampleCompositions[a];
-            if (lastEntry != null && lastEntry.getOffset() == offset) {
-                lastEntry.setCount(lastEntry.getCount() + 1);
-            } else {
-                lastEntry = new CompositionTimeToSample.Entry(1, offset);
-                entries.add(lastEntry);
-            }
-        }
-        CompositionTimeToSample ctts = new CompositionTimeToSample();
-        ctts.setEntries(entries);
-        stbl.addBox(ctts);
+        stbl.addBox(new StreamingTableBox.CompositionTimeToSample(track, getTableBuffer()));
     }
 
     protected void createStts(Track track, SampleTableBox stbl) {
-        TimeToSampleBox.Entry lastEntry = null;
-        List<TimeToSampleBox.Entry> entries = new ArrayList<>();
-        long[] deltas = track.getSampleDurations();
-
-        for (int a = 0; a < deltas.length; a++) {
-            long delta = deltas[a];
-            if (lastEntry != null && lastEntry.getDelta() == delta) {
-                lastEntry.setCount(lastEntry.getCount() + 1);
-            } else {
-                lastEntry = new TimeToSampleBox.Entry(1, delta);
-                entries.add(lastEntry);
-            }
-        }
-        TimeToSampleBox stts = new TimeToSampleBox();
-        stts.setEntries(entries);
-        stbl.addBox(stts);
+        stbl.addBox(new StreamingTableBox.TimeToSample(track, getTableBuffer()));
     }
 
     protected void createStss(Track track, SampleTableBox stbl) {
-        long[] syncSamples = track.getSyncSamples();
-        if (syncSamples != null && syncSamples.length > 0) {
-            SyncSampleBox stss = new SyncSampleBox();
-            stss.setSampleNumber(syncSamples);
-            stbl.addBox(stss);
+        if (track.getSyncSamplesCount() > 0) {
+            stbl.addBox(new StreamingTableBox.SyncSamples(track, getTableBuffer()));
         }
     }
 
     protected void createStsc(Track track, SampleTableBox stbl) {
-        SampleToChunkBox stsc = new SampleToChunkBox();
-        stsc.setEntries(new LinkedList<>());
-
-        long lastOffset;
-        int lastChunkNumber = 1;
-        int lastSampleCount = 0;
-
-        int previousWritedChunkCount = -1;
-
-        int samplesCount = track.getSamples().size();
-        for (int a = 0; a < samplesCount; a++) {
-            Sample sample = track.getSamples().get(a);
-            long offset = sample.getOffset();
-            long size = sample.getSize();
-
-            lastOffset = offset + size;
-            lastSampleCount++;
-
-            boolean write = false;
-            if (a != samplesCount - 1) {
-                Sample nextSample = track.getSamples().get(a + 1);
-                if (lastOffset != nextSample.getOffset()) {
-                    write = true;
-                }
-            } else {
-                write = true;
-            }
-            if (write) {
-                if (previousWritedChunkCount != lastSampleCount) {
-                    stsc.getEntries().add(new SampleToChunkBox.Entry(lastChunkNumber, lastSampleCount, 1));
-                    previousWritedChunkCount = lastSampleCount;
-                }
-                lastSampleCount = 0;
-                lastChunkNumber++;
-            }
-        }
-        stbl.addBox(stsc);
+        stbl.addBox(new StreamingTableBox.SampleToChunk(track, getTableBuffer()));
     }
 
     protected void createStsz(Track track, SampleTableBox stbl) {
-        SampleSizeBox stsz = new SampleSizeBox();
-        stsz.setSampleSizes(track2SampleSizes.get(track));
-        stbl.addBox(stsz);
+        stbl.addBox(new StreamingTableBox.SampleSizes(track, getTableBuffer()));
     }
 
     protected void createSidx(Track track, SampleTableBox stbl) {
@@ -498,25 +1219,13 @@ public class MP4Builder {
     }
 
     protected void createStco(Track track, SampleTableBox stbl) {
-        ArrayList<Long> chunksOffsets = new ArrayList<>();
-        long lastOffset = -1;
-        for (Sample sample : track.getSamples()) {
-            long offset = sample.getOffset();
-            if (lastOffset != -1 && lastOffset != offset) {
-                lastOffset = -1;
-            }
-            if (lastOffset == -1) {
-                chunksOffsets.add(offset);
-            }
-            lastOffset = offset + sample.getSize();
-        }
-        long[] chunkOffsetsLong = new long[chunksOffsets.size()];
-        for (int a = 0; a < chunksOffsets.size(); a++) {
-            chunkOffsetsLong[a] = chunksOffsets.get(a);
-        }
+        stbl.addBox(new StreamingTableBox.ChunkOffsets(track, getTableBuffer()));
+    }
 
-        StaticChunkOffsetBox stco = new StaticChunkOffsetBox();
-        stco.setChunkOffsets(chunkOffsetsLong);
-        stbl.addBox(stco);
+    private ByteBuffer getTableBuffer() {
+        if (tableBuffer == null) {
+            tableBuffer = ByteBuffer.allocateDirect(StreamingTableBox.BUFFER_SIZE);
+        }
+        return tableBuffer;
     }
 }
@@ -0,0 +1,338 @@
+package com.mako.videocompressor.video;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+import com.mako.videocompressor.MediaController;
+import com.mako.videocompressor.utils.FileLog;
+import com.mako.videocompressor.utils.VideoEditedInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+public class MediaCodecFactory implements CodecFactory {
+
+    private static class AndroidCodec implements Codec {
+
+        private final MediaCodec codec;
+        private ByteBuffer[] inputBuffers;
+        private ByteBuffer[] outputBuffers;
+        private HandlerThread callbackThread;
+
+        private AndroidCodec(MediaCodec codec) {
+            this.codec = codec;
+        }
+
+        @Override
+        public String getName() {
+            return codec.getName();
+        }
+
+        @Override
+        public boolean setCallback(Callback callback) {
+            if (Build.VERSION.SDK_INT < 23) {
+                return false;
+            }
+            if (callback == null) {
+                codec.setCallback(null);
+                return true;
+            }
+            if (callbackThread == null) {
+                callbackThread = new HandlerThread("CodecCallbacks");
+                callbackThread.start();
+            }
+            codec.setCallback(new MediaCodec.Callback() {
+                @Override
+                public void onInputBufferAvailable(MediaCodec codec, int index) {
+                    callback.onInputBufferAvailable(AndroidCodec.this, index);
+                }
+
+                @Override
+                public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                    callback.onOutputBufferAvailable(AndroidCodec.this, index, info);
+                }
+
+                @Override
+                public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                    callback.onError(AndroidCodec.this, e);
+                }
+
+                @Override
+                public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                    callback.onOutputFormatChanged(AndroidCodec.this, format);
+                }
+            }, new Handler(callbackThread.getLooper()));
+            return true;
+        }
+
+        @Override
+        public void configure(MediaFormat format, FrameRenderer renderer, int flags) {
+            codec.configure(format, renderer != null ? renderer.getSurface() : null, null, flags);
+        }
+
+        private Surface createInputSurface() {
+            return codec.createInputSurface();
+        }
+
+        @Override
+        public void start() {
+            codec.start();
+        }
+
+        @Override
+        public int dequeueInputBuffer(long timeoutUs) {
+            return codec.dequeueInputBuffer(timeoutUs);
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            if (Build.VERSION.SDK_INT >= 21) {
+                return codec.getInputBuffer(index);
+            }
+            if (inputBuffers == null) {
+                inputBuffers = codec.getInputBuffers();
+            }
+            return inputBuffers[index];
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+            codec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+        }
+
+        @Override
+        public void signalEndOfInputStream() {
+            codec.signalEndOfInputStream();
+        }
+
+        @Override
+        public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+            int index = codec.dequeueOutputBuffer(info, timeoutUs);
+            if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = null;
+            }
+            return index;
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            if (Build.VERSION.SDK_INT >= 21) {
+                return codec.getOutputBuffer(index);
+            }
+            if (outputBuffers == null) {
+                outputBuffers = codec.getOutputBuffers();
+            }
+            return outputBuffers[index];
+        }
+
+        @Override
+        public MediaFormat getOutputFormat() {
+            return codec.getOutputFormat();
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index, boolean render) {
+            codec.releaseOutputBuffer(index, render);
+        }
+
+        @Override
+        public void flush() {
+            codec.flush();
+        }
+
+        @Override
+        public void stop() {
+            codec.stop();
+        }
+
+        @Override
+        public void release() {
+            codec.release();
+            if (callbackThread != null) {
+                callbackThread.quitSafely();
+                callbackThread = null;
+            }
+        }
+    }
+
+    private static class AndroidExtractor implements Extractor {
+
+        private final MediaExtractor extractor = new MediaExtractor();
+
+        @Override
+        public int getTrackCount() {
+            return extractor.getTrackCount();
+        }
+
+        @Override
+        public MediaFormat getTrackFormat(int index) {
+            return extractor.getTrackFormat(index);
+        }
+
+        @Override
+        public void selectTrack(int index) {
+            extractor.selectTrack(index);
+        }
+
+        @Override
+        public void unselectTrack(int index) {
+            extractor.unselectTrack(index);
+        }
+
+        @Override
+        public void seekTo(long timeUs, int mode) {
+            extractor.seekTo(timeUs, mode);
+        }
+
+        @Override
+        public int getSampleTrackIndex() {
+            return extractor.getSampleTrackIndex();
+        }
+
+        @Override
+        public long getSampleTime() {
+            return extractor.getSampleTime();
+        }
+
+        @Override
+        public int getSampleFlags() {
+            return extractor.getSampleFlags();
+        }
+
+        @Override
+        public long getSampleSize() {
+            return extractor.getSampleSize();
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer, int offset) {
+            return extractor.readSampleData(buffer, offset);
+        }
+
+        @Override
+        public boolean advance() {
+            return extractor.advance();
+        }
+
+        @Override
+        public void release() {
+            extractor.release();
+        }
+    }
+
+    private static class SurfaceRenderer implements FrameRenderer {
+
+        private final InputSurface inputSurface;
+        private final OutputSurface outputSurface;
+
+        private SurfaceRenderer(InputSurface inputSurface, OutputSurface outputSurface) {
+            this.inputSurface = inputSurface;
+            this.outputSurface = outputSurface;
+        }
+
+        @Override
+        public Surface getSurface() {
+            return outputSurface.getSurface();
+        }
+
+        @Override
+        public void awaitNewImage() {
+            outputSurface.awaitNewImage();
+        }
+
+        @Override
+        public void drawFrame(long presentationTimeUs) {
+            outputSurface.drawImage();
+            inputSurface.setPresentationTime(presentationTimeUs * 1000);
+            inputSurface.swapBuffers();
+        }
+
+        @Override
+        public void release() {
+            outputSurface.release();
+            inputSurface.release();
+        }
+    }
+
+    @Override
+    public Codec createDecoder(String mime) throws IOException {
+        return new AndroidCodec(MediaCodec.createDecoderByType(mime));
+    }
+
+    @Override
+    public Codec createEncoder(String mime) throws IOException {
+        return new AndroidCodec(MediaCodec.createEncoderByType(mime));
+    }
+
+    @Override
+    public Extractor createExtractor(String path) throws IOException {
+        AndroidExtractor extractor = new AndroidExtractor();
+        try {
+            extractor.extractor.setDataSource(path);
+        } catch (IOException e) {
+            extractor.release();
+            throw e;
+        }
+        return extractor;
+    }
+
+    @Override
+    public FrameRenderer createRenderer(Codec encoder, MediaController.SavedFilterState savedFilterState, String imagePath, String paintPath,
+                                        ArrayList<VideoEditedInfo.MediaEntity> mediaEntities, MediaController.CropState cropState,
+                                        int w, int h, int rotation, float fps, boolean photo) {
+        InputSurface inputSurface = new InputSurface(((AndroidCodec) CodecEventLoop.unwrap(encoder)).createInputSurface());
+        OutputSurface outputSurface;
+        try {
+            inputSurface.makeCurrent();
+            outputSurface = new OutputSurface(savedFilterState, imagePath, paintPath, mediaEntities, cropState, w, h, rotation, fps, photo);
+        } catch (RuntimeException e) {
+            inputSurface.release();
+            throw e;
+        }
+        return new SurfaceRenderer(inputSurface, outputSurface);
+    }
+
+    @Override
+    public int getMaxInstances(String mime) {
+        if (Build.VERSION.SDK_INT < 18) {
+            return 1;
+        }
+        if (Build.VERSION.SDK_INT < 23) {
+            return 2;
+        }
+        int encoderInstances = 0;
+        int decoderInstances = 0;
+        try {
+            for (MediaCodecInfo codecInfo : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+                if (codecInfo.isEncoder() ? encoderInstances != 0 : decoderInstances != 0) {
+                    continue;
+                }
+                for (String type : codecInfo.getSupportedTypes()) {
+                    if (type.equalsIgnoreCase(mime)) {
+                        int instances = codecInfo.getCapabilitiesForType(type).getMaxSupportedInstances();
+                        if (codecInfo.isEncoder()) {
+                            encoderInstances = instances;
+                        } else {
+                            decoderInstances = instances;
+                        }
+                        break;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            FileLog.e(e);
+        }
+        if (encoderInstances <= 0 || decoderInstances <= 0) {
+            return 1;
+        }
+        return Math.min(encoderInstances, decoderInstances);
+    }
+}
@@ -14,18 +14,54 @@ import com.mako.videocompressor.utils.VideoEditedInfo;
 
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Set;
 
 public class MediaCodecVideoConvertor {
 
     private MP4Builder mediaMuxer;
-    private MediaExtractor extractor;
+    private Extractor extractor;
 
     private long endPresentationTime;
+    private boolean fastStart;
+    private boolean fragmented;
+    private SyncPolicy syncPolicy;
+    private boolean asyncWrite;
+    private long interleaveDurationUs;
+    private boolean smartCut;
+    private long smartCutPts;
+    private byte[] cropSps;
+    private int cropWidth;
+    private int cropHeight;
+    private int transcodeSegments;
+    private volatile boolean segmentsAborted;
+    private int segmentSamplesCount;
+    private int segmentSamplesWritten;
+    private long segmentBytesWritten;
+    private boolean pipelined;
+    private boolean asyncCodecs;
+    private float[] stageUtilization;
+    private Set<String> increasedTimeoutCodecs;
+    private volatile String encoderName;
+    private String increasedTimeoutCodec;
+    private TranscodeCheckpoint resumeCheckpoint;
+    private File journalFile;
+    private byte[] journalSettings;
+    private long sizeLimit;
+    private long projectedSize;
+    private boolean sizeLimitExceeded;
+
+    private CodecFactory codecFactory = new MediaCodecFactory();
 
     private MediaController.VideoConvertorListener callback;
 
+    private static final int MIN_SEGMENT_DURATION_US = 2000000;
+    private static final float SIZE_LIMIT_WARMUP = 0.1f;
+    // a checkpoint flushes the interleave and write combining buffers, so only take one every few GOPs
+    private static final long CHECKPOINT_INTERVAL_US = 5000000;
+
     private final static int PROCESSOR_TYPE_OTHER = 0;
     private final static int PROCESSOR_TYPE_QCOM = 1;
     private final static int PROCESSOR_TYPE_INTEL = 2;
@@ -49,6 +85,8 @@ public class MediaCodecVideoConvertor {
                                 MediaController.CropState cropState,
                                 MediaController.VideoConvertorListener callback) {
         this.callback = callback;
+        sizeLimitExceeded = false;
+        projectedSize = 0;
         return convertVideoInternal(videoPath, cacheFile, rotationValue,
                 resultWidth, resultHeight, framerate, bitrate, originalBitrate, startTime, endTime, avatarStartTime, duration, needCompress, false, savedFilterState, paintPath, mediaEntities, isPhoto, cropState);
     }
@@ -57,6 +95,109 @@ public class MediaCodecVideoConvertor {
         return endPresentationTime;
     }
 
+    public void setFastStart(boolean value) {
+        fastStart = value;
+    }
+
+    public void setFragmented(boolean value) {
+        fragmented = value;
+    }
+
+    public void setSyncPolicy(SyncPolicy policy) {
+        syncPolicy = policy;
+    }
+
+    public void setAsyncWrite(boolean value) {
+        asyncWrite = value;
+    }
+
+    public void setInterleaveDuration(long durationUs) {
+        interleaveDurationUs = durationUs;
+    }
+
+    public void setSmartCut(boolean value) {
+        smartCut = value;
+    }
+
+    public void setTranscodeSegments(int count) {
+        transcodeSegments = count;
+    }
+
+    public void setAsyncCodecs(boolean value) {
+        asyncCodecs = value;
+    }
+
+    public void setPipelined(boolean value) {
+        pipelined = value;
+    }
+
+    public float[] getStageUtilization() {
+        return stageUtilization;
+    }
+
+    public void setIncreasedTimeoutCodecs(Set<String> codecs) {
+        increasedTimeoutCodecs = codecs;
+    }
+
+    public String getIncreasedTimeoutCodec() {
+        return increasedTimeoutCodec;
+    }
+
+    private boolean needsIncreasedTimeout(Codec encoder) {
+        encoderName = encoder.getName();
+        return increasedTimeoutCodecs != null && increasedTimeoutCodecs.contains(encoderName);
+    }
+
+    public void setJournal(File file, byte[] settings) {
+        journalFile = file;
+        journalSettings = settings;
+    }
+
+    public void setSizeLimit(long bytes) {
+        sizeLimit = bytes;
+    }
+
+    public boolean isSizeLimitExceeded() {
+        return sizeLimitExceeded;
+    }
+
+    public long getProjectedSize() {
+        return projectedSize;
+    }
+
+    // Thrown once the projected output size passes the limit. The job is retried or given up on, so its output is
+    // closed without a moov.
+    static class SizeLimitExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        SizeLimitExceededException(long projectedSize, long sizeLimit) {
+            super("projected size " + projectedSize + " exceeds " + sizeLimit);
+        }
+    }
+
+    private void checkProjectedSize(long availableSize, float progress) {
+        if (sizeLimit <= 0 || progress < SIZE_LIMIT_WARMUP || progress >= 1) {
+            return;
+        }
+        projectedSize = (long) (availableSize / progress);
+        if (projectedSize > sizeLimit) {
+            sizeLimitExceeded = true;
+            throw new SizeLimitExceededException(projectedSize, sizeLimit);
+        }
+    }
+
+    public void setCodecFactory(CodecFactory factory) {
+        codecFactory = factory;
+    }
+
+    private MP4Builder createMuxer() {
+        MP4Builder builder = fragmented ? new FragmentedMP4Builder() : new MP4Builder();
+        builder.setSyncPolicy(syncPolicy);
+        builder.setAsyncWrite(asyncWrite);
+        builder.setInterleave(interleaveDurationUs);
+        return builder;
+    }
+
     @TargetApi(18)
     private boolean convertVideoInternal(String videoPath, File cacheFile,
                                          int rotationValue,
@@ -75,6 +216,9 @@ public class MediaCodecVideoConvertor {
         boolean error = false;
         boolean repeatWithIncreasedTimeout = false;
         int videoTrackIndex = -5;
+        cropSps = null;
+        TranscodeCheckpoint resume = resumeCheckpoint;
+        resumeCheckpoint = null;
 
         try {
             MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
@@ -82,13 +226,46 @@ public class MediaCodecVideoConvertor {
             movie.setCacheFile(cacheFile);
             movie.setRotation(0);
             movie.setSize(resultWidth, resultHeight);
-            mediaMuxer = new MP4Builder().createMovie(movie, false);
+            movie.setExpectedDuration(duration * 1000, framerate);
+            if (resume != null) {
+                mediaMuxer.restoreCheckpoint(resume.muxerCheckpoint);
+                if (BuildVars.LOGS_ENABLED) {
+                    FileLog.d("resume from " + resume.videoTimeUs + " at offset " + resume.muxerCheckpoint.getDataOffset());
+                }
+            } else {
+                mediaMuxer = null;
+                boolean journaling = journalFile != null && !fragmented && !isPhoto && avatarStartTime < 0;
+                ConversionJournal.Replay replay = journaling ? ConversionJournal.read(journalFile, journalSettings) : null;
+                if (replay != null) {
+                    try {
+                        mediaMuxer = createMuxer().resumeMovie(movie, false, fastStart, replay);
+                        resume = new TranscodeCheckpoint(mediaMuxer.createCheckpoint(), replay.getState());
+                        if (BuildVars.LOGS_ENABLED) {
+                            FileLog.d("resume journal from " + resume.videoTimeUs + " at offset " + resume.muxerCheckpoint.getDataOffset());
+                        }
+                    } catch (Exception e) {
+                        FileLog.e(e);
+                        movie.getTracks().clear();
+                        mediaMuxer = null;
+                        replay = null;
+                    }
+                }
+                if (mediaMuxer == null) {
+                    mediaMuxer = createMuxer().createMovie(movie, false, fastStart);
+                }
+                if (journaling) {
+                    try {
+                        mediaMuxer.setJournal(replay != null ? ConversionJournal.append(replay) : new ConversionJournal(journalFile, journalSettings));
+                    } catch (IOException e) {
+                        FileLog.e(e);
+                    }
+                }
+            }
 
             long currentPts = 0;
             float durationS = duration / 1000f;
-            MediaCodec encoder = null;
-            InputSurface inputSurface = null;
-            OutputSurface outputSurface = null;
+            Codec encoder = null;
+            FrameRenderer renderer = null;
             int prependHeaderSize = 0;
             endPresentationTime = duration * 1000;
             checkConversionCanceled();
@@ -134,19 +311,13 @@ public class MediaCodecVideoConvertor {
                     outputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, framerate);
                     outputFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 2);
 
-                    encoder = MediaCodec.createEncoderByType(MediaController.VIDEO_MIME_TYPE);
-                    encoder.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-                    inputSurface = new InputSurface(encoder.createInputSurface());
-                    inputSurface.makeCurrent();
-                    encoder.start();
-
-                    outputSurface = new OutputSurface(savedFilterState, videoPath, paintPath, mediaEntities, null, resultWidth, resultHeight, rotationValue, framerate, true);
-
-                    ByteBuffer[] encoderOutputBuffers = null;
-                    ByteBuffer[] encoderInputBuffers = null;
-                    if (Build.VERSION.SDK_INT < 21) {
-                        encoderOutputBuffers = encoder.getOutputBuffers();
+                    encoder = codecFactory.createEncoder(MediaController.VIDEO_MIME_TYPE);
+                    if (needsIncreasedTimeout(encoder)) {
+                        increaseTimeout = true;
                     }
+                    encoder.configure(outputFormat, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                    renderer = codecFactory.createRenderer(encoder, savedFilterState, videoPath, paintPath, mediaEntities, null, resultWidth, resultHeight, rotationValue, framerate, true);
+                    encoder.start();
 
                     boolean firstEncode = true;
 
@@ -163,9 +334,7 @@ public class MediaCodecVideoConvertor {
                             if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                                 encoderOutputAvailable = false;
                             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                                if (Build.VERSION.SDK_INT < 21) {
-                                    encoderOutputBuffers = encoder.getOutputBuffers();
-                                }
+
                             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                                 MediaFormat newFormat = encoder.getOutputFormat();
                                 if (BuildVars.LOGS_ENABLED) {
@@ -182,12 +351,7 @@ public class MediaCodecVideoConvertor {
                             } else if (encoderStatus < 0) {
                                 throw new RuntimeException("unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus);
                             } else {
-                                ByteBuffer encodedData;
-                                if (Build.VERSION.SDK_INT < 21) {
-                                    encodedData = encoderOutputBuffers[encoderStatus];
-                                } else {
-                                    encodedData = encoder.getOutputBuffer(encoderStatus);
-                                }
+                                ByteBuffer encodedData = encoder.getOutputBuffer(encoderStatus);
                                 if (encodedData == null) {
                                     throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
                                 }
@@ -259,10 +423,7 @@ public class MediaCodecVideoConvertor {
                             }
 
                             if (!decoderDone) {
-                                outputSurface.drawImage();
-                                long presentationTime = (long) (framesCount / 30.0f * 1000L * 1000L * 1000L);
-                                inputSurface.setPresentationTime(presentationTime);
-                                inputSurface.swapBuffers();
+                                renderer.drawFrame((long) (framesCount / 30.0f * 1000L * 1000L));
                                 framesCount++;
 
                                 if (framesCount >= duration / 1000.0f * 30) {
@@ -279,17 +440,15 @@ public class MediaCodecVideoConvertor {
                     // fix it by increasing timeout
                     if (e instanceof IllegalStateException && !increaseTimeout) {
                         repeatWithIncreasedTimeout = true;
+                        increasedTimeoutCodec = encoderName;
                     }
                     FileLog.e("bitrate: " + bitrate + " framerate: " + framerate + " size: " + resultHeight + "x" + resultWidth);
                     FileLog.e(e);
                     error = true;
                 }
 
-                if (outputSurface != null) {
-                    outputSurface.release();
-                }
-                if (inputSurface != null) {
-                    inputSurface.release();
+                if (renderer != null) {
+                    renderer.release();
                 }
                 if (encoder != null) {
                     encoder.stop();
@@ -297,8 +456,7 @@ public class MediaCodecVideoConvertor {
                 }
                 checkConversionCanceled();
             } else {
-                extractor = new MediaExtractor();
-                extractor.setDataSource(videoPath);
+                extractor = codecFactory.createExtractor(videoPath);
 
                 int videoIndex = MediaController.findTrack(extractor, false);
                 int audioIndex = bitrate != -1 ? MediaController.findTrack(extractor, true) : -1;
@@ -307,13 +465,58 @@ public class MediaCodecVideoConvertor {
                     needConvertVideo = true;
                 }
 
-                if (needCompress || needConvertVideo) {
+                if (!needCompress && !needConvertVideo && !prepareLosslessCrop(videoPath, cropState, rotationValue, resultWidth, resultHeight)) {
+                    needCompress = true;
+                }
+
+                boolean segmented = false;
+                if (resume == null && (needCompress || needConvertVideo) && videoIndex >= 0 && transcodeSegments > 1 && avatarStartTime < 0 && paintPath == null && mediaEntities == null) {
+                    try {
+                        int trackIndex = transcodeSegments(videoPath, mediaMuxer, startTime, endTime, duration, resultWidth, resultHeight, rotationValue,
+                                framerate, bitrate, originalBitrate, savedFilterState, cropState, audioIndex >= 0, increaseTimeout);
+                        if (trackIndex != -5) {
+                            videoTrackIndex = trackIndex;
+                            segmented = true;
+                        }
+                    } catch (Exception e) {
+                        if (e instanceof IllegalStateException && !increaseTimeout) {
+                            repeatWithIncreasedTimeout = true;
+                            increasedTimeoutCodec = encoderName;
+                        }
+                        FileLog.e(e);
+                        error = true;
+                        segmented = true;
+                    }
+                }
+                if (resume == null && !segmented && (needCompress || needConvertVideo) && videoIndex >= 0 && pipelined && avatarStartTime < 0) {
+                    try {
+                        int trackIndex = transcodePipelined(videoPath, mediaMuxer, startTime, endTime, duration, resultWidth, resultHeight, rotationValue,
+                                framerate, bitrate, originalBitrate, savedFilterState, paintPath, mediaEntities, cropState, audioIndex >= 0, increaseTimeout);
+                        if (trackIndex != -5) {
+                            videoTrackIndex = trackIndex;
+                            segmented = true;
+                        }
+                    } catch (Exception e) {
+                        if (e instanceof IllegalStateException && !increaseTimeout) {
+                            repeatWithIncreasedTimeout = true;
+                            increasedTimeoutCodec = encoderName;
+                        }
+                        FileLog.e(e);
+                        error = true;
+                        segmented = true;
+                    }
+                }
+
+                if (!segmented && (needCompress || needConvertVideo)) {
                     AudioRecoder audioRecoder = null;
                     ByteBuffer audioBuffer = null;
                     boolean copyAudioBuffer = true;
 
                     if (videoIndex >= 0) {
-                        MediaCodec decoder = null;
+                        Codec decoder = null;
+                        TranscodeCheckpoint checkpoint = null;
+                        CodecEventLoop eventLoop = asyncCodecs ? new CodecEventLoop() : null;
+                        long transcodeStartTime = System.nanoTime();
 
                         try {
                             long videoTime = -1;
@@ -325,6 +528,18 @@ public class MediaCodecVideoConvertor {
                             long additionalPresentationTime = 0;
                             long minPresentationTime = Integer.MIN_VALUE;
                             long frameDelta = 1000 / framerate * 1000;
+                            long resumeTimeUs = -1;
+                            long lastAudioTimeUs = Long.MIN_VALUE;
+                            long lastCheckpointTimeUs = Long.MIN_VALUE;
+                            if (resume != null) {
+                                videoTrackIndex = resume.videoTrackIndex;
+                                audioTrackIndex = resume.audioTrackIndex;
+                                currentPts = resume.currentPts;
+                                resumeTimeUs = resume.videoTimeUs;
+                                lastAudioTimeUs = resume.audioTimeUs;
+                                checkpoint = resume;
+                                lastCheckpointTimeUs = resume.videoTimeUs;
+                            }
 
                             extractor.selectTrack(videoIndex);
                             MediaFormat videoFormat = extractor.getTrackFormat(videoIndex);
@@ -350,7 +565,9 @@ public class MediaCodecVideoConvertor {
                                 avatarStartTime = -1;
                             }
 
-                            if (avatarStartTime >= 0) {
+                            if (resume != null) {
+                                extractor.seekTo(resume.getSeekTimeUs(), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                            } else if (avatarStartTime >= 0) {
                                 extractor.seekTo(avatarStartTime, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
                             } else if (startTime > 0) {
                                 extractor.seekTo(startTime, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
@@ -388,24 +605,23 @@ public class MediaCodecVideoConvertor {
                                 outputFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
                             }
 
-                            encoder = MediaCodec.createEncoderByType(MediaController.VIDEO_MIME_TYPE);
-                            encoder.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-                            inputSurface = new InputSurface(encoder.createInputSurface());
-                            inputSurface.makeCurrent();
+                            encoder = codecFactory.createEncoder(MediaController.VIDEO_MIME_TYPE);
+                            if (needsIncreasedTimeout(encoder)) {
+                                increaseTimeout = true;
+                            }
+                            if (eventLoop != null) {
+                                encoder = eventLoop.wrap(encoder);
+                            }
+                            encoder.configure(outputFormat, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                            renderer = codecFactory.createRenderer(encoder, savedFilterState, null, paintPath, mediaEntities, cropState, resultWidth, resultHeight, rotationValue, framerate, false);
                             encoder.start();
 
-                            decoder = MediaCodec.createDecoderByType(videoFormat.getString(MediaFormat.KEY_MIME));
-                            outputSurface = new OutputSurface(savedFilterState, null, paintPath, mediaEntities, cropState, resultWidth, resultHeight, rotationValue, framerate, false);
-                            decoder.configure(videoFormat, outputSurface.getSurface(), null, 0);
-                            decoder.start();
-
-                            ByteBuffer[] decoderInputBuffers = null;
-                            ByteBuffer[] encoderOutputBuffers = null;
-                            ByteBuffer[] encoderInputBuffers = null;
-                            if (Build.VERSION.SDK_INT < 21) {
-                                decoderInputBuffers = decoder.getInputBuffers();
-                                encoderOutputBuffers = encoder.getOutputBuffers();
+                            decoder = codecFactory.createDecoder(videoFormat.getString(MediaFormat.KEY_MIME));
+                            if (eventLoop != null) {
+                                decoder = eventLoop.wrap(decoder);
                             }
+                            decoder.configure(videoFormat, renderer, 0);
+                            decoder.start();
 
                             int maxBufferSize = 0;
                             if (audioIndex >= 0) {
@@ -418,7 +634,10 @@ public class MediaCodecVideoConvertor {
 
                                 if (audioIndex >= 0) {
                                     if (copyAudioBuffer) {
-                                        audioTrackIndex = mediaMuxer.addTrack(audioFormat, true);
+                                        if (resume == null) {
+                                            audioTrackIndex = mediaMuxer.addTrack(audioFormat, true);
+                                            setPresentationWindow(mediaMuxer, audioTrackIndex, startTime, endTime, getEncoderDelayUs(audioFormat));
+                                        }
                                         extractor.selectTrack(audioIndex);
                                         try {
                                             maxBufferSize = audioFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
@@ -430,14 +649,15 @@ public class MediaCodecVideoConvertor {
                                         }
                                         audioBuffer = ByteBuffer.allocateDirect(maxBufferSize);
 
-                                        if (startTime > 0) {
+                                        if (resume != null) {
+                                            extractor.seekTo(resume.getSeekTimeUs(), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                                        } else if (startTime > 0) {
                                             extractor.seekTo(startTime, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
                                         } else {
                                             extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
                                         }
                                     } else {
-                                        MediaExtractor audioExtractor = new MediaExtractor();
-                                        audioExtractor.setDataSource(videoPath);
+                                        Extractor audioExtractor = codecFactory.createExtractor(videoPath);
                                         audioExtractor.selectTrack(audioIndex);
 
                                         if (startTime > 0) {
@@ -446,17 +666,25 @@ public class MediaCodecVideoConvertor {
                                             audioExtractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
                                         }
 
-                                        audioRecoder = new AudioRecoder(audioFormat, audioExtractor, audioIndex);
+                                        audioRecoder = new AudioRecoder(audioFormat, audioExtractor, audioIndex, codecFactory, eventLoop);
                                         audioRecoder.startTime = startTime;
                                         audioRecoder.endTime = endTime;
                                         audioTrackIndex = mediaMuxer.addTrack(audioRecoder.format, true);
+                                        if (!fragmented) {
+                                            mediaMuxer.setMediaTimeOffset(audioTrackIndex, audioRecoder.getEncoderDelayUs());
+                                        }
                                     }
                                 }
                             }
 
+                            if (fragmented) {
+                                ((FragmentedMP4Builder) mediaMuxer).setExpectedTracksCount(audioIndex >= 0 ? 2 : 1);
+                            }
                             boolean audioEncoderDone = audioIndex < 0;
 
                             boolean firstEncode = true;
+                            boolean resumeFormat = resume != null;
+                            boolean canCheckpoint = (!increaseTimeout || mediaMuxer.getJournal() != null) && audioRecoder == null && avatarStartTime < 0;
 
                             checkConversionCanceled();
 
@@ -473,12 +701,7 @@ public class MediaCodecVideoConvertor {
                                     if (index == videoIndex) {
                                         int inputBufIndex = decoder.dequeueInputBuffer(MEDIACODEC_TIMEOUT_DEFAULT);
                                         if (inputBufIndex >= 0) {
-                                            ByteBuffer inputBuf;
-                                            if (Build.VERSION.SDK_INT < 21) {
-                                                inputBuf = decoderInputBuffers[inputBufIndex];
-                                            } else {
-                                                inputBuf = decoder.getInputBuffer(inputBufIndex);
-                                            }
+                                            ByteBuffer inputBuf = decoder.getInputBuffer(inputBufIndex);
                                             int chunkSize = extractor.readSampleData(inputBuf, 0);
                                             if (chunkSize < 0) {
                                                 decoder.queueInputBuffer(inputBufIndex, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
@@ -508,9 +731,10 @@ public class MediaCodecVideoConvertor {
                                             info.size = 0;
                                             inputDone = true;
                                         }
-                                        if (info.size > 0 && (endTime < 0 || info.presentationTimeUs < endTime)) {
+                                        if (info.size > 0 && (endTime < 0 || info.presentationTimeUs < endTime) && info.presentationTimeUs > lastAudioTimeUs) {
                                             info.offset = 0;
                                             info.flags = extractor.getSampleFlags();
+                                            lastAudioTimeUs = info.presentationTimeUs;
                                             long availableSize = mediaMuxer.writeSampleData(audioTrackIndex, audioBuffer, info, false);
                                             if (availableSize != 0) {
                                                 if (callback != null) {
@@ -541,13 +765,22 @@ public class MediaCodecVideoConvertor {
                                     if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                                         encoderOutputAvailable = false;
                                     } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                                        if (Build.VERSION.SDK_INT < 21) {
-                                            encoderOutputBuffers = encoder.getOutputBuffers();
-                                        }
+
                                     } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                                         MediaFormat newFormat = encoder.getOutputFormat();
-                                        if (videoTrackIndex == -5 && newFormat != null) {
-                                            videoTrackIndex = mediaMuxer.addTrack(newFormat, false);
+                                        if ((videoTrackIndex == -5 || resumeFormat) && newFormat != null) {
+                                            if (resumeFormat) {
+                                                resumeFormat = false;
+                                                if (newFormat.containsKey("csd-0") && newFormat.containsKey("csd-1")) {
+                                                    int descriptionIndex = mediaMuxer.findSampleDescription(videoTrackIndex, newFormat);
+                                                    if (descriptionIndex < 0) {
+                                                        descriptionIndex = mediaMuxer.addSampleDescription(videoTrackIndex, newFormat);
+                                                    }
+                                                    mediaMuxer.setSampleDescription(videoTrackIndex, descriptionIndex);
+                                                }
+                                            } else {
+                                                videoTrackIndex = mediaMuxer.addTrack(newFormat, false);
+                                            }
                                             if (newFormat.containsKey(MediaFormat.KEY_PREPEND_HEADER_TO_SYNC_FRAMES) && newFormat.getInteger(MediaFormat.KEY_PREPEND_HEADER_TO_SYNC_FRAMES) == 1) {
                                                 ByteBuffer spsBuff = newFormat.getByteBuffer("csd-0");
                                                 ByteBuffer ppsBuff = newFormat.getByteBuffer("csd-1");
@@ -557,12 +790,7 @@ public class MediaCodecVideoConvertor {
                                     } else if (encoderStatus < 0) {
                                         throw new RuntimeException("unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus);
                                     } else {
-                                        ByteBuffer encodedData;
-                                        if (Build.VERSION.SDK_INT < 21) {
-                                            encodedData = encoderOutputBuffers[encoderStatus];
-                                        } else {
-                                            encodedData = encoder.getOutputBuffer(encoderStatus);
-                                        }
+                                        ByteBuffer encodedData = encoder.getOutputBuffer(encoderStatus);
                                         if (encodedData == null) {
                                             throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
                                         }
@@ -591,12 +819,23 @@ public class MediaCodecVideoConvertor {
                                                     }
                                                     firstEncode = false;
                                                 }
+                                                if (canCheckpoint && (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0 && (lastCheckpointTimeUs == Long.MIN_VALUE || info.presentationTimeUs - lastCheckpointTimeUs >= CHECKPOINT_INTERVAL_US)) {
+                                                    MP4Builder.Checkpoint muxerCheckpoint = mediaMuxer.createCheckpoint();
+                                                    if (muxerCheckpoint == null) {
+                                                        canCheckpoint = false;
+                                                    } else {
+                                                        checkpoint = new TranscodeCheckpoint(muxerCheckpoint, info.presentationTimeUs, lastAudioTimeUs, videoTrackIndex, audioTrackIndex, currentPts);
+                                                        lastCheckpointTimeUs = info.presentationTimeUs;
+                                                        mediaMuxer.writeJournal(muxerCheckpoint, checkpoint.toState());
+                                                    }
+                                                }
                                                 long availableSize = mediaMuxer.writeSampleData(videoTrackIndex, encodedData, info, true);
                                                 if (availableSize != 0) {
+                                                    if (info.presentationTimeUs - startTime > currentPts) {
+                                                        currentPts = info.presentationTimeUs - startTime;
+                                                    }
+                                                    checkProjectedSize(availableSize, (currentPts / 1000f) / durationS);
                                                     if (callback != null) {
-                                                        if (info.presentationTimeUs - startTime > currentPts) {
-                                                            currentPts = info.presentationTimeUs - startTime;
-                                                        }
                                                         callback.didWriteData(availableSize, (currentPts / 1000f) / durationS);
                                                     }
                                                 }
@@ -658,6 +897,9 @@ public class MediaCodecVideoConvertor {
                                                 doRender = false;
                                                 info.flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
                                             }
+                                            if (originalPresentationTime < resumeTimeUs) {
+                                                doRender = false;
+                                            }
                                             boolean flushed = false;
                                             if (avatarStartTime >= 0 && (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 && Math.abs(avatarStartTime - startTime) > 1000000 / framerate) {
                                                 if (startTime > 0) {
@@ -703,15 +945,13 @@ public class MediaCodecVideoConvertor {
                                                 }
                                                 boolean errorWait = false;
                                                 try {
-                                                    outputSurface.awaitNewImage();
+                                                    renderer.awaitNewImage();
                                                 } catch (Exception e) {
                                                     errorWait = true;
                                                     FileLog.e(e);
                                                 }
                                                 if (!errorWait) {
-                                                    outputSurface.drawImage();
-                                                    inputSurface.setPresentationTime(info.presentationTimeUs * 1000);
-                                                    inputSurface.swapBuffers();
+                                                    renderer.drawFrame(info.presentationTimeUs);
                                                 }
                                             }
                                             if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
@@ -725,12 +965,24 @@ public class MediaCodecVideoConvertor {
                                     }
                                 }
                             }
+                            if (BuildVars.LOGS_ENABLED) {
+                                String mode = eventLoop == null ? "polling" : "callbacks, codec events = " + eventLoop.getEventsCount() + " avg latency = " + eventLoop.getAverageLatencyUs()
+                                        + "us max latency = " + eventLoop.getMaxLatencyUs() + "us idle = " + eventLoop.getWaitTimeUs() / 1000 + "ms early wakeups = " + eventLoop.getEarlyWakeupsCount();
+                                FileLog.d("transcode loop took " + (System.nanoTime() - transcodeStartTime) / 1000000 + "ms for " + (currentPts / 1000) + "ms of video, " + mode);
+                            }
+                        } catch (SizeLimitExceededException e) {
+                            if (BuildVars.LOGS_ENABLED) {
+                                FileLog.d(e.getMessage());
+                            }
+                            error = true;
                         } catch (Exception e) {
                             // in some case encoder.dequeueOutputBuffer return IllegalStateException
                             // stable reproduced on xiaomi
                             // fix it by increasing timeout
                             if (e instanceof IllegalStateException && !increaseTimeout) {
                                 repeatWithIncreasedTimeout = true;
+                                increasedTimeoutCodec = encoderName;
+                                resumeCheckpoint = checkpoint;
                             }
                             FileLog.e("bitrate: " + bitrate + " framerate: " + framerate + " size: " + resultHeight + "x" + resultWidth);
                             FileLog.e(e);
@@ -743,11 +995,8 @@ public class MediaCodecVideoConvertor {
                             decoder.release();
                         }
                     }
-                    if (outputSurface != null) {
-                        outputSurface.release();
-                    }
-                    if (inputSurface != null) {
-                        inputSurface.release();
+                    if (renderer != null) {
+                        renderer.release();
                     }
                     if (encoder != null) {
                         encoder.stop();
@@ -757,10 +1006,43 @@ public class MediaCodecVideoConvertor {
                         audioRecoder.release();
                     }
                     checkConversionCanceled();
-                } else {
-                    readAndWriteTracks(extractor, mediaMuxer, info, startTime, endTime, duration, cacheFile, bitrate != -1);
+                } else if (!segmented) {
+                    int rotation = getPassthroughRotation(rotationValue, cropState);
+                    movie.setRotation(rotation);
+                    Mp4Demuxer demuxer = null;
+                    try {
+                        demuxer = new Mp4Demuxer(new File(videoPath));
+                        if (!canReadTracks(demuxer)) {
+                            demuxer.close();
+                            demuxer = null;
+                        }
+                    } catch (Exception e) {
+                        FileLog.e(e);
+                    }
+                    if (demuxer != null) {
+                        try {
+                            if (canCopyFile(demuxer, startTime, endTime, bitrate != -1, rotation)) {
+                                mediaMuxer.copyFile(demuxer.getChannel());
+                            } else if (canSmartCut(demuxer, startTime, endTime)) {
+                                int encoderBitrate = originalBitrate > 0 ? originalBitrate : bitrate > 0 ? bitrate : 921600;
+                                videoTrackIndex = smartCut(demuxer, mediaMuxer, info, startTime, endTime, duration, framerate, encoderBitrate, bitrate != -1, increaseTimeout);
+                            } else {
+                                readAndWriteTracks(demuxer, mediaMuxer, info, startTime, endTime, duration, bitrate != -1);
+                            }
+                            mediaMuxer.detachSource(demuxer.getChannel());
+                        } finally {
+                            demuxer.close();
+                        }
+                    } else {
+                        readAndWriteTracks(extractor, mediaMuxer, info, startTime, endTime, duration, cacheFile, bitrate != -1);
+                    }
                 }
             }
+        } catch (SizeLimitExceededException e) {
+            error = true;
+            if (BuildVars.LOGS_ENABLED) {
+                FileLog.d(e.getMessage());
+            }
         } catch (Throwable e) {
             error = true;
             FileLog.e("bitrate: " + bitrate + " framerate: " + framerate + " size: " + resultHeight + "x" + resultWidth);
@@ -768,8 +1050,11 @@ public class MediaCodecVideoConvertor {
         } finally {
             if (extractor != null) {
                 extractor.release();
+                extractor = null;
             }
-            if (mediaMuxer != null) {
+            if (mediaMuxer != null && resumeCheckpoint == null && sizeLimitExceeded) {
+                mediaMuxer.abortMovie();
+            } else if (mediaMuxer != null && resumeCheckpoint == null) {
                 try {
                     mediaMuxer.finishMovie();
                     endPresentationTime = mediaMuxer.getLastFrameTimestamp(videoTrackIndex);
@@ -794,7 +1079,1149 @@ public class MediaCodecVideoConvertor {
         return error;
     }
 
-    private long readAndWriteTracks(MediaExtractor extractor, MP4Builder mediaMuxer,
+    private boolean canReadTracks(Mp4Demuxer demuxer) {
+        if (demuxer.isFragmented()) {
+            return false;
+        }
+        int videoTrackIndex = MediaController.findTrack(demuxer, false);
+        if (videoTrackIndex < 0) {
+            return true;
+        }
+        Mp4Demuxer.TrackInfo track = demuxer.getTrack(videoTrackIndex);
+        return MediaController.VIDEO_MIME_TYPE.equals(track.mime) && track.nalLengthSize == 4 && !track.sps.isEmpty() && !track.pps.isEmpty();
+    }
+
+    private boolean canCopyFile(Mp4Demuxer demuxer, long start, long end, boolean needAudio, int rotation) {
+        if (fragmented || interleaveDurationUs > 0 || cropSps != null || start > 0 || end >= 0 || !demuxer.isFastStart()) {
+            return false;
+        }
+        int tracksCount = 0;
+        int videoTrackIndex = MediaController.findTrack(demuxer, false);
+        if (videoTrackIndex >= 0) {
+            if (demuxer.getTrack(videoTrackIndex).rotation != rotation) {
+                return false;
+            }
+            tracksCount++;
+        }
+        int audioTrackIndex = MediaController.findTrack(demuxer, true);
+        if (audioTrackIndex >= 0) {
+            if (!needAudio || demuxer.getTrack(audioTrackIndex).mime.equals("audio/unknown")) {
+                return false;
+            }
+            tracksCount++;
+        }
+        return tracksCount == demuxer.getTrackCount();
+    }
+
+    private static int getPassthroughRotation(int rotationValue, MediaController.CropState cropState) {
+        int rotation = rotationValue;
+        if (cropState != null) {
+            rotation += cropState.transformRotation;
+        }
+        return (rotation % 360 + 360) % 360;
+    }
+
+    private boolean prepareLosslessCrop(String videoPath, MediaController.CropState cropState, int rotationValue, int w, int h) {
+        if (cropState == null || MediaController.isRotationOnly(cropState)) {
+            return true;
+        }
+        int width = cropState.transformWidth;
+        int height = cropState.transformHeight;
+        if (rotationValue != 0 || cropState.transformRotation != 0 || cropState.cropScale != 1 || cropState.cropRotate != 0 || cropState.mirrored ||
+                Math.abs(w * cropState.cropPw - width) > 1 || Math.abs(h * cropState.cropPh - height) > 1) {
+            return false;
+        }
+        int left = Math.round(w * (0.5f - cropState.cropPx) - width / 2.0f);
+        int top = Math.round(h * (0.5f - cropState.cropPy) - height / 2.0f);
+        Mp4Demuxer demuxer = null;
+        try {
+            demuxer = new Mp4Demuxer(new File(videoPath));
+            int videoTrackIndex = MediaController.findTrack(demuxer, false);
+            if (!canReadTracks(demuxer) || videoTrackIndex < 0 || demuxer.getTrack(videoTrackIndex).sps.size() != 1 || hasInBandSps(demuxer, videoTrackIndex)) {
+                return false;
+            }
+            SpsRewriter rewriter = new SpsRewriter(demuxer.getTrack(videoTrackIndex).sps.get(0));
+            if (rewriter.getWidth() != w || rewriter.getHeight() != h || !rewriter.canCrop(left, top, width, height)) {
+                if (BuildVars.LOGS_ENABLED) {
+                    FileLog.d("crop " + left + "," + top + " " + width + "x" + height + " can't be written to sps of " + rewriter.getWidth() + "x" + rewriter.getHeight());
+                }
+                return false;
+            }
+            cropSps = rewriter.crop(left, top, width, height);
+            cropWidth = width;
+            cropHeight = height;
+            return true;
+        } catch (Exception e) {
+            FileLog.e(e);
+            return false;
+        } finally {
+            if (demuxer != null) {
+                try {
+                    demuxer.close();
+                } catch (IOException e) {
+                    FileLog.e(e);
+                }
+            }
+        }
+    }
+
+    private static boolean hasInBandSps(Mp4Demuxer demuxer, int trackIndex) throws IOException {
+        Mp4Demuxer.TrackInfo track = demuxer.getTrack(trackIndex);
+        for (int a = 0, N = track.getSampleCount(); a < N; a++) {
+            if (!track.isSyncSample(a)) {
+                continue;
+            }
+            ByteBuffer buffer = demuxer.readSample(trackIndex, a);
+            int position = buffer.position();
+            while (position + 5 <= buffer.limit()) {
+                int length = buffer.getInt(position);
+                int type = buffer.get(position + 4) & 0x1f;
+                if (type == 7) {
+                    return true;
+                } else if (type >= 1 && type <= 5 || length <= 0) {
+                    break;
+                }
+                position += 4 + length;
+            }
+        }
+        return false;
+    }
+
+    private boolean canSmartCut(Mp4Demuxer demuxer, long start, long end) {
+        if (!smartCut || fragmented || start <= 0 && end < 0) {
+            return false;
+        }
+        int videoTrackIndex = MediaController.findTrack(demuxer, false);
+        return videoTrackIndex >= 0 && demuxer.getTrack(videoTrackIndex).getSampleCount() > 0;
+    }
+
+    private MediaFormat createTrackFormat(Mp4Demuxer.TrackInfo track) {
+        return createTrackFormat(track, cropSps, cropWidth, cropHeight);
+    }
+
+    static MediaFormat createTrackFormat(Mp4Demuxer.TrackInfo track, byte[] cropSps, int cropWidth, int cropHeight) {
+        MediaFormat format;
+        if (track.isAudio) {
+            format = MediaFormat.createAudioFormat(track.mime, track.sampleRate, track.channelCount);
+            if (track.audioSpecificConfig != null) {
+                format.setByteBuffer("csd-0", ByteBuffer.wrap(track.audioSpecificConfig));
+            }
+        } else {
+            if (cropSps != null) {
+                format = MediaFormat.createVideoFormat(track.mime, cropWidth, cropHeight);
+            } else {
+                format = MediaFormat.createVideoFormat(track.mime, track.width, track.height);
+            }
+            if (!track.sps.isEmpty() && !track.pps.isEmpty()) {
+                byte[] sps = cropSps != null ? cropSps : track.sps.get(0);
+                format.setByteBuffer("csd-0", createStartCodeBuffer(sps));
+                format.setByteBuffer("csd-1", createStartCodeBuffer(track.pps.get(0)));
+                if (sps.length > 3) {
+                    int profile = getAvcProfile(sps[1] & 0xff);
+                    int level = getAvcLevel(sps[3] & 0xff, (sps[2] & 0x10) != 0);
+                    if (profile != 0) {
+                        format.setInteger("profile", profile);
+                    }
+                    if (level != 0) {
+                        format.setInteger("level", level);
+                    }
+                }
+            }
+        }
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, track.maxSampleSize);
+        return format;
+    }
+
+    private static ByteBuffer createStartCodeBuffer(byte[] nal) {
+        ByteBuffer buffer = ByteBuffer.allocate(nal.length + 4);
+        buffer.putInt(1);
+        buffer.put(nal);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int getAvcProfile(int profileIdc) {
+        switch (profileIdc) {
+            case 66:
+                return MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline;
+            case 77:
+                return MediaCodecInfo.CodecProfileLevel.AVCProfileMain;
+            case 88:
+                return MediaCodecInfo.CodecProfileLevel.AVCProfileExtended;
+            case 100:
+                return MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+            case 110:
+                return MediaCodecInfo.CodecProfileLevel.AVCProfileHigh10;
+            case 122:
+                return MediaCodecInfo.CodecProfileLevel.AVCProfileHigh422;
+            case 244:
+                return MediaCodecInfo.CodecProfileLevel.AVCProfileHigh444;
+            default:
+                return 0;
+        }
+    }
+
+    private static int getAvcLevel(int levelIdc, boolean constraintSet3) {
+        switch (levelIdc) {
+            case 9:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel1b;
+            case 10:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel1;
+            case 11:
+                return constraintSet3 ? MediaCodecInfo.CodecProfileLevel.AVCLevel1b : MediaCodecInfo.CodecProfileLevel.AVCLevel11;
+            case 12:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel12;
+            case 13:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel13;
+            case 20:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel2;
+            case 21:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel21;
+            case 22:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel22;
+            case 30:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel3;
+            case 31:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel31;
+            case 32:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel32;
+            case 40:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel4;
+            case 41:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel41;
+            case 42:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel42;
+            case 50:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel5;
+            case 51:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel51;
+            case 52:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel52;
+            default:
+                return 0;
+        }
+    }
+
+    private long readAndWriteTracks(Mp4Demuxer demuxer, MP4Builder mediaMuxer,
+                                    MediaCodec.BufferInfo info, long start, long end, long duration, boolean needAudio) throws Exception {
+        int videoTrackIndex = MediaController.findTrack(demuxer, false);
+        int audioTrackIndex = needAudio ? MediaController.findTrack(demuxer, true) : -1;
+        int muxerVideoTrackIndex = -1;
+        int muxerAudioTrackIndex = -1;
+
+        long currentPts = 0;
+        float durationS = duration / 1000f;
+
+        if (videoTrackIndex >= 0) {
+            muxerVideoTrackIndex = mediaMuxer.addTrack(createTrackFormat(demuxer.getTrack(videoTrackIndex)), false);
+        }
+        if (audioTrackIndex >= 0) {
+            if (demuxer.getTrack(audioTrackIndex).mime.equals("audio/unknown")) {
+                audioTrackIndex = -1;
+            } else {
+                muxerAudioTrackIndex = mediaMuxer.addTrack(createTrackFormat(demuxer.getTrack(audioTrackIndex)), true);
+            }
+        }
+        if (videoTrackIndex < 0 && audioTrackIndex < 0) {
+            return -1;
+        }
+        if (videoTrackIndex >= 0) {
+            setPresentationWindow(mediaMuxer, muxerVideoTrackIndex, demuxer.getTrack(videoTrackIndex), start, end);
+        }
+        if (audioTrackIndex >= 0) {
+            setPresentationWindow(mediaMuxer, muxerAudioTrackIndex, demuxer.getTrack(audioTrackIndex), start, end);
+        }
+        Mp4Demuxer.SampleCursor cursor;
+        if (videoTrackIndex >= 0 && audioTrackIndex >= 0) {
+            cursor = demuxer.createCursor(videoTrackIndex, audioTrackIndex);
+        } else {
+            cursor = demuxer.createCursor(videoTrackIndex >= 0 ? videoTrackIndex : audioTrackIndex);
+        }
+        cursor.seekTo(Math.max(start, 0));
+
+        long startTime = -1;
+        checkConversionCanceled();
+        while (cursor.advance()) {
+            checkConversionCanceled();
+            int index = cursor.getTrackIndex();
+            int muxerTrackIndex = index == videoTrackIndex ? muxerVideoTrackIndex : muxerAudioTrackIndex;
+            info.presentationTimeUs = cursor.getSampleTimeUs();
+            if (index == videoTrackIndex && start > 0 && startTime == -1) {
+                startTime = info.presentationTimeUs;
+            }
+            if (end >= 0 && info.presentationTimeUs >= end) {
+                break;
+            }
+            if (cursor.getSampleSize() <= 0) {
+                continue;
+            }
+            info.offset = 0;
+            info.size = cursor.getSampleSize();
+            info.flags = cursor.isSyncSample() ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+            long availableSize = mediaMuxer.writeSampleData(muxerTrackIndex, demuxer.getChannel(), cursor.getSampleOffset(), info);
+            if (availableSize != 0) {
+                if (callback != null) {
+                    if (info.presentationTimeUs - startTime > currentPts) {
+                        currentPts = info.presentationTimeUs - startTime;
+                    }
+                    callback.didWriteData(availableSize, (currentPts / 1000f) / durationS);
+                }
+            }
+        }
+        return startTime;
+    }
+
+    private int smartCut(Mp4Demuxer demuxer, MP4Builder mediaMuxer, MediaCodec.BufferInfo info,
+                         long start, long end, long duration, int framerate, int bitrate, boolean needAudio, boolean increaseTimeout) throws Exception {
+        int videoTrackIndex = MediaController.findTrack(demuxer, false);
+        int audioTrackIndex = needAudio ? MediaController.findTrack(demuxer, true) : -1;
+        Mp4Demuxer.TrackInfo track = demuxer.getTrack(videoTrackIndex);
+        int muxerVideoTrackIndex = mediaMuxer.addTrack(createTrackFormat(track), false);
+        int muxerAudioTrackIndex = -1;
+        if (audioTrackIndex >= 0) {
+            if (demuxer.getTrack(audioTrackIndex).mime.equals("audio/unknown")) {
+                audioTrackIndex = -1;
+            } else {
+                muxerAudioTrackIndex = mediaMuxer.addTrack(createTrackFormat(demuxer.getTrack(audioTrackIndex)), true);
+            }
+        }
+        float durationS = duration / 1000f;
+        smartCutPts = 0;
+
+        long startUs = Math.max(start, 0);
+        long endUs = end >= 0 && end < track.getDurationUs() ? end : Long.MAX_VALUE;
+        int count = track.getSampleCount();
+        int startSyncSample = Math.max(track.findSyncSample(startUs), 0);
+        int firstSyncSample = track.getSampleTimeUs(startSyncSample) >= startUs ? startSyncSample : findNextSyncSample(track, startSyncSample + 1);
+
+        if (firstSyncSample >= count || track.getSampleTimeUs(firstSyncSample) >= endUs) {
+            if (BuildVars.LOGS_ENABLED) {
+                FileLog.d("smart cut: no whole gop inside " + startUs + " - " + endUs + ", encoding samples " + startSyncSample + " - " + firstSyncSample);
+            }
+            encodeSegment(demuxer, videoTrackIndex, mediaMuxer, muxerVideoTrackIndex, info, startSyncSample, firstSyncSample, startUs, endUs, framerate, bitrate, startUs, durationS, increaseTimeout);
+            writeSamples(demuxer, mediaMuxer, info, -1, -1, 0, 0, audioTrackIndex, muxerAudioTrackIndex, startUs, endUs, startUs, durationS);
+            return muxerVideoTrackIndex;
+        }
+
+        int lastSyncSample = endUs != Long.MAX_VALUE ? track.findSyncSample(endUs) : count;
+        long firstSyncTimeUs = track.getSampleTimeUs(firstSyncSample);
+        long lastSyncTimeUs = lastSyncSample < count ? track.getSampleTimeUs(lastSyncSample) : Long.MAX_VALUE;
+        long copyEndUs = Math.min(lastSyncTimeUs, endUs);
+        if (BuildVars.LOGS_ENABLED) {
+            FileLog.d("smart cut: encode " + startUs + " - " + firstSyncTimeUs + ", copy " + firstSyncTimeUs + " - " + copyEndUs + ", encode " + copyEndUs + " - " + endUs);
+        }
+
+        if (firstSyncTimeUs > startUs) {
+            encodeSegment(demuxer, videoTrackIndex, mediaMuxer, muxerVideoTrackIndex, info, startSyncSample, findLeadingSamplesEnd(track, firstSyncSample), startUs, firstSyncTimeUs, framerate, bitrate, startUs, durationS, increaseTimeout);
+        }
+        int copyEndSample = lastSyncSample < count ? findLeadingSamplesEnd(track, lastSyncSample) : count;
+        writeSamples(demuxer, mediaMuxer, info, videoTrackIndex, muxerVideoTrackIndex, firstSyncSample, copyEndSample, audioTrackIndex, muxerAudioTrackIndex, startUs, copyEndUs, startUs, durationS);
+        if (copyEndUs < endUs) {
+            encodeSegment(demuxer, videoTrackIndex, mediaMuxer, muxerVideoTrackIndex, info, lastSyncSample, findNextSyncSample(track, lastSyncSample + 1), copyEndUs, endUs, framerate, bitrate, startUs, durationS, increaseTimeout);
+            writeSamples(demuxer, mediaMuxer, info, -1, -1, 0, 0, audioTrackIndex, muxerAudioTrackIndex, copyEndUs, endUs, startUs, durationS);
+        }
+        return muxerVideoTrackIndex;
+    }
+
+    private int transcodeSegments(String videoPath, MP4Builder mediaMuxer, long startTime, long endTime, long duration,
+                                  int resultWidth, int resultHeight, int rotationValue, int framerate, int bitrate, int originalBitrate,
+                                  MediaController.SavedFilterState savedFilterState, MediaController.CropState cropState,
+                                  boolean needAudio, boolean increaseTimeout) throws Exception {
+        // segments land in the file in encode order and audio is copied after all of them, so interleaved output
+        // stays on the sequential path
+        if (fragmented || interleaveDurationUs > 0) {
+            return -5;
+        }
+        Mp4Demuxer demuxer = new Mp4Demuxer(new File(videoPath));
+        try {
+            int videoTrackIndex = MediaController.findTrack(demuxer, false);
+            int audioTrackIndex = needAudio ? MediaController.findTrack(demuxer, true) : -1;
+            if (!canReadTracks(demuxer) || videoTrackIndex < 0) {
+                return -5;
+            }
+            if (audioTrackIndex >= 0 && !demuxer.getTrack(audioTrackIndex).mime.equals(MediaController.AUIDO_MIME_TYPE)) {
+                if (!demuxer.getTrack(audioTrackIndex).mime.equals("audio/unknown")) {
+                    return -5;
+                }
+                audioTrackIndex = -1;
+            }
+            Mp4Demuxer.TrackInfo track = demuxer.getTrack(videoTrackIndex);
+            long startUs = Math.max(startTime, 0);
+            long endUs = endTime >= 0 && endTime < track.getDurationUs() ? endTime : track.getDurationUs();
+            int count = Math.min(transcodeSegments, codecFactory.getMaxInstances(MediaController.VIDEO_MIME_TYPE));
+            count = (int) Math.min(count, (endUs - startUs) / MIN_SEGMENT_DURATION_US);
+            EncodedSegment[] segments = createSegments(track, startUs, endUs, count);
+            if (segments == null) {
+                return -5;
+            }
+
+            int w;
+            int h;
+            if (cropState != null) {
+                if (rotationValue == 90 || rotationValue == 270) {
+                    w = cropState.transformHeight;
+                    h = cropState.transformWidth;
+                } else {
+                    w = cropState.transformWidth;
+                    h = cropState.transformHeight;
+                }
+            } else {
+                w = resultWidth;
+                h = resultHeight;
+            }
+            bitrate = getSegmentBitrate(bitrate, originalBitrate, w, h);
+            if (BuildVars.LOGS_ENABLED) {
+                FileLog.d("transcode " + segments.length + " segments in parallel, w = " + w + " h = " + h + " bitrate = " + bitrate);
+            }
+
+            segmentsAborted = false;
+            segmentSamplesWritten = 0;
+            segmentBytesWritten = 0;
+            segmentSamplesCount = 0;
+            for (EncodedSegment segment : segments) {
+                segmentSamplesCount += segment.toSample - segment.fromSample;
+            }
+            Throwable[] error = new Throwable[1];
+            Thread[] threads = new Thread[segments.length];
+            int finalBitrate = bitrate;
+            try {
+                for (int a = 0; a < segments.length; a++) {
+                    EncodedSegment segment = segments[a];
+                    threads[a] = new Thread(() -> {
+                        Mp4Demuxer segmentDemuxer = null;
+                        try {
+                            segmentDemuxer = new Mp4Demuxer(new File(videoPath));
+                            encodeSegment(segmentDemuxer, videoTrackIndex, mediaMuxer, -1, segment, new MediaCodec.BufferInfo(), segment.fromSample, segment.toSample,
+                                    segment.fromTimeUs, segment.toTimeUs, createSegmentEncoderFormat(w, h, framerate, finalBitrate), null,
+                                    savedFilterState, cropState, resultWidth, resultHeight, rotationValue, framerate, startUs, duration / 1000f, increaseTimeout);
+                        } catch (Throwable e) {
+                            synchronized (error) {
+                                if (error[0] == null) {
+                                    error[0] = e;
+                                }
+                            }
+                            segmentsAborted = true;
+                        } finally {
+                            if (segmentDemuxer != null) {
+                                try {
+                                    segmentDemuxer.close();
+                                } catch (IOException e) {
+                                    FileLog.e(e);
+                                }
+                            }
+                        }
+                    }, "TranscodeSegment" + a);
+                    threads[a].start();
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            } catch (Throwable e) {
+                // the workers write into the shared muxer, so none of them may outlive a failed or interrupted job
+                segmentsAborted = true;
+                stopThreads(threads);
+                throw e;
+            }
+            segmentsAborted = false;
+            if (error[0] instanceof Exception) {
+                throw (Exception) error[0];
+            } else if (error[0] != null) {
+                throw new RuntimeException(error[0]);
+            }
+
+            int muxerVideoTrackIndex = -5;
+            for (EncodedSegment segment : segments) {
+                if (segment.getSampleCount() == 0) {
+                    continue;
+                }
+                if (muxerVideoTrackIndex == -5) {
+                    muxerVideoTrackIndex = mediaMuxer.addTrack(segment.getFormat(), false);
+                }
+                mediaMuxer.appendSegment(muxerVideoTrackIndex, segment);
+            }
+            if (muxerVideoTrackIndex == -5) {
+                throw new RuntimeException("no frames were encoded in " + startUs + " - " + endUs);
+            }
+            if (audioTrackIndex >= 0) {
+                int muxerAudioTrackIndex = mediaMuxer.addTrack(createTrackFormat(demuxer.getTrack(audioTrackIndex)), true);
+                setPresentationWindow(mediaMuxer, muxerAudioTrackIndex, demuxer.getTrack(audioTrackIndex), startTime, endTime);
+                writeSamples(demuxer, mediaMuxer, new MediaCodec.BufferInfo(), -1, -1, 0, 0, audioTrackIndex, muxerAudioTrackIndex,
+                        startUs, endTime >= 0 ? endTime : Long.MAX_VALUE, startUs, duration / 1000f);
+            }
+            mediaMuxer.detachSource(demuxer.getChannel());
+            return muxerVideoTrackIndex;
+        } finally {
+            segmentsAborted = false;
+            demuxer.close();
+        }
+    }
+
+    private static void stopThreads(Thread[] threads) {
+        for (Thread thread : threads) {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (thread != null) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int transcodePipelined(String videoPath, MP4Builder mediaMuxer, long startTime, long endTime, long duration,
+                                   int resultWidth, int resultHeight, int rotationValue, int framerate, int bitrate, int originalBitrate,
+                                   MediaController.SavedFilterState savedFilterState, String paintPath, ArrayList<VideoEditedInfo.MediaEntity> mediaEntities,
+                                   MediaController.CropState cropState, boolean needAudio, boolean increaseTimeout) throws Exception {
+        if (fragmented) {
+            return -5;
+        }
+        Mp4Demuxer demuxer = new Mp4Demuxer(new File(videoPath));
+        try {
+            int videoTrackIndex = MediaController.findTrack(demuxer, false);
+            int audioTrackIndex = needAudio ? MediaController.findTrack(demuxer, true) : -1;
+            if (!canReadTracks(demuxer) || videoTrackIndex < 0 || demuxer.getTrack(videoTrackIndex).getSampleCount() == 0) {
+                return -5;
+            }
+            if (audioTrackIndex >= 0 && !demuxer.getTrack(audioTrackIndex).mime.equals(MediaController.AUIDO_MIME_TYPE)) {
+                if (!demuxer.getTrack(audioTrackIndex).mime.equals("audio/unknown")) {
+                    return -5;
+                }
+                audioTrackIndex = -1;
+            }
+            Mp4Demuxer.TrackInfo track = demuxer.getTrack(videoTrackIndex);
+            long startUs = Math.max(startTime, 0);
+            long endUs = endTime >= 0 && endTime < track.getDurationUs() ? endTime : track.getDurationUs();
+
+            int w;
+            int h;
+            if (cropState != null) {
+                if (rotationValue == 90 || rotationValue == 270) {
+                    w = cropState.transformHeight;
+                    h = cropState.transformWidth;
+                } else {
+                    w = cropState.transformWidth;
+                    h = cropState.transformHeight;
+                }
+            } else {
+                w = resultWidth;
+                h = resultHeight;
+            }
+            bitrate = getSegmentBitrate(bitrate, originalBitrate, w, h);
+            if (BuildVars.LOGS_ENABLED) {
+                FileLog.d("transcode pipelined, w = " + w + " h = " + h + " bitrate = " + bitrate);
+            }
+
+            TranscodePipeline pipeline = new TranscodePipeline(codecFactory, demuxer, mediaMuxer, videoTrackIndex);
+            pipeline.fromSample = Math.max(track.findSyncSample(startUs), 0);
+            pipeline.toSample = endUs < track.getDurationUs() ? findNextSyncSample(track, track.findSyncSample(endUs) + 1) : track.getSampleCount();
+            pipeline.startTime = startTime;
+            pipeline.endTime = endTime;
+            pipeline.durationS = duration / 1000f;
+            pipeline.encoderTimeoutUs = increaseTimeout ? MEDIACODEC_TIMEOUT_INCREASED : MEDIACODEC_TIMEOUT_DEFAULT;
+            pipeline.videoFormat = createTrackFormat(track);
+            pipeline.outputFormat = createSegmentEncoderFormat(w, h, framerate, bitrate);
+            pipeline.savedFilterState = savedFilterState;
+            pipeline.paintPath = paintPath;
+            pipeline.mediaEntities = mediaEntities;
+            pipeline.cropState = cropState;
+            pipeline.surfaceWidth = resultWidth;
+            pipeline.surfaceHeight = resultHeight;
+            pipeline.rotationValue = rotationValue;
+            pipeline.framerate = framerate;
+            pipeline.callback = callback;
+            pipeline.sizeLimit = sizeLimit;
+            pipeline.sizeLimitWarmup = SIZE_LIMIT_WARMUP;
+            pipeline.increasedTimeoutCodecs = increasedTimeoutCodecs;
+            pipeline.increasedEncoderTimeoutUs = MEDIACODEC_TIMEOUT_INCREASED;
+            if (audioTrackIndex >= 0) {
+                pipeline.audioTrackIndex = audioTrackIndex;
+                pipeline.muxerAudioTrackIndex = mediaMuxer.addTrack(createTrackFormat(demuxer.getTrack(audioTrackIndex)), true);
+                setPresentationWindow(mediaMuxer, pipeline.muxerAudioTrackIndex, demuxer.getTrack(audioTrackIndex), startTime, endTime);
+            }
+            try {
+                return pipeline.run();
+            } finally {
+                stageUtilization = pipeline.getUtilization();
+                if (pipeline.getEncoderName() != null) {
+                    encoderName = pipeline.getEncoderName();
+                }
+                projectedSize = pipeline.getProjectedSize();
+                sizeLimitExceeded = sizeLimit > 0 && projectedSize > sizeLimit;
+            }
+        } finally {
+            demuxer.close();
+        }
+    }
+
+    private static int getSegmentBitrate(int bitrate, int originalBitrate, int w, int h) {
+        if (bitrate <= 0) {
+            bitrate = 921600;
+        }
+        if (originalBitrate > 0) {
+            bitrate = Math.min(originalBitrate, bitrate);
+        }
+        if (Build.VERSION.SDK_INT < 23 && Math.min(h, w) <= 480 && bitrate > 921600) {
+            bitrate = 921600;
+        }
+        return bitrate;
+    }
+
+    private static EncodedSegment[] createSegments(Mp4Demuxer.TrackInfo track, long startUs, long endUs, int count) {
+        if (count < 1 || track.getSampleCount() == 0) {
+            return null;
+        }
+        int sampleCount = track.getSampleCount();
+        int[] boundaries = new int[count];
+        int boundariesCount = 0;
+        boundaries[boundariesCount++] = Math.max(track.findSyncSample(startUs), 0);
+        for (int a = 1; a < count; a++) {
+            int syncSample = track.findSyncSample(startUs + (endUs - startUs) * a / count);
+            long syncTimeUs = track.getSampleTimeUs(syncSample);
+            if (syncSample > boundaries[boundariesCount - 1] && syncTimeUs > startUs && syncTimeUs < endUs) {
+                boundaries[boundariesCount++] = syncSample;
+            }
+        }
+        if (boundariesCount < Math.min(count, 2)) {
+            return null;
+        }
+        int lastSample = endUs < track.getDurationUs() ? findNextSyncSample(track, track.findSyncSample(endUs) + 1) : sampleCount;
+        EncodedSegment[] segments = new EncodedSegment[boundariesCount];
+        for (int a = 0; a < boundariesCount; a++) {
+            boolean last = a == boundariesCount - 1;
+            segments[a] = new EncodedSegment(boundaries[a], last ? lastSample : findLeadingSamplesEnd(track, boundaries[a + 1]),
+                    a == 0 ? startUs : track.getSampleTimeUs(boundaries[a]), last ? endUs : track.getSampleTimeUs(boundaries[a + 1]));
+        }
+        return segments;
+    }
+
+    // Segments share one output, so the bytes written by all of them are projected against their combined progress.
+    // Throwing here fails the calling segment thread, which stops the others through segmentsAborted.
+    private synchronized void didWriteSegmentSample(long availableSize, int sampleSize) {
+        segmentSamplesWritten++;
+        segmentBytesWritten += sampleSize;
+        float progress = Math.min(1.0f, segmentSamplesWritten / (float) segmentSamplesCount);
+        try {
+            checkProjectedSize(segmentBytesWritten, progress);
+        } catch (SizeLimitExceededException e) {
+            segmentsAborted = true;
+            throw e;
+        }
+        if (availableSize != 0 && callback != null) {
+            callback.didWriteData(availableSize, progress);
+        }
+    }
+
+    private static int findNextSyncSample(Mp4Demuxer.TrackInfo track, int index) {
+        while (index < track.getSampleCount() && !track.isSyncSample(index)) {
+            index++;
+        }
+        return index;
+    }
+
+    private static int findLeadingSamplesEnd(Mp4Demuxer.TrackInfo track, int syncSample) {
+        long time = track.getSamplePresentationTime(syncSample);
+        int index = syncSample + 1;
+        while (index < track.getSampleCount() && track.getSamplePresentationTime(index) < time) {
+            index++;
+        }
+        return index;
+    }
+
+    private void writeSamples(Mp4Demuxer demuxer, MP4Builder mediaMuxer, MediaCodec.BufferInfo info,
+                              int videoTrackIndex, int muxerVideoTrackIndex, int fromSample, int toSample,
+                              int audioTrackIndex, int muxerAudioTrackIndex, long fromTimeUs, long toTimeUs,
+                              long start, float durationS) throws Exception {
+        boolean videoDone = videoTrackIndex < 0 || fromSample >= toSample;
+        boolean audioDone = audioTrackIndex < 0;
+        if (videoDone && audioDone) {
+            return;
+        }
+        Mp4Demuxer.SampleCursor cursor;
+        if (!videoDone && !audioDone) {
+            cursor = demuxer.createCursor(videoTrackIndex, audioTrackIndex);
+        } else {
+            cursor = demuxer.createCursor(videoDone ? audioTrackIndex : videoTrackIndex);
+        }
+        long videoFromTimeUs = videoDone ? 0 : demuxer.getTrack(videoTrackIndex).getSampleTimeUs(fromSample);
+        cursor.seekTo(videoDone ? fromTimeUs : Math.min(fromTimeUs, videoFromTimeUs));
+        while (!(videoDone && audioDone) && cursor.advance()) {
+            checkConversionCanceled();
+            int muxerTrackIndex;
+            long time = cursor.getSampleTimeUs();
+            if (cursor.getTrackIndex() == videoTrackIndex) {
+                if (videoDone || cursor.getSampleIndex() < fromSample) {
+                    continue;
+                }
+                if (cursor.getSampleIndex() >= toSample) {
+                    videoDone = true;
+                    continue;
+                }
+                if (time < videoFromTimeUs || time >= toTimeUs) {
+                    continue;
+                }
+                muxerTrackIndex = muxerVideoTrackIndex;
+            } else {
+                if (audioDone || time < fromTimeUs) {
+                    continue;
+                }
+                if (time >= toTimeUs) {
+                    audioDone = true;
+                    continue;
+                }
+                muxerTrackIndex = muxerAudioTrackIndex;
+            }
+            if (cursor.getSampleSize() <= 0) {
+                continue;
+            }
+            info.set(0, cursor.getSampleSize(), time, cursor.isSyncSample() ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            long availableSize = mediaMuxer.writeSampleData(muxerTrackIndex, demuxer.getChannel(), cursor.getSampleOffset(), info);
+            didWriteSmartCutData(availableSize, time, start, durationS);
+        }
+    }
+
+    private void didWriteSmartCutData(long availableSize, long time, long start, float durationS) {
+        if (availableSize != 0 && callback != null) {
+            if (time - start > smartCutPts) {
+                smartCutPts = time - start;
+            }
+            callback.didWriteData(availableSize, (smartCutPts / 1000f) / durationS);
+        }
+    }
+
+    @TargetApi(18)
+    private void encodeSegment(Mp4Demuxer demuxer, int videoTrackIndex, MP4Builder mediaMuxer, int muxerTrackIndex, MediaCodec.BufferInfo info,
+                               int fromSample, int toSample, long fromTimeUs, long toTimeUs,
+                               int framerate, int bitrate, long start, float durationS, boolean increaseTimeout) throws Exception {
+        Mp4Demuxer.TrackInfo track = demuxer.getTrack(videoTrackIndex);
+        MediaFormat videoFormat = createTrackFormat(track);
+        MediaFormat outputFormat = createSegmentEncoderFormat(track.width, track.height, framerate, bitrate);
+        MediaFormat fallbackFormat = null;
+        if (Build.VERSION.SDK_INT >= 23 && videoFormat.containsKey("profile") && videoFormat.containsKey("level")) {
+            fallbackFormat = outputFormat;
+            outputFormat = createSegmentEncoderFormat(track.width, track.height, framerate, bitrate);
+            outputFormat.setInteger(MediaFormat.KEY_PROFILE, videoFormat.getInteger("profile"));
+            outputFormat.setInteger(MediaFormat.KEY_LEVEL, videoFormat.getInteger("level"));
+        }
+        encodeSegment(demuxer, videoTrackIndex, mediaMuxer, muxerTrackIndex, null, info, fromSample, toSample, fromTimeUs, toTimeUs,
+                outputFormat, fallbackFormat, null, null, track.width, track.height, 0, framerate, start, durationS, increaseTimeout);
+    }
+
+    @TargetApi(18)
+    private void encodeSegment(Mp4Demuxer demuxer, int videoTrackIndex, MP4Builder mediaMuxer, int muxerTrackIndex, EncodedSegment segment, MediaCodec.BufferInfo info,
+                               int fromSample, int toSample, long fromTimeUs, long toTimeUs,
+                               MediaFormat outputFormat, MediaFormat fallbackFormat,
+                               MediaController.SavedFilterState savedFilterState, MediaController.CropState cropState,
+                               int surfaceWidth, int surfaceHeight, int rotationValue,
+                               int framerate, long start, float durationS, boolean increaseTimeout) throws Exception {
+        Mp4Demuxer.TrackInfo track = demuxer.getTrack(videoTrackIndex);
+        MediaFormat videoFormat = createTrackFormat(track);
+        Codec encoder = null;
+        Codec decoder = null;
+        FrameRenderer renderer = null;
+        SegmentOutput output = new SegmentOutput(mediaMuxer, muxerTrackIndex, segment, outputFormat, start, durationS);
+        try {
+            CodecEventLoop eventLoop = asyncCodecs ? new CodecEventLoop() : null;
+            encoder = codecFactory.createEncoder(MediaController.VIDEO_MIME_TYPE);
+            if (needsIncreasedTimeout(encoder)) {
+                increaseTimeout = true;
+            }
+            decoder = codecFactory.createDecoder(track.mime);
+            eventLoop = setCallbacks(eventLoop, decoder, encoder);
+            try {
+                encoder.configure(outputFormat, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            } catch (Exception e) {
+                if (fallbackFormat == null) {
+                    throw e;
+                }
+                FileLog.e(e);
+                encoder.release();
+                encoder = codecFactory.createEncoder(MediaController.VIDEO_MIME_TYPE);
+                eventLoop = setCallbacks(eventLoop, decoder, encoder);
+                encoder.configure(fallbackFormat, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            }
+            renderer = codecFactory.createRenderer(encoder, savedFilterState, null, null, null, cropState, surfaceWidth, surfaceHeight, rotationValue, framerate, false);
+            encoder.start();
+
+            decoder.configure(videoFormat, renderer, 0);
+            decoder.start();
+
+            int sampleIndex = fromSample;
+            boolean inputDone = false;
+            boolean decoderDone = false;
+            boolean outputDone = false;
+            if (eventLoop != null) {
+                encodeSegmentEvents(eventLoop, demuxer, videoTrackIndex, decoder, encoder, renderer, output, fromSample, toSample, fromTimeUs, toTimeUs);
+                outputDone = true;
+            }
+            while (!outputDone) {
+                checkConversionCanceled();
+                if (!inputDone) {
+                    int inputBufIndex = decoder.dequeueInputBuffer(MEDIACODEC_TIMEOUT_DEFAULT);
+                    if (inputBufIndex >= 0) {
+                        if (sampleIndex < toSample) {
+                            ByteBuffer inputBuf = decoder.getInputBuffer(inputBufIndex);
+                            int size = writeStartCodes(demuxer.readSample(videoTrackIndex, sampleIndex), inputBuf);
+                            decoder.queueInputBuffer(inputBufIndex, 0, size, track.getSampleTimeUs(sampleIndex), 0);
+                            sampleIndex++;
+                        } else {
+                            decoder.queueInputBuffer(inputBufIndex, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        }
+                    }
+                }
+
+                boolean decoderOutputAvailable = !decoderDone;
+                boolean encoderOutputAvailable = true;
+                while (decoderOutputAvailable || encoderOutputAvailable) {
+                    checkConversionCanceled();
+                    int encoderStatus = encoder.dequeueOutputBuffer(info, increaseTimeout ? MEDIACODEC_TIMEOUT_INCREASED : MEDIACODEC_TIMEOUT_DEFAULT);
+                    if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                        encoderOutputAvailable = false;
+                    } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+
+                    } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        output.setFormat(encoder.getOutputFormat());
+                    } else if (encoderStatus < 0) {
+                        throw new RuntimeException("unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus);
+                    } else {
+                        ByteBuffer encodedData = encoder.getOutputBuffer(encoderStatus);
+                        if (encodedData == null) {
+                            throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
+                        }
+                        output.write(encodedData, info);
+                        outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                        encoder.releaseOutputBuffer(encoderStatus, false);
+                    }
+                    if (encoderStatus != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                        continue;
+                    }
+
+                    if (!decoderDone) {
+                        int decoderStatus = decoder.dequeueOutputBuffer(info, MEDIACODEC_TIMEOUT_DEFAULT);
+                        if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                            decoderOutputAvailable = false;
+                        } else if (decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED || decoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+
+                        } else if (decoderStatus < 0) {
+                            throw new RuntimeException("unexpected result from decoder.dequeueOutputBuffer: " + decoderStatus);
+                        } else {
+                            boolean doRender = info.size != 0 && info.presentationTimeUs >= fromTimeUs && info.presentationTimeUs < toTimeUs;
+                            decoder.releaseOutputBuffer(decoderStatus, doRender);
+                            if (doRender) {
+                                boolean errorWait = false;
+                                try {
+                                    renderer.awaitNewImage();
+                                } catch (Exception e) {
+                                    errorWait = true;
+                                    FileLog.e(e);
+                                }
+                                if (!errorWait) {
+                                    renderer.drawFrame(info.presentationTimeUs);
+                                }
+                            }
+                            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                                decoderOutputAvailable = false;
+                                decoderDone = true;
+                                encoder.signalEndOfInputStream();
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (decoder != null) {
+                decoder.stop();
+                decoder.release();
+            }
+            if (renderer != null) {
+                renderer.release();
+            }
+            if (encoder != null) {
+                encoder.stop();
+                encoder.release();
+            }
+        }
+        if (output.descriptionChanged && segment == null) {
+            mediaMuxer.setSampleDescription(muxerTrackIndex, 1);
+        }
+    }
+
+    // The event driven segment loop needs callbacks from both codecs, so if either one can't deliver them both go back
+    // to polling.
+    private static CodecEventLoop setCallbacks(CodecEventLoop eventLoop, Codec... codecs) {
+        if (eventLoop == null) {
+            return null;
+        }
+        for (int a = 0; a < codecs.length; a++) {
+            if (!codecs[a].setCallback(eventLoop)) {
+                for (int b = 0; b < a; b++) {
+                    codecs[b].setCallback(null);
+                }
+                if (BuildVars.LOGS_ENABLED) {
+                    FileLog.d(codecs[a].getName() + " doesn't support callbacks, polling instead");
+                }
+                return null;
+            }
+        }
+        return eventLoop;
+    }
+
+    private void encodeSegmentEvents(CodecEventLoop eventLoop, Mp4Demuxer demuxer, int videoTrackIndex, Codec decoder, Codec encoder, FrameRenderer renderer,
+                                     SegmentOutput output, int fromSample, int toSample, long fromTimeUs, long toTimeUs) throws Exception {
+        Mp4Demuxer.TrackInfo track = demuxer.getTrack(videoTrackIndex);
+        int sampleIndex = fromSample;
+        boolean inputDone = false;
+        boolean outputDone = false;
+        long startTime = System.nanoTime();
+        while (!outputDone) {
+            checkConversionCanceled();
+            CodecEventLoop.Event event = eventLoop.next(MEDIACODEC_TIMEOUT_INCREASED);
+            if (event == null) {
+                continue;
+            }
+            try {
+                if (event.type == CodecEventLoop.EVENT_ERROR) {
+                    throw event.error;
+                } else if (event.codec == decoder) {
+                    if (event.type == CodecEventLoop.EVENT_INPUT_AVAILABLE) {
+                        if (inputDone) {
+                            continue;
+                        }
+                        if (sampleIndex < toSample) {
+                            ByteBuffer inputBuf = decoder.getInputBuffer(event.index);
+                            int size = writeStartCodes(demuxer.readSample(videoTrackIndex, sampleIndex), inputBuf);
+                            decoder.queueInputBuffer(event.index, 0, size, track.getSampleTimeUs(sampleIndex), 0);
+                            sampleIndex++;
+                        } else {
+                            decoder.queueInputBuffer(event.index, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        }
+                    } else if (event.type == CodecEventLoop.EVENT_OUTPUT_AVAILABLE) {
+                        MediaCodec.BufferInfo info = event.info;
+                        boolean doRender = info.size != 0 && info.presentationTimeUs >= fromTimeUs && info.presentationTimeUs < toTimeUs;
+                        decoder.releaseOutputBuffer(event.index, doRender);
+                        if (doRender) {
+                            boolean errorWait = false;
+                            try {
+                                renderer.awaitNewImage();
+                            } catch (Exception e) {
+                                errorWait = true;
+                                FileLog.e(e);
+                            }
+                            if (!errorWait) {
+                                renderer.drawFrame(info.presentationTimeUs);
+                            }
+                        }
+                        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                            encoder.signalEndOfInputStream();
+                        }
+                    }
+                } else if (event.codec == encoder) {
+                    if (event.type == CodecEventLoop.EVENT_FORMAT_CHANGED) {
+                        output.setFormat(event.format);
+                    } else if (event.type == CodecEventLoop.EVENT_OUTPUT_AVAILABLE) {
+                        ByteBuffer encodedData = encoder.getOutputBuffer(event.index);
+                        if (encodedData == null) {
+                            throw new RuntimeException("encoderOutputBuffer " + event.index + " was null");
+                        }
+                        output.write(encodedData, event.info);
+                        outputDone = (event.info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                        encoder.releaseOutputBuffer(event.index, false);
+                    }
+                }
+            } finally {
+                eventLoop.recycle(event);
+            }
+        }
+        if (BuildVars.LOGS_ENABLED) {
+            FileLog.d("segment encoded in " + (System.nanoTime() - startTime) / 1000000 + "ms, codec events = " + eventLoop.getEventsCount()
+                    + " avg latency = " + eventLoop.getAverageLatencyUs() + "us max latency = " + eventLoop.getMaxLatencyUs() + "us idle = " + eventLoop.getWaitTimeUs() / 1000 + "ms");
+        }
+    }
+
+    private static class TranscodeCheckpoint {
+
+        private final MP4Builder.Checkpoint muxerCheckpoint;
+        private final long videoTimeUs;
+        private final long audioTimeUs;
+        private final int videoTrackIndex;
+        private final int audioTrackIndex;
+        private final long currentPts;
+
+        private TranscodeCheckpoint(MP4Builder.Checkpoint muxerCheckpoint, long videoTimeUs, long audioTimeUs, int videoTrackIndex, int audioTrackIndex, long currentPts) {
+            this.muxerCheckpoint = muxerCheckpoint;
+            this.videoTimeUs = videoTimeUs;
+            this.audioTimeUs = audioTimeUs;
+            this.videoTrackIndex = videoTrackIndex;
+            this.audioTrackIndex = audioTrackIndex;
+            this.currentPts = currentPts;
+        }
+
+        private TranscodeCheckpoint(MP4Builder.Checkpoint muxerCheckpoint, long[] state) {
+            this(muxerCheckpoint, state[0], state[1], (int) state[2], (int) state[3], state[4]);
+        }
+
+        private long[] toState() {
+            return new long[]{videoTimeUs, audioTimeUs, videoTrackIndex, audioTrackIndex, currentPts};
+        }
+
+        private long getSeekTimeUs() {
+            return audioTimeUs != Long.MIN_VALUE ? Math.min(videoTimeUs, audioTimeUs) : videoTimeUs;
+        }
+    }
+
+    private class SegmentOutput {
+
+        private final MP4Builder mediaMuxer;
+        private final int muxerTrackIndex;
+        private final EncodedSegment segment;
+        private final MediaFormat outputFormat;
+        private final long start;
+        private final float durationS;
+
+        private boolean descriptionChanged;
+        private int prependHeaderSize;
+        private boolean firstEncode = true;
+
+        private SegmentOutput(MP4Builder mediaMuxer, int muxerTrackIndex, EncodedSegment segment, MediaFormat outputFormat, long start, float durationS) {
+            this.mediaMuxer = mediaMuxer;
+            this.muxerTrackIndex = muxerTrackIndex;
+            this.segment = segment;
+            this.outputFormat = outputFormat;
+            this.start = start;
+            this.durationS = durationS;
+        }
+
+        private void setFormat(MediaFormat newFormat) throws Exception {
+            if (!descriptionChanged && newFormat != null && newFormat.getByteBuffer("csd-0") != null) {
+                setSegmentFormat(mediaMuxer, muxerTrackIndex, segment, newFormat);
+                descriptionChanged = true;
+                if (newFormat.containsKey(MediaFormat.KEY_PREPEND_HEADER_TO_SYNC_FRAMES) && newFormat.getInteger(MediaFormat.KEY_PREPEND_HEADER_TO_SYNC_FRAMES) == 1) {
+                    prependHeaderSize = newFormat.getByteBuffer("csd-0").limit() + newFormat.getByteBuffer("csd-1").limit();
+                }
+            }
+        }
+
+        private void write(ByteBuffer encodedData, MediaCodec.BufferInfo info) throws Exception {
+            if (info.size > 1) {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    if (!descriptionChanged) {
+                        throw new RuntimeException("encoder didn't provide codec config before the first frame");
+                    }
+                    if (prependHeaderSize != 0 && (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                        info.offset += prependHeaderSize;
+                        info.size -= prependHeaderSize;
+                    }
+                    if (firstEncode && (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                        if (info.size > 100) {
+                            encodedData.position(info.offset);
+                            byte[] temp = new byte[100];
+                            encodedData.get(temp);
+                            int nalCount = 0;
+                            for (int a = 0; a < temp.length - 4; a++) {
+                                if (temp[a] == 0 && temp[a + 1] == 0 && temp[a + 2] == 0 && temp[a + 3] == 1) {
+                                    nalCount++;
+                                    if (nalCount > 1) {
+                                        info.offset += a;
+                                        info.size -= a;
+                                        break;
+                                    }
+                                }
+                            }
+                        }
+                        firstEncode = false;
+                    }
+                    if (segment != null) {
+                        didWriteSegmentSample(mediaMuxer.writeSegmentSampleData(segment, encodedData, info, true), info.size);
+                    } else {
+                        long availableSize = mediaMuxer.writeSampleData(muxerTrackIndex, encodedData, info, true);
+                        didWriteSmartCutData(availableSize, info.presentationTimeUs, start, durationS);
+                    }
+                } else if (!descriptionChanged) {
+                    byte[] csd = new byte[info.size];
+                    encodedData.limit(info.offset + info.size);
+                    encodedData.position(info.offset);
+                    encodedData.get(csd);
+                    for (int a = info.size - 1; a > 3; a--) {
+                        if (csd[a] == 1 && csd[a - 1] == 0 && csd[a - 2] == 0 && csd[a - 3] == 0) {
+                            MediaFormat newFormat = MediaFormat.createVideoFormat(MediaController.VIDEO_MIME_TYPE, outputFormat.getInteger(MediaFormat.KEY_WIDTH), outputFormat.getInteger(MediaFormat.KEY_HEIGHT));
+                            newFormat.setByteBuffer("csd-0", ByteBuffer.wrap(csd, 0, a - 3).slice());
+                            newFormat.setByteBuffer("csd-1", ByteBuffer.wrap(csd, a - 3, info.size - (a - 3)).slice());
+                            setSegmentFormat(mediaMuxer, muxerTrackIndex, segment, newFormat);
+                            descriptionChanged = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void setSegmentFormat(MP4Builder mediaMuxer, int muxerTrackIndex, EncodedSegment segment, MediaFormat format) throws Exception {
+        if (segment != null) {
+            segment.setFormat(format);
+        } else {
+            mediaMuxer.setSampleDescription(muxerTrackIndex, mediaMuxer.addSampleDescription(muxerTrackIndex, format));
+        }
+    }
+
+    private static MediaFormat createSegmentEncoderFormat(int width, int height, int framerate, int bitrate) {
+        MediaFormat outputFormat = MediaFormat.createVideoFormat(MediaController.VIDEO_MIME_TYPE, width, height);
+        outputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        outputFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+        outputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, framerate);
+        outputFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 2);
+        return outputFormat;
+    }
+
+    private static void setPresentationWindow(MP4Builder mediaMuxer, int trackIndex, long start, long end, long offsetUs) {
+        if (start <= 0 && end < 0 && offsetUs <= 0 || mediaMuxer instanceof FragmentedMP4Builder) {
+            return;
+        }
+        mediaMuxer.setPresentationWindow(trackIndex, Math.max(start, 0) + offsetUs, end >= 0 ? end + offsetUs : -1);
+    }
+
+    private static void setPresentationWindow(MP4Builder mediaMuxer, int trackIndex, Mp4Demuxer.TrackInfo track, long start, long end) {
+        if (end < 0 && track.editDurationUs >= 0) {
+            end = track.editDurationUs;
+        }
+        setPresentationWindow(mediaMuxer, trackIndex, start, end, track.getEditMediaTimeUs());
+    }
+
+    private static long getEncoderDelayUs(MediaFormat format) {
+        if (!format.containsKey("encoder-delay") || !format.containsKey(MediaFormat.KEY_SAMPLE_RATE)) {
+            return 0;
+        }
+        return format.getInteger("encoder-delay") * 1000000L / format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+    }
+
+    static int writeStartCodes(ByteBuffer sample, ByteBuffer output) {
+        output.clear();
+        while (sample.remaining() > 4) {
+            int length = sample.getInt();
+            if (length <= 0 || length > sample.remaining()) {
+                break;
+            }
+            output.putInt(1);
+            int limit = sample.limit();
+            sample.limit(sample.position() + length);
+            output.put(sample);
+            sample.limit(limit);
+        }
+        return output.position();
+    }
+
+    private long readAndWriteTracks(Extractor extractor, MP4Builder mediaMuxer,
                                     MediaCodec.BufferInfo info, long start, long end, long duration, File file, boolean needAudio) throws Exception {
         int videoTrackIndex = MediaController.findTrack(extractor, false);
         int audioTrackIndex = needAudio ? MediaController.findTrack(extractor, true) : -1;
@@ -810,6 +2237,7 @@ public class MediaCodecVideoConvertor {
             extractor.selectTrack(videoTrackIndex);
             MediaFormat trackFormat = extractor.getTrackFormat(videoTrackIndex);
             muxerVideoTrackIndex = mediaMuxer.addTrack(trackFormat, false);
+            setPresentationWindow(mediaMuxer, muxerVideoTrackIndex, start, end, 0);
             try {
                 maxBufferSize = trackFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
             } catch (Exception e) {
@@ -830,6 +2258,7 @@ public class MediaCodecVideoConvertor {
                 audioTrackIndex = -1;
             } else {
                 muxerAudioTrackIndex = mediaMuxer.addTrack(trackFormat, true);
+                setPresentationWindow(mediaMuxer, muxerAudioTrackIndex, start, end, getEncoderDelayUs(trackFormat));
                 try {
                     maxBufferSize = Math.max(trackFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE), maxBufferSize);
                 } catch (Exception e) {
@@ -947,7 +2376,7 @@ public class MediaCodecVideoConvertor {
     }
 
     private void checkConversionCanceled() {
-        if (callback != null && callback.checkConversionCanceled())
+        if (segmentsAborted || callback != null && callback.checkConversionCanceled())
             throw new RuntimeException("canceled conversion");
     }
 }
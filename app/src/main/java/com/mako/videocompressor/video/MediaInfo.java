@@ -0,0 +1,106 @@
+package com.mako.videocompressor.video;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class MediaInfo {
+
+    public static final int SOURCE_CONTAINER = 0;
+    public static final int SOURCE_RETRIEVER = 1;
+
+    public final String path;
+    public final long fileSize;
+    public final long lastModified;
+    public final int source;
+    public final float duration;
+    public final int width;
+    public final int height;
+    public final int rotation;
+    public final int bitrate;
+    public final int framerate;
+    public final String videoMime;
+    public final String audioMime;
+    public final int videoFramesCount;
+    public final long videoFramesSize;
+    public final int audioFramesCount;
+    public final long audioFramesSize;
+
+    MediaInfo(String path, long fileSize, long lastModified, int source,
+              float duration, int width, int height, int rotation, int bitrate, int framerate,
+              String videoMime, String audioMime,
+              int videoFramesCount, long videoFramesSize, int audioFramesCount, long audioFramesSize) {
+        this.path = path;
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.source = source;
+        this.duration = duration;
+        this.width = width;
+        this.height = height;
+        this.rotation = rotation;
+        this.bitrate = bitrate;
+        this.framerate = framerate;
+        this.videoMime = videoMime;
+        this.audioMime = audioMime;
+        this.videoFramesCount = videoFramesCount;
+        this.videoFramesSize = videoFramesSize;
+        this.audioFramesCount = audioFramesCount;
+        this.audioFramesSize = audioFramesSize;
+    }
+
+    public boolean hasVideo() {
+        return videoMime != null;
+    }
+
+    public boolean hasAudio() {
+        return audioMime != null;
+    }
+
+    public boolean hasSampleTables() {
+        return source == SOURCE_CONTAINER;
+    }
+
+    void writeTo(DataOutputStream data) throws IOException {
+        data.writeUTF(path);
+        data.writeLong(fileSize);
+        data.writeLong(lastModified);
+        data.writeByte(source);
+        data.writeFloat(duration);
+        data.writeInt(width);
+        data.writeInt(height);
+        data.writeShort(rotation);
+        data.writeInt(bitrate);
+        data.writeShort(framerate);
+        data.writeUTF(videoMime != null ? videoMime : "");
+        data.writeUTF(audioMime != null ? audioMime : "");
+        data.writeInt(videoFramesCount);
+        data.writeLong(videoFramesSize);
+        data.writeInt(audioFramesCount);
+        data.writeLong(audioFramesSize);
+    }
+
+    static MediaInfo readFrom(DataInputStream data) throws IOException {
+        String path = data.readUTF();
+        long fileSize = data.readLong();
+        long lastModified = data.readLong();
+        int source = data.readByte();
+        float duration = data.readFloat();
+        int width = data.readInt();
+        int height = data.readInt();
+        int rotation = data.readShort();
+        int bitrate = data.readInt();
+        int framerate = data.readShort();
+        String videoMime = data.readUTF();
+        String audioMime = data.readUTF();
+        return new MediaInfo(path, fileSize, lastModified, source, duration, width, height, rotation, bitrate, framerate,
+                videoMime.isEmpty() ? null : videoMime, audioMime.isEmpty() ? null : audioMime,
+                data.readInt(), data.readLong(), data.readInt(), data.readLong());
+    }
+
+    @Override
+    public String toString() {
+        return "MediaInfo{" + width + "x" + height + " rotation=" + rotation + " duration=" + duration + "ms bitrate=" + bitrate + " framerate=" + framerate
+                + " video=" + videoMime + " " + videoFramesCount + "/" + videoFramesSize + " audio=" + audioMime + " " + audioFramesCount + "/" + audioFramesSize
+                + (source == SOURCE_CONTAINER ? " container" : " retriever") + "}";
+    }
+}
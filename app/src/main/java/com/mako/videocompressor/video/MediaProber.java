@@ -0,0 +1,337 @@
+package com.mako.videocompressor.video;
+
+import android.media.MediaMetadataRetriever;
+
+import com.mako.videocompressor.utils.BuildVars;
+import com.mako.videocompressor.utils.FileLog;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Parses a source once, from the moov when it can and with the platform retriever otherwise, and keeps the
+// result in memory and in a small append-only file keyed by path, size and modification time.
+public class MediaProber {
+
+    private static final int MAGIC = 0x4d505242;
+    private static final int VERSION = 1;
+    private static final int MEMORY_CACHE_SIZE = 256;
+    private static final int DISK_CACHE_SIZE = 4096;
+
+    private static volatile MediaProber Instance;
+
+    private final LinkedHashMap<String, MediaInfo> memoryCache = new LinkedHashMap<String, MediaInfo>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MediaInfo> eldest) {
+            return size() > MEMORY_CACHE_SIZE;
+        }
+    };
+    private final LinkedHashMap<String, MediaInfo> diskEntries = new LinkedHashMap<>();
+    private File cacheFile;
+    private boolean diskLoaded;
+    private int staleRecordsCount;
+    private int memoryHits;
+    private int diskHits;
+    private int containerProbes;
+    private int retrieverProbes;
+
+    public static MediaProber getInstance() {
+        MediaProber localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (MediaProber.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new MediaProber();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    public synchronized void setCacheFile(File file) {
+        cacheFile = file;
+        diskLoaded = false;
+        diskEntries.clear();
+    }
+
+    public synchronized boolean hasCacheFile() {
+        return cacheFile != null;
+    }
+
+    public MediaInfo probe(String path) {
+        File file = new File(path);
+        long fileSize = file.length();
+        long lastModified = file.lastModified();
+        String key = path + "_" + fileSize + "_" + lastModified;
+        synchronized (this) {
+            MediaInfo info = memoryCache.get(key);
+            if (info != null) {
+                memoryHits++;
+                return info;
+            }
+            loadDiskCache();
+            info = diskEntries.get(key);
+            if (info != null) {
+                diskHits++;
+                memoryCache.put(key, info);
+                return info;
+            }
+        }
+        MediaInfo info = null;
+        if (fileSize > 0) {
+            info = probeContainer(file, fileSize, lastModified);
+            if (info == null) {
+                info = probeRetriever(file, fileSize, lastModified);
+            }
+        }
+        if (info == null) {
+            return new MediaInfo(path, fileSize, lastModified, MediaInfo.SOURCE_RETRIEVER, 0, 0, 0, 0, 0, 0, null, null, 0, 0, 0, 0);
+        }
+        if (BuildVars.LOGS_ENABLED) {
+            FileLog.d("probe " + path + " " + info);
+        }
+        synchronized (this) {
+            if (info.source == MediaInfo.SOURCE_CONTAINER) {
+                containerProbes++;
+            } else {
+                retrieverProbes++;
+            }
+            memoryCache.put(key, info);
+            putDiskEntry(key, info);
+        }
+        return info;
+    }
+
+    public synchronized int getMemoryHits() {
+        return memoryHits;
+    }
+
+    public synchronized int getDiskHits() {
+        return diskHits;
+    }
+
+    public synchronized int getContainerProbes() {
+        return containerProbes;
+    }
+
+    public synchronized int getRetrieverProbes() {
+        return retrieverProbes;
+    }
+
+    private static MediaInfo probeContainer(File file, long fileSize, long lastModified) {
+        Mp4Demuxer demuxer;
+        try {
+            demuxer = new Mp4Demuxer(file);
+        } catch (Exception e) {
+            return null;
+        }
+        try {
+            if (demuxer.isFragmented()) {
+                return null;
+            }
+            int videoIndex = demuxer.findTrack(false);
+            if (videoIndex < 0 || demuxer.getTrack(videoIndex).getSampleCount() == 0) {
+                return null;
+            }
+            Mp4Demuxer.TrackInfo video = demuxer.getTrack(videoIndex);
+            long videoFramesSize = getFramesSize(video);
+            int audioIndex = demuxer.findTrack(true);
+            Mp4Demuxer.TrackInfo audio = audioIndex >= 0 ? demuxer.getTrack(audioIndex) : null;
+            long audioFramesSize = audio != null ? getFramesSize(audio) : 0;
+
+            float duration;
+            if (demuxer.getMovieTimeScale() > 0 && demuxer.getMovieDuration() > 0) {
+                duration = demuxer.getMovieDuration() * 1000f / demuxer.getMovieTimeScale();
+            } else {
+                duration = video.getDurationUs() / 1000f;
+            }
+            long videoDurationUs = video.getDurationUs();
+            int framerate = videoDurationUs > 0 ? Math.round(video.getSampleCount() * 1000000f / videoDurationUs) : 0;
+            int bitrate = duration > 0 ? (int) Math.min(Integer.MAX_VALUE, (long) (fileSize * 8000.0 / duration)) : 0;
+            return new MediaInfo(file.getPath(), fileSize, lastModified, MediaInfo.SOURCE_CONTAINER,
+                    duration, video.width, video.height, video.rotation, bitrate, framerate,
+                    video.mime, audio != null ? audio.mime : null,
+                    video.getSampleCount(), videoFramesSize, audio != null ? audio.getSampleCount() : 0, audioFramesSize);
+        } catch (Exception e) {
+            FileLog.e(e);
+            return null;
+        } finally {
+            try {
+                demuxer.close();
+            } catch (IOException ignore) {
+
+            }
+        }
+    }
+
+    private static long getFramesSize(Mp4Demuxer.TrackInfo track) {
+        long size = 0;
+        for (int a = 0, N = track.getSampleCount(); a < N; a++) {
+            size += track.getSampleSize(a);
+        }
+        return size;
+    }
+
+    private static MediaInfo probeRetriever(File file, long fileSize, long lastModified) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(file.getPath());
+            String mime = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_MIMETYPE);
+            boolean hasVideo = "yes".equals(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_HAS_VIDEO));
+            boolean hasAudio = "yes".equals(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_HAS_AUDIO));
+            return new MediaInfo(file.getPath(), fileSize, lastModified, MediaInfo.SOURCE_RETRIEVER,
+                    parseFloat(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)),
+                    parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH)),
+                    parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT)),
+                    parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION)),
+                    parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE)),
+                    parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_CAPTURE_FRAMERATE)),
+                    hasVideo ? mime : null, hasAudio ? mime : null, 0, 0, 0, 0);
+        } catch (Exception e) {
+            FileLog.e(e);
+            return null;
+        } finally {
+            retriever.release();
+        }
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return value != null ? Integer.parseInt(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static float parseFloat(String value) {
+        try {
+            return value != null ? Float.parseFloat(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void loadDiskCache() {
+        if (diskLoaded || cacheFile == null) {
+            return;
+        }
+        diskLoaded = true;
+        if (!cacheFile.exists()) {
+            return;
+        }
+        long validLength = 0;
+        int recordsCount = 0;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                cacheFile.delete();
+                return;
+            }
+            validLength = 8;
+            while (true) {
+                int size;
+                try {
+                    size = input.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (size <= 0 || size > 64 * 1024) {
+                    throw new IOException("invalid record size " + size);
+                }
+                byte[] record = new byte[size];
+                input.readFully(record);
+                MediaInfo info = MediaInfo.readFrom(new DataInputStream(new ByteArrayInputStream(record)));
+                diskEntries.put(info.path + "_" + info.fileSize + "_" + info.lastModified, info);
+                validLength += 4 + size;
+                recordsCount++;
+            }
+        } catch (Exception e) {
+            if (validLength == 0) {
+                cacheFile.delete();
+                return;
+            }
+            try (RandomAccessFile file = new RandomAccessFile(cacheFile, "rw")) {
+                file.setLength(validLength);
+            } catch (IOException e2) {
+                FileLog.e(e2);
+            }
+        }
+        staleRecordsCount = recordsCount - diskEntries.size();
+        trimDiskEntries();
+    }
+
+    private void putDiskEntry(String key, MediaInfo info) {
+        if (cacheFile == null) {
+            return;
+        }
+        diskEntries.put(key, info);
+        if (trimDiskEntries()) {
+            return;
+        }
+        try (FileOutputStream stream = new FileOutputStream(cacheFile, true)) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(128);
+            DataOutputStream data = new DataOutputStream(buffer);
+            if (cacheFile.length() == 0) {
+                data.writeInt(MAGIC);
+                data.writeInt(VERSION);
+            }
+            byte[] record = serialize(info);
+            data.writeInt(record.length);
+            data.write(record);
+            data.flush();
+            stream.write(buffer.toByteArray());
+        } catch (IOException e) {
+            FileLog.e(e);
+        }
+    }
+
+    private boolean trimDiskEntries() {
+        Iterator<String> iterator = diskEntries.keySet().iterator();
+        while (diskEntries.size() > DISK_CACHE_SIZE && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            staleRecordsCount++;
+        }
+        if (staleRecordsCount <= DISK_CACHE_SIZE / 4) {
+            return false;
+        }
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        try (DataOutputStream data = new DataOutputStream(new FileOutputStream(tempFile))) {
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            for (MediaInfo info : diskEntries.values()) {
+                byte[] record = serialize(info);
+                data.writeInt(record.length);
+                data.write(record);
+            }
+        } catch (IOException e) {
+            FileLog.e(e);
+            tempFile.delete();
+            return false;
+        }
+        if (!tempFile.renameTo(cacheFile)) {
+            tempFile.delete();
+            return false;
+        }
+        staleRecordsCount = 0;
+        return true;
+    }
+
+    private static byte[] serialize(MediaInfo info) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(128);
+        DataOutputStream data = new DataOutputStream(buffer);
+        info.writeTo(data);
+        data.flush();
+        return buffer.toByteArray();
+    }
+}
@@ -0,0 +1,697 @@
+package com.mako.videocompressor.video;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class Mp4Demuxer implements Closeable {
+
+    private static final long MAP_WINDOW_SIZE = 32 * 1024 * 1024;
+
+    public static class TrackInfo {
+        public int trackId;
+        public boolean isAudio;
+        public String handler;
+        public String sampleEntryType;
+        public String mime;
+        public int timeScale;
+        public long duration;
+        public int width;
+        public int height;
+        public int rotation;
+        public int sampleRate;
+        public int channelCount;
+        public int objectType;
+        public int nalLengthSize;
+        public ArrayList<byte[]> sps = new ArrayList<>();
+        public ArrayList<byte[]> pps = new ArrayList<>();
+        public byte[] audioSpecificConfig;
+        public byte[] sampleEntry;
+        public int maxSampleSize;
+        public long editMediaTime;
+        public long editDurationUs = -1;
+
+        private int sampleCount;
+        private long[] sampleOffsets;
+        private int[] sampleSizes;
+        private long[] sampleDecodeTimes;
+        private int[] sampleCompositionOffsets;
+        private int[] syncSamples;
+
+        public int getSampleCount() {
+            return sampleCount;
+        }
+
+        public long getSampleOffset(int index) {
+            return sampleOffsets[index];
+        }
+
+        public int getSampleSize(int index) {
+            return sampleSizes[index];
+        }
+
+        public long getSampleDecodeTime(int index) {
+            return sampleDecodeTimes[index];
+        }
+
+        public long getSamplePresentationTime(int index) {
+            if (sampleCompositionOffsets == null) {
+                return sampleDecodeTimes[index];
+            }
+            return sampleDecodeTimes[index] + sampleCompositionOffsets[index];
+        }
+
+        public long getSampleTimeUs(int index) {
+            return getSamplePresentationTime(index) * 1000000L / timeScale;
+        }
+
+        public long getEditMediaTimeUs() {
+            return editMediaTime * 1000000L / timeScale;
+        }
+
+        public long getDurationUs() {
+            return duration * 1000000L / timeScale;
+        }
+
+        public boolean isSyncSample(int index) {
+            if (syncSamples == null) {
+                return true;
+            }
+            return Arrays.binarySearch(syncSamples, index + 1) >= 0;
+        }
+
+        public int findSyncSample(long timeUs) {
+            int count = syncSamples != null ? syncSamples.length : sampleCount;
+            if (count == 0) {
+                return -1;
+            }
+            int low = 0;
+            int high = count - 1;
+            int result = 0;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int index = syncSamples != null ? syncSamples[middle] - 1 : middle;
+                if (getSampleTimeUs(index) <= timeUs) {
+                    result = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return syncSamples != null ? syncSamples[result] - 1 : result;
+        }
+    }
+
+    public class SampleCursor {
+
+        private final int[] trackIndices;
+        private final int[] nextSamples;
+        private int trackIndex = -1;
+        private int sampleIndex = -1;
+
+        private SampleCursor(int[] trackIndices) {
+            this.trackIndices = trackIndices;
+            nextSamples = new int[trackIndices.length];
+        }
+
+        public void seekTo(long timeUs) {
+            long syncTimeUs = timeUs;
+            for (int a = 0; a < trackIndices.length; a++) {
+                TrackInfo track = tracks.get(trackIndices[a]);
+                int index = track.findSyncSample(timeUs);
+                if (index >= 0) {
+                    syncTimeUs = Math.min(syncTimeUs, track.getSampleTimeUs(index));
+                }
+            }
+            for (int a = 0; a < trackIndices.length; a++) {
+                int index = tracks.get(trackIndices[a]).findSyncSample(syncTimeUs);
+                nextSamples[a] = Math.max(index, 0);
+            }
+            trackIndex = -1;
+            sampleIndex = -1;
+        }
+
+        public boolean advance() {
+            int best = -1;
+            long bestOffset = Long.MAX_VALUE;
+            for (int a = 0; a < trackIndices.length; a++) {
+                TrackInfo track = tracks.get(trackIndices[a]);
+                if (nextSamples[a] < track.sampleCount && track.sampleOffsets[nextSamples[a]] < bestOffset) {
+                    bestOffset = track.sampleOffsets[nextSamples[a]];
+                    best = a;
+                }
+            }
+            if (best == -1) {
+                trackIndex = -1;
+                sampleIndex = -1;
+                return false;
+            }
+            trackIndex = trackIndices[best];
+            sampleIndex = nextSamples[best]++;
+            return true;
+        }
+
+        public int getTrackIndex() {
+            return trackIndex;
+        }
+
+        public int getSampleIndex() {
+            return sampleIndex;
+        }
+
+        public long getSampleTimeUs() {
+            return tracks.get(trackIndex).getSampleTimeUs(sampleIndex);
+        }
+
+        public int getSampleSize() {
+            return tracks.get(trackIndex).getSampleSize(sampleIndex);
+        }
+
+        public long getSampleOffset() {
+            return tracks.get(trackIndex).getSampleOffset(sampleIndex);
+        }
+
+        public boolean isSyncSample() {
+            return tracks.get(trackIndex).isSyncSample(sampleIndex);
+        }
+
+        public ByteBuffer readSample() throws IOException {
+            return Mp4Demuxer.this.readSample(trackIndex, sampleIndex);
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final ArrayList<TrackInfo> tracks = new ArrayList<>();
+    private int movieTimeScale;
+    private long movieDuration;
+    private long moovOffset = -1;
+    private long mdatOffset = -1;
+    private boolean fragmented;
+    private ByteBuffer window;
+    private long windowOffset;
+
+    public Mp4Demuxer(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        channel = file.getChannel();
+        fileSize = channel.size();
+        try {
+            parse();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e instanceof IOException ? (IOException) e : new IOException("can't parse " + path, e);
+        }
+    }
+
+    public int getTrackCount() {
+        return tracks.size();
+    }
+
+    public TrackInfo getTrack(int index) {
+        return tracks.get(index);
+    }
+
+    public int getMovieTimeScale() {
+        return movieTimeScale;
+    }
+
+    public long getMovieDuration() {
+        return movieDuration;
+    }
+
+    public boolean isFastStart() {
+        return moovOffset >= 0 && mdatOffset >= 0 && moovOffset < mdatOffset;
+    }
+
+    public boolean isFragmented() {
+        return fragmented;
+    }
+
+    public int findTrack(boolean audio) {
+        for (int a = 0; a < tracks.size(); a++) {
+            TrackInfo track = tracks.get(a);
+            if (audio ? track.mime.startsWith("audio/") : track.mime.startsWith("video/")) {
+                return a;
+            }
+        }
+        return -5;
+    }
+
+    public SampleCursor createCursor(int... trackIndices) {
+        return new SampleCursor(trackIndices);
+    }
+
+    public ByteBuffer readSample(int trackIndex, int sampleIndex) throws IOException {
+        TrackInfo track = tracks.get(trackIndex);
+        return map(track.sampleOffsets[sampleIndex], track.sampleSizes[sampleIndex]);
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+        file.close();
+    }
+
+    private ByteBuffer map(long offset, int size) throws IOException {
+        if (offset < 0 || offset + size > fileSize) {
+            throw new IOException("sample at " + offset + " size " + size + " is out of file bounds " + fileSize);
+        }
+        if (window == null || offset < windowOffset || offset + size > windowOffset + window.capacity()) {
+            windowOffset = offset;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(Math.max(size, MAP_WINDOW_SIZE), fileSize - offset));
+        }
+        ByteBuffer buffer = window.duplicate();
+        buffer.position((int) (offset - windowOffset));
+        buffer.limit((int) (offset - windowOffset) + size);
+        return buffer.slice();
+    }
+
+    private void parse() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long position = 0;
+        boolean foundMoov = false;
+        while (position + 8 <= fileSize) {
+            header.clear();
+            header.limit((int) Math.min(16, fileSize - position));
+            while (header.hasRemaining()) {
+                if (channel.read(header, position + header.position()) < 0) {
+                    break;
+                }
+            }
+            header.flip();
+            long size = header.getInt() & 0xffffffffL;
+            int type = header.getInt();
+            int headerSize = 8;
+            if (size == 1) {
+                size = header.getLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                size = fileSize - position;
+            }
+            if (size < headerSize) {
+                throw new IOException("invalid box size " + size + " at " + position);
+            }
+            if (type == fourCC("moof")) {
+                fragmented = true;
+            } else if (type == fourCC("mdat")) {
+                if (mdatOffset < 0) {
+                    mdatOffset = position;
+                }
+            } else if (type == fourCC("moov")) {
+                moovOffset = position;
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("moov is too big " + size);
+                }
+                ByteBuffer moov = channel.map(FileChannel.MapMode.READ_ONLY, position + headerSize, Math.min(size, fileSize - position) - headerSize);
+                parseMoov(moov);
+                foundMoov = true;
+            }
+            position += size;
+        }
+        if (!foundMoov) {
+            throw new IOException("no moov box");
+        }
+    }
+
+    private void parseMoov(ByteBuffer moov) throws IOException {
+        int end = moov.limit();
+        while (moov.position() + 8 <= end) {
+            int start = moov.position();
+            int boxEnd = nextBox(moov, end);
+            int type = moov.getInt(start + 4);
+            if (type == fourCC("mvhd")) {
+                int version = moov.get() & 0xff;
+                skip(moov, 3 + (version == 1 ? 16 : 8));
+                movieTimeScale = moov.getInt();
+                movieDuration = version == 1 ? moov.getLong() : moov.getInt() & 0xffffffffL;
+            } else if (type == fourCC("trak")) {
+                TrackInfo track = new TrackInfo();
+                parseTrak(moov, boxEnd, track);
+                if (track.mime != null && track.timeScale > 0) {
+                    tracks.add(track);
+                }
+            }
+            moov.position(boxEnd);
+        }
+    }
+
+    private void parseTrak(ByteBuffer buffer, int end, TrackInfo track) throws IOException {
+        long[] chunkOffsets = null;
+        int[] stsc = null;
+        int[] sizes = null;
+        long[] deltas = null;
+        int[] compositions = null;
+        int constantSize = 0;
+        int sampleCount = 0;
+
+        ArrayList<int[]> stack = new ArrayList<>();
+        stack.add(new int[]{buffer.position(), end});
+        while (!stack.isEmpty()) {
+            int[] range = stack.remove(stack.size() - 1);
+            buffer.position(range[0]);
+            while (buffer.position() + 8 <= range[1]) {
+                int start = buffer.position();
+                int boxEnd = nextBox(buffer, range[1]);
+                int type = buffer.getInt(start + 4);
+                if (type == fourCC("mdia") || type == fourCC("minf") || type == fourCC("stbl") || type == fourCC("edts")) {
+                    stack.add(new int[]{buffer.position(), boxEnd});
+                } else if (type == fourCC("elst")) {
+                    int version = buffer.get() & 0xff;
+                    skip(buffer, 3);
+                    int count = buffer.getInt();
+                    for (int a = 0; a < count; a++) {
+                        long segmentDuration = version == 1 ? buffer.getLong() : buffer.getInt() & 0xffffffffL;
+                        long mediaTime = version == 1 ? buffer.getLong() : buffer.getInt();
+                        skip(buffer, 4);
+                        if (mediaTime >= 0) {
+                            track.editMediaTime = mediaTime;
+                            if (count == 1 && segmentDuration > 0 && movieTimeScale > 0) {
+                                track.editDurationUs = segmentDuration * 1000000L / movieTimeScale;
+                            }
+                            break;
+                        }
+                    }
+                } else if (type == fourCC("tkhd")) {
+                    parseTkhd(buffer, track);
+                } else if (type == fourCC("mdhd")) {
+                    int version = buffer.get() & 0xff;
+                    skip(buffer, 3 + (version == 1 ? 16 : 8));
+                    track.timeScale = buffer.getInt();
+                    track.duration = version == 1 ? buffer.getLong() : buffer.getInt() & 0xffffffffL;
+                } else if (type == fourCC("hdlr")) {
+                    skip(buffer, 8);
+                    track.handler = fourCCToString(buffer.getInt());
+                    track.isAudio = "soun".equals(track.handler);
+                } else if (type == fourCC("stsd")) {
+                    skip(buffer, 8);
+                    parseSampleEntry(buffer, track);
+                } else if (type == fourCC("stts")) {
+                    skip(buffer, 4);
+                    int count = buffer.getInt();
+                    deltas = new long[count * 2];
+                    for (int a = 0; a < count; a++) {
+                        deltas[a * 2] = buffer.getInt() & 0xffffffffL;
+                        deltas[a * 2 + 1] = buffer.getInt() & 0xffffffffL;
+                    }
+                } else if (type == fourCC("ctts")) {
+                    skip(buffer, 4);
+                    int count = buffer.getInt();
+                    compositions = new int[count * 2];
+                    for (int a = 0; a < count * 2; a++) {
+                        compositions[a] = buffer.getInt();
+                    }
+                } else if (type == fourCC("stss")) {
+                    skip(buffer, 4);
+                    int count = buffer.getInt();
+                    track.syncSamples = new int[count];
+                    for (int a = 0; a < count; a++) {
+                        track.syncSamples[a] = buffer.getInt();
+                    }
+                    Arrays.sort(track.syncSamples);
+                } else if (type == fourCC("stsc")) {
+                    skip(buffer, 4);
+                    int count = buffer.getInt();
+                    stsc = new int[count * 3];
+                    for (int a = 0; a < count * 3; a++) {
+                        stsc[a] = buffer.getInt();
+                    }
+                } else if (type == fourCC("stsz")) {
+                    skip(buffer, 4);
+                    constantSize = buffer.getInt();
+                    sampleCount = buffer.getInt();
+                    if (constantSize == 0) {
+                        sizes = new int[sampleCount];
+                        for (int a = 0; a < sampleCount; a++) {
+                            sizes[a] = buffer.getInt();
+                        }
+                    }
+                } else if (type == fourCC("stz2")) {
+                    skip(buffer, 7);
+                    int fieldSize = buffer.get() & 0xff;
+                    sampleCount = buffer.getInt();
+                    sizes = new int[sampleCount];
+                    int value = 0;
+                    for (int a = 0; a < sampleCount; a++) {
+                        if (fieldSize == 4) {
+                            if (a % 2 == 0) {
+                                value = buffer.get() & 0xff;
+                            }
+                            sizes[a] = a % 2 == 0 ? value >> 4 : value & 0x0f;
+                        } else if (fieldSize == 8) {
+                            sizes[a] = buffer.get() & 0xff;
+                        } else {
+                            sizes[a] = buffer.getShort() & 0xffff;
+                        }
+                    }
+                } else if (type == fourCC("stco")) {
+                    skip(buffer, 4);
+                    int count = buffer.getInt();
+                    chunkOffsets = new long[count];
+                    for (int a = 0; a < count; a++) {
+                        chunkOffsets[a] = buffer.getInt() & 0xffffffffL;
+                    }
+                } else if (type == fourCC("co64")) {
+                    skip(buffer, 4);
+                    int count = buffer.getInt();
+                    chunkOffsets = new long[count];
+                    for (int a = 0; a < count; a++) {
+                        chunkOffsets[a] = buffer.getLong();
+                    }
+                }
+                buffer.position(boxEnd);
+            }
+        }
+        if (track.mime == null || chunkOffsets == null || stsc == null || deltas == null) {
+            track.mime = null;
+            return;
+        }
+
+        track.sampleCount = sampleCount;
+        track.sampleSizes = sizes != null ? sizes : new int[sampleCount];
+        if (sizes == null) {
+            Arrays.fill(track.sampleSizes, constantSize);
+        }
+        track.sampleOffsets = new long[sampleCount];
+        int sample = 0;
+        for (int entry = 0, entries = stsc.length / 3; entry < entries && sample < sampleCount; entry++) {
+            int firstChunk = stsc[entry * 3] - 1;
+            int lastChunk = entry + 1 < entries ? stsc[(entry + 1) * 3] - 1 : chunkOffsets.length;
+            int samplesPerChunk = stsc[entry * 3 + 1];
+            for (int chunk = firstChunk; chunk < lastChunk && chunk < chunkOffsets.length && sample < sampleCount; chunk++) {
+                long offset = chunkOffsets[chunk];
+                for (int a = 0; a < samplesPerChunk && sample < sampleCount; a++) {
+                    track.sampleOffsets[sample] = offset;
+                    offset += track.sampleSizes[sample];
+                    sample++;
+                }
+            }
+        }
+        if (sample < sampleCount) {
+            throw new IOException("chunk table covers " + sample + " of " + sampleCount + " samples");
+        }
+
+        track.sampleDecodeTimes = new long[sampleCount];
+        long time = 0;
+        sample = 0;
+        for (int entry = 0; entry < deltas.length / 2 && sample < sampleCount; entry++) {
+            for (long a = 0; a < deltas[entry * 2] && sample < sampleCount; a++) {
+                track.sampleDecodeTimes[sample++] = time;
+                time += deltas[entry * 2 + 1];
+            }
+        }
+        while (sample < sampleCount) {
+            track.sampleDecodeTimes[sample++] = time;
+        }
+
+        if (compositions != null) {
+            track.sampleCompositionOffsets = new int[sampleCount];
+            sample = 0;
+            for (int entry = 0; entry < compositions.length / 2 && sample < sampleCount; entry++) {
+                for (int a = 0; a < compositions[entry * 2] && sample < sampleCount; a++) {
+                    track.sampleCompositionOffsets[sample++] = compositions[entry * 2 + 1];
+                }
+            }
+        }
+
+        for (int a = 0; a < sampleCount; a++) {
+            track.maxSampleSize = Math.max(track.maxSampleSize, track.sampleSizes[a]);
+        }
+    }
+
+    private void parseTkhd(ByteBuffer buffer, TrackInfo track) {
+        int version = buffer.get() & 0xff;
+        skip(buffer, 3 + (version == 1 ? 16 : 8));
+        track.trackId = buffer.getInt();
+        skip(buffer, 4 + (version == 1 ? 8 : 4) + 16);
+        int a = buffer.getInt();
+        int b = buffer.getInt();
+        if (a == 0 && b == 65536) {
+            track.rotation = 90;
+        } else if (a == -65536 && b == 0) {
+            track.rotation = 180;
+        } else if (a == 0 && b == -65536) {
+            track.rotation = 270;
+        }
+        skip(buffer, 28);
+        track.width = buffer.getInt() >> 16;
+        track.height = buffer.getInt() >> 16;
+    }
+
+    private void parseSampleEntry(ByteBuffer buffer, TrackInfo track) {
+        int start = buffer.position();
+        int size = buffer.getInt();
+        int type = buffer.getInt();
+        int end = start + size;
+        track.sampleEntryType = fourCCToString(type);
+        track.sampleEntry = new byte[size];
+        buffer.position(start);
+        buffer.get(track.sampleEntry);
+        buffer.position(start + 8);
+
+        if ("vide".equals(track.handler)) {
+            skip(buffer, 24);
+            track.width = buffer.getShort() & 0xffff;
+            track.height = buffer.getShort() & 0xffff;
+            skip(buffer, 50);
+            if (type == fourCC("avc1") || type == fourCC("avc3")) {
+                track.mime = "video/avc";
+            } else if (type == fourCC("hvc1") || type == fourCC("hev1")) {
+                track.mime = "video/hevc";
+            } else if (type == fourCC("mp4v")) {
+                track.mime = "video/mp4v-es";
+            } else {
+                track.mime = "video/unknown";
+            }
+            while (buffer.position() + 8 <= end) {
+                int boxStart = buffer.position();
+                int boxEnd = nextBox(buffer, end);
+                if (buffer.getInt(boxStart + 4) == fourCC("avcC")) {
+                    parseAvcC(buffer, track);
+                }
+                buffer.position(boxEnd);
+            }
+        } else if ("soun".equals(track.handler)) {
+            skip(buffer, 8);
+            int version = buffer.getShort() & 0xffff;
+            skip(buffer, 6);
+            track.channelCount = buffer.getShort() & 0xffff;
+            skip(buffer, 6);
+            track.sampleRate = buffer.getInt() >>> 16;
+            if (version == 1) {
+                skip(buffer, 16);
+            } else if (version == 2) {
+                skip(buffer, 36);
+            }
+            track.mime = "audio/unknown";
+            while (buffer.position() + 8 <= end) {
+                int boxStart = buffer.position();
+                int boxEnd = nextBox(buffer, end);
+                if (buffer.getInt(boxStart + 4) == fourCC("esds")) {
+                    skip(buffer, 4);
+                    parseDescriptors(buffer, boxEnd, track);
+                }
+                buffer.position(boxEnd);
+            }
+            if (type == fourCC("mp4a")) {
+                if (track.objectType == 0x69 || track.objectType == 0x6b) {
+                    track.mime = "audio/mpeg";
+                } else if (track.objectType == 0x40 || track.objectType == 0x66 || track.objectType == 0x67 || track.objectType == 0x68) {
+                    track.mime = "audio/mp4a-latm";
+                }
+            }
+        }
+        buffer.position(end);
+    }
+
+    private void parseAvcC(ByteBuffer buffer, TrackInfo track) {
+        skip(buffer, 4);
+        track.nalLengthSize = (buffer.get() & 0x03) + 1;
+        int count = buffer.get() & 0x1f;
+        for (int a = 0; a < count; a++) {
+            byte[] sps = new byte[buffer.getShort() & 0xffff];
+            buffer.get(sps);
+            track.sps.add(sps);
+        }
+        count = buffer.get() & 0xff;
+        for (int a = 0; a < count; a++) {
+            byte[] pps = new byte[buffer.getShort() & 0xffff];
+            buffer.get(pps);
+            track.pps.add(pps);
+        }
+    }
+
+    private void parseDescriptors(ByteBuffer buffer, int end, TrackInfo track) {
+        while (buffer.position() + 2 <= end) {
+            int tag = buffer.get() & 0xff;
+            int size = 0;
+            for (int a = 0; a < 4; a++) {
+                int b = buffer.get() & 0xff;
+                size = (size << 7) | (b & 0x7f);
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            int descriptorEnd = Math.min(buffer.position() + size, end);
+            if (tag == 0x03) {
+                skip(buffer, 2);
+                int flags = buffer.get() & 0xff;
+                if ((flags & 0x80) != 0) {
+                    skip(buffer, 2);
+                }
+                if ((flags & 0x40) != 0) {
+                    skip(buffer, buffer.get() & 0xff);
+                }
+                if ((flags & 0x20) != 0) {
+                    skip(buffer, 2);
+                }
+                parseDescriptors(buffer, descriptorEnd, track);
+            } else if (tag == 0x04) {
+                track.objectType = buffer.get() & 0xff;
+                skip(buffer, 12);
+                parseDescriptors(buffer, descriptorEnd, track);
+            } else if (tag == 0x05) {
+                track.audioSpecificConfig = new byte[descriptorEnd - buffer.position()];
+                buffer.get(track.audioSpecificConfig);
+            }
+            buffer.position(descriptorEnd);
+        }
+    }
+
+    private static int nextBox(ByteBuffer buffer, int end) {
+        int start = buffer.position();
+        long size = buffer.getInt() & 0xffffffffL;
+        buffer.getInt();
+        if (size == 1) {
+            size = buffer.getLong();
+        } else if (size == 0) {
+            size = end - start;
+        }
+        if (size < buffer.position() - start || start + size > end) {
+            return end;
+        }
+        return (int) (start + size);
+    }
+
+    private static void skip(ByteBuffer buffer, int count) {
+        buffer.position(buffer.position() + count);
+    }
+
+    private static int fourCC(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    private static String fourCCToString(int type) {
+        return new String(new char[]{(char) ((type >> 24) & 0xff), (char) ((type >> 16) & 0xff), (char) ((type >> 8) & 0xff), (char) (type & 0xff)});
+    }
+}
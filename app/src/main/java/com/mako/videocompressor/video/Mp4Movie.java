@@ -22,6 +22,8 @@ public class Mp4Movie {
     private File cacheFile;
     private int width;
     private int height;
+    private long expectedDurationUs;
+    private int expectedFrameRate;
 
     public Matrix getMatrix() {
         return matrix;
@@ -56,6 +58,11 @@ public class Mp4Movie {
         height = h;
     }
 
+    public void setExpectedDuration(long durationUs, int frameRate) {
+        expectedDurationUs = durationUs;
+        expectedFrameRate = frameRate;
+    }
+
     public ArrayList<Track> getTracks() {
         return tracks;
     }
@@ -72,11 +79,57 @@ public class Mp4Movie {
         track.addSample(offset, bufferInfo);
     }
 
+    public void truncate(int trackIndex, int count) {
+        if (trackIndex < 0 || trackIndex >= tracks.size()) {
+            return;
+        }
+        tracks.get(trackIndex).truncate(count);
+    }
+
     public int addTrack(MediaFormat mediaFormat, boolean isAudio) {
-        tracks.add(new Track(tracks.size(), mediaFormat, isAudio));
+        Track track = new Track(tracks.size(), mediaFormat, isAudio);
+        if (expectedDurationUs > 0) {
+            track.ensureCapacity(expectedDurationUs, expectedFrameRate);
+        }
+        tracks.add(track);
         return tracks.size() - 1;
     }
 
+    public int addSampleDescription(int trackIndex, MediaFormat mediaFormat) {
+        if (trackIndex < 0 || trackIndex >= tracks.size()) {
+            return -1;
+        }
+        return tracks.get(trackIndex).addSampleDescription(mediaFormat);
+    }
+
+    public int findSampleDescription(int trackIndex, MediaFormat mediaFormat) {
+        if (trackIndex < 0 || trackIndex >= tracks.size()) {
+            return -1;
+        }
+        return tracks.get(trackIndex).findSampleDescription(mediaFormat);
+    }
+
+    public void setSampleDescription(int trackIndex, int index) {
+        if (trackIndex < 0 || trackIndex >= tracks.size()) {
+            return;
+        }
+        tracks.get(trackIndex).setSampleDescriptionIndex(index);
+    }
+
+    public void setPresentationWindow(int trackIndex, long startUs, long endUs) {
+        if (trackIndex < 0 || trackIndex >= tracks.size()) {
+            return;
+        }
+        tracks.get(trackIndex).setPresentationWindow(startUs, endUs);
+    }
+
+    public void setMediaTimeOffset(int trackIndex, long offsetUs) {
+        if (trackIndex < 0 || trackIndex >= tracks.size()) {
+            return;
+        }
+        tracks.get(trackIndex).setMediaTimeOffset(offsetUs);
+    }
+
     public long getLastFrameTimestamp(int trackIndex) {
         if (trackIndex < 0 || trackIndex >= tracks.size()) {
             return 0;
@@ -0,0 +1,369 @@
+package com.mako.videocompressor.video;
+
+import android.system.Os;
+
+import com.mako.videocompressor.utils.BuildVars;
+import com.mako.videocompressor.utils.FileLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Maps a sampled fingerprint of the source plus the output settings to an already finished output. The cache keeps
+// its own hard link or copy of every output and only hands out new links to it, so evicting an entry never removes a
+// file a caller still holds. Outputs are evicted least recently used first once their total size exceeds the budget.
+public class ResultCache {
+
+    private static final int MAGIC = 0x52534c54;
+    private static final int VERSION = 2;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int BLOCKS_COUNT = 32;
+    private static final int MAX_MOOV_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_THREADS = 4;
+    private static final long DEFAULT_MAX_SIZE = 512L * 1024 * 1024;
+
+    private static class Entry {
+        String path;
+        long size;
+
+        Entry(String path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    private static volatile ResultCache Instance;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private File indexFile;
+    private File directory;
+    private boolean loaded;
+    private long maxSize = DEFAULT_MAX_SIZE;
+    private long totalSize;
+    private int hits;
+    private int misses;
+    private int evictions;
+
+    public static ResultCache getInstance() {
+        ResultCache localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (ResultCache.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new ResultCache();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    public synchronized void setIndexFile(File file) {
+        indexFile = file;
+        directory = file != null ? new File(file.getParentFile(), "result_cache") : null;
+        loaded = false;
+        entries.clear();
+        totalSize = 0;
+    }
+
+    public synchronized boolean hasIndexFile() {
+        return indexFile != null;
+    }
+
+    public synchronized void setMaxSize(long size) {
+        maxSize = size;
+        load();
+        if (trim(null)) {
+            save();
+        }
+    }
+
+    public static String createKey(File source, byte[] settings) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(fingerprint(source));
+        digest.update(settings);
+        return toHex(digest.digest());
+    }
+
+    // Links the cached output for key to output and returns it, or null on a miss.
+    public synchronized File get(String key, File output) {
+        load();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        File file = new File(entry.path);
+        if (file.length() != entry.size || !linkOrCopy(file, output)) {
+            entries.remove(key);
+            totalSize -= entry.size;
+            file.delete();
+            save();
+            misses++;
+            return null;
+        }
+        hits++;
+        save();
+        if (BuildVars.LOGS_ENABLED) {
+            FileLog.d("result cache hit " + key + " " + output + " hits = " + hits + " misses = " + misses);
+        }
+        return output;
+    }
+
+    public synchronized void put(String key, File output) {
+        load();
+        long size = output.length();
+        if (size <= 0 || directory == null || !directory.exists() && !directory.mkdirs()) {
+            return;
+        }
+        File file = new File(directory, key + ".mp4");
+        Entry old = entries.remove(key);
+        if (old != null) {
+            totalSize -= old.size;
+            new File(old.path).delete();
+        }
+        if (!linkOrCopy(output, file)) {
+            save();
+            return;
+        }
+        entries.put(key, new Entry(file.getPath(), size));
+        totalSize += size;
+        trim(key);
+        save();
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized int getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getTotalSize() {
+        load();
+        return totalSize;
+    }
+
+    private boolean trim(String keep) {
+        boolean changed = false;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (totalSize > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            iterator.remove();
+            totalSize -= eldest.getValue().size;
+            new File(eldest.getValue().path).delete();
+            evictions++;
+            changed = true;
+            if (BuildVars.LOGS_ENABLED) {
+                FileLog.d("result cache evict " + eldest.getValue().path + " total = " + totalSize);
+            }
+        }
+        return changed;
+    }
+
+    private static boolean linkOrCopy(File source, File target) {
+        target.delete();
+        try {
+            Os.link(source.getPath(), target.getPath());
+            return true;
+        } catch (Exception ignore) {
+
+        }
+        try (FileInputStream input = new FileInputStream(source); FileOutputStream output = new FileOutputStream(target)) {
+            FileChannel inputChannel = input.getChannel();
+            FileChannel outputChannel = output.getChannel();
+            long size = inputChannel.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = inputChannel.transferTo(position, size - position, outputChannel);
+                if (transferred <= 0) {
+                    throw new IOException("can't copy " + source + " at " + position + " of " + size);
+                }
+                position += transferred;
+            }
+            return true;
+        } catch (IOException e) {
+            FileLog.e(e);
+            target.delete();
+            return false;
+        }
+    }
+
+    private void load() {
+        if (loaded || indexFile == null) {
+            return;
+        }
+        loaded = true;
+        if (!indexFile.exists()) {
+            return;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("unknown result cache index");
+            }
+            int count = input.readInt();
+            for (int a = 0; a < count; a++) {
+                String key = input.readUTF();
+                Entry entry = new Entry(input.readUTF(), input.readLong());
+                entries.put(key, entry);
+                totalSize += entry.size;
+            }
+        } catch (Exception e) {
+            FileLog.e(e);
+            entries.clear();
+            totalSize = 0;
+            indexFile.delete();
+        }
+    }
+
+    private void save() {
+        if (indexFile == null) {
+            return;
+        }
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                data.writeUTF(entry.getKey());
+                data.writeUTF(entry.getValue().path);
+                data.writeLong(entry.getValue().size);
+            }
+        } catch (IOException e) {
+            FileLog.e(e);
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(indexFile)) {
+            tempFile.delete();
+        }
+    }
+
+    static byte[] fingerprint(File file) throws Exception {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r"); FileChannel channel = randomAccessFile.getChannel()) {
+            long size = channel.size();
+            ArrayList<long[]> ranges = new ArrayList<>();
+            long[] moov = findMoov(channel, size);
+            if (moov != null) {
+                ranges.add(new long[]{moov[0], Math.min(moov[1], MAX_MOOV_SIZE)});
+            }
+            if (size <= (long) BLOCK_SIZE * BLOCKS_COUNT) {
+                for (long offset = 0; offset < size; offset += BLOCK_SIZE) {
+                    ranges.add(new long[]{offset, Math.min(BLOCK_SIZE, size - offset)});
+                }
+            } else {
+                long stride = (size - BLOCK_SIZE) / (BLOCKS_COUNT - 1);
+                for (int a = 0; a < BLOCKS_COUNT - 1; a++) {
+                    ranges.add(new long[]{a * stride, BLOCK_SIZE});
+                }
+                ranges.add(new long[]{size - BLOCK_SIZE, BLOCK_SIZE});
+            }
+
+            final byte[][] digests = new byte[ranges.size()][];
+            final Exception[] error = new Exception[1];
+            int threadsCount = Math.max(1, Math.min(Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()), ranges.size()));
+            Thread[] threads = new Thread[threadsCount];
+            for (int t = 0; t < threadsCount; t++) {
+                final int first = t;
+                final int step = threadsCount;
+                threads[t] = new Thread(() -> {
+                    try {
+                        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                        for (int a = first; a < digests.length; a += step) {
+                            long[] range = ranges.get(a);
+                            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, range[0], range[1]);
+                            digest.update(buffer);
+                            digests[a] = digest.digest();
+                        }
+                    } catch (Exception e) {
+                        synchronized (error) {
+                            error[0] = e;
+                        }
+                    }
+                }, "fingerprint" + t);
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (error[0] != null) {
+                throw error[0];
+            }
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putLong(size);
+            digest.update(header.array());
+            for (byte[] blockDigest : digests) {
+                digest.update(blockDigest);
+            }
+            return digest.digest();
+        }
+    }
+
+    private static long[] findMoov(FileChannel channel, long size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long offset = 0;
+        while (offset + 8 <= size) {
+            header.clear();
+            header.limit((int) Math.min(16, size - offset));
+            channel.read(header, offset);
+            if (header.position() < 8) {
+                return null;
+            }
+            long boxSize = header.getInt(0) & 0xffffffffL;
+            int type = header.getInt(4);
+            int headerSize = 8;
+            if (boxSize == 1) {
+                if (header.position() < 16) {
+                    return null;
+                }
+                boxSize = header.getLong(8);
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                boxSize = size - offset;
+            }
+            if (boxSize < headerSize || offset + boxSize > size) {
+                return null;
+            }
+            if (type == 0x6d6f6f76) {
+                return new long[]{offset, boxSize};
+            }
+            offset += boxSize;
+        }
+        return null;
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hexArray = "0123456789abcdef".toCharArray();
+        char[] hexChars = new char[bytes.length * 2];
+        for (int a = 0; a < bytes.length; a++) {
+            int v = bytes[a] & 0xff;
+            hexChars[a * 2] = hexArray[v >>> 4];
+            hexChars[a * 2 + 1] = hexArray[v & 0x0f];
+        }
+        return new String(hexChars);
+    }
+}
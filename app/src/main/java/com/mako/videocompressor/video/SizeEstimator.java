@@ -0,0 +1,84 @@
+package com.mako.videocompressor.video;
+
+import com.mako.videocompressor.utils.BuildVars;
+import com.mako.videocompressor.utils.FileLog;
+
+// Predicts the muxed output size from the source sample tables without decoding anything.
+public class SizeEstimator {
+
+    private static final int SAMPLE_TABLE_ENTRY_SIZE = 12;
+    private static final int CONTAINER_BASE_SIZE = 512;
+    private static final int DEFAULT_AUDIO_BITRATE = 128000;
+    private static final int DEFAULT_VIDEO_BITRATE = 921600;
+
+    private static int reportsCount;
+    private static double errorSum;
+    private static double maxError;
+
+    public static long estimate(MediaInfo info, long startTime, long endTime, int bitrate, boolean needCompress, boolean muted) {
+        float fraction = getFraction(info, startTime, endTime);
+        if (fraction <= 0) {
+            return 0;
+        }
+        float durationS = info.duration * fraction / 1000f;
+        long audioBytes = 0;
+        int audioFrames = 0;
+        if (!muted && info.hasAudio()) {
+            if (info.hasSampleTables()) {
+                audioBytes = (long) (info.audioFramesSize * fraction);
+                audioFrames = (int) (info.audioFramesCount * fraction);
+            } else {
+                audioBytes = (long) (DEFAULT_AUDIO_BITRATE / 8 * durationS);
+            }
+        }
+        long videoBytes;
+        if (needCompress) {
+            videoBytes = (long) ((bitrate > 0 ? bitrate : DEFAULT_VIDEO_BITRATE) / 8 * durationS);
+        } else if (info.hasSampleTables()) {
+            videoBytes = (long) (info.videoFramesSize * fraction);
+        } else {
+            videoBytes = (long) (info.fileSize * fraction) - audioBytes;
+        }
+        int videoFrames = info.hasSampleTables() ? (int) (info.videoFramesCount * fraction) : (int) (durationS * (info.framerate > 0 ? info.framerate : 30));
+        return CONTAINER_BASE_SIZE + audioBytes + videoBytes + (long) (audioFrames + videoFrames) * SAMPLE_TABLE_ENTRY_SIZE;
+    }
+
+    public static long getSourceSize(MediaInfo info, long startTime, long endTime) {
+        return (long) (info.fileSize * getFraction(info, startTime, endTime));
+    }
+
+    private static float getFraction(MediaInfo info, long startTime, long endTime) {
+        long durationUs = (long) (info.duration * 1000);
+        if (durationUs <= 0) {
+            return 0;
+        }
+        long start = Math.max(startTime, 0);
+        long end = endTime > 0 ? Math.min(endTime, durationUs) : durationUs;
+        return Math.max(0, end - start) / (float) durationUs;
+    }
+
+    public static synchronized void report(long estimated, long actual) {
+        if (estimated <= 0 || actual <= 0) {
+            return;
+        }
+        double error = (estimated - actual) / (double) actual;
+        reportsCount++;
+        errorSum += Math.abs(error);
+        maxError = Math.max(maxError, Math.abs(error));
+        if (BuildVars.LOGS_ENABLED) {
+            FileLog.d("estimated size = " + estimated + " actual = " + actual + " error = " + Math.round(error * 1000) / 10f + "% mean = " + Math.round(errorSum / reportsCount * 1000) / 10f + "% max = " + Math.round(maxError * 1000) / 10f + "% reports = " + reportsCount);
+        }
+    }
+
+    public static synchronized int getReportsCount() {
+        return reportsCount;
+    }
+
+    public static synchronized double getMeanError() {
+        return reportsCount > 0 ? errorSum / reportsCount : 0;
+    }
+
+    public static synchronized double getMaxError() {
+        return maxError;
+    }
+}
@@ -0,0 +1,272 @@
+package com.mako.videocompressor.video;
+
+import java.io.ByteArrayOutputStream;
+
+public class SpsRewriter {
+
+    private static class BitReader {
+        private final byte[] data;
+        private int position;
+
+        private BitReader(byte[] data) {
+            this.data = data;
+        }
+
+        private int readBit() {
+            if (position >= data.length * 8) {
+                throw new IllegalArgumentException("sps is truncated");
+            }
+            int bit = (data[position >> 3] >> (7 - (position & 7))) & 1;
+            position++;
+            return bit;
+        }
+
+        private int readBits(int count) {
+            int value = 0;
+            for (int a = 0; a < count; a++) {
+                value = (value << 1) | readBit();
+            }
+            return value;
+        }
+
+        private int readUE() {
+            int leadingZeros = 0;
+            while (readBit() == 0) {
+                leadingZeros++;
+                if (leadingZeros > 31) {
+                    throw new IllegalArgumentException("invalid exp-golomb code");
+                }
+            }
+            return (int) ((1L << leadingZeros) - 1 + readBits(leadingZeros));
+        }
+
+        private int readSE() {
+            int value = readUE();
+            return (value & 1) != 0 ? (value + 1) / 2 : -(value / 2);
+        }
+    }
+
+    private static class BitWriter {
+        private final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        private int current;
+        private int count;
+
+        private void writeBit(int bit) {
+            current = (current << 1) | (bit & 1);
+            count++;
+            if (count == 8) {
+                stream.write(current);
+                current = 0;
+                count = 0;
+            }
+        }
+
+        private void writeUE(int value) {
+            long code = value + 1L;
+            int bits = 64 - Long.numberOfLeadingZeros(code);
+            for (int a = 0; a < bits - 1; a++) {
+                writeBit(0);
+            }
+            for (int a = bits - 1; a >= 0; a--) {
+                writeBit((int) (code >> a));
+            }
+        }
+
+        private void writeTrailingBits() {
+            writeBit(1);
+            while (count != 0) {
+                writeBit(0);
+            }
+        }
+
+        private byte[] toByteArray() {
+            return stream.toByteArray();
+        }
+    }
+
+    private final byte[] rbsp;
+    private final int nalHeader;
+    private final int croppingFlagPosition;
+    private final int croppingEndPosition;
+    private final int stopBitPosition;
+
+    public final int codedWidth;
+    public final int codedHeight;
+    public final int cropUnitX;
+    public final int cropUnitY;
+    public final int cropLeft;
+    public final int cropRight;
+    public final int cropTop;
+    public final int cropBottom;
+
+    public SpsRewriter(byte[] sps) {
+        if (sps.length < 4 || (sps[0] & 0x1f) != 7) {
+            throw new IllegalArgumentException("not a sps nal unit");
+        }
+        nalHeader = sps[0] & 0xff;
+        rbsp = unescape(sps, 1, sps.length - 1);
+        BitReader reader = new BitReader(rbsp);
+        int profileIdc = reader.readBits(8);
+        reader.readBits(16);
+        reader.readUE();
+        int chromaFormatIdc = 1;
+        boolean separateColourPlane = false;
+        if (profileIdc == 100 || profileIdc == 110 || profileIdc == 122 || profileIdc == 244 || profileIdc == 44 || profileIdc == 83 ||
+                profileIdc == 86 || profileIdc == 118 || profileIdc == 128 || profileIdc == 138 || profileIdc == 139 || profileIdc == 134 || profileIdc == 135) {
+            chromaFormatIdc = reader.readUE();
+            if (chromaFormatIdc == 3) {
+                separateColourPlane = reader.readBit() == 1;
+            }
+            reader.readUE();
+            reader.readUE();
+            reader.readBit();
+            if (reader.readBit() == 1) {
+                for (int a = 0, N = chromaFormatIdc != 3 ? 8 : 12; a < N; a++) {
+                    if (reader.readBit() == 1) {
+                        skipScalingList(reader, a < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+        reader.readUE();
+        int picOrderCntType = reader.readUE();
+        if (picOrderCntType == 0) {
+            reader.readUE();
+        } else if (picOrderCntType == 1) {
+            reader.readBit();
+            reader.readSE();
+            reader.readSE();
+            int count = reader.readUE();
+            for (int a = 0; a < count; a++) {
+                reader.readSE();
+            }
+        }
+        reader.readUE();
+        reader.readBit();
+        int widthInMbs = reader.readUE() + 1;
+        int heightInMapUnits = reader.readUE() + 1;
+        int frameMbsOnly = reader.readBit();
+        if (frameMbsOnly == 0) {
+            reader.readBit();
+        }
+        reader.readBit();
+
+        croppingFlagPosition = reader.position;
+        if (reader.readBit() == 1) {
+            cropLeft = reader.readUE();
+            cropRight = reader.readUE();
+            cropTop = reader.readUE();
+            cropBottom = reader.readUE();
+        } else {
+            cropLeft = cropRight = cropTop = cropBottom = 0;
+        }
+        croppingEndPosition = reader.position;
+
+        int stopBit = rbsp.length * 8 - 1;
+        while (stopBit >= croppingEndPosition && ((rbsp[stopBit >> 3] >> (7 - (stopBit & 7))) & 1) == 0) {
+            stopBit--;
+        }
+        if (stopBit < croppingEndPosition) {
+            throw new IllegalArgumentException("sps has no rbsp stop bit");
+        }
+        stopBitPosition = stopBit;
+
+        codedWidth = widthInMbs * 16;
+        codedHeight = heightInMapUnits * 16 * (2 - frameMbsOnly);
+        if (chromaFormatIdc == 0 || separateColourPlane) {
+            cropUnitX = 1;
+            cropUnitY = 2 - frameMbsOnly;
+        } else {
+            cropUnitX = chromaFormatIdc == 3 ? 1 : 2;
+            cropUnitY = (chromaFormatIdc == 1 ? 2 : 1) * (2 - frameMbsOnly);
+        }
+    }
+
+    public int getWidth() {
+        return codedWidth - (cropLeft + cropRight) * cropUnitX;
+    }
+
+    public int getHeight() {
+        return codedHeight - (cropTop + cropBottom) * cropUnitY;
+    }
+
+    public boolean canCrop(int left, int top, int width, int height) {
+        return left >= 0 && top >= 0 && width > 0 && height > 0 && left + width <= getWidth() && top + height <= getHeight() &&
+                left % cropUnitX == 0 && width % cropUnitX == 0 && top % cropUnitY == 0 && height % cropUnitY == 0;
+    }
+
+    public byte[] crop(int left, int top, int width, int height) {
+        if (!canCrop(left, top, width, height)) {
+            throw new IllegalArgumentException("crop " + left + "," + top + " " + width + "x" + height + " isn't aligned to " + cropUnitX + "x" + cropUnitY + " inside " + getWidth() + "x" + getHeight());
+        }
+        int newLeft = cropLeft + left / cropUnitX;
+        int newTop = cropTop + top / cropUnitY;
+        int newRight = cropRight + (getWidth() - left - width) / cropUnitX;
+        int newBottom = cropBottom + (getHeight() - top - height) / cropUnitY;
+
+        BitReader reader = new BitReader(rbsp);
+        BitWriter writer = new BitWriter();
+        while (reader.position < croppingFlagPosition) {
+            writer.writeBit(reader.readBit());
+        }
+        if (newLeft != 0 || newRight != 0 || newTop != 0 || newBottom != 0) {
+            writer.writeBit(1);
+            writer.writeUE(newLeft);
+            writer.writeUE(newRight);
+            writer.writeUE(newTop);
+            writer.writeUE(newBottom);
+        } else {
+            writer.writeBit(0);
+        }
+        reader.position = croppingEndPosition;
+        while (reader.position < stopBitPosition) {
+            writer.writeBit(reader.readBit());
+        }
+        writer.writeTrailingBits();
+        return escape(nalHeader, writer.toByteArray());
+    }
+
+    private static void skipScalingList(BitReader reader, int size) {
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int a = 0; a < size; a++) {
+            if (nextScale != 0) {
+                nextScale = (lastScale + reader.readSE() + 256) % 256;
+            }
+            if (nextScale != 0) {
+                lastScale = nextScale;
+            }
+        }
+    }
+
+    private static byte[] unescape(byte[] data, int offset, int length) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(length);
+        int zeros = 0;
+        for (int a = offset; a < offset + length; a++) {
+            int b = data[a] & 0xff;
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            stream.write(b);
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        return stream.toByteArray();
+    }
+
+    private static byte[] escape(int header, byte[] rbsp) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(rbsp.length + 8);
+        stream.write(header);
+        int zeros = 0;
+        for (byte value : rbsp) {
+            int b = value & 0xff;
+            if (zeros >= 2 && b <= 3) {
+                stream.write(3);
+                zeros = 0;
+            }
+            stream.write(b);
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        return stream.toByteArray();
+    }
+}
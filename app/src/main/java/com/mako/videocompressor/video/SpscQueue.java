@@ -0,0 +1,58 @@
+package com.mako.videocompressor.video;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded single-producer single-consumer ring; offer and poll never block or lock.
+public class SpscQueue<T> {
+
+    private final Object[] items;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    public SpscQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        items = new Object[size];
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    public boolean offer(T item) {
+        long t = tail.get();
+        if (t - head.get() == items.length) {
+            return false;
+        }
+        items[(int) (t & mask)] = item;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T peek() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        return (T) items[(int) (h & mask)];
+    }
+
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        int index = (int) (h & mask);
+        T item = (T) items[index];
+        items[index] = null;
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+}
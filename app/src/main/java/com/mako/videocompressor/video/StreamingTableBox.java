@@ -0,0 +1,365 @@
+package com.mako.videocompressor.video;
+
+import com.coremedia.iso.BoxParser;
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.IsoTypeWriter;
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.Container;
+import com.googlecode.mp4parser.DataSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+public abstract class StreamingTableBox implements Box {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private Container parent;
+    private String type;
+    private ByteBuffer buffer;
+    protected final Track track;
+
+    protected StreamingTableBox(String type, Track track, ByteBuffer buffer) {
+        this.type = type;
+        this.track = track;
+        this.buffer = buffer;
+    }
+
+    protected abstract long getEntriesCount();
+
+    protected abstract int getEntrySize();
+
+    protected abstract void writeEntries(WritableByteChannel channel) throws IOException;
+
+    protected long getHeaderContentSize() {
+        return 4;
+    }
+
+    protected void writeHeaderContent(ByteBuffer buffer) {
+        IsoTypeWriter.writeUInt32(buffer, getEntriesCount());
+    }
+
+    public Container getParent() {
+        return parent;
+    }
+
+    public void setParent(Container parent) {
+        this.parent = parent;
+    }
+
+    public long getOffset() {
+        return 0;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    protected void setType(String type) {
+        this.type = type;
+    }
+
+    public long getSize() {
+        return 12 + getHeaderContentSize() + getEntriesCount() * getEntrySize();
+    }
+
+    @Override
+    public void parse(DataSource dataSource, ByteBuffer header, long contentSize, BoxParser boxParser) {
+
+    }
+
+    public void getBox(WritableByteChannel channel) throws IOException {
+        buffer.clear();
+        IsoTypeWriter.writeUInt32(buffer, getSize());
+        buffer.put(IsoFile.fourCCtoBytes(type));
+        buffer.putInt(0);
+        writeHeaderContent(buffer);
+        writeEntries(channel);
+        flush(channel);
+    }
+
+    protected void putUInt32(WritableByteChannel channel, long value) throws IOException {
+        if (buffer.remaining() < 4) {
+            flush(channel);
+        }
+        buffer.putInt((int) value);
+    }
+
+    protected void putUInt64(WritableByteChannel channel, long value) throws IOException {
+        if (buffer.remaining() < 8) {
+            flush(channel);
+        }
+        buffer.putLong(value);
+    }
+
+    private void flush(WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static boolean isChunkEnd(Track track, int index) {
+        return index == track.getSampleCount() - 1 || track.getSampleOffset(index) + track.getSampleSize(index) != track.getSampleOffset(index + 1) ||
+                track.getSampleDescriptionIndex(index) != track.getSampleDescriptionIndex(index + 1);
+    }
+
+    public static class TimeToSample extends StreamingTableBox {
+
+        private final long entriesCount;
+
+        public TimeToSample(Track track, ByteBuffer buffer) {
+            super("stts", track, buffer);
+            long[] deltas = track.getSampleDurations();
+            long count = 0;
+            for (int a = 0; a < deltas.length; a++) {
+                if (a == 0 || deltas[a] != deltas[a - 1]) {
+                    count++;
+                }
+            }
+            entriesCount = count;
+        }
+
+        @Override
+        protected long getEntriesCount() {
+            return entriesCount;
+        }
+
+        @Override
+        protected int getEntrySize() {
+            return 8;
+        }
+
+        @Override
+        protected void writeEntries(WritableByteChannel channel) throws IOException {
+            long[] deltas = track.getSampleDurations();
+            int count = 0;
+            for (int a = 0; a < deltas.length; a++) {
+                count++;
+                if (a == deltas.length - 1 || deltas[a + 1] != deltas[a]) {
+                    putUInt32(channel, count);
+                    putUInt32(channel, deltas[a]);
+                    count = 0;
+                }
+            }
+        }
+    }
+
+    public static class CompositionTimeToSample extends StreamingTableBox {
+
+        private final long entriesCount;
+
+        public CompositionTimeToSample(Track track, ByteBuffer buffer) {
+            super("ctts", track, buffer);
+            int[] compositions = track.getSampleCompositions();
+            long count = 0;
+            for (int a = 0; a < compositions.length; a++) {
+                if (a == 0 || compositions[a] != compositions[a - 1]) {
+                    count++;
+                }
+            }
+            entriesCount = count;
+        }
+
+        @Override
+        protected long getEntriesCount() {
+            return entriesCount;
+        }
+
+        @Override
+        protected int getEntrySize() {
+            return 8;
+        }
+
+        @Override
+        protected void writeEntries(WritableByteChannel channel) throws IOException {
+            int[] compositions = track.getSampleCompositions();
+            int count = 0;
+            for (int a = 0; a < compositions.length; a++) {
+                count++;
+                if (a == compositions.length - 1 || compositions[a + 1] != compositions[a]) {
+                    putUInt32(channel, count);
+                    putUInt32(channel, compositions[a]);
+                    count = 0;
+                }
+            }
+        }
+    }
+
+    public static class SyncSamples extends StreamingTableBox {
+
+        public SyncSamples(Track track, ByteBuffer buffer) {
+            super("stss", track, buffer);
+        }
+
+        @Override
+        protected long getEntriesCount() {
+            return track.getSyncSamplesCount();
+        }
+
+        @Override
+        protected int getEntrySize() {
+            return 4;
+        }
+
+        @Override
+        protected void writeEntries(WritableByteChannel channel) throws IOException {
+            for (int a = 0, N = track.getSyncSamplesCount(); a < N; a++) {
+                putUInt32(channel, track.getSyncSample(a));
+            }
+        }
+    }
+
+    public static class SampleToChunk extends StreamingTableBox {
+
+        private final long entriesCount;
+
+        public SampleToChunk(Track track, ByteBuffer buffer) {
+            super("stsc", track, buffer);
+            long count = 0;
+            int samplesInChunk = 0;
+            int previousSamplesInChunk = -1;
+            int previousDescriptionIndex = -1;
+            for (int a = 0, N = track.getSampleCount(); a < N; a++) {
+                samplesInChunk++;
+                if (isChunkEnd(track, a)) {
+                    int descriptionIndex = track.getSampleDescriptionIndex(a);
+                    if (previousSamplesInChunk != samplesInChunk || previousDescriptionIndex != descriptionIndex) {
+                        count++;
+                        previousSamplesInChunk = samplesInChunk;
+                        previousDescriptionIndex = descriptionIndex;
+                    }
+                    samplesInChunk = 0;
+                }
+            }
+            entriesCount = count;
+        }
+
+        @Override
+        protected long getEntriesCount() {
+            return entriesCount;
+        }
+
+        @Override
+        protected int getEntrySize() {
+            return 12;
+        }
+
+        @Override
+        protected void writeEntries(WritableByteChannel channel) throws IOException {
+            int chunkNumber = 1;
+            int samplesInChunk = 0;
+            int previousSamplesInChunk = -1;
+            int previousDescriptionIndex = -1;
+            for (int a = 0, N = track.getSampleCount(); a < N; a++) {
+                samplesInChunk++;
+                if (isChunkEnd(track, a)) {
+                    int descriptionIndex = track.getSampleDescriptionIndex(a);
+                    if (previousSamplesInChunk != samplesInChunk || previousDescriptionIndex != descriptionIndex) {
+                        putUInt32(channel, chunkNumber);
+                        putUInt32(channel, samplesInChunk);
+                        putUInt32(channel, descriptionIndex);
+                        previousSamplesInChunk = samplesInChunk;
+                        previousDescriptionIndex = descriptionIndex;
+                    }
+                    samplesInChunk = 0;
+                    chunkNumber++;
+                }
+            }
+        }
+    }
+
+    public static class SampleSizes extends StreamingTableBox {
+
+        public SampleSizes(Track track, ByteBuffer buffer) {
+            super("stsz", track, buffer);
+        }
+
+        @Override
+        protected long getEntriesCount() {
+            return track.getSampleCount();
+        }
+
+        @Override
+        protected int getEntrySize() {
+            return 4;
+        }
+
+        @Override
+        protected long getHeaderContentSize() {
+            return 8;
+        }
+
+        @Override
+        protected void writeHeaderContent(ByteBuffer buffer) {
+            buffer.putInt(0);
+            super.writeHeaderContent(buffer);
+        }
+
+        @Override
+        protected void writeEntries(WritableByteChannel channel) throws IOException {
+            for (int a = 0, N = track.getSampleCount(); a < N; a++) {
+                putUInt32(channel, track.getSampleSize(a));
+            }
+        }
+    }
+
+    public static class ChunkOffsets extends StreamingTableBox {
+
+        private final long entriesCount;
+        private boolean large;
+        private long shift;
+
+        public ChunkOffsets(Track track, ByteBuffer buffer) {
+            super("stco", track, buffer);
+            long count = 0;
+            for (int a = 0, N = track.getSampleCount(); a < N; a++) {
+                if (isChunkEnd(track, a)) {
+                    count++;
+                }
+            }
+            entriesCount = count;
+        }
+
+        public long getChunksCount() {
+            return entriesCount;
+        }
+
+        public void setLarge(boolean value) {
+            large = value;
+            setType(large ? "co64" : "stco");
+        }
+
+        public void setShift(long value) {
+            shift = value;
+        }
+
+        @Override
+        protected long getEntriesCount() {
+            return entriesCount;
+        }
+
+        @Override
+        protected int getEntrySize() {
+            return large ? 8 : 4;
+        }
+
+        @Override
+        protected void writeEntries(WritableByteChannel channel) throws IOException {
+            boolean chunkStart = true;
+            for (int a = 0, N = track.getSampleCount(); a < N; a++) {
+                if (chunkStart) {
+                    long offset = track.getSampleOffset(a) + shift;
+                    if (large) {
+                        putUInt64(channel, offset);
+                    } else {
+                        putUInt32(channel, offset);
+                    }
+                }
+                chunkStart = isChunkEnd(track, a);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.mako.videocompressor.video;
+
+public class SyncPolicy {
+
+    public static final int MODE_NEVER = 0;
+    public static final int MODE_ON_FINISH = 1;
+    public static final int MODE_EVERY_BYTES = 2;
+    public static final int MODE_INTERVAL = 3;
+
+    private static final long DEFAULT_SYNC_BYTES = 32 * 1024;
+
+    private final int mode;
+    private final long value;
+
+    private SyncPolicy(int mode, long value) {
+        this.mode = mode;
+        this.value = value;
+    }
+
+    public static SyncPolicy never() {
+        return new SyncPolicy(MODE_NEVER, 0);
+    }
+
+    public static SyncPolicy onFinish() {
+        return new SyncPolicy(MODE_ON_FINISH, 0);
+    }
+
+    public static SyncPolicy everyBytes(long bytes) {
+        return new SyncPolicy(MODE_EVERY_BYTES, bytes);
+    }
+
+    public static SyncPolicy everyMegabytes(int megabytes) {
+        return everyBytes(megabytes * 1024L * 1024L);
+    }
+
+    public static SyncPolicy interval(long intervalMs) {
+        return new SyncPolicy(MODE_INTERVAL, intervalMs);
+    }
+
+    public static SyncPolicy createDefault() {
+        return everyBytes(DEFAULT_SYNC_BYTES);
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public boolean shouldSync(long bytesSinceSync, long msSinceSync) {
+        switch (mode) {
+            case MODE_EVERY_BYTES:
+                return bytesSinceSync >= value;
+            case MODE_INTERVAL:
+                return msSinceSync >= value;
+            default:
+                return false;
+        }
+    }
+
+    public boolean syncOnFinish() {
+        return mode != MODE_NEVER;
+    }
+
+    @Override
+    public String toString() {
+        switch (mode) {
+            case MODE_NEVER:
+                return "never";
+            case MODE_ON_FINISH:
+                return "on finish";
+            case MODE_EVERY_BYTES:
+                return "every " + value + " bytes";
+            default:
+                return "every " + value + " ms";
+        }
+    }
+}
@@ -0,0 +1,862 @@
+package com.mako.videocompressor.video;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import com.mako.videocompressor.MediaController;
+import com.mako.videocompressor.utils.VideoEditedInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Pure java stand-in for MediaCodec: produces deterministic, undecodable avc/aac access units
+// at a configurable rate and latency, so the convertor loops can run off-device. Sources are read with Mp4Demuxer.
+public class SyntheticCodecFactory implements CodecFactory {
+
+    private static final long CALLBACK_IDLE_NS = 10000000;
+
+    private static final int[] AAC_SAMPLE_RATES = {96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+
+    private int unitsPerSecond;
+    private long latencyUs;
+    private int bufferCount = 4;
+    private int maxInstances = 4;
+    private int accessUnitSize;
+
+    private final AtomicInteger activeEncoders = new AtomicInteger();
+    private final AtomicInteger activeDecoders = new AtomicInteger();
+    private final AtomicLong encodedUnits = new AtomicLong();
+    private final AtomicLong encodedBytes = new AtomicLong();
+    private final AtomicLong stallTimeUs = new AtomicLong();
+    private final AtomicLong stallCount = new AtomicLong();
+
+    public void setUnitsPerSecond(int value) {
+        unitsPerSecond = value;
+    }
+
+    public void setLatency(long value) {
+        latencyUs = value;
+    }
+
+    public void setBufferCount(int value) {
+        bufferCount = Math.max(1, value);
+    }
+
+    public void setMaxInstances(int value) {
+        maxInstances = value;
+    }
+
+    public void setAccessUnitSize(int value) {
+        accessUnitSize = value;
+    }
+
+    public long getEncodedUnits() {
+        return encodedUnits.get();
+    }
+
+    public long getEncodedBytes() {
+        return encodedBytes.get();
+    }
+
+    public long getStallTimeUs() {
+        return stallTimeUs.get();
+    }
+
+    public long getStallCount() {
+        return stallCount.get();
+    }
+
+    public void resetStats() {
+        encodedUnits.set(0);
+        encodedBytes.set(0);
+        stallTimeUs.set(0);
+        stallCount.set(0);
+    }
+
+    @Override
+    public Codec createDecoder(String mime) throws IOException {
+        return new SyntheticCodec(this, mime, false);
+    }
+
+    @Override
+    public Codec createEncoder(String mime) throws IOException {
+        return new SyntheticCodec(this, mime, true);
+    }
+
+    @Override
+    public Extractor createExtractor(String path) throws IOException {
+        return new DemuxerExtractor(new Mp4Demuxer(new File(path)));
+    }
+
+    @Override
+    public FrameRenderer createRenderer(Codec encoder, MediaController.SavedFilterState savedFilterState, String imagePath, String paintPath,
+                                        ArrayList<VideoEditedInfo.MediaEntity> mediaEntities, MediaController.CropState cropState,
+                                        int w, int h, int rotation, float fps, boolean photo) {
+        return new SyntheticRenderer((SyntheticCodec) CodecEventLoop.unwrap(encoder));
+    }
+
+    @Override
+    public int getMaxInstances(String mime) {
+        return maxInstances;
+    }
+
+    private static class SyntheticRenderer implements FrameRenderer {
+
+        private final SyntheticCodec encoder;
+        private boolean frameAvailable;
+
+        private SyntheticRenderer(SyntheticCodec encoder) {
+            this.encoder = encoder;
+        }
+
+        private void onFrameAvailable() {
+            if (frameAvailable) {
+                throw new RuntimeException("frameAvailable already set, frame could be dropped");
+            }
+            frameAvailable = true;
+        }
+
+        @Override
+        public Surface getSurface() {
+            return null;
+        }
+
+        @Override
+        public void awaitNewImage() {
+            if (!frameAvailable) {
+                throw new RuntimeException("Surface frame wait timed out");
+            }
+            frameAvailable = false;
+        }
+
+        @Override
+        public void drawFrame(long presentationTimeUs) {
+            encoder.queueFrame(presentationTimeUs);
+        }
+
+        @Override
+        public void release() {
+
+        }
+    }
+
+    private static class Unit {
+        private int inputIndex;
+        private final long presentationTimeUs;
+        private final int size;
+        private final int flags;
+        private final long readyTimeNs;
+
+        private Unit(int inputIndex, long presentationTimeUs, int size, int flags, long readyTimeNs) {
+            this.inputIndex = inputIndex;
+            this.presentationTimeUs = presentationTimeUs;
+            this.size = size;
+            this.flags = flags;
+            this.readyTimeNs = readyTimeNs;
+        }
+    }
+
+    private static class SyntheticCodec implements Codec {
+
+        private final SyntheticCodecFactory factory;
+        private final String mime;
+        private final boolean encoder;
+        private final boolean video;
+
+        private MediaFormat outputFormat;
+        private SyntheticRenderer renderer;
+        private boolean configured;
+        private boolean started;
+        private boolean released;
+        private boolean formatReported;
+        private boolean configReported;
+        private boolean inputEnded;
+
+        private ByteBuffer[] inputBuffers;
+        private boolean[] inputQueued;
+        private ByteBuffer[] outputBuffers;
+        private boolean[] outputBusy;
+        private final ArrayDeque<Unit> pending = new ArrayDeque<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private Callback callback;
+        private volatile Thread callbackThread;
+        private long lastReadyTimeNs;
+        private long frameIndex;
+
+        private int width;
+        private int height;
+        private int frameRate;
+        private int bitrate;
+        private int keyFrameInterval;
+        private int sampleRate;
+        private int channelCount;
+        private byte[] sps;
+        private byte[] pps;
+
+        private SyntheticCodec(SyntheticCodecFactory factory, String mime, boolean encoder) throws IOException {
+            this.factory = factory;
+            this.mime = mime;
+            this.encoder = encoder;
+            video = mime.startsWith("video/");
+            AtomicInteger active = encoder ? factory.activeEncoders : factory.activeDecoders;
+            if (factory.maxInstances > 0 && active.incrementAndGet() > factory.maxInstances) {
+                active.decrementAndGet();
+                throw new IOException("no free synthetic " + (encoder ? "encoder" : "decoder") + " instances for " + mime);
+            }
+        }
+
+        @Override
+        public String getName() {
+            return "synthetic." + (encoder ? "encoder." : "decoder.") + mime;
+        }
+
+        @Override
+        public boolean setCallback(Callback callback) {
+            lock.lock();
+            try {
+                if (configured) {
+                    throw new IllegalStateException("setCallback called after configure");
+                }
+                this.callback = callback;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void configure(MediaFormat format, FrameRenderer renderer, int flags) {
+            lock.lock();
+            try {
+                if (released || started) {
+                    throw new IllegalStateException("configure called in wrong state");
+                }
+                boolean encode = (flags & MediaCodec.CONFIGURE_FLAG_ENCODE) != 0;
+                if (encode != encoder) {
+                    throw new IllegalArgumentException("configure flags don't match codec type");
+                }
+                if (renderer != null && !(renderer instanceof SyntheticRenderer)) {
+                    throw new IllegalArgumentException("synthetic codec can only render to a synthetic renderer");
+                }
+                this.renderer = (SyntheticRenderer) renderer;
+                if (video) {
+                    width = format.getInteger(MediaFormat.KEY_WIDTH);
+                    height = format.getInteger(MediaFormat.KEY_HEIGHT);
+                    frameRate = format.containsKey(MediaFormat.KEY_FRAME_RATE) ? Math.max(1, format.getInteger(MediaFormat.KEY_FRAME_RATE)) : 30;
+                    bitrate = format.containsKey(MediaFormat.KEY_BIT_RATE) ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 921600;
+                    keyFrameInterval = Math.max(1, (format.containsKey(MediaFormat.KEY_I_FRAME_INTERVAL) ? format.getInteger(MediaFormat.KEY_I_FRAME_INTERVAL) : 1) * frameRate);
+                    if (encoder) {
+                        sps = createSps(width, height);
+                        pps = createPps();
+                        outputFormat = MediaFormat.createVideoFormat(MediaController.VIDEO_MIME_TYPE, width, height);
+                        outputFormat.setInteger("profile", MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline);
+                        outputFormat.setInteger("level", MediaCodecInfo.CodecProfileLevel.AVCLevel31);
+                    } else {
+                        outputFormat = MediaFormat.createVideoFormat("video/raw", width, height);
+                        outputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+                    }
+                } else {
+                    sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                    bitrate = format.containsKey(MediaFormat.KEY_BIT_RATE) ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 64 * 1024;
+                    outputFormat = MediaFormat.createAudioFormat(encoder ? MediaController.AUIDO_MIME_TYPE : "audio/raw", sampleRate, channelCount);
+                }
+                int inputSize = video ? width * height * 3 / 2 : 64 * 1024;
+                if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                    inputSize = Math.max(inputSize, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+                }
+                int count = factory.bufferCount;
+                inputQueued = new boolean[count];
+                outputBusy = new boolean[count];
+                outputBuffers = new ByteBuffer[count];
+                if (!(encoder && video)) {
+                    inputBuffers = new ByteBuffer[count];
+                    for (int a = 0; a < count; a++) {
+                        inputBuffers[a] = ByteBuffer.allocateDirect(inputSize);
+                    }
+                }
+                configured = true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void start() {
+            lock.lock();
+            try {
+                if (!configured || released) {
+                    throw new IllegalStateException("start called in wrong state");
+                }
+                started = true;
+                if (callback != null && callbackThread == null) {
+                    callbackThread = new Thread(this::runCallbacks, "SyntheticCallbacks");
+                    callbackThread.start();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void runCallbacks() {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            try {
+                while (true) {
+                    int inputIndex = MediaCodec.INFO_TRY_AGAIN_LATER;
+                    int outputIndex;
+                    MediaFormat format = null;
+                    lock.lock();
+                    try {
+                        if (!started) {
+                            return;
+                        }
+                        if (inputBuffers != null && !inputEnded) {
+                            inputIndex = dequeueInputBuffer(0);
+                        }
+                        outputIndex = dequeueOutput(info, 0, false);
+                        if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                            format = getOutputFormat();
+                        } else if (inputIndex < 0 && outputIndex < 0) {
+                            long now = System.nanoTime();
+                            long timeNs = now + CALLBACK_IDLE_NS;
+                            Unit unit = pending.peek();
+                            if (unit != null && unit.readyTimeNs > now && hasFreeOutputBuffer()) {
+                                timeNs = Math.min(timeNs, unit.readyTimeNs);
+                            }
+                            changed.awaitNanos(timeNs - now);
+                            continue;
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    if (inputIndex >= 0) {
+                        callback.onInputBufferAvailable(this, inputIndex);
+                    }
+                    if (format != null) {
+                        callback.onOutputFormatChanged(this, format);
+                    } else if (outputIndex >= 0) {
+                        callback.onOutputBufferAvailable(this, outputIndex, info);
+                    }
+                }
+            } catch (InterruptedException ignore) {
+
+            } catch (Exception e) {
+                callback.onError(this, e);
+            }
+        }
+
+        private boolean hasFreeOutputBuffer() {
+            for (boolean busy : outputBusy) {
+                if (!busy) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void checkStarted() {
+            if (!started) {
+                throw new IllegalStateException("codec is not started");
+            }
+        }
+
+        @Override
+        public int dequeueInputBuffer(long timeoutUs) {
+            lock.lock();
+            try {
+                checkStarted();
+                if (inputBuffers == null) {
+                    throw new IllegalStateException("codec uses surface input");
+                }
+                long deadline = System.nanoTime() + Math.max(timeoutUs, 0) * 1000;
+                while (true) {
+                    for (int a = 0; a < inputQueued.length; a++) {
+                        if (!inputQueued[a]) {
+                            inputQueued[a] = true;
+                            inputBuffers[a].clear();
+                            return a;
+                        }
+                    }
+                    Unit unit = null;
+                    for (Unit u : pending) {
+                        if (u.inputIndex >= 0) {
+                            unit = u;
+                            break;
+                        }
+                    }
+                    long now = System.nanoTime();
+                    if (unit != null && unit.readyTimeNs <= now) {
+                        inputQueued[unit.inputIndex] = false;
+                        unit.inputIndex = -1;
+                        continue;
+                    }
+                    if (now >= deadline) {
+                        return MediaCodec.INFO_TRY_AGAIN_LATER;
+                    }
+                    awaitUntil(unit != null ? Math.min(unit.readyTimeNs, deadline) : deadline);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            lock.lock();
+            try {
+                checkStarted();
+                return inputBuffers[index];
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+            lock.lock();
+            try {
+                checkStarted();
+                if (inputEnded) {
+                    throw new IllegalStateException("queueInputBuffer after end of stream");
+                }
+                if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    inputEnded = true;
+                }
+                submit(index, presentationTimeUs, size, flags);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void queueFrame(long presentationTimeUs) {
+            lock.lock();
+            try {
+                checkStarted();
+                if (inputEnded) {
+                    throw new IllegalStateException("frame rendered after end of stream");
+                }
+                submit(-1, presentationTimeUs, 1, 0);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void signalEndOfInputStream() {
+            lock.lock();
+            try {
+                checkStarted();
+                if (!inputEnded) {
+                    inputEnded = true;
+                    submit(-1, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void submit(int inputIndex, long presentationTimeUs, int size, int flags) {
+            long now = System.nanoTime();
+            long readyTime = now + factory.latencyUs * 1000;
+            if (factory.unitsPerSecond > 0 && lastReadyTimeNs != 0) {
+                readyTime = Math.max(readyTime, lastReadyTimeNs + 1000000000L / factory.unitsPerSecond);
+            }
+            lastReadyTimeNs = readyTime;
+            pending.add(new Unit(inputIndex, presentationTimeUs, size, flags, readyTime));
+            changed.signalAll();
+        }
+
+        private void awaitUntil(long timeNs) {
+            long remaining = timeNs - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            try {
+                changed.awaitNanos(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for codec");
+            }
+        }
+
+        @Override
+        public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+            lock.lock();
+            try {
+                return dequeueOutput(info, timeoutUs, true);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int dequeueOutput(MediaCodec.BufferInfo info, long timeoutUs, boolean countStalls) {
+            checkStarted();
+            long started = System.nanoTime();
+            long deadline = started + Math.max(timeoutUs, 0) * 1000;
+            while (true) {
+                if (!formatReported && !pending.isEmpty()) {
+                    formatReported = true;
+                    return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+                }
+                int index = -1;
+                for (int a = 0; a < outputBusy.length; a++) {
+                    if (!outputBusy[a]) {
+                        index = a;
+                        break;
+                    }
+                }
+                Unit unit = pending.peek();
+                long now = System.nanoTime();
+                if (index >= 0 && encoder && video && formatReported && !configReported) {
+                    configReported = true;
+                    byte[] config = new byte[sps.length + pps.length + 8];
+                    writeStartCode(config, 0);
+                    System.arraycopy(sps, 0, config, 4, sps.length);
+                    writeStartCode(config, sps.length + 4);
+                    System.arraycopy(pps, 0, config, sps.length + 8, pps.length);
+                    ByteBuffer buffer = obtainOutputBuffer(index, config.length);
+                    buffer.put(config).flip();
+                    info.set(0, config.length, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+                    outputBusy[index] = true;
+                    return index;
+                }
+                if (index >= 0 && unit != null && unit.readyTimeNs <= now) {
+                    if (countStalls) {
+                        factory.stallTimeUs.addAndGet((now - started) / 1000);
+                    }
+                    return completeUnit(index, info);
+                }
+                if (now >= deadline) {
+                    if (countStalls) {
+                        factory.stallTimeUs.addAndGet((now - started) / 1000);
+                        if (!pending.isEmpty() || !inputEnded) {
+                            factory.stallCount.incrementAndGet();
+                        }
+                    }
+                    return MediaCodec.INFO_TRY_AGAIN_LATER;
+                }
+                awaitUntil(index >= 0 && unit != null ? Math.min(unit.readyTimeNs, deadline) : deadline);
+            }
+        }
+
+        private int completeUnit(int index, MediaCodec.BufferInfo info) {
+            Unit unit = pending.poll();
+            if (unit.inputIndex >= 0) {
+                inputQueued[unit.inputIndex] = false;
+                unit.inputIndex = -1;
+            }
+            outputBusy[index] = true;
+            if ((unit.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 && unit.size == 0) {
+                obtainOutputBuffer(index, 0).flip();
+                info.set(0, 0, unit.presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                return index;
+            }
+            if (encoder) {
+                boolean keyFrame = !video || frameIndex % keyFrameInterval == 0;
+                int size = getAccessUnitSize(keyFrame);
+                ByteBuffer buffer = obtainOutputBuffer(index, size);
+                fillAccessUnit(buffer, size, keyFrame, frameIndex);
+                frameIndex++;
+                factory.encodedUnits.incrementAndGet();
+                factory.encodedBytes.addAndGet(size);
+                info.set(0, size, unit.presentationTimeUs, unit.flags | (keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0));
+            } else if (video) {
+                outputBuffers[index] = null;
+                info.set(0, width * height * 3 / 2, unit.presentationTimeUs, unit.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            } else {
+                int size = 1024 * channelCount * 2;
+                obtainOutputBuffer(index, size).limit(size);
+                info.set(0, size, unit.presentationTimeUs, unit.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            }
+            return index;
+        }
+
+        private ByteBuffer obtainOutputBuffer(int index, int size) {
+            ByteBuffer buffer = outputBuffers[index];
+            if (buffer == null || buffer.capacity() < size) {
+                buffer = outputBuffers[index] = ByteBuffer.allocateDirect(Math.max(size, 4096));
+            }
+            buffer.clear();
+            return buffer;
+        }
+
+        private int getAccessUnitSize(boolean keyFrame) {
+            int size = factory.accessUnitSize;
+            if (size <= 0) {
+                size = video ? bitrate / 8 / frameRate : bitrate / 8 * 1024 / sampleRate;
+            }
+            if (video && keyFrame) {
+                size *= 3;
+            }
+            return Math.max(size, 8);
+        }
+
+        private void fillAccessUnit(ByteBuffer buffer, int size, boolean keyFrame, long index) {
+            int offset = 0;
+            if (video) {
+                buffer.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1);
+                buffer.put((byte) (keyFrame ? 0x65 : 0x41));
+                offset = 5;
+            }
+            long seed = index * 0x9E3779B97F4A7C15L + size;
+            for (int a = offset; a < size; a++) {
+                seed = seed * 6364136223846793005L + 1442695040888963407L;
+                buffer.put((byte) (1 + (int) ((seed >>> 33) % 255)));
+            }
+            buffer.flip();
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            lock.lock();
+            try {
+                checkStarted();
+                return outputBuffers[index];
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public MediaFormat getOutputFormat() {
+            lock.lock();
+            try {
+                MediaFormat format = outputFormat;
+                if (encoder) {
+                    format = video ? MediaFormat.createVideoFormat(MediaController.VIDEO_MIME_TYPE, width, height) : MediaFormat.createAudioFormat(MediaController.AUIDO_MIME_TYPE, sampleRate, channelCount);
+                    if (video) {
+                        format.setInteger("profile", MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline);
+                        format.setInteger("level", MediaCodecInfo.CodecProfileLevel.AVCLevel31);
+                        format.setByteBuffer("csd-0", createStartCodeBuffer(sps));
+                        format.setByteBuffer("csd-1", createStartCodeBuffer(pps));
+                    } else {
+                        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+                        format.setByteBuffer("csd-0", createAudioSpecificConfig(sampleRate, channelCount));
+                    }
+                }
+                return format;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index, boolean render) {
+            lock.lock();
+            try {
+                checkStarted();
+                if (!outputBusy[index]) {
+                    throw new IllegalStateException("output buffer " + index + " isn't dequeued");
+                }
+                outputBusy[index] = false;
+                changed.signalAll();
+                if (render && renderer != null) {
+                    renderer.onFrameAvailable();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void flush() {
+            lock.lock();
+            try {
+                checkStarted();
+                pending.clear();
+                for (int a = 0; a < outputBusy.length; a++) {
+                    inputQueued[a] = false;
+                    outputBusy[a] = false;
+                }
+                lastReadyTimeNs = 0;
+                inputEnded = false;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void stop() {
+            lock.lock();
+            try {
+                started = false;
+                pending.clear();
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            joinCallbackThread();
+        }
+
+        private void joinCallbackThread() {
+            Thread thread = callbackThread;
+            if (thread == null || thread == Thread.currentThread()) {
+                return;
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            callbackThread = null;
+        }
+
+        @Override
+        public void release() {
+            lock.lock();
+            try {
+                if (!released) {
+                    released = true;
+                    started = false;
+                    pending.clear();
+                    changed.signalAll();
+                    (encoder ? factory.activeEncoders : factory.activeDecoders).decrementAndGet();
+                }
+            } finally {
+                lock.unlock();
+            }
+            joinCallbackThread();
+        }
+
+        private static void writeStartCode(byte[] data, int offset) {
+            data[offset] = 0;
+            data[offset + 1] = 0;
+            data[offset + 2] = 0;
+            data[offset + 3] = 1;
+        }
+
+        private static ByteBuffer createStartCodeBuffer(byte[] nal) {
+            ByteBuffer buffer = ByteBuffer.allocate(nal.length + 4);
+            buffer.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1).put(nal);
+            buffer.position(0);
+            return buffer;
+        }
+
+        private static ByteBuffer createAudioSpecificConfig(int sampleRate, int channelCount) {
+            int frequencyIndex = 4;
+            for (int a = 0; a < AAC_SAMPLE_RATES.length; a++) {
+                if (AAC_SAMPLE_RATES[a] == sampleRate) {
+                    frequencyIndex = a;
+                    break;
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(2);
+            buffer.put((byte) ((2 << 3) | (frequencyIndex >> 1)));
+            buffer.put((byte) (((frequencyIndex & 1) << 7) | ((channelCount & 0xf) << 3)));
+            buffer.position(0);
+            return buffer;
+        }
+
+        private static byte[] createSps(int width, int height) {
+            int widthInMbs = (width + 15) / 16;
+            int heightInMbs = (height + 15) / 16;
+            BitWriter writer = new BitWriter();
+            writer.writeBits(66, 8);
+            writer.writeBits(0xc0, 8);
+            writer.writeBits(31, 8);
+            writer.writeUE(0);
+            writer.writeUE(0);
+            writer.writeUE(2);
+            writer.writeUE(1);
+            writer.writeBits(0, 1);
+            writer.writeUE(widthInMbs - 1);
+            writer.writeUE(heightInMbs - 1);
+            writer.writeBits(1, 1);
+            writer.writeBits(1, 1);
+            int cropRight = (widthInMbs * 16 - width) / 2;
+            int cropBottom = (heightInMbs * 16 - height) / 2;
+            if (cropRight != 0 || cropBottom != 0) {
+                writer.writeBits(1, 1);
+                writer.writeUE(0);
+                writer.writeUE(cropRight);
+                writer.writeUE(0);
+                writer.writeUE(cropBottom);
+            } else {
+                writer.writeBits(0, 1);
+            }
+            writer.writeBits(0, 1);
+            return writer.toNal(0x67);
+        }
+
+        private static byte[] createPps() {
+            BitWriter writer = new BitWriter();
+            writer.writeUE(0);
+            writer.writeUE(0);
+            writer.writeBits(0, 1);
+            writer.writeBits(0, 1);
+            writer.writeUE(0);
+            writer.writeUE(0);
+            writer.writeUE(0);
+            writer.writeBits(0, 1);
+            writer.writeBits(0, 2);
+            writer.writeSE(0);
+            writer.writeSE(0);
+            writer.writeSE(0);
+            writer.writeBits(1, 1);
+            writer.writeBits(0, 1);
+            writer.writeBits(0, 1);
+            return writer.toNal(0x68);
+        }
+    }
+
+    private static class BitWriter {
+        private final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        private int current;
+        private int count;
+
+        private void writeBits(int value, int bits) {
+            for (int a = bits - 1; a >= 0; a--) {
+                current = (current << 1) | ((value >> a) & 1);
+                count++;
+                if (count == 8) {
+                    stream.write(current);
+                    current = 0;
+                    count = 0;
+                }
+            }
+        }
+
+        private void writeUE(int value) {
+            int code = value + 1;
+            int bits = 32 - Integer.numberOfLeadingZeros(code);
+            writeBits(0, bits - 1);
+            writeBits(code, bits);
+        }
+
+        private void writeSE(int value) {
+            writeUE(value <= 0 ? -2 * value : 2 * value - 1);
+        }
+
+        private byte[] toNal(int header) {
+            writeBits(1, 1);
+            while (count != 0) {
+                writeBits(0, 1);
+            }
+            ByteArrayOutputStream nal = new ByteArrayOutputStream();
+            nal.write(header);
+            int zeros = 0;
+            for (byte value : stream.toByteArray()) {
+                int b = value & 0xff;
+                if (zeros >= 2 && b <= 3) {
+                    nal.write(3);
+                    zeros = 0;
+                }
+                nal.write(b);
+                zeros = b == 0 ? zeros + 1 : 0;
+            }
+            return nal.toByteArray();
+        }
+    }
+}
@@ -13,6 +13,7 @@ import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 
 import com.coremedia.iso.boxes.AbstractMediaHeaderBox;
+import com.coremedia.iso.boxes.Box;
 import com.coremedia.iso.boxes.SampleDescriptionBox;
 import com.coremedia.iso.boxes.SoundMediaHeaderBox;
 import com.coremedia.iso.boxes.VideoMediaHeaderBox;
@@ -27,44 +28,45 @@ import com.mp4parser.iso14496.part15.AvcConfigurationBox;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 public class Track {
 
-    private static class SamplePresentationTime {
-
-        private int index;
-        private long presentationTime;
-        private long dt;
-
-        public SamplePresentationTime(int idx, long time) {
-            index = idx;
-            presentationTime = time;
-        }
-    }
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final int MAX_PRESIZED_CAPACITY = 1 << 22;
 
     private long trackId;
-    private ArrayList<Sample> samples = new ArrayList<>();
+    private int sampleCount;
+    private long[] sampleOffsets = new long[DEFAULT_CAPACITY];
+    private int[] sampleSizes = new int[DEFAULT_CAPACITY];
+    private long[] samplePresentationTimes = new long[DEFAULT_CAPACITY];
+    private byte[] sampleDescriptionIndices;
+    private int sampleDescriptionIndex = 1;
     private long duration = 0;
     private int[] sampleCompositions;
     private String handler;
     private AbstractMediaHeaderBox headerBox;
     private SampleDescriptionBox sampleDescriptionBox;
-    private LinkedList<Integer> syncSamples = null;
+    private int[] syncSamples = null;
+    private int syncSamplesCount;
     private int timeScale;
     private Date creationTime = new Date();
     private int height;
     private int width;
     private float volume = 0;
     private long[] sampleDurations;
-    private ArrayList<SamplePresentationTime> samplePresentationTimes = new ArrayList<>();
     private boolean isAudio;
     private static Map<Integer, Integer> samplingFrequencyIndexMap = new HashMap<>();
     private boolean first = true;
+    private long windowStartUs = -1;
+    private long windowEndUs = -1;
+    private long mediaTimeOffsetUs;
+    private long editMediaTime = -1;
+    private long editDuration;
 
     static {
         samplingFrequencyIndexMap.put(96000, 0x0);
@@ -88,110 +90,13 @@ public class Track {
             width = format.getInteger(MediaFormat.KEY_WIDTH);
             height = format.getInteger(MediaFormat.KEY_HEIGHT);
             timeScale = 90000;
-            syncSamples = new LinkedList<>();
+            syncSamples = new int[DEFAULT_CAPACITY / 16];
             handler = "vide";
             headerBox = new VideoMediaHeaderBox();
             sampleDescriptionBox = new SampleDescriptionBox();
             String mime = format.getString(MediaFormat.KEY_MIME);
             if (mime.equals("video/avc")) {
-                VisualSampleEntry visualSampleEntry = new VisualSampleEntry("avc1");
-                visualSampleEntry.setDataReferenceIndex(1);
-                visualSampleEntry.setDepth(24);
-                visualSampleEntry.setFrameCount(1);
-                visualSampleEntry.setHorizresolution(72);
-                visualSampleEntry.setVertresolution(72);
-                visualSampleEntry.setWidth(width);
-                visualSampleEntry.setHeight(height);
-
-                AvcConfigurationBox avcConfigurationBox = new AvcConfigurationBox();
-
-                if (format.getByteBuffer("csd-0") != null) {
-                    ArrayList<byte[]> spsArray = new ArrayList<>();
-                    ByteBuffer spsBuff = format.getByteBuffer("csd-0");
-                    spsBuff.position(4);
-                    byte[] spsBytes = new byte[spsBuff.remaining()];
-                    spsBuff.get(spsBytes);
-                    spsArray.add(spsBytes);
-
-                    ArrayList<byte[]> ppsArray = new ArrayList<>();
-                    ByteBuffer ppsBuff = format.getByteBuffer("csd-1");
-                    ppsBuff.position(4);
-                    byte[] ppsBytes = new byte[ppsBuff.remaining()];
-                    ppsBuff.get(ppsBytes);
-                    ppsArray.add(ppsBytes);
-                    avcConfigurationBox.setSequenceParameterSets(spsArray);
-                    avcConfigurationBox.setPictureParameterSets(ppsArray);
-                }
-
-                if (format.containsKey("level")) {
-                    int level = format.getInteger("level");
-                    if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel1) {
-                        avcConfigurationBox.setAvcLevelIndication(1);
-                    } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel2) {
-                        avcConfigurationBox.setAvcLevelIndication(2);
-                    } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel11) {
-                        avcConfigurationBox.setAvcLevelIndication(11);
-                    } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel12) {
-                        avcConfigurationBox.setAvcLevelIndication(12);
-                    } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel13) {
-                        avcConfigurationBox.setAvcLevelIndication(13);
-                    } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel21) {
-                        avcConfigurationBox.setAvcLevelIndication(21);
-                    } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel22) {
-                        avcConfigurationBox.setAvcLevelIndication(22);
-                    } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel3) {
-                        avcConfigurationBox.setAvcLevelIndication(3);
-                    } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel31) {
-                        avcConfigurationBox.setAvcLevelIndication(31);
-                    } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel32) {
-                        avcConfigurationBox.setAvcLevelIndication(32);
-                    } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel4) {
-                        avcConfigurationBox.setAvcLevelIndication(4);
-                    } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel41) {
-                        avcConfigurationBox.setAvcLevelIndication(41);
-                    } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel42) {
-                        avcConfigurationBox.setAvcLevelIndication(42);
-                    } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel5) {
-                        avcConfigurationBox.setAvcLevelIndication(5);
-                    } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel51) {
-                        avcConfigurationBox.setAvcLevelIndication(51);
-                    } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel52) {
-                        avcConfigurationBox.setAvcLevelIndication(52);
-                    } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel1b) {
-                        avcConfigurationBox.setAvcLevelIndication(0x1b);
-                    }
-                } else {
-                    avcConfigurationBox.setAvcLevelIndication(13);
-                }
-                if (format.containsKey("profile")) {
-                    int profile = format.getInteger("profile");
-                    if (profile == MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline) {
-                        avcConfigurationBox.setAvcProfileIndication(66);
-                    } else if (profile == MediaCodecInfo.CodecProfileLevel.AVCProfileMain) {
-                        avcConfigurationBox.setAvcProfileIndication(77);
-                    } else if (profile == MediaCodecInfo.CodecProfileLevel.AVCProfileExtended) {
-                        avcConfigurationBox.setAvcProfileIndication(88);
-                    } else if (profile == MediaCodecInfo.CodecProfileLevel.AVCProfileHigh) {
-                        avcConfigurationBox.setAvcProfileIndication(100);
-                    } else if (profile == MediaCodecInfo.CodecProfileLevel.AVCProfileHigh10) {
-                        avcConfigurationBox.setAvcProfileIndication(110);
-                    } else if (profile == MediaCodecInfo.CodecProfileLevel.AVCProfileHigh422) {
-                        avcConfigurationBox.setAvcProfileIndication(122);
-                    } else if (profile == MediaCodecInfo.CodecProfileLevel.AVCProfileHigh444) {
-                        avcConfigurationBox.setAvcProfileIndication(244);
-                    }
-                } else {
-                    avcConfigurationBox.setAvcProfileIndication(100);
-                }
-                avcConfigurationBox.setBitDepthLumaMinus8(-1);
-                avcConfigurationBox.setBitDepthChromaMinus8(-1);
-                avcConfigurationBox.setChromaFormat(-1);
-                avcConfigurationBox.setConfigurationVersion(1);
-                avcConfigurationBox.setLengthSizeMinusOne(3);
-                avcConfigurationBox.setProfileCompatibility(0);
-
-                visualSampleEntry.addBox(avcConfigurationBox);
-                sampleDescriptionBox.addBox(visualSampleEntry);
+                sampleDescriptionBox.addBox(createAvcSampleEntry(format));
             } else if (mime.equals("video/mp4v")) {
                 VisualSampleEntry visualSampleEntry = new VisualSampleEntry("mp4v");
                 visualSampleEntry.setDataReferenceIndex(1);
@@ -262,45 +167,256 @@ public class Track {
         }
     }
 
+    private VisualSampleEntry createAvcSampleEntry(MediaFormat format) {
+        VisualSampleEntry visualSampleEntry = new VisualSampleEntry("avc1");
+        visualSampleEntry.setDataReferenceIndex(1);
+        visualSampleEntry.setDepth(24);
+        visualSampleEntry.setFrameCount(1);
+        visualSampleEntry.setHorizresolution(72);
+        visualSampleEntry.setVertresolution(72);
+        visualSampleEntry.setWidth(format.getInteger(MediaFormat.KEY_WIDTH));
+        visualSampleEntry.setHeight(format.getInteger(MediaFormat.KEY_HEIGHT));
+
+        AvcConfigurationBox avcConfigurationBox = new AvcConfigurationBox();
+
+        if (format.getByteBuffer("csd-0") != null) {
+            ArrayList<byte[]> spsArray = new ArrayList<>();
+            ByteBuffer spsBuff = format.getByteBuffer("csd-0");
+            spsBuff.position(4);
+            byte[] spsBytes = new byte[spsBuff.remaining()];
+            spsBuff.get(spsBytes);
+            spsArray.add(spsBytes);
+
+            ArrayList<byte[]> ppsArray = new ArrayList<>();
+            ByteBuffer ppsBuff = format.getByteBuffer("csd-1");
+            ppsBuff.position(4);
+            byte[] ppsBytes = new byte[ppsBuff.remaining()];
+            ppsBuff.get(ppsBytes);
+            ppsArray.add(ppsBytes);
+            avcConfigurationBox.setSequenceParameterSets(spsArray);
+            avcConfigurationBox.setPictureParameterSets(ppsArray);
+        }
+
+        if (format.containsKey("level")) {
+            int level = format.getInteger("level");
+            if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel1) {
+                avcConfigurationBox.setAvcLevelIndication(1);
+            } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel2) {
+                avcConfigurationBox.setAvcLevelIndication(2);
+            } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel11) {
+                avcConfigurationBox.setAvcLevelIndication(11);
+            } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel12) {
+                avcConfigurationBox.setAvcLevelIndication(12);
+            } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel13) {
+                avcConfigurationBox.setAvcLevelIndication(13);
+            } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel21) {
+                avcConfigurationBox.setAvcLevelIndication(21);
+            } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel22) {
+                avcConfigurationBox.setAvcLevelIndication(22);
+            } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel3) {
+                avcConfigurationBox.setAvcLevelIndication(3);
+            } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel31) {
+                avcConfigurationBox.setAvcLevelIndication(31);
+            } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel32) {
+                avcConfigurationBox.setAvcLevelIndication(32);
+            } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel4) {
+                avcConfigurationBox.setAvcLevelIndication(4);
+            } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel41) {
+                avcConfigurationBox.setAvcLevelIndication(41);
+            } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel42) {
+                avcConfigurationBox.setAvcLevelIndication(42);
+            } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel5) {
+                avcConfigurationBox.setAvcLevelIndication(5);
+            } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel51) {
+                avcConfigurationBox.setAvcLevelIndication(51);
+            } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel52) {
+                avcConfigurationBox.setAvcLevelIndication(52);
+            } else if (level == MediaCodecInfo.CodecProfileLevel.AVCLevel1b) {
+                avcConfigurationBox.setAvcLevelIndication(0x1b);
+            }
+        } else {
+            avcConfigurationBox.setAvcLevelIndication(13);
+        }
+        if (format.containsKey("profile")) {
+            int profile = format.getInteger("profile");
+            if (profile == MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline) {
+                avcConfigurationBox.setAvcProfileIndication(66);
+            } else if (profile == MediaCodecInfo.CodecProfileLevel.AVCProfileMain) {
+                avcConfigurationBox.setAvcProfileIndication(77);
+            } else if (profile == MediaCodecInfo.CodecProfileLevel.AVCProfileExtended) {
+                avcConfigurationBox.setAvcProfileIndication(88);
+            } else if (profile == MediaCodecInfo.CodecProfileLevel.AVCProfileHigh) {
+                avcConfigurationBox.setAvcProfileIndication(100);
+            } else if (profile == MediaCodecInfo.CodecProfileLevel.AVCProfileHigh10) {
+                avcConfigurationBox.setAvcProfileIndication(110);
+            } else if (profile == MediaCodecInfo.CodecProfileLevel.AVCProfileHigh422) {
+                avcConfigurationBox.setAvcProfileIndication(122);
+            } else if (profile == MediaCodecInfo.CodecProfileLevel.AVCProfileHigh444) {
+                avcConfigurationBox.setAvcProfileIndication(244);
+            }
+        } else {
+            avcConfigurationBox.setAvcProfileIndication(100);
+        }
+        avcConfigurationBox.setBitDepthLumaMinus8(-1);
+        avcConfigurationBox.setBitDepthChromaMinus8(-1);
+        avcConfigurationBox.setChromaFormat(-1);
+        avcConfigurationBox.setConfigurationVersion(1);
+        avcConfigurationBox.setLengthSizeMinusOne(3);
+        avcConfigurationBox.setProfileCompatibility(0);
+
+        visualSampleEntry.addBox(avcConfigurationBox);
+        return visualSampleEntry;
+    }
+
     public long getTrackId() {
         return trackId;
     }
 
+    public void ensureCapacity(long durationUs, int frameRate) {
+        long count;
+        if (isAudio) {
+            count = durationUs * timeScale / 1024 / 1000000L;
+        } else {
+            count = durationUs * frameRate / 1000000L;
+        }
+        ensureCapacity((int) Math.min(count + 16, MAX_PRESIZED_CAPACITY));
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= sampleOffsets.length) {
+            return;
+        }
+        sampleOffsets = Arrays.copyOf(sampleOffsets, capacity);
+        sampleSizes = Arrays.copyOf(sampleSizes, capacity);
+        samplePresentationTimes = Arrays.copyOf(samplePresentationTimes, capacity);
+        if (sampleDescriptionIndices != null) {
+            sampleDescriptionIndices = Arrays.copyOf(sampleDescriptionIndices, capacity);
+        }
+    }
+
+    public int addSampleDescription(MediaFormat format) {
+        if (isAudio || !"video/avc".equals(format.getString(MediaFormat.KEY_MIME))) {
+            throw new IllegalStateException("only avc tracks can have several sample descriptions");
+        }
+        if (sampleDescriptionBox.getBoxes().size() >= 255) {
+            throw new IllegalStateException("too many sample descriptions");
+        }
+        sampleDescriptionBox.addBox(createAvcSampleEntry(format));
+        return sampleDescriptionBox.getBoxes().size();
+    }
+
+    public int findSampleDescription(MediaFormat format) {
+        if (isAudio || format == null || format.getByteBuffer("csd-0") == null || format.getByteBuffer("csd-1") == null) {
+            return -1;
+        }
+        byte[] sps = getParameterSet(format.getByteBuffer("csd-0"));
+        byte[] pps = getParameterSet(format.getByteBuffer("csd-1"));
+        List<Box> boxes = sampleDescriptionBox.getBoxes();
+        for (int a = 0; a < boxes.size(); a++) {
+            if (!(boxes.get(a) instanceof VisualSampleEntry)) {
+                continue;
+            }
+            List<AvcConfigurationBox> configurations = ((VisualSampleEntry) boxes.get(a)).getBoxes(AvcConfigurationBox.class);
+            if (configurations.isEmpty()) {
+                continue;
+            }
+            AvcConfigurationBox configuration = configurations.get(0);
+            if (configuration.getSequenceParameterSets().size() == 1 && configuration.getPictureParameterSets().size() == 1 &&
+                    Arrays.equals(configuration.getSequenceParameterSets().get(0), sps) && Arrays.equals(configuration.getPictureParameterSets().get(0), pps)) {
+                return a + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] getParameterSet(ByteBuffer buffer) {
+        buffer = buffer.duplicate();
+        buffer.position(4);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    public void setSampleDescriptionIndex(int index) {
+        if (index < 1 || index > sampleDescriptionBox.getBoxes().size()) {
+            throw new IllegalStateException("no sample description " + index);
+        }
+        if (index != 1 && sampleDescriptionIndices == null) {
+            sampleDescriptionIndices = new byte[sampleOffsets.length];
+            Arrays.fill(sampleDescriptionIndices, (byte) 1);
+        }
+        sampleDescriptionIndex = index;
+    }
+
+    public void setPresentationWindow(long startUs, long endUs) {
+        windowStartUs = startUs;
+        windowEndUs = endUs;
+    }
+
+    public void setMediaTimeOffset(long offsetUs) {
+        mediaTimeOffsetUs = offsetUs;
+    }
+
     public void addSample(long offset, MediaCodec.BufferInfo bufferInfo) {
         boolean isSyncFrame = !isAudio && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
-        samples.add(new Sample(offset, bufferInfo.size));
+        if (sampleCount == sampleOffsets.length) {
+            ensureCapacity(sampleCount * 2);
+        }
+        sampleOffsets[sampleCount] = offset;
+        sampleSizes[sampleCount] = bufferInfo.size;
+        samplePresentationTimes[sampleCount] = (bufferInfo.presentationTimeUs * timeScale + 500000L) / 1000000L;
+        if (sampleDescriptionIndices != null) {
+            sampleDescriptionIndices[sampleCount] = (byte) sampleDescriptionIndex;
+        }
+        sampleCount++;
         if (syncSamples != null && isSyncFrame) {
-            syncSamples.add(samples.size());
+            if (syncSamplesCount == syncSamples.length) {
+                syncSamples = Arrays.copyOf(syncSamples, syncSamplesCount * 2);
+            }
+            syncSamples[syncSamplesCount++] = sampleCount;
+        }
+    }
+
+    public void truncate(int count) {
+        if (count >= sampleCount) {
+            return;
+        }
+        sampleCount = count;
+        while (syncSamplesCount > 0 && syncSamples[syncSamplesCount - 1] > count) {
+            syncSamplesCount--;
         }
-        samplePresentationTimes.add(new SamplePresentationTime(samplePresentationTimes.size(), (bufferInfo.presentationTimeUs * timeScale + 500000L) / 1000000L));
     }
 
     public void prepare() {
-        ArrayList<SamplePresentationTime> original = new ArrayList<>(samplePresentationTimes);
-        Collections.sort(samplePresentationTimes, (o1, o2) -> {
-            if (o1.presentationTime > o2.presentationTime) {
-                return 1;
-            } else if (o1.presentationTime < o2.presentationTime) {
-                return -1;
+        int[] order = null;
+        for (int a = 1; a < sampleCount; a++) {
+            if (samplePresentationTimes[a - 1] > samplePresentationTimes[a]) {
+                order = new int[sampleCount];
+                for (int b = 0; b < sampleCount; b++) {
+                    order[b] = b;
+                }
+                sortByPresentationTime(order, new int[sampleCount], 0, sampleCount);
+                break;
             }
-            return 0;
-        });
+        }
+
         long lastPresentationTimeUs = 0;
-        sampleDurations = new long[samplePresentationTimes.size()];
+        sampleDurations = new long[sampleCount];
         long minDelta = Long.MAX_VALUE;
         boolean outOfOrder = false;
-        for (int a = 0; a < samplePresentationTimes.size(); a++) {
-            SamplePresentationTime presentationTime = samplePresentationTimes.get(a);
-            long delta = presentationTime.presentationTime - lastPresentationTimeUs;
-            lastPresentationTimeUs = presentationTime.presentationTime;
-            sampleDurations[presentationTime.index] = delta;
-            if (presentationTime.index != 0) {
+        for (int a = 0; a < sampleCount; a++) {
+            int index = order != null ? order[a] : a;
+            long presentationTime = samplePresentationTimes[index];
+            long delta = presentationTime - lastPresentationTimeUs;
+            lastPresentationTimeUs = presentationTime;
+            sampleDurations[index] = delta;
+            if (index != 0) {
                 duration += delta;
             }
             if (delta > 0 && delta < Integer.MAX_VALUE) {
                 minDelta = Math.min(minDelta, delta);
             }
-            if (presentationTime.index != a) {
+            if (index != a) {
                 outOfOrder = true;
             }
         }
@@ -308,24 +424,136 @@ public class Track {
             sampleDurations[0] = minDelta;
             duration += minDelta;
         }
-        for (int a = 1; a < original.size(); a++) {
-            original.get(a).dt = sampleDurations[a] + original.get(a - 1).dt;
-        }
         if (outOfOrder) {
-            sampleCompositions = new int[samplePresentationTimes.size()];
-            for (int a = 0; a < samplePresentationTimes.size(); a++) {
-                SamplePresentationTime presentationTime = samplePresentationTimes.get(a);
-                sampleCompositions[presentationTime.index] = (int) (presentationTime.presentationTime - presentationTime.dt);
+            sampleCompositions = new int[sampleCount];
+            long dt = 0;
+            for (int a = 0; a < sampleCount; a++) {
+                if (a != 0) {
+                    dt += sampleDurations[a];
+                }
+                sampleCompositions[a] = (int) (samplePresentationTimes[a] - dt);
+            }
+        }
+        prepareEditList();
+    }
+
+    private void prepareEditList() {
+        editMediaTime = -1;
+        if (sampleCount == 0 || windowStartUs < 0 && windowEndUs < 0 && mediaTimeOffsetUs == 0) {
+            return;
+        }
+        long start = windowStartUs >= 0 ? (windowStartUs * timeScale + 500000L) / 1000000L : Long.MIN_VALUE;
+        int anchor = -1;
+        long anchorTime = 0;
+        long decodeTime = 0;
+        for (int a = 0; a < sampleCount; a++) {
+            long presentationTime = samplePresentationTimes[a];
+            if (presentationTime >= start && (anchor == -1 || presentationTime < samplePresentationTimes[anchor])) {
+                anchor = a;
+                anchorTime = decodeTime + (sampleCompositions != null ? sampleCompositions[a] : 0);
+            }
+            decodeTime += sampleDurations[a];
+        }
+        if (anchor == -1) {
+            return;
+        }
+        if (start == Long.MIN_VALUE) {
+            start = samplePresentationTimes[anchor];
+        }
+        long mediaTime = anchorTime - (samplePresentationTimes[anchor] - start) + (mediaTimeOffsetUs * timeScale + 500000L) / 1000000L;
+        mediaTime = Math.max(0, Math.min(mediaTime, duration));
+        long editEnd = duration;
+        if (windowEndUs >= 0) {
+            editEnd = Math.min(duration, mediaTime + (windowEndUs * timeScale + 500000L) / 1000000L - start);
+        }
+        editMediaTime = mediaTime;
+        editDuration = Math.max(0, editEnd - mediaTime);
+    }
+
+    private void sortByPresentationTime(int[] order, int[] temp, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sortByPresentationTime(order, temp, from, middle);
+        sortByPresentationTime(order, temp, middle, to);
+        if (samplePresentationTimes[order[middle - 1]] <= samplePresentationTimes[order[middle]]) {
+            return;
+        }
+        System.arraycopy(order, from, temp, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int a = from; a < to; a++) {
+            if (right >= to || left < middle && samplePresentationTimes[temp[left]] <= samplePresentationTimes[temp[right]]) {
+                order[a] = temp[left++];
+            } else {
+                order[a] = temp[right++];
+            }
+        }
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public long getSampleOffset(int index) {
+        return sampleOffsets[index];
+    }
+
+    public int getSampleSize(int index) {
+        return sampleSizes[index];
+    }
+
+    public int getSampleDescriptionIndex(int index) {
+        return sampleDescriptionIndices != null ? sampleDescriptionIndices[index] & 0xff : 1;
+    }
+
+    public long getSamplePresentationTime(int index) {
+        return samplePresentationTimes[index];
+    }
+
+    public int findSyncSample(long presentationTimeUs) {
+        if (syncSamples == null) {
+            return findSample(presentationTimeUs);
+        }
+        long time = (presentationTimeUs * timeScale + 500000L) / 1000000L;
+        int low = 0;
+        int high = syncSamplesCount - 1;
+        int result = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (samplePresentationTimes[syncSamples[middle] - 1] <= time) {
+                result = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
             }
         }
-        //if (!first) {
-        //    sampleDurations.add(sampleDurations.size() - 1, delta);
-        //    duration += delta;
-        //}
+        return result == -1 ? -1 : syncSamples[result] - 1;
     }
 
-    public ArrayList<Sample> getSamples() {
-        return samples;
+    private int findSample(long presentationTimeUs) {
+        long time = (presentationTimeUs * timeScale + 500000L) / 1000000L;
+        int low = 0;
+        int high = sampleCount - 1;
+        int result = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (samplePresentationTimes[middle] <= time) {
+                result = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return result;
+    }
+
+    public boolean isSyncSample(int index) {
+        if (syncSamples == null) {
+            return true;
+        }
+        return Arrays.binarySearch(syncSamples, 0, syncSamplesCount, index + 1) >= 0;
     }
 
     public long getLastFrameTimestamp() {
@@ -336,6 +564,22 @@ public class Track {
         return duration;
     }
 
+    public boolean hasEditList() {
+        return editMediaTime >= 0;
+    }
+
+    public long getEditMediaTime() {
+        return editMediaTime;
+    }
+
+    public long getEditDuration() {
+        return editDuration;
+    }
+
+    public long getPresentationDuration() {
+        return hasEditList() ? editDuration : duration;
+    }
+
     public String getHandler() {
         return handler;
     }
@@ -352,13 +596,21 @@ public class Track {
         return sampleDescriptionBox;
     }
 
+    public int getSyncSamplesCount() {
+        return syncSamples != null ? syncSamplesCount : 0;
+    }
+
+    public int getSyncSample(int index) {
+        return syncSamples[index];
+    }
+
     public long[] getSyncSamples() {
-        if (syncSamples == null || syncSamples.isEmpty()) {
+        if (syncSamples == null || syncSamplesCount == 0) {
             return null;
         }
-        long[] returns = new long[syncSamples.size()];
-        for (int i = 0; i < syncSamples.size(); i++) {
-            returns[i] = syncSamples.get(i);
+        long[] returns = new long[syncSamplesCount];
+        for (int i = 0; i < syncSamplesCount; i++) {
+            returns[i] = syncSamples[i];
         }
         return returns;
     }
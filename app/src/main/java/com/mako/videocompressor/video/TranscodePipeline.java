@@ -0,0 +1,649 @@
+package com.mako.videocompressor.video;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.mako.videocompressor.MediaController;
+import com.mako.videocompressor.utils.BuildVars;
+import com.mako.videocompressor.utils.FileLog;
+import com.mako.videocompressor.utils.VideoEditedInfo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+// Runs one transcode as demux -> decode -> render -> encode -> mux stages on their own threads.
+// Stages hand packets over through SpscQueues and get them back through a free queue per link,
+// so the pool size bounds every link and a slow stage stalls the ones before it.
+public class TranscodePipeline {
+
+    public static final int STAGE_DEMUX = 0;
+    public static final int STAGE_DECODE = 1;
+    public static final int STAGE_RENDER = 2;
+    public static final int STAGE_ENCODE = 3;
+    public static final int STAGE_MUX = 4;
+    public static final int STAGES_COUNT = 5;
+
+    private static final String[] STAGE_NAMES = {"demux", "decode", "render", "encode", "mux"};
+
+    private static final int QUEUE_SIZE = 8;
+    private static final int SPIN_COUNT = 64;
+    private static final long IDLE_WAIT_NS = 100000;
+
+    private static class Packet {
+        private ByteBuffer data;
+        private int size;
+        private long timeUs;
+        private int flags;
+        private long offset;
+        private MediaFormat format;
+
+        private ByteBuffer obtainData(int capacity) {
+            if (data == null || data.capacity() < capacity) {
+                data = ByteBuffer.allocateDirect(capacity);
+            }
+            data.clear();
+            return data;
+        }
+    }
+
+    private static class AbortedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private AbortedException() {
+            super("pipeline aborted");
+        }
+    }
+
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    private final CodecFactory codecFactory;
+    private final Mp4Demuxer demuxer;
+    private final MP4Builder mediaMuxer;
+    private final int videoTrackIndex;
+
+    public int audioTrackIndex = -1;
+    public int muxerAudioTrackIndex = -5;
+    public int fromSample;
+    public int toSample;
+    public long startTime = -1;
+    public long endTime = -1;
+    public float durationS;
+    public long decoderTimeoutUs = 2500;
+    public long encoderTimeoutUs = 2500;
+    public long increasedEncoderTimeoutUs = 22000;
+    public Set<String> increasedTimeoutCodecs;
+
+    public MediaFormat videoFormat;
+    public MediaFormat outputFormat;
+    public MediaController.SavedFilterState savedFilterState;
+    public String paintPath;
+    public ArrayList<VideoEditedInfo.MediaEntity> mediaEntities;
+    public MediaController.CropState cropState;
+    public int surfaceWidth;
+    public int surfaceHeight;
+    public int rotationValue;
+    public int framerate;
+
+    public MediaController.VideoConvertorListener callback;
+    public long sizeLimit;
+    public float sizeLimitWarmup;
+
+    private final SpscQueue<Packet> decodeQueue = new SpscQueue<>(QUEUE_SIZE);
+    private final SpscQueue<Packet> decodeFree = new SpscQueue<>(QUEUE_SIZE);
+    private final SpscQueue<Packet> audioQueue = new SpscQueue<>(QUEUE_SIZE * 4);
+    private final SpscQueue<Packet> audioFree = new SpscQueue<>(QUEUE_SIZE * 4);
+    private final SpscQueue<Packet> muxQueue = new SpscQueue<>(QUEUE_SIZE);
+    private final SpscQueue<Packet> muxFree = new SpscQueue<>(QUEUE_SIZE);
+
+    private volatile boolean aborted;
+    private volatile long projectedSize;
+    private volatile boolean inputStopped;
+    private volatile boolean codecsReady;
+    private Throwable error;
+
+    private Codec decoder;
+    private Codec encoder;
+    private FrameRenderer renderer;
+    private volatile String encoderName;
+
+    private final long[] startTimes = new long[STAGES_COUNT];
+    private final long[] endTimes = new long[STAGES_COUNT];
+    private final long[] waitTimes = new long[STAGES_COUNT];
+    private final long[] packetsCount = new long[STAGES_COUNT];
+
+    private long currentPts;
+
+    public TranscodePipeline(CodecFactory codecFactory, Mp4Demuxer demuxer, MP4Builder mediaMuxer, int videoTrackIndex) {
+        this.codecFactory = codecFactory;
+        this.demuxer = demuxer;
+        this.mediaMuxer = mediaMuxer;
+        this.videoTrackIndex = videoTrackIndex;
+        fill(decodeFree);
+        fill(audioFree);
+        fill(muxFree);
+    }
+
+    private static void fill(SpscQueue<Packet> queue) {
+        while (queue.offer(new Packet())) {
+
+        }
+    }
+
+    public int run() throws Exception {
+        Thread[] threads = new Thread[STAGES_COUNT - 1];
+        threads[STAGE_DECODE] = createThread(STAGE_DECODE, this::decode);
+        threads[STAGE_ENCODE] = createThread(STAGE_ENCODE, this::encode);
+        Thread decodeThread = threads[STAGE_DECODE];
+        Thread encodeThread = threads[STAGE_ENCODE];
+        threads[STAGE_RENDER] = createThread(STAGE_RENDER, () -> render(decodeThread, encodeThread));
+        threads[STAGE_DEMUX] = createThread(STAGE_DEMUX, this::demux);
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        int muxerVideoTrackIndex = -5;
+        startTimes[STAGE_MUX] = System.nanoTime();
+        try {
+            muxerVideoTrackIndex = mux();
+        } catch (Throwable e) {
+            fail(e);
+        } finally {
+            endTimes[STAGE_MUX] = System.nanoTime();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        if (BuildVars.LOGS_ENABLED) {
+            FileLog.d(getStats());
+        }
+        if (error instanceof Exception) {
+            throw (Exception) error;
+        } else if (error != null) {
+            throw new RuntimeException(error);
+        }
+        return muxerVideoTrackIndex;
+    }
+
+    public String getEncoderName() {
+        return encoderName;
+    }
+
+    public float getUtilization(int stage) {
+        long elapsed = endTimes[stage] - startTimes[stage];
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return Math.max(0, 1.0f - waitTimes[stage] / (float) elapsed);
+    }
+
+    public float[] getUtilization() {
+        float[] result = new float[STAGES_COUNT];
+        for (int a = 0; a < STAGES_COUNT; a++) {
+            result[a] = getUtilization(a);
+        }
+        return result;
+    }
+
+    public long getPacketsCount(int stage) {
+        return packetsCount[stage];
+    }
+
+    public String getStats() {
+        StringBuilder builder = new StringBuilder("pipeline");
+        for (int a = 0; a < STAGES_COUNT; a++) {
+            builder.append(' ').append(STAGE_NAMES[a]).append('=').append(Math.round(getUtilization(a) * 100)).append("%/")
+                    .append(packetsCount[a]).append('/').append((endTimes[a] - startTimes[a]) / 1000000).append("ms");
+        }
+        return builder.toString();
+    }
+
+    private Thread createThread(int stage, Stage body) {
+        return new Thread(() -> {
+            startTimes[stage] = System.nanoTime();
+            try {
+                body.run();
+            } catch (Throwable e) {
+                fail(e);
+            } finally {
+                endTimes[stage] = System.nanoTime();
+            }
+        }, "Transcode" + STAGE_NAMES[stage]);
+    }
+
+    private synchronized void fail(Throwable e) {
+        if (error == null && !(e instanceof AbortedException)) {
+            error = e;
+        }
+        aborted = true;
+    }
+
+    private void checkAborted() {
+        if (aborted) {
+            throw new AbortedException();
+        }
+    }
+
+    private void idle(int stage, int spins) {
+        checkAborted();
+        if (spins < SPIN_COUNT) {
+            Thread.yield();
+        } else {
+            long start = System.nanoTime();
+            LockSupport.parkNanos(IDLE_WAIT_NS);
+            waitTimes[stage] += System.nanoTime() - start;
+        }
+    }
+
+    private Packet take(SpscQueue<Packet> queue, int stage) {
+        Packet packet = queue.poll();
+        for (int spins = 0; packet == null; spins++) {
+            idle(stage, spins);
+            packet = queue.poll();
+        }
+        return packet;
+    }
+
+    private void put(SpscQueue<Packet> queue, Packet packet, int stage) {
+        for (int spins = 0; !queue.offer(packet); spins++) {
+            idle(stage, spins);
+        }
+        packetsCount[stage]++;
+    }
+
+    private void recycle(SpscQueue<Packet> free, Packet packet) {
+        packet.format = null;
+        if (!free.offer(packet)) {
+            throw new IllegalStateException("free queue overflow");
+        }
+    }
+
+    private void awaitCodecs(int stage) {
+        for (int spins = 0; !codecsReady; spins++) {
+            idle(stage, spins);
+        }
+    }
+
+    private void demux() throws Exception {
+        Mp4Demuxer.TrackInfo track = demuxer.getTrack(videoTrackIndex);
+        boolean videoDone = fromSample >= toSample;
+        boolean audioDone = audioTrackIndex < 0;
+        Mp4Demuxer.SampleCursor cursor = audioDone ? demuxer.createCursor(videoTrackIndex) : demuxer.createCursor(videoTrackIndex, audioTrackIndex);
+        long startUs = Math.max(startTime, 0);
+        long endUs = endTime >= 0 ? endTime : Long.MAX_VALUE;
+        cursor.seekTo(videoDone ? startUs : Math.min(startUs, track.getSampleTimeUs(fromSample)));
+        while (!(videoDone && audioDone) && cursor.advance()) {
+            checkAborted();
+            if (cursor.getTrackIndex() == videoTrackIndex) {
+                if (videoDone || cursor.getSampleIndex() < fromSample) {
+                    continue;
+                }
+                if (inputStopped) {
+                    videoDone = true;
+                    continue;
+                }
+                if (cursor.getSampleIndex() >= toSample) {
+                    videoDone = true;
+                    sendEndOfStream(takeVideoPacket(), decodeQueue, STAGE_DEMUX);
+                    continue;
+                }
+                Packet packet = takeVideoPacket();
+                if (packet == null) {
+                    videoDone = true;
+                    continue;
+                }
+                ByteBuffer sample = cursor.readSample();
+                packet.size = MediaCodecVideoConvertor.writeStartCodes(sample, packet.obtainData(sample.remaining()));
+                packet.timeUs = cursor.getSampleTimeUs();
+                packet.flags = 0;
+                put(decodeQueue, packet, STAGE_DEMUX);
+            } else {
+                long time = cursor.getSampleTimeUs();
+                if (audioDone || time < startUs || cursor.getSampleSize() <= 0) {
+                    continue;
+                }
+                if (time >= endUs) {
+                    audioDone = true;
+                    sendEndOfStream(take(audioFree, STAGE_DEMUX), audioQueue, STAGE_DEMUX);
+                    continue;
+                }
+                Packet packet = take(audioFree, STAGE_DEMUX);
+                packet.offset = cursor.getSampleOffset();
+                packet.size = cursor.getSampleSize();
+                packet.timeUs = time;
+                packet.flags = cursor.isSyncSample() ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+                put(audioQueue, packet, STAGE_DEMUX);
+            }
+        }
+        if (!videoDone) {
+            sendEndOfStream(takeVideoPacket(), decodeQueue, STAGE_DEMUX);
+        }
+        if (!audioDone) {
+            sendEndOfStream(take(audioFree, STAGE_DEMUX), audioQueue, STAGE_DEMUX);
+        }
+    }
+
+    private Packet takeVideoPacket() {
+        Packet packet = decodeFree.poll();
+        for (int spins = 0; packet == null; spins++) {
+            if (inputStopped) {
+                return null;
+            }
+            idle(STAGE_DEMUX, spins);
+            packet = decodeFree.poll();
+        }
+        return packet;
+    }
+
+    private void sendEndOfStream(Packet packet, SpscQueue<Packet> queue, int stage) {
+        if (packet == null) {
+            return;
+        }
+        packet.size = 0;
+        packet.timeUs = Long.MAX_VALUE;
+        packet.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        put(queue, packet, stage);
+    }
+
+    private void decode() {
+        awaitCodecs(STAGE_DECODE);
+        while (true) {
+            Packet packet = decodeQueue.poll();
+            for (int spins = 0; packet == null; spins++) {
+                if (inputStopped) {
+                    return;
+                }
+                idle(STAGE_DECODE, spins);
+                packet = decodeQueue.poll();
+            }
+            int index;
+            while (true) {
+                long start = System.nanoTime();
+                index = decoder.dequeueInputBuffer(decoderTimeoutUs);
+                if (index >= 0) {
+                    break;
+                }
+                waitTimes[STAGE_DECODE] += System.nanoTime() - start;
+                checkAborted();
+                if (inputStopped) {
+                    return;
+                }
+            }
+            if ((packet.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                decoder.queueInputBuffer(index, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                recycle(decodeFree, packet);
+                return;
+            }
+            ByteBuffer inputBuf = decoder.getInputBuffer(index);
+            inputBuf.clear();
+            packet.data.flip();
+            inputBuf.put(packet.data);
+            decoder.queueInputBuffer(index, 0, packet.size, packet.timeUs, 0);
+            packetsCount[STAGE_DECODE]++;
+            recycle(decodeFree, packet);
+        }
+    }
+
+    private void render(Thread decodeThread, Thread encodeThread) throws Exception {
+        try {
+            encoder = codecFactory.createEncoder(MediaController.VIDEO_MIME_TYPE);
+            encoderName = encoder.getName();
+            if (increasedTimeoutCodecs != null && increasedTimeoutCodecs.contains(encoderName)) {
+                encoderTimeoutUs = increasedEncoderTimeoutUs;
+            }
+            encoder.configure(outputFormat, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            renderer = codecFactory.createRenderer(encoder, savedFilterState, null, paintPath, mediaEntities, cropState, surfaceWidth, surfaceHeight, rotationValue, framerate, false);
+            encoder.start();
+            decoder = codecFactory.createDecoder(videoFormat.getString(MediaFormat.KEY_MIME));
+            decoder.configure(videoFormat, renderer, 0);
+            decoder.start();
+            codecsReady = true;
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            long videoTime = -1;
+            while (true) {
+                checkAborted();
+                long start = System.nanoTime();
+                int decoderStatus = decoder.dequeueOutputBuffer(info, decoderTimeoutUs);
+                if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    waitTimes[STAGE_RENDER] += System.nanoTime() - start;
+                } else if (decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+
+                } else if (decoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    if (BuildVars.LOGS_ENABLED) {
+                        FileLog.d("newFormat = " + decoder.getOutputFormat());
+                    }
+                } else if (decoderStatus < 0) {
+                    throw new RuntimeException("unexpected result from decoder.dequeueOutputBuffer: " + decoderStatus);
+                } else {
+                    boolean doRender = info.size != 0;
+                    if (endTime > 0 && info.presentationTimeUs >= endTime) {
+                        inputStopped = true;
+                        doRender = false;
+                        info.flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                    }
+                    if (startTime > 0 && videoTime == -1) {
+                        if (info.presentationTimeUs < startTime) {
+                            doRender = false;
+                        } else {
+                            videoTime = info.presentationTimeUs;
+                        }
+                    }
+                    decoder.releaseOutputBuffer(decoderStatus, doRender);
+                    if (doRender) {
+                        boolean errorWait = false;
+                        try {
+                            renderer.awaitNewImage();
+                        } catch (Exception e) {
+                            errorWait = true;
+                            FileLog.e(e);
+                        }
+                        if (!errorWait) {
+                            renderer.drawFrame(info.presentationTimeUs);
+                            packetsCount[STAGE_RENDER]++;
+                        }
+                    }
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        encoder.signalEndOfInputStream();
+                        break;
+                    }
+                }
+            }
+            encodeThread.join();
+        } catch (Throwable e) {
+            fail(e);
+            throw e;
+        } finally {
+            inputStopped = true;
+            decodeThread.join();
+            encodeThread.join();
+            if (decoder != null) {
+                decoder.stop();
+                decoder.release();
+            }
+            if (renderer != null) {
+                renderer.release();
+            }
+            if (encoder != null) {
+                encoder.stop();
+                encoder.release();
+            }
+        }
+    }
+
+    private void encode() {
+        awaitCodecs(STAGE_ENCODE);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean formatSent = false;
+        boolean firstEncode = true;
+        int prependHeaderSize = 0;
+        while (true) {
+            checkAborted();
+            long start = System.nanoTime();
+            int encoderStatus = encoder.dequeueOutputBuffer(info, encoderTimeoutUs);
+            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                waitTimes[STAGE_ENCODE] += System.nanoTime() - start;
+            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+
+            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                MediaFormat newFormat = encoder.getOutputFormat();
+                if (!formatSent && newFormat != null) {
+                    sendFormat(newFormat);
+                    formatSent = true;
+                    if (newFormat.containsKey(MediaFormat.KEY_PREPEND_HEADER_TO_SYNC_FRAMES) && newFormat.getInteger(MediaFormat.KEY_PREPEND_HEADER_TO_SYNC_FRAMES) == 1) {
+                        prependHeaderSize = newFormat.getByteBuffer("csd-0").limit() + newFormat.getByteBuffer("csd-1").limit();
+                    }
+                }
+            } else if (encoderStatus < 0) {
+                throw new RuntimeException("unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus);
+            } else {
+                ByteBuffer encodedData = encoder.getOutputBuffer(encoderStatus);
+                if (encodedData == null) {
+                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
+                }
+                if (info.size > 1) {
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                        if (prependHeaderSize != 0 && (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                            info.offset += prependHeaderSize;
+                            info.size -= prependHeaderSize;
+                        }
+                        if (firstEncode && (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                            if (info.size > 100) {
+                                encodedData.position(info.offset);
+                                byte[] temp = new byte[100];
+                                encodedData.get(temp);
+                                int nalCount = 0;
+                                for (int a = 0; a < temp.length - 4; a++) {
+                                    if (temp[a] == 0 && temp[a + 1] == 0 && temp[a + 2] == 0 && temp[a + 3] == 1) {
+                                        nalCount++;
+                                        if (nalCount > 1) {
+                                            info.offset += a;
+                                            info.size -= a;
+                                            break;
+                                        }
+                                    }
+                                }
+                            }
+                            firstEncode = false;
+                        }
+                        Packet packet = take(muxFree, STAGE_ENCODE);
+                        encodedData.limit(info.offset + info.size);
+                        encodedData.position(info.offset);
+                        packet.obtainData(info.size).put(encodedData).flip();
+                        packet.size = info.size;
+                        packet.timeUs = info.presentationTimeUs;
+                        packet.flags = info.flags & ~MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                        put(muxQueue, packet, STAGE_ENCODE);
+                    } else if (!formatSent) {
+                        byte[] csd = new byte[info.size];
+                        encodedData.limit(info.offset + info.size);
+                        encodedData.position(info.offset);
+                        encodedData.get(csd);
+                        MediaFormat newFormat = MediaFormat.createVideoFormat(MediaController.VIDEO_MIME_TYPE, outputFormat.getInteger(MediaFormat.KEY_WIDTH), outputFormat.getInteger(MediaFormat.KEY_HEIGHT));
+                        for (int a = info.size - 1; a > 3; a--) {
+                            if (csd[a] == 1 && csd[a - 1] == 0 && csd[a - 2] == 0 && csd[a - 3] == 0) {
+                                newFormat.setByteBuffer("csd-0", ByteBuffer.wrap(csd, 0, a - 3).slice());
+                                newFormat.setByteBuffer("csd-1", ByteBuffer.wrap(csd, a - 3, info.size - (a - 3)).slice());
+                                break;
+                            }
+                        }
+                        sendFormat(newFormat);
+                        formatSent = true;
+                    }
+                }
+                boolean outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                encoder.releaseOutputBuffer(encoderStatus, false);
+                if (outputDone) {
+                    sendEndOfStream(take(muxFree, STAGE_ENCODE), muxQueue, STAGE_ENCODE);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void sendFormat(MediaFormat format) {
+        Packet packet = take(muxFree, STAGE_ENCODE);
+        packet.size = 0;
+        packet.timeUs = Long.MIN_VALUE;
+        packet.flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+        packet.format = format;
+        put(muxQueue, packet, STAGE_ENCODE);
+    }
+
+    private int mux() throws Exception {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int muxerVideoTrackIndex = -5;
+        boolean videoDone = false;
+        boolean audioDone = audioTrackIndex < 0;
+        int spins = 0;
+        while (!videoDone || !audioDone) {
+            if (callback != null && callback.checkConversionCanceled()) {
+                throw new RuntimeException("canceled conversion");
+            }
+            Packet video = videoDone ? null : muxQueue.peek();
+            Packet audio = audioDone ? null : audioQueue.peek();
+            if (video == null && audio == null) {
+                idle(STAGE_MUX, spins++);
+                continue;
+            }
+            spins = 0;
+            if (video != null && (audio == null || video.timeUs <= audio.timeUs)) {
+                muxQueue.poll();
+                if ((video.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    videoDone = true;
+                } else if ((video.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    if (muxerVideoTrackIndex == -5) {
+                        muxerVideoTrackIndex = mediaMuxer.addTrack(video.format, false);
+                    }
+                } else {
+                    if (muxerVideoTrackIndex == -5) {
+                        throw new RuntimeException("encoder didn't provide codec config before the first frame");
+                    }
+                    info.set(0, video.size, video.timeUs, video.flags);
+                    didWriteData(mediaMuxer.writeSampleData(muxerVideoTrackIndex, video.data, info, true), video.timeUs);
+                    packetsCount[STAGE_MUX]++;
+                }
+                recycle(muxFree, video);
+            } else {
+                audioQueue.poll();
+                if ((audio.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    audioDone = true;
+                } else {
+                    info.set(0, audio.size, audio.timeUs, audio.flags);
+                    didWriteData(mediaMuxer.writeSampleData(muxerAudioTrackIndex, demuxer.getChannel(), audio.offset, info), audio.timeUs);
+                    packetsCount[STAGE_MUX]++;
+                }
+                recycle(audioFree, audio);
+            }
+        }
+        if (muxerVideoTrackIndex == -5) {
+            throw new RuntimeException("no frames were encoded");
+        }
+        mediaMuxer.detachSource(demuxer.getChannel());
+        return muxerVideoTrackIndex;
+    }
+
+    private void didWriteData(long availableSize, long time) {
+        if (availableSize != 0) {
+            if (time - Math.max(startTime, 0) > currentPts) {
+                currentPts = time - Math.max(startTime, 0);
+            }
+            float progress = (currentPts / 1000f) / durationS;
+            if (sizeLimit > 0 && progress >= sizeLimitWarmup && progress < 1) {
+                projectedSize = (long) (availableSize / progress);
+                if (projectedSize > sizeLimit) {
+                    throw new MediaCodecVideoConvertor.SizeLimitExceededException(projectedSize, sizeLimit);
+                }
+            }
+            if (callback != null) {
+                callback.didWriteData(availableSize, progress);
+            }
+        }
+    }
+
+    public long getProjectedSize() {
+        return projectedSize;
+    }
+}
@@ -0,0 +1,133 @@
+package com.mako.videocompressor.video;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.mako.videocompressor.MediaController;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class CodecEventLoopTest {
+
+    private static final int AUDIO_FRAMES_COUNT = 130;
+    private static final int TIMEOUT_USEC = 2500;
+
+    // Decodes and re-encodes audio the way AudioRecoder steps its codecs and returns the number of encoded frames.
+    private static int transcodeAudio(Codec decoder, Codec encoder, int framesCount) {
+        MediaCodec.BufferInfo decoderInfo = new MediaCodec.BufferInfo();
+        MediaCodec.BufferInfo encoderInfo = new MediaCodec.BufferInfo();
+        long deadline = System.nanoTime() + 10000000000L;
+        int queuedCount = 0;
+        int encodedCount = 0;
+        int pendingIndex = -1;
+        boolean inputDone = false;
+        boolean decoderDone = false;
+        while (true) {
+            assertTrue("audio transcode timed out", System.nanoTime() < deadline);
+            if (!inputDone) {
+                int index = decoder.dequeueInputBuffer(TIMEOUT_USEC);
+                if (index >= 0) {
+                    if (queuedCount == framesCount) {
+                        decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        decoder.getInputBuffer(index).put(new byte[300]);
+                        decoder.queueInputBuffer(index, 0, 300, queuedCount * TestFormats.AUDIO_FRAME_DURATION_US, 0);
+                        queuedCount++;
+                    }
+                }
+            }
+            if (!decoderDone && pendingIndex < 0) {
+                int index = decoder.dequeueOutputBuffer(decoderInfo, TIMEOUT_USEC);
+                if (index >= 0) {
+                    pendingIndex = index;
+                }
+            }
+            if (pendingIndex >= 0) {
+                int index = encoder.dequeueInputBuffer(TIMEOUT_USEC);
+                if (index >= 0) {
+                    if ((decoderInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        encoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        decoderDone = true;
+                    } else {
+                        ByteBuffer decoded = decoder.getOutputBuffer(pendingIndex).duplicate();
+                        decoded.position(decoderInfo.offset);
+                        decoded.limit(decoderInfo.offset + decoderInfo.size);
+                        encoder.getInputBuffer(index).put(decoded);
+                        encoder.queueInputBuffer(index, 0, decoderInfo.size, decoderInfo.presentationTimeUs, 0);
+                    }
+                    decoder.releaseOutputBuffer(pendingIndex, false);
+                    pendingIndex = -1;
+                }
+            }
+            int index = encoder.dequeueOutputBuffer(encoderInfo, TIMEOUT_USEC);
+            if (index >= 0) {
+                if (encoderInfo.size > 0 && (encoderInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    encodedCount++;
+                }
+                encoder.releaseOutputBuffer(index, false);
+                if ((encoderInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return encodedCount;
+                }
+            }
+        }
+    }
+
+    private static int transcodeAudio(SyntheticCodecFactory factory, CodecEventLoop eventLoop, int framesCount) throws Exception {
+        Codec decoder = factory.createDecoder(MediaController.AUIDO_MIME_TYPE);
+        Codec encoder = factory.createEncoder(MediaController.AUIDO_MIME_TYPE);
+        if (eventLoop != null) {
+            decoder = eventLoop.wrap(decoder);
+            encoder = eventLoop.wrap(encoder);
+        }
+        try {
+            decoder.configure(TestFormats.createAudioFormat(), null, 0);
+            decoder.start();
+            encoder.configure(MediaFormat.createAudioFormat(MediaController.AUIDO_MIME_TYPE, 44100, 2), null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            encoder.start();
+            return transcodeAudio(decoder, encoder, framesCount);
+        } finally {
+            decoder.stop();
+            encoder.stop();
+            decoder.release();
+            encoder.release();
+        }
+    }
+
+    @Test
+    public void stepsCodecsOnCallbacksAsInPollingMode() throws Exception {
+        SyntheticCodecFactory factory = new SyntheticCodecFactory();
+        factory.setLatency(500);
+        assertEquals(AUDIO_FRAMES_COUNT, transcodeAudio(factory, null, AUDIO_FRAMES_COUNT));
+        assertEquals(AUDIO_FRAMES_COUNT, factory.getEncodedUnits());
+
+        factory.resetStats();
+        CodecEventLoop eventLoop = new CodecEventLoop();
+        assertEquals(AUDIO_FRAMES_COUNT, transcodeAudio(factory, eventLoop, AUDIO_FRAMES_COUNT));
+        assertEquals(AUDIO_FRAMES_COUNT, factory.getEncodedUnits());
+        assertTrue(eventLoop.getEventsCount() >= AUDIO_FRAMES_COUNT * 2);
+    }
+
+    @Test
+    public void wrapsOnlyCodecsThatTakeCallbacks() throws Exception {
+        SyntheticCodecFactory factory = new SyntheticCodecFactory();
+        CodecEventLoop eventLoop = new CodecEventLoop();
+        Codec decoder = factory.createDecoder(MediaController.AUIDO_MIME_TYPE);
+        Codec wrapped = eventLoop.wrap(decoder);
+        assertNotSame(decoder, wrapped);
+        assertSame(decoder, CodecEventLoop.unwrap(wrapped));
+        assertSame(decoder, CodecEventLoop.unwrap(decoder));
+        assertSame(wrapped, eventLoop.wrap(wrapped));
+        decoder.release();
+    }
+}
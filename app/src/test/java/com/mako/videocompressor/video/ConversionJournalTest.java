@@ -0,0 +1,178 @@
+package com.mako.videocompressor.video;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ConversionJournalTest {
+
+    private static final byte[] SETTINGS = {1, 2, 3, 4, 5};
+    private static final long DATA_BYTES = 1L << 30;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Mp4Movie movie = new Mp4Movie();
+    private long offset = 48;
+
+    private void addSamples(int trackIndex, int count, long startUs, long durationUs, int keyFrameInterval) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (int a = 0; a < count; a++) {
+            int size = 100 + a * 7 % 50;
+            info.set(0, size, startUs + a * durationUs, a % keyFrameInterval == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            movie.addSample(trackIndex, offset, info);
+            offset += size;
+        }
+    }
+
+    private int[] getCounts() {
+        int[] counts = new int[movie.getTracks().size()];
+        for (int t = 0; t < counts.length; t++) {
+            counts[t] = movie.getTracks().get(t).getSampleCount();
+        }
+        return counts;
+    }
+
+    private File writeJournal() throws Exception {
+        File file = folder.newFile("output.mp4.journal");
+        MediaFormat videoFormat = TestFormats.createVideoFormat(640, 360);
+        MediaFormat audioFormat = TestFormats.createAudioFormat();
+        try (ConversionJournal journal = new ConversionJournal(file, SETTINGS)) {
+            journal.writeTrack(false, videoFormat);
+            movie.addTrack(videoFormat, false);
+            journal.writeTrack(true, audioFormat);
+            movie.addTrack(audioFormat, true);
+            journal.writeMediaTimeOffset(1, 46439);
+
+            addSamples(0, 30, 0, 33333, 10);
+            addSamples(1, 40, 0, 23220, 1);
+            int[] first = getCounts();
+            assertTrue(journal.writeCheckpoint(journal.createCheckpoint(new long[]{offset, 1}, new long[]{1000000, -7}, movie.getTracks(), new int[0], first), DATA_BYTES));
+
+            addSamples(0, 30, 1000000, 33333, 10);
+            addSamples(1, 40, 928800, 23220, 1);
+            int[] second = getCounts();
+            assertTrue(journal.writeCheckpoint(journal.createCheckpoint(new long[]{offset, 2}, new long[]{2000000, -7}, movie.getTracks(), first, second), DATA_BYTES));
+            assertEquals(2, journal.getCheckpointsCount());
+
+            journal.writeSampleDescription(0, TestFormats.createVideoFormat(320, 180));
+        }
+        return file;
+    }
+
+    private void assertSameSamples(Mp4Movie expected, Mp4Movie actual) {
+        assertEquals(expected.getTracks().size(), actual.getTracks().size());
+        for (int t = 0; t < expected.getTracks().size(); t++) {
+            Track expectedTrack = expected.getTracks().get(t);
+            Track actualTrack = actual.getTracks().get(t);
+            assertEquals(expectedTrack.isAudio(), actualTrack.isAudio());
+            assertEquals(expectedTrack.getSampleCount(), actualTrack.getSampleCount());
+            for (int i = 0; i < expectedTrack.getSampleCount(); i++) {
+                assertEquals(expectedTrack.getSampleOffset(i), actualTrack.getSampleOffset(i));
+                assertEquals(expectedTrack.getSampleSize(i), actualTrack.getSampleSize(i));
+                assertEquals(expectedTrack.getSamplePresentationTime(i), actualTrack.getSamplePresentationTime(i));
+                assertEquals(expectedTrack.isSyncSample(i), actualTrack.isSyncSample(i));
+            }
+        }
+    }
+
+    @Test
+    public void replaysTracksAndSamplesUpToTheLastCheckpoint() throws Exception {
+        File file = writeJournal();
+        assertTrue(ConversionJournal.matches(file, SETTINGS));
+
+        ConversionJournal.Replay replay = ConversionJournal.read(file, SETTINGS);
+        assertNotNull(replay);
+        assertArrayEquals(new long[]{offset, 2}, replay.getMuxerState());
+        assertArrayEquals(new long[]{2000000, -7}, replay.getState());
+
+        Mp4Movie replayed = new Mp4Movie();
+        replay.apply(replayed);
+        assertSameSamples(movie, replayed);
+        assertEquals(1, replayed.getTracks().get(0).getSampleDescriptionBox().getBoxes().size());
+    }
+
+    @Test
+    public void ignoresTornTail() throws Exception {
+        File file = writeJournal();
+        long length = file.length();
+        try (FileOutputStream stream = new FileOutputStream(file, true)) {
+            stream.write(new byte[]{0, 0, 0, 40, 5, 1, 2});
+        }
+        ConversionJournal.Replay replay = ConversionJournal.read(file, SETTINGS);
+        assertNotNull(replay);
+        assertArrayEquals(new long[]{2000000, -7}, replay.getState());
+
+        try (ConversionJournal journal = ConversionJournal.append(replay)) {
+            assertTrue(journal.getBytesWritten() < length);
+        }
+        assertTrue(file.length() < length);
+        Mp4Movie replayed = new Mp4Movie();
+        ConversionJournal.read(file, SETTINGS).apply(replayed);
+        assertSameSamples(movie, replayed);
+    }
+
+    @Test
+    public void dropsCheckpointWithBadCrc() throws Exception {
+        File file = writeJournal();
+        // Appending cuts the journal back to the end of the last checkpoint, so its record ends right before the crc.
+        ConversionJournal.append(ConversionJournal.read(file, SETTINGS)).close();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(file.length() - 5);
+            randomAccessFile.write(randomAccessFile.read() ^ 0x01);
+        }
+        ConversionJournal.Replay replay = ConversionJournal.read(file, SETTINGS);
+        assertNotNull(replay);
+        assertArrayEquals(new long[]{1000000, -7}, replay.getState());
+    }
+
+    @Test
+    public void rejectsOtherSettings() throws Exception {
+        File file = writeJournal();
+        assertFalse(ConversionJournal.matches(file, new byte[]{1, 2, 3, 4, 6}));
+        assertNull(ConversionJournal.read(file, new byte[]{1, 2, 3, 4, 6}));
+        assertNull(ConversionJournal.read(file, new byte[]{1, 2, 3, 4}));
+    }
+
+    @Test
+    public void skipsCheckpointsOverTheOverheadBudget() throws Exception {
+        File file = folder.newFile("budget.mp4.journal");
+        MediaFormat videoFormat = TestFormats.createVideoFormat(640, 360);
+        try (ConversionJournal journal = new ConversionJournal(file, SETTINGS)) {
+            journal.writeTrack(false, videoFormat);
+            movie.addTrack(videoFormat, false);
+            addSamples(0, 30, 0, 33333, 10);
+            ByteBuffer record = journal.createCheckpoint(new long[]{offset}, new long[0], movie.getTracks(), new int[0], getCounts());
+            assertFalse(journal.writeCheckpoint(record, 1000));
+            assertEquals(1, journal.getSkippedCount());
+            assertEquals(0, journal.getCheckpointsCount());
+        }
+        assertNull(ConversionJournal.read(file, SETTINGS));
+    }
+
+    @Test
+    public void mapsOutputAndJournalFiles() {
+        File output = new File("/cache/VID_1.mp4");
+        File journal = ConversionJournal.getJournalFile(output);
+        assertEquals("/cache/VID_1.mp4.journal", journal.getPath());
+        assertEquals(output, ConversionJournal.getOutputFile(journal));
+    }
+}
@@ -0,0 +1,127 @@
+package com.mako.videocompressor.video;
+
+import android.media.MediaCodec;
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.fragment.MovieFragmentBox;
+import com.coremedia.iso.boxes.fragment.TrackFragmentBaseMediaDecodeTimeBox;
+import com.coremedia.iso.boxes.fragment.TrackFragmentBox;
+import com.coremedia.iso.boxes.fragment.TrackRunBox;
+import com.googlecode.mp4parser.FileDataSourceImpl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class FragmentedMP4BuilderTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 180;
+    private static final int FRAMES_COUNT = 150;
+    private static final int AUDIO_FRAMES_COUNT = 215;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FragmentedMP4Builder createMuxer(File file, int tracksCount) throws Exception {
+        Mp4Movie movie = new Mp4Movie();
+        movie.setCacheFile(file);
+        movie.setSize(WIDTH, HEIGHT);
+        FragmentedMP4Builder muxer = new FragmentedMP4Builder();
+        muxer.createMovie(movie, false, false);
+        muxer.setExpectedTracksCount(tracksCount);
+        return muxer;
+    }
+
+    // Writes key frames every second and audio with the timestamp jitter of a real encoder.
+    private static void writeSamples(FragmentedMP4Builder muxer, int videoTrackIndex, int audioTrackIndex) throws Exception {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer buffer = ByteBuffer.allocate(1000);
+        int videoFrame = 0;
+        int audioFrame = 0;
+        while (videoFrame < FRAMES_COUNT || audioFrame < AUDIO_FRAMES_COUNT) {
+            long audioTimeUs = audioFrame * TestFormats.AUDIO_FRAME_DURATION_US + audioFrame % 3 * 150;
+            if (audioFrame >= AUDIO_FRAMES_COUNT || videoFrame < FRAMES_COUNT && videoFrame * TestFormats.FRAME_DURATION_US <= audioTimeUs) {
+                boolean keyFrame = videoFrame % TestFormats.FRAME_RATE == 0;
+                info.set(0, 1000, videoFrame * TestFormats.FRAME_DURATION_US, keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                muxer.writeSampleData(videoTrackIndex, buffer, info, true);
+                videoFrame++;
+            } else {
+                info.set(0, 300, audioTimeUs, 0);
+                muxer.writeSampleData(audioTrackIndex, buffer, info, false);
+                audioFrame++;
+            }
+        }
+    }
+
+    // Fragments are cut on video key frames, so every audio run ends on a guessed duration; its decode time has to
+    // continue exactly where the previous run ended.
+    @Test
+    public void continuesDecodeTimeAcrossFragments() throws Exception {
+        File file = folder.newFile("fragmented.mp4");
+        FragmentedMP4Builder muxer = createMuxer(file, 2);
+        int videoTrackIndex = muxer.addTrack(TestFormats.createVideoFormat(WIDTH, HEIGHT), false);
+        int audioTrackIndex = muxer.addTrack(TestFormats.createAudioFormat(), true);
+        writeSamples(muxer, videoTrackIndex, audioTrackIndex);
+        muxer.finishMovie();
+
+        HashMap<Long, Long> decodeTimes = new HashMap<>();
+        HashMap<Long, Integer> samplesCounts = new HashMap<>();
+        int fragmentsCount = 0;
+        try (IsoFile isoFile = new IsoFile(new FileDataSourceImpl(file))) {
+            for (MovieFragmentBox moof : isoFile.getBoxes(MovieFragmentBox.class)) {
+                fragmentsCount++;
+                for (TrackFragmentBox traf : moof.getBoxes(TrackFragmentBox.class)) {
+                    long trackId = traf.getTrackFragmentHeaderBox().getTrackId();
+                    long decodeTime = traf.getBoxes(TrackFragmentBaseMediaDecodeTimeBox.class).get(0).getBaseMediaDecodeTime();
+                    Long expected = decodeTimes.get(trackId);
+                    assertEquals("track " + trackId + " fragment " + fragmentsCount, expected != null ? expected : 0L, decodeTime);
+                    TrackRunBox trun = traf.getBoxes(TrackRunBox.class).get(0);
+                    for (TrackRunBox.Entry entry : trun.getEntries()) {
+                        decodeTime += entry.getSampleDuration();
+                    }
+                    decodeTimes.put(trackId, decodeTime);
+                    Integer count = samplesCounts.get(trackId);
+                    samplesCounts.put(trackId, (count != null ? count : 0) + trun.getEntries().size());
+                }
+            }
+        }
+        assertEquals(FRAMES_COUNT / TestFormats.FRAME_RATE, fragmentsCount);
+        assertEquals(FRAMES_COUNT, (int) samplesCounts.get(videoTrackIndex + 1L));
+        assertEquals(AUDIO_FRAMES_COUNT, (int) samplesCounts.get(audioTrackIndex + 1L));
+        // the audio timeline ends within one frame of where the samples do
+        long audioEnd = decodeTimes.get(audioTrackIndex + 1L);
+        assertTrue("audio ends at " + audioEnd, Math.abs(audioEnd - AUDIO_FRAMES_COUNT * 1024L) <= 1024);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownTrack() throws Exception {
+        FragmentedMP4Builder muxer = createMuxer(folder.newFile("fragmented.mp4"), 1);
+        muxer.addTrack(TestFormats.createAudioFormat(), true);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, 16, 0, 0);
+        muxer.writeSampleData(1, ByteBuffer.allocate(16), info, false);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void limitsSamplesBufferedBeforeAllTracks() throws Exception {
+        FragmentedMP4Builder muxer = createMuxer(folder.newFile("fragmented.mp4"), 2);
+        int audioTrackIndex = muxer.addTrack(TestFormats.createAudioFormat(), true);
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (int a = 0; a < 64; a++) {
+            info.set(0, buffer.capacity(), a * TestFormats.AUDIO_FRAME_DURATION_US, 0);
+            muxer.writeSampleData(audioTrackIndex, buffer, info, false);
+        }
+    }
+}
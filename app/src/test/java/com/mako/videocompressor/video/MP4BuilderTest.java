@@ -0,0 +1,162 @@
+package com.mako.videocompressor.video;
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.Box;
+import com.googlecode.mp4parser.FileDataSourceImpl;
+import com.googlecode.mp4parser.util.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class MP4BuilderTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 180;
+    private static final int FRAMES_COUNT = 90;
+    private static final int AUDIO_FRAMES_COUNT = 130;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Mp4Movie createMovie(File file) {
+        Mp4Movie movie = new Mp4Movie();
+        movie.setCacheFile(file);
+        movie.setSize(WIDTH, HEIGHT);
+        return movie;
+    }
+
+    private static void writeSamples(MP4Builder muxer) throws Exception {
+        int videoTrackIndex = muxer.addTrack(TestFormats.createVideoFormat(WIDTH, HEIGHT), false);
+        int audioTrackIndex = muxer.addTrack(TestFormats.createAudioFormat(), true);
+        TestFormats.writeSamples(muxer, videoTrackIndex, FRAMES_COUNT, audioTrackIndex, AUDIO_FRAMES_COUNT);
+        muxer.finishMovie();
+    }
+
+    private File writeMovie(String name, boolean fastStart, long maxChunkOffset) throws Exception {
+        File file = folder.newFile(name);
+        MP4Builder muxer = new MP4Builder();
+        if (maxChunkOffset > 0) {
+            muxer.setMaxChunkOffset(maxChunkOffset);
+        }
+        muxer.createMovie(createMovie(file), false, fastStart);
+        writeSamples(muxer);
+        return file;
+    }
+
+    private static List<String> getTopLevelTypes(File file) throws Exception {
+        ArrayList<String> types = new ArrayList<>();
+        try (IsoFile isoFile = new IsoFile(new FileDataSourceImpl(file))) {
+            for (Box box : isoFile.getBoxes()) {
+                types.add(box.getType());
+            }
+        }
+        return types;
+    }
+
+    private static int countTables(File file, String type) throws Exception {
+        try (IsoFile isoFile = new IsoFile(new FileDataSourceImpl(file))) {
+            return Path.getPaths(isoFile, "moov/trak/mdia/minf/stbl/" + type).size();
+        }
+    }
+
+    // Every sample of actual has to read back through its chunk offsets as the same bytes at the same time.
+    private static void assertSameSamples(File expected, File actual) throws Exception {
+        try (Mp4Demuxer expectedDemuxer = new Mp4Demuxer(expected); Mp4Demuxer actualDemuxer = new Mp4Demuxer(actual)) {
+            assertEquals(expectedDemuxer.getTrackCount(), actualDemuxer.getTrackCount());
+            for (int t = 0; t < expectedDemuxer.getTrackCount(); t++) {
+                Mp4Demuxer.TrackInfo expectedTrack = expectedDemuxer.getTrack(t);
+                Mp4Demuxer.TrackInfo actualTrack = actualDemuxer.getTrack(t);
+                assertEquals(expectedTrack.getSampleCount(), actualTrack.getSampleCount());
+                for (int a = 0; a < expectedTrack.getSampleCount(); a++) {
+                    assertEquals(expectedTrack.getSampleTimeUs(a), actualTrack.getSampleTimeUs(a));
+                    assertEquals("track " + t + " sample " + a, expectedDemuxer.readSample(t, a), actualDemuxer.readSample(t, a));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void movesMoovBeforeMdatForFastStart() throws Exception {
+        File plain = writeMovie("plain.mp4", false, 0);
+        File fastStart = writeMovie("faststart.mp4", true, 0);
+        assertEquals(Arrays.asList("ftyp", "mdat", "moov"), getTopLevelTypes(plain));
+        assertEquals(Arrays.asList("ftyp", "moov", "mdat"), getTopLevelTypes(fastStart));
+        assertEquals(2, countTables(fastStart, "stco"));
+        assertEquals(0, countTables(fastStart, "co64"));
+        assertEquals(plain.length(), fastStart.length());
+        assertFalse(new File(fastStart.getPath() + ".faststart").exists());
+        try (Mp4Demuxer demuxer = new Mp4Demuxer(fastStart)) {
+            assertTrue(demuxer.isFastStart());
+        }
+        assertSameSamples(plain, fastStart);
+    }
+
+    @Test
+    public void rewritesChunkOffsetsAsCo64PastTheLimit() throws Exception {
+        File plain = writeMovie("plain.mp4", false, 0);
+        File fastStart = writeMovie("faststart.mp4", true, 1);
+        assertEquals(Arrays.asList("ftyp", "moov", "mdat"), getTopLevelTypes(fastStart));
+        assertEquals(0, countTables(fastStart, "stco"));
+        assertEquals(2, countTables(fastStart, "co64"));
+        assertTrue(fastStart.length() > plain.length());
+        assertSameSamples(plain, fastStart);
+    }
+
+    @Test
+    public void writesInterleavedChunksInTimeOrder() throws Exception {
+        long interleaveDurationUs = 500000;
+        File plain = writeMovie("plain.mp4", false, 0);
+        File file = folder.newFile("interleaved.mp4");
+        MP4Builder muxer = new MP4Builder().setInterleave(interleaveDurationUs);
+        muxer.createMovie(createMovie(file), false, false);
+        writeSamples(muxer);
+        assertSameSamples(plain, file);
+
+        // chunks as {track, first sample, samples count}, in file order
+        ArrayList<long[]> chunks = new ArrayList<>();
+        try (Mp4Demuxer demuxer = new Mp4Demuxer(file)) {
+            for (int t = 0; t < demuxer.getTrackCount(); t++) {
+                Mp4Demuxer.TrackInfo track = demuxer.getTrack(t);
+                for (int a = 0; a < track.getSampleCount(); a++) {
+                    if (a == 0 || track.getSampleOffset(a - 1) + track.getSampleSize(a - 1) != track.getSampleOffset(a)) {
+                        chunks.add(new long[]{t, a, 1});
+                    } else {
+                        chunks.get(chunks.size() - 1)[2]++;
+                    }
+                }
+            }
+            chunks.sort((a, b) -> Long.compare(demuxer.getTrack((int) a[0]).getSampleOffset((int) a[1]), demuxer.getTrack((int) b[0]).getSampleOffset((int) b[1])));
+
+            long lastStartUs = Long.MIN_VALUE;
+            for (int a = 0; a < chunks.size(); a++) {
+                long[] chunk = chunks.get(a);
+                Mp4Demuxer.TrackInfo track = demuxer.getTrack((int) chunk[0]);
+                long startUs = track.getSampleTimeUs((int) chunk[1]);
+                long endUs = track.getSampleTimeUs((int) (chunk[1] + chunk[2] - 1));
+                assertTrue("chunk " + a + " starts at " + startUs + " before " + lastStartUs, startUs >= lastStartUs);
+                // a chunk is cut by the sample that crosses the interleave duration, so it may run one frame over
+                assertTrue("chunk " + a + " spans " + (endUs - startUs), endUs - startUs < interleaveDurationUs + TestFormats.FRAME_DURATION_US);
+                if (a > 0) {
+                    assertTrue("chunks " + (a - 1) + " and " + a + " are of one track", chunks.get(a - 1)[0] != chunk[0]);
+                }
+                lastStartUs = startUs;
+            }
+        }
+        long durationUs = FRAMES_COUNT * TestFormats.FRAME_DURATION_US;
+        assertTrue(chunks.size() >= 2 * (int) (durationUs / interleaveDurationUs));
+        assertTrue(chunks.size() <= 2 * (int) (durationUs / interleaveDurationUs + 2));
+    }
+}
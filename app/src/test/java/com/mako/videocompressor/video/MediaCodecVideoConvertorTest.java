@@ -0,0 +1,249 @@
+package com.mako.videocompressor.video;
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.EditListBox;
+import com.coremedia.iso.boxes.MediaHeaderBox;
+import com.coremedia.iso.boxes.MovieBox;
+import com.coremedia.iso.boxes.TimeToSampleBox;
+import com.coremedia.iso.boxes.TrackBox;
+import com.googlecode.mp4parser.FileDataSourceImpl;
+import com.googlecode.mp4parser.util.Path;
+import com.mako.videocompressor.MediaController;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Runs convertVideo's decode, render and encode loop on synthetic codecs over an Mp4Demuxer backed extractor.
+@RunWith(RobolectricTestRunner.class)
+public class MediaCodecVideoConvertorTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 360;
+    private static final int FRAMES_COUNT = 90;
+    private static final int AUDIO_FRAMES_COUNT = 130;
+    private static final int FRAME_RATE = TestFormats.FRAME_RATE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SyntheticCodecFactory factory = new SyntheticCodecFactory();
+    private float lastProgress;
+
+    private File createSource() throws Exception {
+        File file = folder.newFile("source.mp4");
+        TestFormats.writeMovie(file, WIDTH, HEIGHT, FRAMES_COUNT, AUDIO_FRAMES_COUNT);
+        return file;
+    }
+
+    private boolean convert(MediaCodecVideoConvertor convertor, File source, File output, long startTime, long endTime) {
+        return convert(convertor, source, output, startTime, endTime, true);
+    }
+
+    private boolean convert(MediaCodecVideoConvertor convertor, File source, File output, long startTime, long endTime, boolean needCompress) {
+        long duration = endTime > 0 ? endTime : FRAMES_COUNT * 1000000L / FRAME_RATE;
+        return convertor.convertVideo(source.getPath(), output, 0, WIDTH / 2, HEIGHT / 2, FRAME_RATE, 400000, 0,
+                startTime, endTime, -1, needCompress, duration, null, null, null, false, null, new MediaController.VideoConvertorListener() {
+                    @Override
+                    public boolean checkConversionCanceled() {
+                        return false;
+                    }
+
+                    @Override
+                    public void didWriteData(long availableSize, float progress) {
+                        lastProgress = progress;
+                    }
+                });
+    }
+
+    private void assertTranscoded(File source, File output, int framesCount, int audioFramesCount) throws Exception {
+        try (Mp4Demuxer demuxer = new Mp4Demuxer(source); Mp4Demuxer result = new Mp4Demuxer(output)) {
+            Mp4Demuxer.TrackInfo video = result.getTrack(result.findTrack(false));
+            assertEquals(WIDTH / 2, video.width);
+            assertEquals(HEIGHT / 2, video.height);
+            assertEquals(framesCount, video.getSampleCount());
+            assertTrue(video.isSyncSample(0));
+            assertFalse(video.isSyncSample(1));
+            assertTrue(video.isSyncSample(FRAME_RATE * 2));
+            assertEquals(framesCount, factory.getEncodedUnits());
+
+            int sourceAudioIndex = demuxer.findTrack(true);
+            int audioIndex = result.findTrack(true);
+            assertEquals(audioFramesCount, result.getTrack(audioIndex).getSampleCount());
+            for (int a = 0; a < audioFramesCount; a += 17) {
+                assertEquals(demuxer.readSample(sourceAudioIndex, a), result.readSample(audioIndex, a));
+            }
+        }
+    }
+
+    @Test
+    public void transcodesInPollingMode() throws Exception {
+        File source = createSource();
+        File output = folder.newFile("output.mp4");
+        MediaCodecVideoConvertor convertor = new MediaCodecVideoConvertor();
+        convertor.setCodecFactory(factory);
+        assertFalse(convert(convertor, source, output, -1, -1));
+        assertTranscoded(source, output, FRAMES_COUNT, AUDIO_FRAMES_COUNT);
+        assertTrue(lastProgress > 0 && lastProgress <= 1);
+    }
+
+    @Test
+    public void transcodesOnCodecCallbacks() throws Exception {
+        File source = createSource();
+        File output = folder.newFile("output.mp4");
+        MediaCodecVideoConvertor convertor = new MediaCodecVideoConvertor();
+        convertor.setCodecFactory(factory);
+        convertor.setAsyncCodecs(true);
+        assertFalse(convert(convertor, source, output, -1, -1));
+        assertTranscoded(source, output, FRAMES_COUNT, AUDIO_FRAMES_COUNT);
+    }
+
+    @Test
+    public void stopsAtEndTime() throws Exception {
+        File source = createSource();
+        File output = folder.newFile("output.mp4");
+        MediaCodecVideoConvertor convertor = new MediaCodecVideoConvertor();
+        convertor.setCodecFactory(factory);
+        long endTime = 2000000;
+        assertFalse(convert(convertor, source, output, -1, endTime));
+        int audioFramesCount = (int) ((endTime + TestFormats.AUDIO_FRAME_DURATION_US - 1) / TestFormats.AUDIO_FRAME_DURATION_US);
+        assertTranscoded(source, output, (int) ((endTime + TestFormats.FRAME_DURATION_US - 1) / TestFormats.FRAME_DURATION_US), audioFramesCount);
+    }
+
+    @Test
+    public void abortsWithoutMoovOverSizeLimit() throws Exception {
+        File source = createSource();
+        File output = folder.newFile("output.mp4");
+        MediaCodecVideoConvertor convertor = new MediaCodecVideoConvertor();
+        convertor.setCodecFactory(factory);
+        convertor.setSizeLimit(10000);
+        assertTrue(convert(convertor, source, output, -1, -1));
+        assertTrue(convertor.isSizeLimitExceeded());
+        assertTrue(convertor.getProjectedSize() > 10000);
+        assertTrue(factory.getEncodedUnits() < FRAMES_COUNT);
+        try (IsoFile isoFile = new IsoFile(new FileDataSourceImpl(output))) {
+            assertTrue(isoFile.getBoxes(MovieBox.class).isEmpty());
+        }
+    }
+
+    // Trims half a frame before startFrame, so the first kept frame does not depend on how sample times round.
+    private static long getTrimStartUs(int startFrame) {
+        return startFrame * TestFormats.FRAME_DURATION_US - TestFormats.FRAME_DURATION_US / 2;
+    }
+
+    // A trim starting between key frames is copied from the previous key frame, and the edit list hides the lead-in.
+    @Test
+    public void writesEditListForTrimmedPassthrough() throws Exception {
+        File source = createSource();
+        File output = folder.newFile("output.mp4");
+        MediaCodecVideoConvertor convertor = new MediaCodecVideoConvertor();
+        convertor.setCodecFactory(factory);
+        int startFrame = FRAME_RATE + 3;
+        int syncFrame = startFrame / FRAME_RATE * FRAME_RATE;
+        long startUs = getTrimStartUs(startFrame);
+        assertFalse(convert(convertor, source, output, startUs, -1, false));
+        assertEquals(0, factory.getEncodedUnits());
+
+        try (Mp4Demuxer result = new Mp4Demuxer(output)) {
+            Mp4Demuxer.TrackInfo video = result.getTrack(result.findTrack(false));
+            assertEquals(FRAMES_COUNT - syncFrame, video.getSampleCount());
+            assertTrue(video.isSyncSample(0));
+        }
+        try (IsoFile isoFile = new IsoFile(new FileDataSourceImpl(output))) {
+            TrackBox trak = null;
+            for (TrackBox box : isoFile.getMovieBox().getBoxes(TrackBox.class)) {
+                if ("vide".equals(box.getMediaBox().getHandlerBox().getHandlerType())) {
+                    trak = box;
+                }
+            }
+            assertTrue(trak != null);
+            MediaHeaderBox mdhd = trak.getMediaBox().getMediaHeaderBox();
+            long[] deltas = TimeToSampleBox.blowupTimeToSamples(trak.getSampleTableBox().getTimeToSampleBox().getEntries());
+            long leadIn = 0;
+            for (int a = 0; a < startFrame - syncFrame; a++) {
+                leadIn += deltas[a];
+            }
+            // the edit starts half a frame before the first presented sample, give or take the timescale rounding
+            long mediaTime = leadIn - (startFrame * TestFormats.FRAME_DURATION_US - startUs) * mdhd.getTimescale() / 1000000;
+
+            EditListBox elst = (EditListBox) Path.getPath(trak, "edts/elst");
+            assertEquals(1, elst.getEntries().size());
+            EditListBox.Entry entry = elst.getEntries().get(0);
+            assertEquals(mediaTime, entry.getMediaTime(), 1);
+            assertEquals(1.0, entry.getMediaRate(), 0);
+            long movieTimescale = isoFile.getMovieBox().getMovieHeaderBox().getTimescale();
+            assertEquals((mdhd.getDuration() - entry.getMediaTime()) * movieTimescale / mdhd.getTimescale(), entry.getSegmentDuration());
+        }
+    }
+
+    // Frames before the first key frame inside the trim are re-encoded, the rest is copied starting on that key frame.
+    @Test
+    public void smartCutSplicesOnSourceKeyFrame() throws Exception {
+        File source = createSource();
+        File output = folder.newFile("output.mp4");
+        MediaCodecVideoConvertor convertor = new MediaCodecVideoConvertor();
+        convertor.setCodecFactory(factory);
+        convertor.setSmartCut(true);
+        int startFrame = FRAME_RATE + 3;
+        int spliceFrame = FRAME_RATE * 2;
+        assertFalse(convert(convertor, source, output, getTrimStartUs(startFrame), -1, false));
+        assertEquals(spliceFrame - startFrame, factory.getEncodedUnits());
+
+        try (Mp4Demuxer demuxer = new Mp4Demuxer(source); Mp4Demuxer result = new Mp4Demuxer(output)) {
+            int sourceIndex = demuxer.findTrack(false);
+            int index = result.findTrack(false);
+            Mp4Demuxer.TrackInfo video = result.getTrack(index);
+            int splice = spliceFrame - startFrame;
+            assertEquals(FRAMES_COUNT - startFrame, video.getSampleCount());
+            assertTrue(video.isSyncSample(0));
+            assertFalse(video.isSyncSample(splice - 1));
+            assertTrue(video.isSyncSample(splice));
+            // the copied key frame follows the last encoded frame one frame later, within a tick of the track timescale
+            assertEquals(TestFormats.FRAME_DURATION_US, video.getSampleTimeUs(splice) - video.getSampleTimeUs(splice - 1), 1000000.0 / video.timeScale + 1);
+            for (int a = splice; a < video.getSampleCount(); a += 7) {
+                assertEquals(demuxer.readSample(sourceIndex, spliceFrame + a - splice), result.readSample(index, a));
+            }
+        }
+    }
+
+    // An interrupt while the segment workers run has to stop and join all of them before convertVideo returns.
+    @Test
+    public void stopsSegmentWorkersWhenInterrupted() throws Exception {
+        File source = folder.newFile("source.mp4");
+        int framesCount = FRAME_RATE * 5;
+        TestFormats.writeMovie(source, WIDTH, HEIGHT, framesCount, 0);
+        File output = folder.newFile("output.mp4");
+        MediaCodecVideoConvertor convertor = new MediaCodecVideoConvertor();
+        convertor.setCodecFactory(factory);
+        convertor.setTranscodeSegments(2);
+        Thread converting = Thread.currentThread();
+        boolean error = convertor.convertVideo(source.getPath(), output, 0, WIDTH / 2, HEIGHT / 2, FRAME_RATE, 400000, 0,
+                -1, -1, -1, true, framesCount * 1000000L / FRAME_RATE, null, null, null, false, null, new MediaController.VideoConvertorListener() {
+                    @Override
+                    public boolean checkConversionCanceled() {
+                        return false;
+                    }
+
+                    @Override
+                    public void didWriteData(long availableSize, float progress) {
+                        if (Thread.currentThread().getName().startsWith("TranscodeSegment")) {
+                            converting.interrupt();
+                        }
+                    }
+                });
+        Thread.interrupted();
+        assertTrue(error);
+        assertTrue(factory.getEncodedUnits() < framesCount);
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse(thread.getName(), thread.getName().startsWith("TranscodeSegment"));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.mako.videocompressor.video;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ResultCacheTest {
+
+    private static final int LARGE_SIZE = 3 * 1024 * 1024;
+    private static final int MOOV_OFFSET = 70000;
+    private static final int MOOV_SIZE = 1000;
+    private static final int SAMPLE_STRIDE = (LARGE_SIZE - 64 * 1024) / 31;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File createFile(String name, byte[] data) throws Exception {
+        File file = folder.newFile(name);
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.write(data);
+        }
+        return file;
+    }
+
+    private static byte[] createData(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    // ftyp, mdat, moov, mdat; the moov lands between two sampled blocks of a LARGE_SIZE file.
+    private static byte[] createMp4(int size) {
+        byte[] data = createData(size);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.putInt(0, 16).putInt(4, 0x66747970);
+        buffer.putInt(16, MOOV_OFFSET - 16).putInt(20, 0x6d646174);
+        buffer.putInt(MOOV_OFFSET, MOOV_SIZE).putInt(MOOV_OFFSET + 4, 0x6d6f6f76);
+        buffer.putInt(MOOV_OFFSET + MOOV_SIZE, size - MOOV_OFFSET - MOOV_SIZE).putInt(MOOV_OFFSET + MOOV_SIZE + 4, 0x6d646174);
+        return data;
+    }
+
+    private static void flipByte(File file, long offset) throws Exception {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(offset);
+            int value = randomAccessFile.read();
+            randomAccessFile.seek(offset);
+            randomAccessFile.write(value ^ 0xff);
+        }
+    }
+
+    @Test
+    public void matchesIdenticalFiles() throws Exception {
+        byte[] data = createMp4(LARGE_SIZE);
+        assertArrayEquals(ResultCache.fingerprint(createFile("a.mp4", data)), ResultCache.fingerprint(createFile("b.mp4", data)));
+        assertEquals(32, ResultCache.fingerprint(createFile("c.mp4", data)).length);
+    }
+
+    @Test
+    public void hashesSmallFilesCompletely() throws Exception {
+        byte[] data = createData(300000);
+        File file = createFile("small.mp4", data);
+        byte[] fingerprint = ResultCache.fingerprint(file);
+        for (long offset : new long[]{0, 100000, 299999}) {
+            flipByte(file, offset);
+            assertFalse(Arrays.equals(fingerprint, ResultCache.fingerprint(file)));
+            flipByte(file, offset);
+        }
+        assertArrayEquals(fingerprint, ResultCache.fingerprint(file));
+    }
+
+    @Test
+    public void coversSampledBlocksAndMoovOfLargeFiles() throws Exception {
+        File file = createFile("large.mp4", createMp4(LARGE_SIZE));
+        byte[] fingerprint = ResultCache.fingerprint(file);
+        for (long offset : new long[]{100, MOOV_OFFSET + MOOV_SIZE / 2, 16 * SAMPLE_STRIDE + 100, LARGE_SIZE - 1}) {
+            flipByte(file, offset);
+            assertFalse("offset " + offset, Arrays.equals(fingerprint, ResultCache.fingerprint(file)));
+            flipByte(file, offset);
+        }
+        assertArrayEquals(fingerprint, ResultCache.fingerprint(file));
+    }
+
+    @Test
+    public void includesFileSize() throws Exception {
+        byte[] data = createData(LARGE_SIZE);
+        byte[] longer = new byte[LARGE_SIZE + 1];
+        System.arraycopy(data, 0, longer, 0, data.length);
+        assertFalse(Arrays.equals(ResultCache.fingerprint(createFile("a.mp4", data)), ResultCache.fingerprint(createFile("b.mp4", longer))));
+    }
+}
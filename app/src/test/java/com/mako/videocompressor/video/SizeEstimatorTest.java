@@ -0,0 +1,56 @@
+package com.mako.videocompressor.video;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SizeEstimatorTest {
+
+    private static MediaInfo createInfo(int source, String audioMime) {
+        return new MediaInfo("/source.mp4", 5000000, 0, source,
+                10000, 1280, 720, 0, 3200000, 30,
+                "video/avc", audioMime,
+                300, 4000000, 430, 160000);
+    }
+
+    @Test
+    public void sumsSampleTablesForPassthrough() {
+        MediaInfo info = createInfo(MediaInfo.SOURCE_CONTAINER, "audio/mp4a-latm");
+        assertEquals(512 + 160000 + 4000000 + (430 + 300) * 12, SizeEstimator.estimate(info, -1, -1, 0, false, false));
+    }
+
+    @Test
+    public void scalesWithTrimmedRange() {
+        MediaInfo info = createInfo(MediaInfo.SOURCE_CONTAINER, "audio/mp4a-latm");
+        assertEquals(512 + 80000 + 2000000 + (215 + 150) * 12, SizeEstimator.estimate(info, 2500000, 7500000, 0, false, false));
+        assertEquals(2500000, SizeEstimator.getSourceSize(info, 5000000, -1));
+        assertEquals(0, SizeEstimator.estimate(info, 12000000, -1, 0, false, false));
+    }
+
+    @Test
+    public void usesTargetBitrateWhenCompressing() {
+        MediaInfo info = createInfo(MediaInfo.SOURCE_CONTAINER, "audio/mp4a-latm");
+        assertEquals(512 + 160000 + 1000000 + (430 + 300) * 12, SizeEstimator.estimate(info, -1, -1, 800000, true, false));
+    }
+
+    @Test
+    public void dropsAudioWhenMutedOrMissing() {
+        assertEquals(512 + 4000000 + 300 * 12, SizeEstimator.estimate(createInfo(MediaInfo.SOURCE_CONTAINER, "audio/mp4a-latm"), -1, -1, 0, false, true));
+        assertEquals(512 + 4000000 + 300 * 12, SizeEstimator.estimate(createInfo(MediaInfo.SOURCE_CONTAINER, null), -1, -1, 0, false, false));
+    }
+
+    @Test
+    public void fallsBackToBitratesWithoutSampleTables() {
+        MediaInfo info = createInfo(MediaInfo.SOURCE_RETRIEVER, "audio/mp4a-latm");
+        long audioBytes = 128000 / 8 * 10;
+        assertEquals(512 + audioBytes + (5000000 - audioBytes) + 300 * 12, SizeEstimator.estimate(info, -1, -1, 0, false, false));
+    }
+
+    @Test
+    public void returnsZeroForUnknownDuration() {
+        MediaInfo info = new MediaInfo("/source.mp4", 5000000, 0, MediaInfo.SOURCE_CONTAINER,
+                0, 1280, 720, 0, 0, 30, "video/avc", null, 0, 0, 0, 0);
+        assertEquals(0, SizeEstimator.estimate(info, -1, -1, 0, true, false));
+        assertEquals(0, SizeEstimator.getSourceSize(info, -1, -1));
+    }
+}
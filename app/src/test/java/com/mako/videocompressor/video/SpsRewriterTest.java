@@ -0,0 +1,99 @@
+package com.mako.videocompressor.video;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class SpsRewriterTest {
+
+    // High profile 1920x1080 sps with vui and emulation prevention bytes.
+    private static final byte[] HIGH_PROFILE_SPS = {
+            0x67, 0x64, 0x00, 0x28, (byte) 0xac, (byte) 0xd9, 0x40, 0x78, 0x02, 0x27, (byte) 0xe5, (byte) 0xc0, 0x44, 0x00, 0x00, 0x03,
+            0x00, 0x04, 0x00, 0x00, 0x03, 0x00, (byte) 0xf0, 0x3c, 0x60, (byte) 0xc6, 0x58
+    };
+
+    private static byte[] createSps(int width, int height) throws Exception {
+        return TestFormats.getSps(TestFormats.createVideoFormat(width, height));
+    }
+
+    @Test
+    public void readsSizeAndCropping() throws Exception {
+        SpsRewriter rewriter = new SpsRewriter(createSps(1920, 1080));
+        assertEquals(1920, rewriter.codedWidth);
+        assertEquals(1088, rewriter.codedHeight);
+        assertEquals(2, rewriter.cropUnitX);
+        assertEquals(2, rewriter.cropUnitY);
+        assertEquals(4, rewriter.cropBottom);
+        assertEquals(1920, rewriter.getWidth());
+        assertEquals(1080, rewriter.getHeight());
+    }
+
+    @Test
+    public void readsHighProfileSps() {
+        SpsRewriter rewriter = new SpsRewriter(HIGH_PROFILE_SPS);
+        assertEquals(1920, rewriter.getWidth());
+        assertEquals(1080, rewriter.getHeight());
+    }
+
+    @Test
+    public void cropsInsideTheCodedFrame() throws Exception {
+        SpsRewriter rewriter = new SpsRewriter(createSps(1920, 1080));
+        SpsRewriter cropped = new SpsRewriter(rewriter.crop(320, 180, 1280, 720));
+        assertEquals(1920, cropped.codedWidth);
+        assertEquals(1088, cropped.codedHeight);
+        assertEquals(160, cropped.cropLeft);
+        assertEquals(160, cropped.cropRight);
+        assertEquals(90, cropped.cropTop);
+        assertEquals(94, cropped.cropBottom);
+        assertEquals(1280, cropped.getWidth());
+        assertEquals(720, cropped.getHeight());
+    }
+
+    @Test
+    public void keepsEverythingAfterTheCroppingFields() {
+        SpsRewriter rewriter = new SpsRewriter(HIGH_PROFILE_SPS);
+        assertArrayEquals(HIGH_PROFILE_SPS, rewriter.crop(0, 0, 1920, 1080));
+        byte[] sps = rewriter.crop(0, 0, 1440, 1080);
+        SpsRewriter cropped = new SpsRewriter(sps);
+        assertEquals(1440, cropped.getWidth());
+        assertEquals(1080, cropped.getHeight());
+        assertArrayEquals(sps, cropped.crop(0, 0, 1440, 1080));
+    }
+
+    @Test
+    public void clearsCroppingFlagWhenNothingIsCropped() throws Exception {
+        SpsRewriter rewriter = new SpsRewriter(createSps(1280, 720));
+        byte[] sps = rewriter.crop(0, 0, 1280, 720);
+        SpsRewriter cropped = new SpsRewriter(sps);
+        assertEquals(0, cropped.cropLeft + cropped.cropRight + cropped.cropTop + cropped.cropBottom);
+        assertEquals(1280, cropped.getWidth());
+        assertEquals(720, cropped.getHeight());
+    }
+
+    @Test
+    public void rejectsUnalignedCrop() throws Exception {
+        SpsRewriter rewriter = new SpsRewriter(createSps(1280, 720));
+        assertFalse(rewriter.canCrop(1, 0, 640, 360));
+        assertFalse(rewriter.canCrop(0, 0, 641, 360));
+        assertFalse(rewriter.canCrop(0, 0, 1282, 720));
+        assertTrue(rewriter.canCrop(2, 2, 640, 360));
+        try {
+            rewriter.crop(0, 1, 640, 360);
+            fail();
+        } catch (IllegalArgumentException ignore) {
+
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherNalUnits() {
+        new SpsRewriter(new byte[]{0x68, (byte) 0xce, 0x3c, (byte) 0x80});
+    }
+}
@@ -0,0 +1,82 @@
+package com.mako.videocompressor.video;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpscQueueTest {
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(2, new SpscQueue<Integer>(1).capacity());
+        assertEquals(8, new SpscQueue<Integer>(5).capacity());
+        assertEquals(8, new SpscQueue<Integer>(8).capacity());
+        assertEquals(16, new SpscQueue<Integer>(9).capacity());
+    }
+
+    @Test
+    public void keepsOrderAndRejectsOfferWhenFull() {
+        SpscQueue<Integer> queue = new SpscQueue<>(4);
+        for (int a = 0; a < 4; a++) {
+            assertTrue(queue.offer(a));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(4, queue.size());
+        assertEquals(Integer.valueOf(0), queue.peek());
+        assertEquals(4, queue.size());
+        for (int a = 0; a < 4; a++) {
+            assertEquals(Integer.valueOf(a), queue.poll());
+        }
+        assertNull(queue.peek());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void wrapsAroundTheRing() {
+        SpscQueue<Integer> queue = new SpscQueue<>(4);
+        ArrayDeque<Integer> expected = new ArrayDeque<>();
+        Random random = new Random(1);
+        for (int a = 0; a < 10000; a++) {
+            if (random.nextInt(3) != 0) {
+                boolean offered = queue.offer(a);
+                assertEquals(expected.size() < queue.capacity(), offered);
+                if (offered) {
+                    expected.add(a);
+                }
+            } else {
+                assertEquals(expected.poll(), queue.poll());
+            }
+            assertEquals(expected.size(), queue.size());
+        }
+    }
+
+    @Test
+    public void handsOverEveryItemInOrderBetweenTwoThreads() throws Exception {
+        final int count = 1000000;
+        final SpscQueue<Integer> queue = new SpscQueue<>(64);
+        Thread producer = new Thread(() -> {
+            for (int a = 0; a < count; a++) {
+                while (!queue.offer(a)) {
+                    Thread.yield();
+                }
+            }
+        });
+        producer.start();
+        for (int a = 0; a < count; a++) {
+            Integer item;
+            while ((item = queue.poll()) == null) {
+                Thread.yield();
+            }
+            assertEquals(a, item.intValue());
+        }
+        producer.join();
+        assertNull(queue.poll());
+    }
+}
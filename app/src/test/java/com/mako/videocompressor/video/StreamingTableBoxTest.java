@@ -0,0 +1,181 @@
+package com.mako.videocompressor.video;
+
+import android.media.MediaCodec;
+
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.ChunkOffset64BitBox;
+import com.coremedia.iso.boxes.CompositionTimeToSample;
+import com.coremedia.iso.boxes.SampleSizeBox;
+import com.coremedia.iso.boxes.SampleToChunkBox;
+import com.coremedia.iso.boxes.StaticChunkOffsetBox;
+import com.coremedia.iso.boxes.SyncSampleBox;
+import com.coremedia.iso.boxes.TimeToSampleBox;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// The streaming tables have to stay byte-identical to the isoparser boxes MP4Builder used to build from entry lists.
+@RunWith(RobolectricTestRunner.class)
+public class StreamingTableBoxTest {
+
+    private static final int SAMPLES_COUNT = 500;
+    // small enough that every table is flushed several times while it is written
+    private static final ByteBuffer BUFFER = ByteBuffer.allocateDirect(64);
+
+    private Track track;
+
+    // IPBB groups with a key frame every 30 frames, written in chunks of 1 to 7 samples with gaps between them.
+    @Before
+    public void createTrack() throws Exception {
+        track = new Track(0, TestFormats.createVideoFormat(320, 180), false);
+        int[] order = {0, 3, 1, 2};
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long offset = 48;
+        int chunkSamples = 0;
+        for (int a = 0; a < SAMPLES_COUNT; a++) {
+            int frame = a / 4 * 4 + order[a % 4];
+            int size = 100 + a * 7 % 50;
+            info.set(0, size, frame * TestFormats.FRAME_DURATION_US, frame % TestFormats.FRAME_RATE == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            track.addSample(offset, info);
+            offset += size;
+            if (++chunkSamples == 1 + a % 7) {
+                offset += 1000;
+                chunkSamples = 0;
+            }
+        }
+        track.prepare();
+    }
+
+    private static byte[] toBytes(Box box) throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        box.getBox(Channels.newChannel(stream));
+        byte[] bytes = stream.toByteArray();
+        assertEquals(box.getType(), box.getSize(), bytes.length);
+        return bytes;
+    }
+
+    private void assertSameBox(Box expected, StreamingTableBox actual) throws Exception {
+        assertEquals(expected.getType(), actual.getType());
+        assertArrayEquals(expected.getType(), toBytes(expected), toBytes(actual));
+    }
+
+    private long[] getChunkOffsets(long shift) {
+        ArrayList<Long> offsets = new ArrayList<>();
+        long lastOffset = -1;
+        for (int a = 0; a < track.getSampleCount(); a++) {
+            long offset = track.getSampleOffset(a);
+            if (lastOffset != offset) {
+                offsets.add(offset + shift);
+            }
+            lastOffset = offset + track.getSampleSize(a);
+        }
+        long[] result = new long[offsets.size()];
+        for (int a = 0; a < result.length; a++) {
+            result[a] = offsets.get(a);
+        }
+        return result;
+    }
+
+    @Test
+    public void writesTimeToSampleAsIsoparser() throws Exception {
+        List<TimeToSampleBox.Entry> entries = new ArrayList<>();
+        TimeToSampleBox.Entry lastEntry = null;
+        for (long delta : track.getSampleDurations()) {
+            if (lastEntry != null && lastEntry.getDelta() == delta) {
+                lastEntry.setCount(lastEntry.getCount() + 1);
+            } else {
+                lastEntry = new TimeToSampleBox.Entry(1, delta);
+                entries.add(lastEntry);
+            }
+        }
+        TimeToSampleBox stts = new TimeToSampleBox();
+        stts.setEntries(entries);
+        assertSameBox(stts, new StreamingTableBox.TimeToSample(track, BUFFER));
+    }
+
+    @Test
+    public void writesCompositionTimeToSampleAsIsoparser() throws Exception {
+        List<CompositionTimeToSample.Entry> entries = new ArrayList<>();
+        CompositionTimeToSample.Entry lastEntry = null;
+        for (int offset : track.getSampleCompositions()) {
+            if (lastEntry != null && lastEntry.getOffset() == offset) {
+                lastEntry.setCount(lastEntry.getCount() + 1);
+            } else {
+                lastEntry = new CompositionTimeToSample.Entry(1, offset);
+                entries.add(lastEntry);
+            }
+        }
+        assertTrue(entries.size() > 1);
+        CompositionTimeToSample ctts = new CompositionTimeToSample();
+        ctts.setEntries(entries);
+        assertSameBox(ctts, new StreamingTableBox.CompositionTimeToSample(track, BUFFER));
+    }
+
+    @Test
+    public void writesSyncSamplesAsIsoparser() throws Exception {
+        SyncSampleBox stss = new SyncSampleBox();
+        stss.setSampleNumber(track.getSyncSamples());
+        assertSameBox(stss, new StreamingTableBox.SyncSamples(track, BUFFER));
+    }
+
+    @Test
+    public void writesSampleToChunkAsIsoparser() throws Exception {
+        List<SampleToChunkBox.Entry> entries = new ArrayList<>();
+        int chunkNumber = 1;
+        int samplesInChunk = 0;
+        int previousSamplesInChunk = -1;
+        for (int a = 0; a < track.getSampleCount(); a++) {
+            samplesInChunk++;
+            if (a == track.getSampleCount() - 1 || track.getSampleOffset(a) + track.getSampleSize(a) != track.getSampleOffset(a + 1)) {
+                if (previousSamplesInChunk != samplesInChunk) {
+                    entries.add(new SampleToChunkBox.Entry(chunkNumber, samplesInChunk, 1));
+                    previousSamplesInChunk = samplesInChunk;
+                }
+                samplesInChunk = 0;
+                chunkNumber++;
+            }
+        }
+        SampleToChunkBox stsc = new SampleToChunkBox();
+        stsc.setEntries(entries);
+        assertSameBox(stsc, new StreamingTableBox.SampleToChunk(track, BUFFER));
+    }
+
+    @Test
+    public void writesSampleSizesAsIsoparser() throws Exception {
+        long[] sizes = new long[track.getSampleCount()];
+        for (int a = 0; a < sizes.length; a++) {
+            sizes[a] = track.getSampleSize(a);
+        }
+        SampleSizeBox stsz = new SampleSizeBox();
+        stsz.setSampleSizes(sizes);
+        assertSameBox(stsz, new StreamingTableBox.SampleSizes(track, BUFFER));
+    }
+
+    @Test
+    public void writesChunkOffsetsAsIsoparser() throws Exception {
+        StaticChunkOffsetBox stco = new StaticChunkOffsetBox();
+        stco.setChunkOffsets(getChunkOffsets(0));
+        StreamingTableBox.ChunkOffsets chunkOffsets = new StreamingTableBox.ChunkOffsets(track, BUFFER);
+        assertEquals(stco.getChunkOffsets().length, chunkOffsets.getChunksCount());
+        assertSameBox(stco, chunkOffsets);
+
+        long shift = 0xffffffffL;
+        ChunkOffset64BitBox co64 = new ChunkOffset64BitBox();
+        co64.setChunkOffsets(getChunkOffsets(shift));
+        chunkOffsets.setLarge(true);
+        chunkOffsets.setShift(shift);
+        assertSameBox(co64, chunkOffsets);
+    }
+}
@@ -0,0 +1,129 @@
+package com.mako.videocompressor.video;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.mako.videocompressor.MediaController;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class SyntheticCodecFactoryTest {
+
+    private static final int FRAMES_COUNT = 45;
+    private static final int FRAME_RATE = 30;
+    private static final int TIMEOUT_USEC = 2500;
+
+    // Feeds FRAMES_COUNT frames through the renderer of a video encoder and returns everything it output.
+    private static byte[] encodeVideo(SyntheticCodecFactory factory, ArrayList<Integer> keyFrames) throws Exception {
+        Codec encoder = factory.createEncoder(MediaController.VIDEO_MIME_TYPE);
+        MediaFormat format = MediaFormat.createVideoFormat(MediaController.VIDEO_MIME_TYPE, 320, 180);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, 300000);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        encoder.configure(format, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        FrameRenderer renderer = factory.createRenderer(encoder, null, null, null, null, null, 320, 180, 0, FRAME_RATE, false);
+        encoder.start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean formatChanged = false;
+        try {
+            for (int a = 0; a < FRAMES_COUNT; a++) {
+                renderer.drawFrame(a * 1000000L / FRAME_RATE);
+            }
+            encoder.signalEndOfInputStream();
+            while (true) {
+                int index = encoder.dequeueOutputBuffer(info, TIMEOUT_USEC);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    formatChanged = true;
+                    continue;
+                } else if (index < 0) {
+                    continue;
+                }
+                assertTrue(formatChanged);
+                ByteBuffer buffer = encoder.getOutputBuffer(index);
+                byte[] data = new byte[info.size];
+                buffer.position(info.offset);
+                buffer.get(data);
+                output.write(data);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                    keyFrames.add((int) (info.presentationTimeUs * FRAME_RATE / 1000000));
+                }
+                encoder.releaseOutputBuffer(index, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            }
+        } finally {
+            renderer.release();
+            encoder.stop();
+            encoder.release();
+        }
+        return output.toByteArray();
+    }
+
+    @Test
+    public void encodesDeterministicAccessUnits() throws Exception {
+        SyntheticCodecFactory factory = new SyntheticCodecFactory();
+        ArrayList<Integer> keyFrames = new ArrayList<>();
+        byte[] first = encodeVideo(factory, keyFrames);
+        assertEquals(FRAMES_COUNT, factory.getEncodedUnits());
+        assertEquals(Arrays.asList(0, FRAME_RATE), keyFrames);
+
+        factory.setLatency(2000);
+        byte[] second = encodeVideo(factory, new ArrayList<>());
+        assertArrayEquals(first, second);
+    }
+
+    @Test
+    public void reportsCodecSpecificData() throws Exception {
+        MediaFormat format = TestFormats.createVideoFormat(640, 360);
+        assertEquals(MediaController.VIDEO_MIME_TYPE, format.getString(MediaFormat.KEY_MIME));
+        assertEquals(0x67, TestFormats.getSps(format)[0]);
+        ByteBuffer pps = format.getByteBuffer("csd-1");
+        assertEquals(1, pps.getInt(0));
+        assertEquals(0x68, pps.get(4));
+    }
+
+    @Test
+    public void limitsInstances() throws Exception {
+        SyntheticCodecFactory factory = new SyntheticCodecFactory();
+        factory.setMaxInstances(1);
+        Codec encoder = factory.createEncoder(MediaController.VIDEO_MIME_TYPE);
+        try {
+            factory.createEncoder(MediaController.VIDEO_MIME_TYPE);
+            fail();
+        } catch (IOException ignore) {
+
+        }
+        factory.createDecoder(MediaController.VIDEO_MIME_TYPE).release();
+        encoder.release();
+        factory.createEncoder(MediaController.VIDEO_MIME_TYPE).release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEncodeFlagOnDecoder() throws Exception {
+        Codec decoder = new SyntheticCodecFactory().createDecoder(MediaController.VIDEO_MIME_TYPE);
+        decoder.configure(MediaFormat.createVideoFormat(MediaController.VIDEO_MIME_TYPE, 320, 180), null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsCallsBeforeStart() throws Exception {
+        Codec decoder = new SyntheticCodecFactory().createDecoder(MediaController.AUIDO_MIME_TYPE);
+        decoder.configure(TestFormats.createAudioFormat(), null, 0);
+        decoder.dequeueInputBuffer(0);
+    }
+}
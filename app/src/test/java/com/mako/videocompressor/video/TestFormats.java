@@ -0,0 +1,89 @@
+package com.mako.videocompressor.video;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.mako.videocompressor.MediaController;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+final class TestFormats {
+
+    static final int FRAME_RATE = 30;
+    static final long FRAME_DURATION_US = 1000000 / FRAME_RATE;
+    static final long AUDIO_FRAME_DURATION_US = 1024 * 1000000L / 44100;
+
+    private TestFormats() {
+
+    }
+
+    // The avc format a synthetic encoder reports, with start code prefixed sps and pps in csd-0 and csd-1.
+    static MediaFormat createVideoFormat(int width, int height) throws Exception {
+        Codec encoder = new SyntheticCodecFactory().createEncoder(MediaController.VIDEO_MIME_TYPE);
+        try {
+            encoder.configure(MediaFormat.createVideoFormat(MediaController.VIDEO_MIME_TYPE, width, height), null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            return encoder.getOutputFormat();
+        } finally {
+            encoder.release();
+        }
+    }
+
+    static MediaFormat createAudioFormat() {
+        MediaFormat format = MediaFormat.createAudioFormat(MediaController.AUIDO_MIME_TYPE, 44100, 2);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(new byte[]{0x12, 0x10}));
+        return format;
+    }
+
+    // Writes an interleaved source movie with a key frame every second and fill patterns derived from the sample index.
+    static void writeMovie(File file, int width, int height, int framesCount, int audioFramesCount) throws Exception {
+        Mp4Movie movie = new Mp4Movie();
+        movie.setCacheFile(file);
+        movie.setSize(width, height);
+        MP4Builder muxer = new MP4Builder().createMovie(movie, true);
+        int videoTrackIndex = muxer.addTrack(createVideoFormat(width, height), false);
+        int audioTrackIndex = audioFramesCount > 0 ? muxer.addTrack(createAudioFormat(), true) : -1;
+        writeSamples(muxer, videoTrackIndex, framesCount, audioTrackIndex, audioFramesCount);
+        muxer.finishMovie();
+    }
+
+    // Writes the samples of writeMovie in presentation order to the given tracks of muxer.
+    static void writeSamples(MP4Builder muxer, int videoTrackIndex, int framesCount, int audioTrackIndex, int audioFramesCount) throws Exception {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(8192);
+        int videoFrame = 0;
+        int audioFrame = 0;
+        while (videoFrame < framesCount || audioFrame < audioFramesCount) {
+            buffer.clear();
+            if (audioFrame >= audioFramesCount || videoFrame < framesCount && videoFrame * FRAME_DURATION_US <= audioFrame * AUDIO_FRAME_DURATION_US) {
+                boolean keyFrame = videoFrame % FRAME_RATE == 0;
+                int size = keyFrame ? 3000 : 1000;
+                buffer.putInt(1).put((byte) (keyFrame ? 0x65 : 0x41));
+                fill(buffer, size - 5, videoFrame);
+                info.set(0, size, videoFrame * FRAME_DURATION_US, keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                muxer.writeSampleData(videoTrackIndex, buffer, info, true);
+                videoFrame++;
+            } else {
+                fill(buffer, 300, -audioFrame - 1);
+                info.set(0, 300, audioFrame * AUDIO_FRAME_DURATION_US, 0);
+                muxer.writeSampleData(audioTrackIndex, buffer, info, false);
+                audioFrame++;
+            }
+        }
+    }
+
+    private static void fill(ByteBuffer buffer, int count, int seed) {
+        for (int a = 0; a < count; a++) {
+            buffer.put((byte) (1 + (seed * 31 + a) % 255));
+        }
+        buffer.flip();
+    }
+
+    static byte[] getSps(MediaFormat format) {
+        ByteBuffer csd = format.getByteBuffer("csd-0").duplicate();
+        csd.position(4);
+        byte[] sps = new byte[csd.remaining()];
+        csd.get(sps);
+        return sps;
+    }
+}
@@ -0,0 +1,113 @@
+package com.mako.videocompressor.video;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class TrackTest {
+
+    private static final int SAMPLES_COUNT = 1000;
+    private static final int FRAME_DURATION = 3000;
+
+    private static Track createVideoTrack() throws Exception {
+        return new Track(0, TestFormats.createVideoFormat(320, 180), false);
+    }
+
+    private static void addSample(Track track, long offset, int size, long presentationTimeUs, boolean keyFrame) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, size, presentationTimeUs, keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        track.addSample(offset, info);
+    }
+
+    @Test
+    public void growsColumnsPastTheirInitialCapacity() throws Exception {
+        Track track = createVideoTrack();
+        for (int a = 0; a < SAMPLES_COUNT; a++) {
+            addSample(track, 1000L * a + (1L << 32), 100 + a, a * TestFormats.FRAME_DURATION_US, a % TestFormats.FRAME_RATE == 0);
+        }
+        assertEquals(SAMPLES_COUNT, track.getSampleCount());
+        for (int a = 0; a < SAMPLES_COUNT; a += 97) {
+            assertEquals(1000L * a + (1L << 32), track.getSampleOffset(a));
+            assertEquals(100 + a, track.getSampleSize(a));
+            assertEquals((a * TestFormats.FRAME_DURATION_US * 90000 + 500000) / 1000000, track.getSamplePresentationTime(a));
+            assertEquals(1, track.getSampleDescriptionIndex(a));
+            assertEquals(a % TestFormats.FRAME_RATE == 0, track.isSyncSample(a));
+        }
+        int syncSamplesCount = (SAMPLES_COUNT + TestFormats.FRAME_RATE - 1) / TestFormats.FRAME_RATE;
+        assertEquals(syncSamplesCount, track.getSyncSamplesCount());
+        assertEquals(syncSamplesCount, track.getSyncSamples().length);
+        assertEquals(TestFormats.FRAME_RATE * 3 + 1, track.getSyncSample(3));
+        assertEquals(TestFormats.FRAME_RATE * 2, track.findSyncSample(TestFormats.FRAME_DURATION_US * (TestFormats.FRAME_RATE * 3 - 1)));
+    }
+
+    @Test
+    public void keepsAudioSamplesSync() {
+        Track track = new Track(1, TestFormats.createAudioFormat(), true);
+        addSample(track, 0, 300, 0, false);
+        addSample(track, 300, 300, TestFormats.AUDIO_FRAME_DURATION_US, false);
+        assertNull(track.getSyncSamples());
+        assertTrue(track.isSyncSample(1));
+        assertEquals(44100, track.getTimeScale());
+        assertEquals(1, track.findSyncSample(TestFormats.AUDIO_FRAME_DURATION_US * 3 / 2));
+    }
+
+    @Test
+    public void derivesDurationsAndCompositionsFromReorderedFrames() throws Exception {
+        Track track = createVideoTrack();
+        long[] presentationTimes = {0, 3, 1, 2, 6, 4, 5};
+        for (int a = 0; a < presentationTimes.length; a++) {
+            addSample(track, a * 100, 100, presentationTimes[a] * FRAME_DURATION * 1000000 / 90000, a == 0);
+        }
+        track.prepare();
+        long[] durations = new long[presentationTimes.length];
+        Arrays.fill(durations, FRAME_DURATION);
+        assertArrayEquals(durations, track.getSampleDurations());
+        assertEquals(FRAME_DURATION * presentationTimes.length, track.getDuration());
+        int[] compositions = track.getSampleCompositions();
+        for (int a = 0; a < presentationTimes.length; a++) {
+            assertEquals((presentationTimes[a] - a) * FRAME_DURATION, compositions[a]);
+        }
+        assertFalse(track.hasEditList());
+    }
+
+    @Test
+    public void truncatesSamplesAndSyncSamples() throws Exception {
+        Track track = createVideoTrack();
+        for (int a = 0; a < 90; a++) {
+            addSample(track, a * 100, 100, a * TestFormats.FRAME_DURATION_US, a % TestFormats.FRAME_RATE == 0);
+        }
+        track.truncate(TestFormats.FRAME_RATE * 2);
+        assertEquals(TestFormats.FRAME_RATE * 2, track.getSampleCount());
+        assertEquals(2, track.getSyncSamplesCount());
+        track.truncate(TestFormats.FRAME_RATE * 2 + 1);
+        assertEquals(TestFormats.FRAME_RATE * 2, track.getSampleCount());
+    }
+
+    @Test
+    public void recordsSampleDescriptionPerSample() throws Exception {
+        Track track = createVideoTrack();
+        addSample(track, 0, 100, 0, true);
+        assertEquals(-1, track.findSampleDescription(TestFormats.createVideoFormat(640, 360)));
+        int index = track.addSampleDescription(TestFormats.createVideoFormat(640, 360));
+        assertEquals(2, index);
+        assertEquals(index, track.findSampleDescription(TestFormats.createVideoFormat(640, 360)));
+        track.setSampleDescriptionIndex(index);
+        addSample(track, 100, 100, TestFormats.FRAME_DURATION_US, true);
+        track.setSampleDescriptionIndex(1);
+        addSample(track, 200, 100, TestFormats.FRAME_DURATION_US * 2, false);
+        assertEquals(1, track.getSampleDescriptionIndex(0));
+        assertEquals(2, track.getSampleDescriptionIndex(1));
+        assertEquals(1, track.getSampleDescriptionIndex(2));
+    }
+}
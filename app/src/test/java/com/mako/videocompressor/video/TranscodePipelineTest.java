@@ -0,0 +1,125 @@
+package com.mako.videocompressor.video;
+
+import android.media.MediaFormat;
+
+import com.mako.videocompressor.MediaController;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Runs the pipelined stages off-device: synthetic codecs stand in for MediaCodec, MP4Builder writes the source and
+// the output, and Mp4Demuxer reads both back.
+@RunWith(RobolectricTestRunner.class)
+public class TranscodePipelineTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 360;
+    private static final int FRAME_RATE = TestFormats.FRAME_RATE;
+    private static final int FRAMES_COUNT = 90;
+    private static final int AUDIO_FRAMES_COUNT = 130;
+    private static final long FRAME_DURATION_US = TestFormats.FRAME_DURATION_US;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File createSource() throws Exception {
+        File file = folder.newFile("source.mp4");
+        TestFormats.writeMovie(file, WIDTH, HEIGHT, FRAMES_COUNT, AUDIO_FRAMES_COUNT);
+        return file;
+    }
+
+    private TranscodePipeline createPipeline(SyntheticCodecFactory factory, Mp4Demuxer demuxer, MP4Builder muxer) {
+        int videoTrackIndex = demuxer.findTrack(false);
+        Mp4Demuxer.TrackInfo track = demuxer.getTrack(videoTrackIndex);
+        TranscodePipeline pipeline = new TranscodePipeline(factory, demuxer, muxer, videoTrackIndex);
+        pipeline.fromSample = 0;
+        pipeline.toSample = track.getSampleCount();
+        pipeline.durationS = track.getDurationUs() / 1000000f;
+        pipeline.videoFormat = MediaFormat.createVideoFormat(track.mime, track.width, track.height);
+        MediaFormat outputFormat = MediaFormat.createVideoFormat(MediaController.VIDEO_MIME_TYPE, WIDTH / 2, HEIGHT / 2);
+        outputFormat.setInteger(MediaFormat.KEY_BIT_RATE, 400000);
+        outputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        outputFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 2);
+        pipeline.outputFormat = outputFormat;
+        pipeline.surfaceWidth = WIDTH / 2;
+        pipeline.surfaceHeight = HEIGHT / 2;
+        pipeline.framerate = FRAME_RATE;
+        pipeline.audioTrackIndex = demuxer.findTrack(true);
+        pipeline.muxerAudioTrackIndex = muxer.addTrack(TestFormats.createAudioFormat(), true);
+        return pipeline;
+    }
+
+    private MP4Builder createMuxer(File file) throws Exception {
+        Mp4Movie movie = new Mp4Movie();
+        movie.setCacheFile(file);
+        movie.setSize(WIDTH / 2, HEIGHT / 2);
+        return new MP4Builder().createMovie(movie, true);
+    }
+
+    @Test
+    public void transcodesVideoAndPassesAudioThrough() throws Exception {
+        File output = folder.newFile("output.mp4");
+        SyntheticCodecFactory factory = new SyntheticCodecFactory();
+        factory.setLatency(1000);
+        try (Mp4Demuxer demuxer = new Mp4Demuxer(createSource())) {
+            MP4Builder muxer = createMuxer(output);
+            TranscodePipeline pipeline = createPipeline(factory, demuxer, muxer);
+            assertEquals(1, pipeline.run());
+            muxer.finishMovie();
+            assertEquals(FRAMES_COUNT, factory.getEncodedUnits());
+            assertEquals(FRAMES_COUNT + AUDIO_FRAMES_COUNT, pipeline.getPacketsCount(TranscodePipeline.STAGE_MUX));
+            assertEquals("synthetic.encoder." + MediaController.VIDEO_MIME_TYPE, pipeline.getEncoderName());
+
+            try (Mp4Demuxer result = new Mp4Demuxer(output)) {
+                Mp4Demuxer.TrackInfo video = result.getTrack(result.findTrack(false));
+                assertEquals(WIDTH / 2, video.width);
+                assertEquals(HEIGHT / 2, video.height);
+                assertEquals(FRAMES_COUNT, video.getSampleCount());
+                assertTrue(video.isSyncSample(0));
+                assertFalse(video.isSyncSample(FRAME_RATE));
+                assertTrue(video.isSyncSample(FRAME_RATE * 2));
+                assertEquals(FRAME_DURATION_US * (FRAMES_COUNT - 1), video.getSampleTimeUs(FRAMES_COUNT - 1), 1000);
+
+                int sourceAudioIndex = demuxer.findTrack(true);
+                Mp4Demuxer.TrackInfo audio = result.getTrack(result.findTrack(true));
+                assertEquals(AUDIO_FRAMES_COUNT, audio.getSampleCount());
+                for (int a = 0; a < AUDIO_FRAMES_COUNT; a += 43) {
+                    assertEquals(demuxer.readSample(sourceAudioIndex, a), result.readSample(result.findTrack(true), a));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void stopsAtEndTime() throws Exception {
+        File output = folder.newFile("output.mp4");
+        SyntheticCodecFactory factory = new SyntheticCodecFactory();
+        long endTime = 1500000;
+        try (Mp4Demuxer demuxer = new Mp4Demuxer(createSource())) {
+            MP4Builder muxer = createMuxer(output);
+            TranscodePipeline pipeline = createPipeline(factory, demuxer, muxer);
+            pipeline.endTime = endTime;
+            pipeline.run();
+            muxer.finishMovie();
+
+            Mp4Demuxer.TrackInfo sourceAudio = demuxer.getTrack(demuxer.findTrack(true));
+            int audioFramesCount = 0;
+            while (sourceAudio.getSampleTimeUs(audioFramesCount) < endTime) {
+                audioFramesCount++;
+            }
+            try (Mp4Demuxer result = new Mp4Demuxer(output)) {
+                assertEquals(endTime / FRAME_DURATION_US + 1, result.getTrack(result.findTrack(false)).getSampleCount());
+                assertEquals(audioFramesCount, result.getTrack(result.findTrack(true)).getSampleCount());
+            }
+        }
+    }
+}